@@ -0,0 +1,20 @@
+#!/bin/sh
+# Compiles the framework-independent app sources together with the benchmarks, checks the
+# allocation budgets of the hot paths, and runs the given benchmark class, e.g.:
+# benchmark/run.sh MotionFeatureBenchmark
+# Stops if the sources compile with warnings, or with status 1 if a path is over its allocation
+# budget. Without a class it only checks the budgets.
+set -e
+cd "$(dirname "$0")/.."
+OUT=${TMPDIR:-/tmp}/sense-app-benchmark
+mkdir -p $OUT
+SOURCES=$(grep -L -r -e "^import android\." -e "^import nl\.sense_os\.service" \
+    -e "^import nl\.sense_os\.platform" -e "^import nl\.sense_os\.app\.R;" \
+    --include=*.java src)
+javac -Xlint:all -Werror -d $OUT $SOURCES $(find benchmark/src -name '*.java')
+CLASS=${1:-AllocationBudgets}
+if [ "$CLASS" != AllocationBudgets ]; then
+    java -cp $OUT nl.sense_os.app.benchmark.AllocationBudgets
+fi
+[ $# -gt 0 ] && shift
+java -cp $OUT nl.sense_os.app.benchmark.$CLASS "$@"
@@ -0,0 +1,247 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Recorded or synthetic accelerometer traces for the fall detection replay.<br/>
+ * <br/>
+ * A trace file is CSV with one sample per line: <code>time,x,y,z[,fall]</code>, with the time in
+ * milliseconds and the acceleration in m/s^2. The optional last column is 1 for the samples of a
+ * real fall (free fall and impact), and 0 otherwise. Lines starting with <code>#</code> and lines
+ * that do not start with a number (headers) are skipped.
+ */
+public class AccelerationTraces {
+
+    /**
+     * One trace, stored in primitive arrays.
+     */
+    public static class Trace {
+        public final String name;
+        public final long[] times;
+        public final float[] values;
+        public final boolean[] falls;
+        public final int count;
+
+        Trace(String name, long[] times, float[] values, boolean[] falls, int count) {
+            this.name = name;
+            this.times = times;
+            this.values = values;
+            this.falls = falls;
+            this.count = count;
+        }
+
+        /**
+         * @return Duration of the trace in milliseconds
+         */
+        public long getDuration() {
+            return count > 1 ? times[count - 1] - times[0] : 0;
+        }
+    }
+
+    private static final float G = 9.80665f;
+
+    /**
+     * Growable primitive arrays to build a trace.
+     */
+    private static class Builder {
+        long[] times = new long[1024];
+        float[] values = new float[3 * 1024];
+        boolean[] falls = new boolean[1024];
+        int count;
+
+        void add(long time, float x, float y, float z, boolean fall) {
+            if (count == times.length) {
+                int size = 2 * count;
+                times = Arrays.copyOf(times, size);
+                values = Arrays.copyOf(values, 3 * size);
+                falls = Arrays.copyOf(falls, size);
+            }
+            times[count] = time;
+            values[3 * count] = x;
+            values[3 * count + 1] = y;
+            values[3 * count + 2] = z;
+            falls[count] = fall;
+            count++;
+        }
+
+        Trace build(String name) {
+            return new Trace(name, times, values, falls, count);
+        }
+    }
+
+    /**
+     * Reads trace files. Directories are searched for <code>.csv</code> files.
+     */
+    public static List<Trace> read(List<File> files) throws IOException {
+        List<Trace> traces = new ArrayList<Trace>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                List<File> children = new ArrayList<File>();
+                File[] list = file.listFiles();
+                if (null != list) {
+                    for (File child : list) {
+                        if (child.isDirectory() || child.getName().endsWith(".csv")) {
+                            children.add(child);
+                        }
+                    }
+                }
+                traces.addAll(read(children));
+            } else {
+                traces.add(readFile(file));
+            }
+        }
+        return traces;
+    }
+
+    private static Trace readFile(File file) throws IOException {
+        Builder builder = new Builder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                line = line.trim();
+                if (line.length() == 0 || !Character.isDigit(line.charAt(0))) {
+                    continue;
+                }
+                String[] columns = line.split(",");
+                if (columns.length < 4) {
+                    throw new IOException("Expected time,x,y,z in " + file + ": " + line);
+                }
+                builder.add(Long.parseLong(columns[0].trim()), Float.parseFloat(columns[1]),
+                        Float.parseFloat(columns[2]), Float.parseFloat(columns[3]),
+                        columns.length > 4 && "1".equals(columns[4].trim()));
+            }
+        } finally {
+            reader.close();
+        }
+        return builder.build(file.getName());
+    }
+
+    /**
+     * Synthesizes traces of daily activity: standing still, walking, running, jumps and hard
+     * sit-downs (which look like small falls), with a few real falls mixed in.
+     *
+     * @param count
+     *            Number of traces
+     * @param minutes
+     *            Length of each trace
+     * @param sampleRate
+     *            Sample rate in Hz
+     * @param seed
+     *            Seed for the random generator, so runs are reproducible
+     */
+    public static List<Trace> synthesize(int count, int minutes, int sampleRate, long seed) {
+        Random random = new Random(seed);
+        List<Trace> traces = new ArrayList<Trace>(count);
+        long interval = 1000 / sampleRate;
+        for (int t = 0; t < count; t++) {
+            Builder builder = new Builder();
+            long time = 0;
+            long end = minutes * 60 * 1000L;
+            while (time < end) {
+                // pick the next activity segment
+                int activity = random.nextInt(100);
+                long duration = 2000 + random.nextInt(20000);
+                if (activity < 3) {
+                    time = fall(builder, random, time, interval);
+                } else if (activity < 8) {
+                    time = jump(builder, random, time, interval);
+                } else if (activity < 13) {
+                    time = sitDown(builder, random, time, interval);
+                } else if (activity < 40) {
+                    time = still(builder, random, time, duration, interval);
+                } else if (activity < 85) {
+                    time = walk(builder, random, time, duration, interval, 1.8f, 0.35f);
+                } else {
+                    time = walk(builder, random, time, duration, interval, 2.7f, 1.2f);
+                }
+            }
+            traces.add(builder.build("synthetic-" + t));
+        }
+        return traces;
+    }
+
+    private static long fall(Builder builder, Random random, long time, long interval) {
+        // free fall of 200 to 500 ms, an impact peak and lying still
+        long freeFall = 200 + random.nextInt(300);
+        for (long t = 0; t < freeFall; t += interval) {
+            float g = 0.05f + 0.1f * random.nextFloat();
+            builder.add(time, noise(random, 0.3f), g * G, noise(random, 0.3f), true);
+            time += interval;
+        }
+        float impact = 3f + 4f * random.nextFloat();
+        builder.add(time, noise(random, 3f), impact * G, noise(random, 3f), true);
+        time += interval;
+        builder.add(time, noise(random, 2f), 1.5f * G, noise(random, 2f), true);
+        time += interval;
+        return still(builder, random, time, 3000, interval);
+    }
+
+    private static long jump(Builder builder, Random random, long time, long interval) {
+        // take-off, short flight and a landing that is softer than a fall
+        for (int i = 0; i < 5; i++) {
+            builder.add(time, noise(random, 1f), 1.6f * G + noise(random, 1f), noise(random, 1f),
+                    false);
+            time += interval;
+        }
+        long flight = 60 + random.nextInt(80);
+        for (long t = 0; t < flight; t += interval) {
+            builder.add(time, noise(random, 0.5f), 0.3f * G, noise(random, 0.5f), false);
+            time += interval;
+        }
+        float landing = 1.5f + 1.3f * random.nextFloat();
+        builder.add(time, noise(random, 2f), landing * G, noise(random, 2f), false);
+        time += interval;
+        return still(builder, random, time, 500, interval);
+    }
+
+    private static float noise(Random random, float sigma) {
+        return (float) random.nextGaussian() * sigma;
+    }
+
+    private static long sitDown(Builder builder, Random random, long time, long interval) {
+        // partial unloading while sitting down, then a bump
+        for (int i = 0; i < 10; i++) {
+            builder.add(time, noise(random, 0.5f), 0.6f * G, noise(random, 0.5f), false);
+            time += interval;
+        }
+        float bump = 1.8f + random.nextFloat();
+        builder.add(time, noise(random, 1f), bump * G, noise(random, 1f), false);
+        time += interval;
+        return still(builder, random, time, 1000, interval);
+    }
+
+    private static long still(Builder builder, Random random, long time, long duration,
+            long interval) {
+        for (long t = 0; t < duration; t += interval) {
+            builder.add(time, noise(random, 0.05f), G + noise(random, 0.05f),
+                    noise(random, 0.05f), false);
+            time += interval;
+        }
+        return time;
+    }
+
+    private static long walk(Builder builder, Random random, long time, long duration,
+            long interval, float stepRate, float amplitude) {
+        double phase = random.nextDouble() * 2 * Math.PI;
+        for (long t = 0; t < duration; t += interval) {
+            double angle = phase + 2 * Math.PI * stepRate * t / 1000.0;
+            float vertical = (float) (G * (1 + amplitude * Math.sin(angle)));
+            builder.add(time, noise(random, 0.8f), vertical + noise(random, 0.5f),
+                    noise(random, 0.8f), false);
+            time += interval;
+        }
+        return time;
+    }
+
+    private AccelerationTraces() {
+        // class should not be instantiated
+    }
+}
@@ -0,0 +1,288 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import nl.sense_os.app.commonsense.UploadMessage;
+import nl.sense_os.app.export.BinaryRowEncoder;
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.app.motion.AccelerationStream;
+import nl.sense_os.app.motion.FallDetector;
+import nl.sense_os.app.motion.MotionFeatureExtractor;
+import nl.sense_os.app.phonestate.EventCoalescer;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Checks the allocations of the hot paths of the sensor, ingest, export and upload chain, and of
+ * the status updates of the main screen and the widget, against a budget per operation, because
+ * garbage collections on older phones make the screens jank.
+ * Each path runs for a number of operations after a warmup, and the bytes that the thread
+ * allocated per operation (HotSpot only) must stay within the budget of the path. Most budgets
+ * are 0: the path should not allocate at all once it is warm.<br/>
+ * <br/>
+ * Usage: <code>AllocationBudgets [--slack bytes]</code>. Exits with status 1 if a path allocates
+ * more than its budget plus the slack (default 8 bytes, for the measurement itself), so it can
+ * fail a build; <code>benchmark/run.sh</code> runs it before every benchmark. When a path
+ * allocates less than its budget, lower the budget in {@link #main(String[])}.<br/>
+ * <br/>
+ * The views, resources and preferences of the screens are Android classes, so the status paths
+ * cover the work of the app around them: decoding the status with {@link StatusFixtures} and
+ * reading the sample rates with {@link SampleIntervals}.
+ */
+public class AllocationBudgets {
+
+    /**
+     * Hot path with its budget.
+     */
+    private static class Path {
+        final String name;
+        final double budget;
+        final int ops;
+        final BenchmarkRunner.Operation op;
+
+        Path(String name, double budget, int ops, BenchmarkRunner.Operation op) {
+            this.name = name;
+            this.budget = budget;
+            this.ops = ops;
+            this.op = op;
+        }
+    }
+
+    /**
+     * Output that only counts.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+    }
+
+    private static final int SAMPLES = 4096;
+    private static final String[] SENSORS = { "accelerometer", "light", "noise_sensor",
+            "position", "battery sensor", "signal strength" };
+    private static final String[] VALUES = { "{\"x-axis\":0.12,\"y-axis\":9.7,\"z-axis\":0.4}",
+            "{\"lux\":312.5}", "48.21", "{\"longitude\":4.47,\"latitude\":51.92}",
+            "{\"status\":\"discharging\",\"level\":\"81%\"}",
+            "{\"GSM signal strength\":-87,\"GSM bit error rate\":-1}" };
+    private static final String[] TYPES = { "json", "json", "float", "json", "json", "json" };
+
+    public static void main(String[] args) throws IOException {
+        double slack = 8;
+        for (int i = 0; i < args.length; i++) {
+            if ("--slack".equals(args[i])) {
+                slack = Double.parseDouble(args[++i]);
+            }
+        }
+        if (BenchmarkRunner.allocatedBytes() < 0) {
+            System.out.println("This JVM does not count allocated bytes");
+            System.exit(1);
+        }
+
+        final float[] xs = new float[SAMPLES];
+        final float[] ys = new float[SAMPLES];
+        final float[] zs = new float[SAMPLES];
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            double t = i / 50.0;
+            xs[i] = (float) (0.5 * Math.sin(2 * Math.PI * 2 * t) + 0.1 * random.nextGaussian());
+            ys[i] = (float) (0.3 * Math.cos(2 * Math.PI * 2 * t) + 0.1 * random.nextGaussian());
+            zs[i] = (float) (9.81 + 1.5 * Math.sin(2 * Math.PI * 2 * t) + 0.1 * random
+                    .nextGaussian());
+        }
+        List<Path> paths = new ArrayList<Path>();
+
+        // sensors
+        final AccelerationStream stream = new AccelerationStream(256);
+        final AccelerationStream.Sink drain = new AccelerationStream.Sink() {
+
+            @Override
+            public void onSample(long time, float x, float y, float z) {
+                // drop
+            }
+        };
+        paths.add(new Path("sensor: acceleration stream sample", 0, 100000,
+                new BenchmarkRunner.Operation() {
+                    private int mIndex;
+
+                    @Override
+                    public long run() {
+                        int i = mIndex++ & (SAMPLES - 1);
+                        stream.offer(mIndex, xs[i], ys[i], zs[i]);
+                        return (i & 63) == 0 ? stream.drain(drain) : 0;
+                    }
+                }));
+        final MotionFeatureExtractor extractor = new MotionFeatureExtractor(128, 64, 50f);
+        paths.add(new Path("sensor: motion features sample", 0, 100000,
+                new BenchmarkRunner.Operation() {
+                    private int mIndex;
+
+                    @Override
+                    public long run() {
+                        int i = mIndex++ & (SAMPLES - 1);
+                        return extractor.addSample(xs[i], ys[i], zs[i]) ? 1 : 0;
+                    }
+                }));
+        final FallDetector detector = new FallDetector(FallDetector.Config.normal());
+        paths.add(new Path("sensor: fall detector sample", 0, 100000,
+                new BenchmarkRunner.Operation() {
+                    private int mIndex;
+
+                    @Override
+                    public long run() {
+                        int i = mIndex++ & (SAMPLES - 1);
+                        return detector.addSample(mIndex * 20000000L, xs[i], ys[i], zs[i]) ? 1
+                                : 0;
+                    }
+                }));
+        final EventCoalescer coalescer = new EventCoalescer(new EventCoalescer.Sink() {
+
+            @Override
+            public void onEvent(String type, String value, long time, int merged) {
+                // drop
+            }
+        });
+        coalescer.setRule("signal strength", 10000, 4);
+        final String[] strengths = new String[20];
+        for (int i = 0; i < strengths.length; i++) {
+            strengths[i] = Integer.toString(-113 + 2 * i);
+        }
+        paths.add(new Path("sensor: phone state event", 0, 100000,
+                new BenchmarkRunner.Operation() {
+                    private int mIndex;
+
+                    @Override
+                    public long run() {
+                        int i = mIndex++;
+                        long time = i * 100L;
+                        coalescer.offer("signal strength", strengths[i % 20], -113 + 2 * (i % 20),
+                                time);
+                        if (time >= coalescer.nextDeadline()) {
+                            coalescer.flush(time);
+                        }
+                        return coalescer.getRaw();
+                    }
+                }));
+
+        // ingest, with the metrics of DataPoints.send
+        final MetricsRegistry registry = MetricsRegistry.getInstance();
+        final LatencyHistogram handOff = registry.histogram("persist/hand-off (us)");
+        final MetricsRegistry.Family ingest = registry.family("ingest/");
+        paths.add(new Path("ingest: metrics per sample", 0, 100000,
+                new BenchmarkRunner.Operation() {
+                    private int mIndex;
+
+                    @Override
+                    public long run() {
+                        int i = mIndex++ % SENSORS.length;
+                        handOff.record(i * 10);
+                        ingest.counter(SENSORS[i]).increment();
+                        return i;
+                    }
+                }));
+
+        // export
+        final BinaryRowEncoder encoder = new BinaryRowEncoder(new CountingOutputStream());
+        paths.add(new Path("export: binary row", 0, 100000, new BenchmarkRunner.Operation() {
+            private int mIndex;
+
+            @Override
+            public long run() {
+                int i = mIndex++ % SENSORS.length;
+                try {
+                    encoder.writeRow(SENSORS[i], 1384250000000L + mIndex, VALUES[i]);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return i;
+            }
+        }));
+
+        // upload: a message of 100 points per 100 operations, with its JSON
+        final UploadMessage message = new UploadMessage();
+        paths.add(new Path("upload: message point", 0, 100000, new BenchmarkRunner.Operation() {
+            private int mIndex;
+
+            @Override
+            public long run() {
+                int i = mIndex++ % SENSORS.length;
+                message.add(SENSORS[i], TYPES[i], VALUES[i], 1384250000000L + mIndex);
+                if (message.getCount() == 100) {
+                    int length = message.toJson().length();
+                    message.clear();
+                    return length;
+                }
+                return i;
+            }
+        }));
+
+        // status: the render of the main screen and the update of the widget
+        final int[] statuses = StatusFixtures.statuses();
+        final Map<String, String> prefs = new HashMap<String, String>();
+        prefs.put("sample rate", "0");
+        prefs.put("sync rate", "-1");
+        prefs.put(SampleIntervals.getRateKey(SampleIntervals.MOTION), "-1");
+        final boolean[] active = new boolean[StatusFixtures.MODULE_COUNT];
+        paths.add(new Path("ui: main screen status", 0, 100000,
+                new BenchmarkRunner.Operation() {
+                    private int mIndex;
+
+                    @Override
+                    public long run() {
+                        long result = StatusFixtures.decode(statuses[mIndex++ & 7], active) ? 1
+                                : 0;
+                        String rate = prefs.get("sample rate");
+                        for (int module = 0; module < SampleIntervals.MODULE_COUNT; module++) {
+                            String override = prefs.get(SampleIntervals.getRateKey(module));
+                            result += SampleIntervals.resolveRate(rate, override);
+                        }
+                        return result + SampleIntervals.parseRate(prefs.get("sync rate"));
+                    }
+                }));
+        paths.add(new Path("ui: widget update", 0, 100000, new BenchmarkRunner.Operation() {
+            private int mIndex;
+
+            @Override
+            public long run() {
+                int status = statuses[mIndex++ & 7];
+                long result = 0;
+                // the widget has no button for the external sensors
+                for (int module = 0; module < StatusFixtures.EXTERNAL; module++) {
+                    result += StatusFixtures.isActive(status, module) ? 1 : 0;
+                }
+                return result + SampleIntervals.parseRate(prefs.get("sample rate"))
+                        + SampleIntervals.parseRate(prefs.get("sync rate"));
+            }
+        }));
+
+        BenchmarkRunner runner = new BenchmarkRunner(10, 5);
+        int failures = 0;
+        for (Path path : paths) {
+            BenchmarkRunner.Result result = runner.run(path.name, path.ops, path.op);
+            if (result.bytesPerOp > path.budget + slack) {
+                failures++;
+                System.out.printf("  OVER BUDGET: %.1f B/op, budget %.1f B/op%n",
+                        result.bytesPerOp, path.budget);
+            }
+        }
+        System.out.println("(sink " + runner.getSink() + ")");
+        if (failures > 0) {
+            System.out.println(failures + " paths over budget");
+            System.exit(1);
+        }
+        System.out.println("All paths within budget");
+    }
+}
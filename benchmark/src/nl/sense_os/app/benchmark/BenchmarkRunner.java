@@ -0,0 +1,233 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import nl.sense_os.app.commonsense.Json;
+
+/**
+ * Minimal micro-benchmark runner for the desktop JVM. Each benchmark runs a number of warmup
+ * iterations, then a number of measured iterations of a fixed number of operations. Reports the
+ * median time per operation and the number of bytes allocated per operation by the benchmark
+ * thread (HotSpot only).<br/>
+ * <br/>
+ * The results can be written to a JSON file with {@link #writeJson(File, String)}, and compared
+ * with the file of an earlier release with {@link #compare(Map, double)}.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * A benchmarked operation.
+     */
+    public interface Operation {
+
+        /**
+         * Performs one operation.
+         *
+         * @return Some result of the operation, to keep the JIT from removing the work
+         */
+        long run();
+    }
+
+    /**
+     * Result of one benchmark.
+     */
+    public static class Result {
+        public final String name;
+        public final double nsPerOp;
+        public final double bytesPerOp;
+
+        Result(String name, double nsPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nsPerOp = nsPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %12.1f ns/op %10.1f B/op", name, nsPerOp, bytesPerOp);
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @return The number of bytes allocated by the current thread, or -1 if not supported
+     */
+    public static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread
+                    .currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the results from a file written by {@link #writeJson(File, String)}.
+     *
+     * @return The results by name
+     */
+    public static Map<String, Result> readJson(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        String text;
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+            text = new String(bytes, "UTF-8");
+        } finally {
+            in.close();
+        }
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        try {
+            for (Object item : (List<?>) Json.parseObject(text).get("results")) {
+                Map<?, ?> result = (Map<?, ?>) item;
+                String name = (String) result.get("name");
+                results.put(name, new Result(name, ((Number) result.get("ns_per_op"))
+                        .doubleValue(), ((Number) result.get("bytes_per_op")).doubleValue()));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid results in " + file + ": " + e);
+        }
+        return results;
+    }
+
+    private final int mWarmupIterations;
+    private final int mIterations;
+    private final List<Result> mResults = new ArrayList<Result>();
+    private long mSink;
+
+    public BenchmarkRunner(int warmupIterations, int iterations) {
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+    /**
+     * Prints the change of each result against a baseline.
+     *
+     * @param baseline
+     *            Results of an earlier run, see {@link #readJson(File)}
+     * @param tolerance
+     *            Relative slowdown that counts as a regression, e.g. 0.2 for 20%
+     * @return The number of regressions
+     */
+    public int compare(Map<String, Result> baseline, double tolerance) {
+        int regressions = 0;
+        for (Result result : mResults) {
+            Result base = baseline.get(result.name);
+            if (null == base) {
+                System.out.printf("%-40s %12s%n", result.name, "new");
+                continue;
+            }
+            double change = result.nsPerOp / base.nsPerOp - 1;
+            boolean regression = change > tolerance;
+            if (regression) {
+                regressions++;
+            }
+            System.out.printf("%-40s %+11.1f%% %+10.1f B/op%s%n", result.name, change * 100,
+                    result.bytesPerOp - base.bytesPerOp, regression ? "  REGRESSION" : "");
+        }
+        return regressions;
+    }
+
+    public List<Result> getResults() {
+        return mResults;
+    }
+
+    /**
+     * Runs a benchmark and prints the result.
+     *
+     * @param name
+     *            Name of the benchmark
+     * @param opsPerIteration
+     *            Number of operations per measured iteration
+     * @param op
+     *            The operation
+     * @return The result
+     */
+    public Result run(String name, int opsPerIteration, Operation op) {
+        for (int i = 0; i < mWarmupIterations; i++) {
+            for (int j = 0; j < opsPerIteration; j++) {
+                mSink += op.run();
+            }
+        }
+
+        double[] times = new double[mIterations];
+        long allocated = 0;
+        for (int i = 0; i < mIterations; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int j = 0; j < opsPerIteration; j++) {
+                mSink += op.run();
+            }
+            times[i] = (double) (System.nanoTime() - start) / opsPerIteration;
+            allocated += allocatedBytes() - bytesBefore;
+        }
+        Arrays.sort(times);
+
+        Result result = new Result(name, times[mIterations / 2], (double) allocated
+                / ((long) mIterations * opsPerIteration));
+        mResults.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * @return The accumulated results of all operations, so they cannot be optimized away
+     */
+    public long getSink() {
+        return mSink;
+    }
+
+    /**
+     * Writes the results as JSON, to track regressions between releases, e.g.
+     *
+     * <pre>
+     * {"suite":"DataPathBenchmark","java":"1.8.0_392","os":"Linux amd64","time":1384250000000,
+     * "results":[{"name":"gzip: upload message","ns_per_op":51234.5,"bytes_per_op":1040.0},...]}
+     * </pre>
+     */
+    public void writeJson(File file, String suite) throws IOException {
+        StringBuilder json = new StringBuilder("{\"suite\":");
+        Json.appendQuoted(json, suite);
+        json.append(",\"java\":");
+        Json.appendQuoted(json, System.getProperty("java.version"));
+        json.append(",\"os\":");
+        Json.appendQuoted(json, System.getProperty("os.name") + " "
+                + System.getProperty("os.arch"));
+        json.append(",\"time\":").append(System.currentTimeMillis()).append(",\"results\":[");
+        for (int i = 0; i < mResults.size(); i++) {
+            Result result = mResults.get(i);
+            json.append(i > 0 ? ",\n" : "\n").append("{\"name\":");
+            Json.appendQuoted(json, result.name);
+            json.append(String.format(Locale.US, ",\"ns_per_op\":%.1f,\"bytes_per_op\":%.1f}",
+                    result.nsPerOp, result.bytesPerOp));
+        }
+        json.append("\n]}\n");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+}
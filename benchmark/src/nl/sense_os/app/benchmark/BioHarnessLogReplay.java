@@ -0,0 +1,202 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import nl.sense_os.app.external.BioHarnessLogDownload;
+import nl.sense_os.app.external.ZephyrParser;
+
+/**
+ * Downloads a simulated BioHarness log with {@link BioHarnessLogDownload}, and compares the time
+ * the Bluetooth link is busy with streaming the same hours live. The simulated strap answers the
+ * logging commands from sessions of general data records, and drops a share of its replies, so
+ * the download must retry.<br/>
+ * <br/>
+ * Usage: <code>BioHarnessLogReplay [--hours n] [--sessions n] [--loss percentage]
+ * [--rate bytes/s]</code>. The default link rate of 10 kB/s is a conservative Bluetooth serial
+ * port throughput.
+ */
+public class BioHarnessLogReplay {
+
+    /**
+     * Simulated strap: parses the commands and queues the replies.
+     */
+    private static class Strap implements BioHarnessLogDownload.Link, ZephyrParser.Listener {
+        final byte[][] mSessions;
+        final ZephyrParser mParser = new ZephyrParser();
+        final Random mRandom = new Random(3);
+        final int mLoss;
+        ByteArrayOutputStream mReplies = new ByteArrayOutputStream();
+        long mSent;
+        long mReceived;
+        int mDeleted;
+
+        Strap(byte[][] sessions, int loss) {
+            mSessions = sessions;
+            mLoss = loss;
+        }
+
+        @Override
+        public void send(ByteBuffer frame) throws IOException {
+            mReceived += frame.remaining();
+            mParser.parse(frame, this);
+        }
+
+        private void reply(int id, byte[] payload) {
+            reply(id, payload, ZephyrParser.ACK);
+        }
+
+        private void reply(int id, byte[] payload, int terminator) {
+            if (mRandom.nextInt(100) < mLoss) {
+                return;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ZephyrFixtures.frame(out, id, payload);
+            byte[] frame = out.toByteArray();
+            frame[frame.length - 1] = (byte) terminator;
+            mReplies.write(frame, 0, frame.length);
+            mSent += frame.length;
+        }
+
+        @Override
+        public void onFrame(int id, ByteBuffer buffer, int offset, int length, int terminator) {
+            ByteBuffer payload;
+            switch (id) {
+            case BioHarnessLogDownload.GET_SESSION_COUNT:
+                reply(id, new byte[] { (byte) mSessions.length });
+                break;
+            case BioHarnessLogDownload.GET_SESSION_INFO:
+                byte[] session = mSessions[buffer.get(offset)];
+                payload = ByteBuffer.allocate(13);
+                payload.put(buffer.get(offset));
+                // start time: the time of the first record
+                payload.put(session, 1, 8);
+                payload.put((byte) session.length).put((byte) (session.length >> 8))
+                        .put((byte) (session.length >> 16)).put((byte) (session.length >> 24));
+                reply(id, payload.array());
+                break;
+            case BioHarnessLogDownload.GET_SESSION_DATA:
+                byte[] data = mSessions[buffer.get(offset)];
+                int start = (buffer.get(offset + 1) & 0xff) | (buffer.get(offset + 2) & 0xff) << 8
+                        | (buffer.get(offset + 3) & 0xff) << 16
+                        | (buffer.get(offset + 4) & 0xff) << 24;
+                int count = Math.min(BioHarnessLogDownload.MAX_CHUNK, data.length - start);
+                payload = ByteBuffer.allocate(4 + count);
+                for (int i = 1; i <= 4; i++) {
+                    payload.put(buffer.get(offset + i));
+                }
+                payload.put(data, start, count);
+                reply(id, payload.array());
+                break;
+            case BioHarnessLogDownload.DELETE_SESSION:
+                int index = buffer.get(offset);
+                if (null == mSessions[index]) {
+                    reply(id, new byte[] { (byte) index }, ZephyrParser.NAK);
+                } else {
+                    mSessions[index] = null;
+                    mDeleted++;
+                    reply(id, new byte[] { (byte) index });
+                }
+                break;
+            default:
+            }
+        }
+
+        @Override
+        public void onGeneralData(ZephyrParser.GeneralData data) {
+        }
+
+        @Override
+        public void onHxmData(ZephyrParser.HxmData data) {
+        }
+
+        @Override
+        public void onWaveform(ZephyrParser.Waveform waveform) {
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int hours = 8;
+        int sessionCount = 2;
+        int loss = 1;
+        int rate = 10000;
+        for (int i = 0; i < args.length; i++) {
+            if ("--hours".equals(args[i])) {
+                hours = Integer.parseInt(args[++i]);
+            } else if ("--sessions".equals(args[i])) {
+                sessionCount = Integer.parseInt(args[++i]);
+            } else if ("--loss".equals(args[i])) {
+                loss = Integer.parseInt(args[++i]);
+            } else if ("--rate".equals(args[i])) {
+                rate = Integer.parseInt(args[++i]);
+            }
+        }
+
+        // sessions of 1 Hz general data records
+        byte[][] sessions = new byte[sessionCount][];
+        int seconds = hours * 3600 / sessionCount;
+        for (int s = 0; s < sessionCount; s++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < seconds; i++) {
+                byte[] record = ZephyrFixtures.generalData(i & 0xff, (s * seconds + i) * 1000L,
+                        60 + i % 40);
+                out.write(record, 0, record.length);
+            }
+            sessions[s] = out.toByteArray();
+        }
+
+        Strap strap = new Strap(sessions, loss);
+        final long[] records = new long[1];
+        BioHarnessLogDownload download = new BioHarnessLogDownload(strap,
+                new BioHarnessLogDownload.RecordSink() {
+
+                    @Override
+                    public void onRecord(ZephyrParser.GeneralData record) {
+                        records[0]++;
+                    }
+
+                    @Override
+                    public boolean onSessionComplete(int session, long start, int count) {
+                        return true;
+                    }
+
+                    @Override
+                    public void onSessionStart(int session, long start) {
+                    }
+                }, true);
+
+        ZephyrParser parser = new ZephyrParser();
+        int retries = 0;
+        long start = System.nanoTime();
+        download.start();
+        while (!download.isFinished()) {
+            if (strap.mReplies.size() == 0) {
+                // reply lost: time out and repeat the command
+                retries++;
+                download.retry();
+                continue;
+            }
+            ByteBuffer replies = ByteBuffer.wrap(strap.mReplies.toByteArray());
+            strap.mReplies.reset();
+            parser.parse(replies, download);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long linkBytes = strap.mSent + strap.mReceived;
+        double linkSeconds = (double) linkBytes / rate;
+        // streaming the general data packets live
+        long streamBytes = hours * 3600L * (53 + ZephyrParser.OVERHEAD);
+        System.out.printf("%d hours in %d sessions: %s, %d records, %d sessions deleted%n",
+                hours, sessionCount, download.isDone() ? "complete" : download.getError(),
+                records[0], strap.mDeleted);
+        System.out.printf("Download: %d KiB log, %d KiB over the link, %d retries (%d%% loss)%n",
+                download.getBytes() / 1024, linkBytes / 1024, retries, loss);
+        System.out.printf("Link busy for %.0f s at %d B/s, plus %d retry timeouts%n",
+                linkSeconds, rate, retries);
+        System.out.printf("Streaming: connected for %d s, %d KiB%n", hours * 3600,
+                streamBytes / 1024);
+        System.out.printf("Parsing and decoding: %.1f ms for the whole log%n", elapsed / 1e6);
+    }
+}
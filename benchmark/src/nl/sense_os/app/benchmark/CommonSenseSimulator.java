@@ -0,0 +1,453 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import nl.sense_os.app.commonsense.Json;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Simulated CommonSense API on a local HTTP server, for the {@link
+ * nl.sense_os.app.commonsense.CommonSenseClient} in benchmarks. It implements the calls of the
+ * app and the Sense service with the data that they need:
+ * <ul>
+ * <li><code>POST /login.json</code>: users are added with {@link #addUser}</li>
+ * <li><code>GET /users/current.json</code>: to check a session</li>
+ * <li><code>GET /sensors.json</code>: pages of the sensors of all users, with an entity tag that
+ * changes when a sensor is added</li>
+ * <li><code>POST /sensors.json</code> and <code>POST /sensors/&lt;id&gt;/device.json</code>:
+ * sensor registration</li>
+ * <li><code>POST /sensors/data.json</code>: data upload, optionally gzipped, for registered
+ * sensors only</li>
+ * </ul>
+ * Except for the login, the calls need the session ID of a login, which expires after the
+ * lifetime set with {@link #setSessionLifetime(long)}. Time is modelled on the way:
+ * each request takes the round-trip latency, and the bodies are read and written at the
+ * bandwidth. A fraction of the requests fails with HTTP 503 after the request body was read, like
+ * an overloaded server or a proxy that times out, so a retry sends the body again.
+ */
+public class CommonSenseSimulator {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Sensor that was registered.
+     */
+    private static class Sensor {
+        final String id;
+        final String name;
+        final String description;
+        final String dataType;
+        String deviceType;
+        String deviceUuid;
+
+        Sensor(String id, String name, String description, String dataType) {
+            this.id = id;
+            this.name = name;
+            this.description = description;
+            this.dataType = dataType;
+        }
+    }
+
+    private static String getString(Map<?, ?> map, String key) {
+        Object value = null != map ? map.get(key) : null;
+        return null != value ? value.toString() : null;
+    }
+
+    private static byte[] unzip(byte[] body) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 8);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final long mLatency;
+    private final long mBandwidth;
+    private final double mFailureRate;
+    private final Random mRandom;
+    private final Map<String, String> mUsers = new HashMap<String, String>();
+    /** expiry times by session ID */
+    private final Map<String, Long> mSessions = new HashMap<String, Long>();
+    private final Map<String, Sensor> mSensors = new HashMap<String, Sensor>();
+    private final List<Sensor> mSensorList = new ArrayList<Sensor>();
+    private int mRequests;
+    private int mFailures;
+    private long mPoints;
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mSessionLifetime;
+    private int mExpired;
+
+    /**
+     * Starts the simulator on a free local port.
+     *
+     * @param latency
+     *            Round-trip latency of a request in milliseconds
+     * @param bandwidth
+     *            Bandwidth in bytes per second, in each direction, or 0 for no limit
+     * @param failureRate
+     *            Fraction of the requests that fails, between 0 and 1
+     * @param seed
+     *            Seed of the failures
+     */
+    public CommonSenseSimulator(long latency, long bandwidth, double failureRate, long seed)
+            throws IOException {
+        mLatency = latency;
+        mBandwidth = bandwidth;
+        mFailureRate = failureRate;
+        mRandom = new Random(seed);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+                16);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    respond(exchange, 500, "{\"error\":\"" + e + "\"}");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * Adds a user that can log in.
+     *
+     * @param passwordHash
+     *            MD5 hash of the password, as the client sends it
+     */
+    public synchronized void addUser(String username, String passwordHash) {
+        mUsers.put(username, passwordHash);
+    }
+
+    /**
+     * Stops the server.
+     */
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return The request bytes that were received, including the bodies of failed requests
+     */
+    public synchronized long getBytesIn() {
+        return mBytesIn;
+    }
+
+    /**
+     * @return The response bytes that were sent
+     */
+    public synchronized long getBytesOut() {
+        return mBytesOut;
+    }
+
+    /**
+     * @return The number of requests that were refused because their session had expired
+     */
+    public synchronized int getExpired() {
+        return mExpired;
+    }
+
+    /**
+     * @return The number of requests that failed on purpose
+     */
+    public synchronized int getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return The number of data points that were accepted
+     */
+    public synchronized long getPoints() {
+        return mPoints;
+    }
+
+    public synchronized int getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * @return The base URL of the API, for the client
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    private String login(Map<String, Object> body) {
+        String username = getString(body, "username");
+        String password = getString(body, "password");
+        synchronized (this) {
+            if (null == username || null == password || !password.equals(mUsers.get(username))) {
+                return null;
+            }
+            String sessionId = Long.toHexString(mRandom.nextLong());
+            mSessions.put(sessionId, mSessionLifetime > 0 ? System.currentTimeMillis()
+                    + mSessionLifetime : Long.MAX_VALUE);
+            return sessionId;
+        }
+    }
+
+    /**
+     * Sleeps until the bytes have passed at the bandwidth since the start.
+     */
+    private void pace(long start, long bytes) {
+        if (mBandwidth <= 0) {
+            return;
+        }
+        long wait = start + bytes * 1000 / mBandwidth - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private byte[] read(HttpExchange exchange) throws IOException {
+        long start = System.currentTimeMillis();
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+            pace(start, bytes.size());
+        }
+        synchronized (this) {
+            mBytesIn += bytes.size();
+        }
+        return bytes.toByteArray();
+    }
+
+    private String register(Map<String, Object> body) {
+        Map<?, ?> fields = (Map<?, ?>) body.get("sensor");
+        String name = getString(fields, "name");
+        if (null == name) {
+            return null;
+        }
+        synchronized (this) {
+            Sensor sensor = new Sensor(Integer.toString(mSensorList.size() + 1), name,
+                    getString(fields, "device_type"), getString(fields, "data_type"));
+            mSensors.put(sensor.id, sensor);
+            mSensorList.add(sensor);
+            return sensorJson(new StringBuilder("{\"sensor\":"), sensor).append('}').toString();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int code, String body) throws IOException {
+        if (null == body) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        long start = System.currentTimeMillis();
+        OutputStream out = exchange.getResponseBody();
+        for (int offset = 0; offset < bytes.length; offset += CHUNK_SIZE) {
+            out.write(bytes, offset, Math.min(CHUNK_SIZE, bytes.length - offset));
+            pace(start, Math.min(bytes.length, offset + CHUNK_SIZE));
+        }
+        out.close();
+        synchronized (this) {
+            mBytesOut += bytes.length;
+        }
+    }
+
+    private StringBuilder sensorJson(StringBuilder json, Sensor sensor) {
+        json.append("{\"id\":");
+        Json.appendQuoted(json, sensor.id);
+        json.append(",\"name\":");
+        Json.appendQuoted(json, sensor.name);
+        json.append(",\"device_type\":");
+        Json.appendQuoted(json, sensor.description);
+        json.append(",\"data_type\":");
+        Json.appendQuoted(json, sensor.dataType);
+        if (null != sensor.deviceType) {
+            json.append(",\"device\":{\"type\":");
+            Json.appendQuoted(json, sensor.deviceType);
+            json.append(",\"uuid\":");
+            Json.appendQuoted(json, sensor.deviceUuid);
+            json.append('}');
+        }
+        return json.append('}');
+    }
+
+    /**
+     * Sets the time after which a new session expires, like the sessions of CommonSense that
+     * lapse after a while.
+     *
+     * @param lifetime
+     *            Lifetime in milliseconds, or 0 for sessions that never expire (the default)
+     */
+    public synchronized void setSessionLifetime(long lifetime) {
+        mSessionLifetime = lifetime;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        long start = System.currentTimeMillis();
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        byte[] body = read(exchange);
+        boolean fail;
+        synchronized (this) {
+            mRequests++;
+            fail = mRandom.nextDouble() < mFailureRate;
+            if (fail) {
+                mFailures++;
+            }
+        }
+        long wait = start + mLatency - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (fail) {
+            respond(exchange, 503, "{\"error\":\"simulated failure\"}");
+            return;
+        }
+
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = unzip(body);
+        }
+        Map<String, Object> json = body.length > 0 ? Json.parseObject(new String(body, "UTF-8"))
+                : new HashMap<String, Object>();
+        if ("POST".equals(method) && "/login.json".equals(path)) {
+            String sessionId = login(json);
+            respond(exchange, null != sessionId ? 200 : 403, null != sessionId
+                    ? "{\"session_id\":\"" + sessionId + "\"}" : "{\"error\":\"forbidden\"}");
+            return;
+        }
+        String sessionId = exchange.getRequestHeaders().getFirst("X-SESSION_ID");
+        synchronized (this) {
+            Long expiry = mSessions.get(sessionId);
+            if (null == expiry) {
+                sessionId = null;
+            } else if (expiry < System.currentTimeMillis()) {
+                mSessions.remove(sessionId);
+                mExpired++;
+                sessionId = null;
+            }
+        }
+        if (null == sessionId) {
+            respond(exchange, 403, "{\"error\":\"not logged in\"}");
+        } else if ("GET".equals(method) && "/users/current.json".equals(path)) {
+            respond(exchange, 200, "{\"user\":{\"id\":\"1\"}}");
+        } else if ("GET".equals(method) && "/sensors.json".equals(path)) {
+            sensorList(exchange);
+        } else if ("POST".equals(method) && "/sensors.json".equals(path)) {
+            String sensor = register(json);
+            respond(exchange, null != sensor ? 201 : 400, null != sensor ? sensor
+                    : "{\"error\":\"no sensor name\"}");
+        } else if ("POST".equals(method) && "/sensors/data.json".equals(path)) {
+            respond(exchange, upload(json) ? 201 : 400, null);
+        } else if ("POST".equals(method) && path.startsWith("/sensors/")
+                && path.endsWith("/device.json")) {
+            String id = path.substring("/sensors/".length(), path.length()
+                    - "/device.json".length());
+            Map<?, ?> device = (Map<?, ?>) json.get("device");
+            synchronized (this) {
+                Sensor sensor = mSensors.get(id);
+                if (null == sensor || null == device) {
+                    respond(exchange, 404, "{\"error\":\"no such sensor\"}");
+                    return;
+                }
+                sensor.deviceType = getString(device, "type");
+                sensor.deviceUuid = getString(device, "uuid");
+            }
+            respond(exchange, 201, "{\"device\":{}}");
+        } else {
+            respond(exchange, 404, "{\"error\":\"not found\"}");
+        }
+    }
+
+    private void sensorList(HttpExchange exchange) throws IOException {
+        Map<String, String> query = new HashMap<String, String>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (null != raw) {
+            for (String param : raw.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    query.put(param.substring(0, eq), param.substring(eq + 1));
+                }
+            }
+        }
+        int perPage = query.containsKey("per_page") ? Integer.parseInt(query.get("per_page"))
+                : 100;
+        int page = query.containsKey("page") ? Integer.parseInt(query.get("page")) : 0;
+        StringBuilder json = new StringBuilder("{\"sensors\":[");
+        String eTag;
+        synchronized (this) {
+            eTag = "\"" + mSensorList.size() + "\"";
+            int from = Math.min(page * perPage, mSensorList.size());
+            int to = Math.min(from + perPage, mSensorList.size());
+            for (int i = from; i < to; i++) {
+                if (i > from) {
+                    json.append(',');
+                }
+                sensorJson(json, mSensorList.get(i));
+            }
+        }
+        json.append("]}");
+        exchange.getResponseHeaders().set("ETag", eTag);
+        if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            respond(exchange, 304, null);
+        } else {
+            respond(exchange, 200, json.toString());
+        }
+    }
+
+    /**
+     * Stores the data points of an upload, if all its sensors are registered.
+     */
+    private synchronized boolean upload(Map<String, Object> body) {
+        Object sensors = body.get("sensors");
+        if (!(sensors instanceof List)) {
+            return false;
+        }
+        for (Object item : (List<?>) sensors) {
+            if (!(item instanceof Map) || !mSensors.containsKey(getString((Map<?, ?>) item,
+                    "sensor_id"))) {
+                return false;
+            }
+        }
+        for (Object item : (List<?>) sensors) {
+            Object data = ((Map<?, ?>) item).get("data");
+            mPoints += data instanceof List ? ((List<?>) data).size() : 0;
+        }
+        return true;
+    }
+}
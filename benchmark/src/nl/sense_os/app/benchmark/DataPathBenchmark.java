@@ -0,0 +1,265 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.sense_os.app.commonsense.UploadMessage;
+import nl.sense_os.app.export.BinaryRowDecoder;
+import nl.sense_os.app.export.BinaryRowEncoder;
+import nl.sense_os.app.export.CsvRowEncoder;
+import nl.sense_os.app.export.RowEncoder;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.trace.SampleSink;
+
+/**
+ * Benchmarks the hot spots of the data path with the samples of a synthetic trace (see
+ * {@link SampleTraces}):
+ * <ul>
+ * <li>serialization of the samples to the JSON of an upload, with {@link UploadMessage}, as the
+ * <code>BurstService</code> uploads its bursts</li>
+ * <li>gzip of an upload, as with the compress preference of the Sense service</li>
+ * <li>encoding and decoding of the rows of the exports, in the binary and the CSV format. The
+ * local storage itself is the SQLite database of the Sense service, which is not measured
+ * here</li>
+ * <li>decoding the status bitmask of the Sense service into the rows of the main screen and the
+ * widget, with the bits of {@link StatusFixtures}</li>
+ * <li>snapshots of the preferences, as when the settings screen copies the preferences of the
+ * service, without the calls to the service, and the effective sample intervals of the modules,
+ * from the preferences</li>
+ * </ul>
+ * Usage: <code>DataPathBenchmark [--json file] [--baseline file] [--tolerance n]</code>. With
+ * <code>--json</code> the results are written to a JSON file; with <code>--baseline</code> they
+ * are compared with such a file of an earlier release, and the benchmark exits with status 1 if
+ * a result is more than the tolerance (default 20%) slower.
+ */
+public class DataPathBenchmark {
+
+    private static final int MESSAGE_SIZE = 100;
+
+    private static class Samples implements SampleSink {
+        final List<String> sensors = new ArrayList<String>();
+        final List<String> types = new ArrayList<String>();
+        final List<String> values = new ArrayList<String>();
+        final List<Long> timestamps = new ArrayList<Long>();
+
+        @Override
+        public void onSample(String sensor, String description, String dataType, String value,
+                long timestamp) {
+            sensors.add(sensor);
+            types.add(dataType);
+            values.add(value);
+            timestamps.add(timestamp);
+        }
+
+        int size() {
+            return sensors.size();
+        }
+    }
+
+    /**
+     * Output that only counts, so the encoders are measured without a growing buffer.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+    }
+
+    private static void encode(BenchmarkRunner runner, String name, final RowEncoder encoder,
+            final Samples samples) {
+        runner.run(name, 10000, new BenchmarkRunner.Operation() {
+            private int mIndex;
+
+            @Override
+            public long run() {
+                int i = mIndex++ % samples.size();
+                try {
+                    encoder.writeRow(samples.sensors.get(i), samples.timestamps.get(i),
+                            samples.values.get(i));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return i;
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        File json = null;
+        File baseline = null;
+        double tolerance = 0.2;
+        for (int i = 0; i < args.length; i++) {
+            if ("--json".equals(args[i])) {
+                json = new File(args[++i]);
+            } else if ("--baseline".equals(args[i])) {
+                baseline = new File(args[++i]);
+            } else if ("--tolerance".equals(args[i])) {
+                tolerance = Double.parseDouble(args[++i]) / 100;
+            }
+        }
+
+        final Samples samples = new Samples();
+        SampleTraces.synthesize(samples, 2, 1384250000000L, 42);
+        BenchmarkRunner runner = new BenchmarkRunner(5, 10);
+
+        // serialization
+        final UploadMessage message = new UploadMessage();
+        runner.run("upload json: " + MESSAGE_SIZE + " points", 200,
+                new BenchmarkRunner.Operation() {
+                    private int mIndex;
+
+                    @Override
+                    public long run() {
+                        message.clear();
+                        for (int j = 0; j < MESSAGE_SIZE; j++) {
+                            int i = mIndex++ % samples.size();
+                            message.add(samples.sensors.get(i), samples.types.get(i),
+                                    samples.values.get(i), samples.timestamps.get(i));
+                        }
+                        return message.toJson().length();
+                    }
+                });
+
+        // gzip
+        message.clear();
+        for (int i = 0; i < MESSAGE_SIZE; i++) {
+            message.add(samples.sensors.get(i), samples.types.get(i), samples.values.get(i),
+                    samples.timestamps.get(i));
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(256 * 1024);
+        for (final boolean compress : new boolean[] { false, true }) {
+            runner.run((compress ? "gzip" : "no compression") + ": " + MESSAGE_SIZE + " points",
+                    100, new BenchmarkRunner.Operation() {
+
+                        @Override
+                        public long run() {
+                            body.reset();
+                            try {
+                                message.writeTo(body, compress);
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            return body.size();
+                        }
+                    });
+        }
+
+        // exports
+        encode(runner, "export encode: binary row", new BinaryRowEncoder(
+                new CountingOutputStream()), samples);
+        encode(runner, "export encode: csv row", new CsvRowEncoder(new CountingOutputStream()),
+                samples);
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        BinaryRowEncoder encoder = new BinaryRowEncoder(stored);
+        for (int i = 0; i < samples.size(); i++) {
+            encoder.writeRow(samples.sensors.get(i), samples.timestamps.get(i),
+                    samples.values.get(i));
+        }
+        encoder.finish();
+        final byte[] rows = stored.toByteArray();
+        runner.run("export decode: binary row", 10000, new BenchmarkRunner.Operation() {
+            private BinaryRowDecoder mDecoder;
+
+            @Override
+            public long run() {
+                try {
+                    if (null == mDecoder || !mDecoder.next()) {
+                        mDecoder = new BinaryRowDecoder(new ByteArrayInputStream(rows));
+                        mDecoder.next();
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return mDecoder.getTimestamp();
+            }
+        });
+
+        // status bitmask
+        final int[] statuses = StatusFixtures.statuses();
+        final boolean[] active = new boolean[StatusFixtures.MODULE_COUNT];
+        runner.run("status bitmask: decode", 100000, new BenchmarkRunner.Operation() {
+            private int mIndex;
+
+            @Override
+            public long run() {
+                boolean running = StatusFixtures.decode(statuses[mIndex++ & 7], active);
+                long rows = running ? 1 : 0;
+                for (int i = 0; i < active.length; i++) {
+                    rows += active[i] ? 2 : 0;
+                }
+                return rows;
+            }
+        });
+
+        // preferences: SenseSettings.loadPreferences copies 67 values, 8 of them strings
+        final Map<String, Object> prefs = new HashMap<String, Object>();
+        final String[] keys = new String[67];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "pref_" + i;
+            prefs.put(keys[i], i < 8 ? (Object) ("value " + i) : (Object) (i % 2 == 0));
+        }
+        final Map<String, Object> snapshot = new HashMap<String, Object>();
+        runner.run("prefs: settings snapshot of " + keys.length + " values", 10000,
+                new BenchmarkRunner.Operation() {
+
+                    @Override
+                    public long run() {
+                        for (int i = 0; i < keys.length; i++) {
+                            Object value = prefs.get(keys[i]);
+                            if (i < 8) {
+                                snapshot.put(keys[i], null != value ? value : "0");
+                            } else {
+                                snapshot.put(keys[i], null != value ? value : Boolean.FALSE);
+                            }
+                        }
+                        return snapshot.size();
+                    }
+                });
+        prefs.put("sample rate", "0");
+        prefs.put(SampleIntervals.getRateKey(SampleIntervals.MOTION), "-1");
+        prefs.put(SampleIntervals.getRateKey(SampleIntervals.LOCATION), "1");
+        runner.run("prefs: effective sample intervals", 100000, new BenchmarkRunner.Operation() {
+
+            @Override
+            public long run() {
+                long sum = 0;
+                String rate = (String) prefs.get("sample rate");
+                for (int module = 0; module < SampleIntervals.MODULE_COUNT; module++) {
+                    String override = (String) prefs.get(SampleIntervals.getRateKey(module));
+                    sum += SampleIntervals.getInterval(module, SampleIntervals.resolveRate(rate,
+                            override));
+                }
+                return sum;
+            }
+        });
+        System.out.println("(sink " + runner.getSink() + ")");
+
+        if (null != json) {
+            runner.writeJson(json, "DataPathBenchmark");
+            System.out.println("Results written to " + json);
+        }
+        if (null != baseline) {
+            System.out.println("Against " + baseline + ":");
+            int regressions = runner.compare(BenchmarkRunner.readJson(baseline), tolerance);
+            if (regressions > 0) {
+                System.out.println(regressions + " regressions");
+                System.exit(1);
+            }
+        }
+    }
+}
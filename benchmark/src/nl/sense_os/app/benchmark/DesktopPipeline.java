@@ -0,0 +1,251 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.burst.Burst;
+import nl.sense_os.app.burst.BurstCodec;
+import nl.sense_os.app.burst.BurstSummarizer;
+import nl.sense_os.app.commonsense.UploadMessage;
+import nl.sense_os.app.export.BinaryRowEncoder;
+import nl.sense_os.app.trace.SampleSink;
+import nl.sense_os.app.util.Base64;
+
+/**
+ * Stand-in for the data pipeline of the phone on the desktop JVM, to replay sensor traces
+ * through. The stages follow the Sense Platform with the burst pipeline of the app:
+ * <ol>
+ * <li>ingestion, like the MsgHandler: samples are checked and buffered in memory</li>
+ * <li>storage, like the local storage: every {@link #FLUSH_SIZE} samples the buffer is written
+ * to a byte array in the binary export format, instead of to SQLite</li>
+ * <li>bursts, like the {@link nl.sense_os.app.burst.BurstService}: every 15 minutes the new
+ * burst-mode samples are summarized and encoded, and the summaries and compact bursts go back
+ * into ingestion</li>
+ * <li>upload, like the DataTransmitter: every sync interval the new samples, except the
+ * burst-mode samples, are put in one {@link UploadMessage}, gzipped, and handed to an
+ * {@link Uploader}</li>
+ * </ol>
+ * The periodic stages run on the timestamps of the samples, so a replay runs them as often per
+ * trace hour at any speed. The time spent in each stage is measured, without the time of the
+ * uploader. Not thread-safe.
+ */
+public class DesktopPipeline implements SampleSink {
+
+    /**
+     * Receives the upload messages, e.g. a mock CommonSense server.
+     */
+    public interface Uploader {
+
+        /**
+         * @param body
+         *            Gzipped JSON upload message
+         * @param samples
+         *            Number of samples in the message
+         */
+        void upload(byte[] body, int samples) throws IOException;
+    }
+
+    /**
+     * Sample in the stand-in storage.
+     */
+    private static class Row {
+        final String sensor;
+        final String description;
+        final String dataType;
+        final String value;
+        final long timestamp;
+
+        Row(String sensor, String description, String dataType, String value, long timestamp) {
+            this.sensor = sensor;
+            this.description = description;
+            this.dataType = dataType;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public static final int FLUSH_SIZE = 100;
+    private static final long BURST_INTERVAL = 15 * 60 * 1000L;
+    private static final String BURST_MODE = "burst-mode";
+
+    private final long mSyncInterval;
+    private final Uploader mUploader;
+    private final List<Row> mBuffer = new ArrayList<Row>();
+    private final List<Row> mBursts = new ArrayList<Row>();
+    private final List<Row> mUnsent = new ArrayList<Row>();
+    private final ByteArrayOutputStream mStorage = new ByteArrayOutputStream();
+    private final BinaryRowEncoder mEncoder;
+    private final BurstSummarizer mSummarizer = new BurstSummarizer(true, 3);
+    private final BurstCodec mCodec = new BurstCodec();
+    private final UploadMessage mMessage = new UploadMessage();
+    private long mLastBursts = -1;
+    private long mLastSync = -1;
+    private long mIngested;
+    private long mRejected;
+    private long mBurstCount;
+    private long mUploads;
+    private long mUploadBytes;
+    private long mIngestNanos;
+    private long mStoreNanos;
+    private long mBurstNanos;
+    private long mUploadNanos;
+
+    /**
+     * @param syncInterval
+     *            Time between uploads in milliseconds, e.g. 30 minutes for the normal sync rate
+     * @param uploader
+     *            Receives the upload messages, or <code>null</code> to only count them
+     */
+    public DesktopPipeline(long syncInterval, Uploader uploader) throws IOException {
+        mSyncInterval = syncInterval;
+        mUploader = uploader;
+        mEncoder = new BinaryRowEncoder(mStorage);
+    }
+
+    /**
+     * Appends a report of the stages to a builder, with the time per ingested sample.
+     */
+    public void appendReport(StringBuilder builder) {
+        long samples = Math.max(1, mIngested);
+        builder.append(String.format("ingestion: %d samples (%d rejected), %.2f us/sample%n",
+                mIngested, mRejected, mIngestNanos / 1000d / samples));
+        builder.append(String.format("storage:   %d kB, %.2f us/sample%n",
+                mStorage.size() / 1024, mStoreNanos / 1000d / samples));
+        builder.append(String.format("bursts:    %d bursts, %.2f us/sample%n", mBurstCount,
+                mBurstNanos / 1000d / samples));
+        builder.append(String.format("upload:    %d messages, %d kB gzipped, %.2f us/sample",
+                mUploads, mUploadBytes / 1024, mUploadNanos / 1000d / samples));
+    }
+
+    /**
+     * Runs the periodic stages for the remaining samples, as at the end of a trace.
+     */
+    public void finish() throws IOException {
+        processBursts();
+        store();
+        upload();
+    }
+
+    public long getIngested() {
+        return mIngested;
+    }
+
+    /**
+     * @return The bytes in the stand-in storage
+     */
+    public long getStoredBytes() {
+        return mStorage.size();
+    }
+
+    public long getUploadBytes() {
+        return mUploadBytes;
+    }
+
+    public long getUploads() {
+        return mUploads;
+    }
+
+    private void ingest(Row row) throws IOException {
+        long start = System.nanoTime();
+        if (null == row.sensor || null == row.value || row.sensor.length() == 0) {
+            mRejected++;
+            return;
+        }
+        mBuffer.add(row);
+        mUnsent.add(row);
+        if (isBurst(row.sensor)) {
+            mBursts.add(row);
+        }
+        mIngested++;
+        mIngestNanos += System.nanoTime() - start;
+        if (mBuffer.size() >= FLUSH_SIZE) {
+            store();
+        }
+    }
+
+    /**
+     * @return <code>true</code> for a raw burst-mode sensor, not its summary or compact burst
+     */
+    private static boolean isBurst(String sensor) {
+        return sensor.contains(BURST_MODE) && !sensor.endsWith(" summary")
+                && !sensor.endsWith(" compact");
+    }
+
+    @Override
+    public void onSample(String sensor, String description, String dataType, String value,
+            long timestamp) throws IOException {
+        if (mLastBursts < 0) {
+            mLastBursts = timestamp;
+            mLastSync = timestamp;
+        }
+        ingest(new Row(sensor, description, dataType, value, timestamp));
+        if (timestamp - mLastBursts >= BURST_INTERVAL) {
+            mLastBursts = timestamp;
+            processBursts();
+        }
+        if (timestamp - mLastSync >= mSyncInterval) {
+            mLastSync = timestamp;
+            upload();
+        }
+    }
+
+    private void processBursts() throws IOException {
+        long start = System.nanoTime();
+        List<Row> results = new ArrayList<Row>(mBursts.size() * 2);
+        for (Row row : mBursts) {
+            Burst burst;
+            try {
+                burst = Burst.fromJson(row.value, row.timestamp);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            results.add(new Row(row.sensor + " summary", row.description, "json", mSummarizer
+                    .summarize(burst), row.timestamp));
+            results.add(new Row(row.sensor + " compact", row.description, "string", Base64
+                    .encode(mCodec.encode(burst)), row.timestamp));
+            mBurstCount++;
+        }
+        mBursts.clear();
+        mBurstNanos += System.nanoTime() - start;
+        for (Row row : results) {
+            ingest(row);
+        }
+    }
+
+    private void store() throws IOException {
+        long start = System.nanoTime();
+        for (Row row : mBuffer) {
+            mEncoder.writeRow(row.sensor, row.timestamp, row.value);
+        }
+        mBuffer.clear();
+        mStoreNanos += System.nanoTime() - start;
+    }
+
+    private void upload() throws IOException {
+        if (mUnsent.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        mMessage.clear();
+        for (Row row : mUnsent) {
+            if (isBurst(row.sensor)) {
+                // kept in the local storage for the burst pipeline
+                continue;
+            }
+            // no sensor registration in the stand-in
+            mMessage.add(row.sensor + '/' + row.description, row.dataType, row.value,
+                    row.timestamp);
+        }
+        mUnsent.clear();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        mMessage.writeTo(bytes, true);
+        mUploads++;
+        mUploadBytes += bytes.size();
+        mUploadNanos += System.nanoTime() - start;
+        if (null != mUploader) {
+            mUploader.upload(bytes.toByteArray(), mMessage.getCount());
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedList;
+
+import nl.sense_os.app.external.Obd2Poller;
+
+/**
+ * Simulated ELM327-style OBD-II adapter with a car behind it, on a local TCP socket. It answers
+ * the AT commands for echo, linefeeds, spaces and headers, and mode 01 requests with up to six
+ * PIDs and an optional response count, in single-frame or multi-frame CAN format. The car
+ * supports the PIDs of the {@link Obd2Poller}, except the oil temperature, and drives a
+ * synthetic cycle, see {@link #value(int, double)}.<br/>
+ * <br/>
+ * Time is modelled on the way: every byte is delivered after the one-way link latency, the ECU
+ * takes a while to answer, and without a response count the adapter waits for more ECUs before
+ * it returns. Like an ELM327, the adapter aborts a command when the next one arrives and answers
+ * <code>STOPPED</code>, unless it is created to queue commands, like some newer adapters.
+ */
+public class Elm327Simulator {
+
+    private static final int[] SUPPORTED = { Obd2Poller.ENGINE_LOAD, Obd2Poller.COOLANT_TEMP,
+            Obd2Poller.INTAKE_PRESSURE, Obd2Poller.ENGINE_RPM, Obd2Poller.VEHICLE_SPEED,
+            Obd2Poller.INTAKE_TEMP, Obd2Poller.MAF_RATE, Obd2Poller.THROTTLE,
+            Obd2Poller.FUEL_LEVEL, Obd2Poller.AMBIENT_TEMP };
+    private static final String HEX = "0123456789ABCDEF";
+
+    /**
+     * Output that is delivered at a given time.
+     */
+    private static class Output {
+        long time;
+        byte[] data;
+    }
+
+    /**
+     * Value of a PID of the simulated car.
+     *
+     * @param seconds
+     *            Time since the start of the simulation
+     */
+    public static float value(int pid, double seconds) {
+        double speed = Math.max(0, 50 + 40 * Math.sin(seconds / 15));
+        double throttle = 20 + 15 * Math.sin(seconds / 2.5);
+        switch (pid) {
+        case Obd2Poller.VEHICLE_SPEED:
+            return (float) speed;
+        case Obd2Poller.ENGINE_RPM:
+            return (float) (800 + speed * 30 + 400 * Math.sin(seconds * 0.9));
+        case Obd2Poller.THROTTLE:
+            return (float) throttle;
+        case Obd2Poller.ENGINE_LOAD:
+            return (float) (throttle * 1.5);
+        case Obd2Poller.INTAKE_PRESSURE:
+            return (float) (30 + throttle);
+        case Obd2Poller.MAF_RATE:
+            return value(Obd2Poller.ENGINE_RPM, seconds) / 150;
+        case Obd2Poller.COOLANT_TEMP:
+            return (float) (90 - 70 * Math.exp(-seconds / 600));
+        case Obd2Poller.INTAKE_TEMP:
+            return (float) (25 + 3 * Math.sin(seconds / 200));
+        case Obd2Poller.FUEL_LEVEL:
+            return (float) (55 - seconds / 720);
+        case Obd2Poller.AMBIENT_TEMP:
+            return 17;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Encodes a value into the data bytes of a PID, the inverse of {@link Obd2Poller#decode}.
+     */
+    private static void encode(int pid, float value, ByteArrayOutputStream out) {
+        int raw;
+        switch (pid) {
+        case Obd2Poller.ENGINE_RPM:
+            raw = Math.round(value * 4);
+            out.write(raw >> 8);
+            out.write(raw);
+            return;
+        case Obd2Poller.MAF_RATE:
+            raw = Math.round(value * 100);
+            out.write(raw >> 8);
+            out.write(raw);
+            return;
+        case Obd2Poller.COOLANT_TEMP:
+        case Obd2Poller.INTAKE_TEMP:
+        case Obd2Poller.AMBIENT_TEMP:
+            out.write(Math.round(value) + 40);
+            return;
+        case Obd2Poller.ENGINE_LOAD:
+        case Obd2Poller.THROTTLE:
+        case Obd2Poller.FUEL_LEVEL:
+            out.write(Math.min(255, Math.round(value * 255 / 100)));
+            return;
+        default:
+            out.write(Math.round(value));
+        }
+    }
+
+    private final boolean mQueues;
+    private final long mLatency;
+    private final long mEcuTime;
+    private final long mWaitTime;
+    private final long mStart = System.currentTimeMillis();
+    private final ServerSocket mServer;
+    private final LinkedList<Output> mOutputs = new LinkedList<Output>();
+    private Output mPending;
+    private long mBusyUntil;
+    private boolean mEcho = true;
+    private boolean mSpaces = true;
+    private boolean mLinefeeds = true;
+    private volatile boolean mClosed;
+    private int mCommands;
+    private int mStops;
+
+    /**
+     * Starts the simulator on a free local port.
+     *
+     * @param queues
+     *            <code>true</code> to queue commands instead of aborting the running one
+     * @param latency
+     *            One-way latency of the link in milliseconds
+     * @param ecuTime
+     *            Time in milliseconds that the ECU takes to answer
+     * @param waitTime
+     *            Time in milliseconds that the adapter waits for more answers without a
+     *            response count
+     */
+    public Elm327Simulator(boolean queues, long latency, long ecuTime, long waitTime)
+            throws IOException {
+        mQueues = queues;
+        mLatency = latency;
+        mEcuTime = ecuTime;
+        mWaitTime = waitTime;
+        mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        new Thread("Elm327Simulator") {
+
+            @Override
+            public void run() {
+                try {
+                    serve(mServer.accept());
+                } catch (IOException e) {
+                    if (!mClosed) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Stops the simulator and closes the connection.
+     */
+    public void close() throws IOException {
+        mClosed = true;
+        mServer.close();
+        synchronized (mOutputs) {
+            mOutputs.notifyAll();
+        }
+    }
+
+    /**
+     * Delivers the output when its time has come.
+     */
+    private void deliver(final OutputStream out) {
+        new Thread("Elm327Simulator output") {
+
+            @Override
+            public void run() {
+                try {
+                    while (!mClosed) {
+                        Output output;
+                        synchronized (mOutputs) {
+                            long now = System.currentTimeMillis();
+                            output = mOutputs.peek();
+                            if (null == output || output.time > now) {
+                                mOutputs.wait(null == output ? 0 : output.time - now);
+                                continue;
+                            }
+                            mOutputs.remove();
+                        }
+                        out.write(output.data);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // connection closed
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * @return The number of commands received
+     */
+    public int getCommands() {
+        return mCommands;
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     * @return The number of commands aborted by a next command
+     */
+    public int getStops() {
+        return mStops;
+    }
+
+    /**
+     * @return The time in seconds since the start, for {@link #value(int, double)}
+     */
+    public double getTime(long millis) {
+        return (millis - mStart) / 1000d;
+    }
+
+    /**
+     * Executes a command.
+     *
+     * @param start
+     *            Time at which the adapter starts on the command
+     * @param response
+     *            Receives the response lines, without the prompt
+     * @return The time the command takes
+     */
+    private long execute(String command, long start, StringBuilder response) {
+        if (command.startsWith("AT")) {
+            String at = command.substring(2);
+            if (at.equals("Z") || at.equals("I")) {
+                if (at.equals("Z")) {
+                    mEcho = true;
+                    mSpaces = true;
+                    mLinefeeds = true;
+                }
+                response.append("ELM327 v1.5");
+                return at.equals("Z") ? 500 : 1;
+            } else if (at.startsWith("E")) {
+                mEcho = at.endsWith("1");
+            } else if (at.startsWith("S") && at.length() == 2) {
+                mSpaces = at.endsWith("1");
+            } else if (at.startsWith("L")) {
+                mLinefeeds = at.endsWith("1");
+            }
+            response.append("OK");
+            return 1;
+        }
+        if (!command.startsWith("01") || command.length() < 4) {
+            response.append('?');
+            return 1;
+        }
+
+        boolean count = command.length() % 2 == 1;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(0x41);
+        double seconds = getTime(start);
+        for (int i = 2; i + 1 < command.length(); i += 2) {
+            int pid = Integer.parseInt(command.substring(i, i + 2), 16);
+            if (pid == 0x00 || pid == 0x20 || pid == 0x40) {
+                int bits = 0;
+                for (int supported : SUPPORTED) {
+                    int bit = supported - pid - 1;
+                    if (bit >= 0 && bit < 32) {
+                        bits |= 1 << (31 - bit);
+                    }
+                }
+                data.write(pid);
+                data.write(bits >> 24);
+                data.write(bits >> 16);
+                data.write(bits >> 8);
+                data.write(bits);
+                continue;
+            }
+            for (int supported : SUPPORTED) {
+                if (supported == pid) {
+                    data.write(pid);
+                    encode(pid, value(pid, seconds), data);
+                }
+            }
+        }
+        long time = mEcuTime + (count ? 0 : mWaitTime);
+        byte[] bytes = data.toByteArray();
+        if (bytes.length == 1) {
+            response.append("NO DATA");
+            return mEcuTime + mWaitTime;
+        } else if (bytes.length <= 7) {
+            appendHex(response, bytes, 0, bytes.length);
+        } else {
+            // multi-frame: byte count, then 6 bytes in the first frame and 7 in the next ones
+            response.append(HEX.charAt(bytes.length >> 8 & 0xf))
+                    .append(HEX.charAt(bytes.length >> 4 & 0xf))
+                    .append(HEX.charAt(bytes.length & 0xf));
+            int frame = 0;
+            for (int offset = 0; offset < bytes.length; frame++) {
+                int length = Math.min(bytes.length - offset, frame == 0 ? 6 : 7);
+                response.append(mLinefeeds ? "\r\n" : "\r").append(HEX.charAt(frame & 0xf))
+                        .append(':');
+                if (mSpaces) {
+                    response.append(' ');
+                }
+                appendHex(response, bytes, offset, length);
+                offset += length;
+            }
+            // flow control and consecutive frames
+            time += 5 * frame;
+        }
+        return time;
+    }
+
+    private void appendHex(StringBuilder response, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (mSpaces && i > offset) {
+                response.append(' ');
+            }
+            response.append(HEX.charAt(bytes[i] >> 4 & 0xf)).append(HEX.charAt(bytes[i] & 0xf));
+        }
+    }
+
+    /**
+     * Reads the commands, and queues the responses for delivery.
+     */
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        InputStream in = socket.getInputStream();
+        deliver(socket.getOutputStream());
+        StringBuilder command = new StringBuilder();
+        StringBuilder response = new StringBuilder();
+        try {
+            int b;
+            while (!mClosed && (b = in.read()) >= 0) {
+                if (b != '\r') {
+                    if (b != ' ') {
+                        command.append(Character.toUpperCase((char) b));
+                    }
+                    continue;
+                }
+                long arrival = System.currentTimeMillis() + mLatency;
+                synchronized (mOutputs) {
+                    mCommands++;
+                    if (!mQueues && arrival < mBusyUntil && null != mPending
+                            && mOutputs.contains(mPending)) {
+                        // the new command aborts the running one, and is lost itself
+                        mStops++;
+                        mPending.time = arrival + mLatency;
+                        mPending.data = (mLinefeeds ? "STOPPED\r\n\r\n>" : "STOPPED\r\r>")
+                                .getBytes();
+                        mBusyUntil = arrival;
+                        command.setLength(0);
+                        continue;
+                    }
+                    long start = Math.max(arrival, mBusyUntil);
+                    response.setLength(0);
+                    if (mEcho) {
+                        response.append(command).append('\r');
+                    }
+                    long time = execute(command.toString(), start, response);
+                    response.append(mLinefeeds ? "\r\n\r\n>" : "\r\r>");
+                    mBusyUntil = start + time;
+                    mPending = new Output();
+                    mPending.time = mBusyUntil + mLatency;
+                    mPending.data = response.toString().getBytes();
+                    mOutputs.add(mPending);
+                    mOutputs.notifyAll();
+                }
+                command.setLength(0);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
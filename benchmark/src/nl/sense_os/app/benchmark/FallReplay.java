@@ -0,0 +1,154 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nl.sense_os.app.motion.FallDetectionEngine;
+import nl.sense_os.app.motion.FallDetector;
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Replays accelerometer traces through the {@link FallDetectionEngine} with a simulated clock,
+ * and reports detection rate, false positives per hour and event-to-alert latency percentiles.
+ * The simulated latency is the time a sample waits in the stream for the next engine tick; the
+ * replay speed shows how much processing time the engine needs on top of that.<br/>
+ * <br/>
+ * Usage: <code>FallReplay [--tick ms] [--demo] [--traces n] [file or directory ...]</code>.
+ * Without files, <code>n</code> synthetic traces of 10 minutes are used (default 500). See
+ * {@link AccelerationTraces} for the trace format.
+ */
+public class FallReplay {
+
+    /**
+     * An alert is a true positive if it is raised at most this long after the fall samples.
+     */
+    private static final long MATCH_WINDOW = 1000;
+
+    private static class Alerts implements FallDetectionEngine.Listener {
+        final List<Long> sampleTimes = new ArrayList<Long>();
+        final LatencyHistogram latency;
+
+        Alerts(LatencyHistogram latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public void onFall(long sampleTime, long alertTime, float peak) {
+            sampleTimes.add(sampleTime);
+            latency.record(alertTime - sampleTime);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long tick = 20;
+        boolean demo = false;
+        int synthetic = 500;
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--tick".equals(args[i])) {
+                tick = Long.parseLong(args[++i]);
+            } else if ("--demo".equals(args[i])) {
+                demo = true;
+            } else if ("--traces".equals(args[i])) {
+                synthetic = Integer.parseInt(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        List<AccelerationTraces.Trace> traces = files.isEmpty() ? AccelerationTraces.synthesize(
+                synthetic, 10, 50, 42) : AccelerationTraces.read(files);
+        FallDetector.Config config = demo ? FallDetector.Config.demo() : FallDetector.Config
+                .normal();
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long samples = 0;
+        long duration = 0;
+        int falls = 0;
+        int detected = 0;
+        int falsePositives = 0;
+        long dropped = 0;
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (AccelerationTraces.Trace trace : traces) {
+            Alerts alerts = new Alerts(latency);
+            FallDetectionEngine engine = new FallDetectionEngine(config, tick, alerts);
+            dropped += replay(trace, engine, tick * 1000000L, random);
+            samples += trace.count;
+            duration += trace.getDuration();
+
+            // match the alerts with the labelled falls
+            boolean[] matched = new boolean[alerts.sampleTimes.size()];
+            int i = 0;
+            while (i < trace.count) {
+                if (!trace.falls[i]) {
+                    i++;
+                    continue;
+                }
+                long fallStart = trace.times[i];
+                while (i < trace.count && trace.falls[i]) {
+                    i++;
+                }
+                long fallEnd = trace.times[i - 1] + MATCH_WINDOW;
+                falls++;
+                boolean found = false;
+                for (int a = 0; a < matched.length; a++) {
+                    long alert = alerts.sampleTimes.get(a) / 1000000L;
+                    if (alert >= fallStart && alert <= fallEnd) {
+                        matched[a] = true;
+                        found = true;
+                    }
+                }
+                if (found) {
+                    detected++;
+                }
+            }
+            for (boolean match : matched) {
+                if (!match) {
+                    falsePositives++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double hours = duration / 3600000.0;
+        System.out.printf("Replayed %d traces, %.1f hours, %d samples (tick %d ms%s)%n",
+                traces.size(), hours, samples, tick, demo ? ", demo thresholds" : "");
+        System.out.printf("Falls: %d, detected: %d (%.1f%%)%n", falls, detected,
+                falls > 0 ? 100.0 * detected / falls : 0);
+        System.out.printf("False positives: %d (%.2f per hour)%n", falsePositives,
+                hours > 0 ? falsePositives / hours : 0);
+        System.out.printf("Latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+                latency.getPercentile(50) / 1e6, latency.getPercentile(90) / 1e6,
+                latency.getPercentile(99) / 1e6, latency.getMax() / 1e6);
+        System.out.printf("Replay: %.0f ns/sample, %.0fx real time, %d dropped samples%n",
+                (double) elapsed / samples, duration * 1e6 / elapsed, dropped);
+    }
+
+    /**
+     * Feeds a trace to the engine, polling it at every tick of the simulated clock. The ticks
+     * have a random phase with respect to the samples, like on the phone.
+     *
+     * @return The number of dropped samples
+     */
+    private static long replay(AccelerationTraces.Trace trace, FallDetectionEngine engine,
+            long tick, Random random) {
+        if (trace.count == 0) {
+            return 0;
+        }
+        long nextTick = trace.times[0] * 1000000L + (long) (random.nextDouble() * tick);
+        for (int i = 0; i < trace.count; i++) {
+            long time = trace.times[i] * 1000000L;
+            while (time >= nextTick) {
+                engine.poll(nextTick);
+                nextTick += tick;
+            }
+            engine.offer(time, trace.values[3 * i], trace.values[3 * i + 1],
+                    trace.values[3 * i + 2]);
+        }
+        engine.poll(nextTick);
+        return engine.getDropped();
+    }
+}
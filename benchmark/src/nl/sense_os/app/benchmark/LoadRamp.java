@@ -0,0 +1,65 @@
+package nl.sense_os.app.benchmark;
+
+import nl.sense_os.app.load.LoadGenerator;
+
+/**
+ * Ramps up the synthetic sensors of a {@link LoadGenerator} against the {@link DesktopPipeline},
+ * the same ramp and service levels as the load test of the developer mode, but with the
+ * in-memory stand-ins of the data pipeline. Reports every step, the sustainable throughput, and
+ * the cost per stage of the pipeline.<br/>
+ * <br/>
+ * Usage: <code>LoadRamp [--sensors n] [--step n] [--max n] [--rate Hz] [--payload chars]
+ * [--seconds n] [--depth n] [--latency ms] [--sync s]</code>. The defaults are those of
+ * {@link LoadGenerator.Config#normal()}, up to 100000 sensors, with a sync interval of 10 s.
+ */
+public class LoadRamp {
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator.Config normal = LoadGenerator.Config.normal();
+        int sensors = normal.sensors;
+        int step = normal.sensorStep;
+        int max = 100000;
+        float rate = normal.rate;
+        int payload = normal.payload;
+        long stepTime = normal.stepTime;
+        int depth = normal.maxDepth;
+        long latency = normal.maxLatency;
+        long sync = 10 * 1000L;
+        for (int i = 0; i < args.length; i++) {
+            if ("--sensors".equals(args[i])) {
+                sensors = Integer.parseInt(args[++i]);
+            } else if ("--step".equals(args[i])) {
+                step = Integer.parseInt(args[++i]);
+            } else if ("--max".equals(args[i])) {
+                max = Integer.parseInt(args[++i]);
+            } else if ("--rate".equals(args[i])) {
+                rate = Float.parseFloat(args[++i]);
+            } else if ("--payload".equals(args[i])) {
+                payload = Integer.parseInt(args[++i]);
+            } else if ("--seconds".equals(args[i])) {
+                stepTime = Long.parseLong(args[++i]) * 1000;
+            } else if ("--depth".equals(args[i])) {
+                depth = Integer.parseInt(args[++i]);
+            } else if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            } else if ("--sync".equals(args[i])) {
+                sync = Long.parseLong(args[++i]) * 1000;
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(new LoadGenerator.Config(sensors, step, max,
+                rate, payload, stepTime, depth, latency));
+        DesktopPipeline pipeline = new DesktopPipeline(sync, null);
+        generator.run(pipeline);
+        pipeline.finish();
+
+        StringBuilder report = new StringBuilder();
+        generator.appendReport(report);
+        if (null != generator.getError()) {
+            report.append("\nPipeline failed: ").append(generator.getError());
+        }
+        report.append("\n\n");
+        pipeline.appendReport(report);
+        System.out.println(report);
+    }
+}
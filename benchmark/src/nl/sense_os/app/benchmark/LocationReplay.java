@@ -0,0 +1,124 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import nl.sense_os.app.location.AdaptiveLocationStrategy;
+
+/**
+ * Replays location traces through the {@link AdaptiveLocationStrategy}, and compares it with a
+ * GPS fix at every step. Reports the decisions and the GPS fixes saved per day, and the error of
+ * the last known position against the true position. GPS fixes get an error of about 8 m,
+ * network fixes of about 40 m.<br/>
+ * <br/>
+ * Usage: <code>LocationReplay [--interval s] [--days n] [file or directory ...]</code>. Without
+ * files, a synthetic trace of <code>n</code> days (default 30) is used, with a step every
+ * interval (default 300 s, the location interval at the normal sample rate). See
+ * {@link LocationTraces} for the trace format.
+ */
+public class LocationReplay {
+
+    private static final double GPS_ERROR = 8;
+    private static final double NETWORK_ERROR = 40;
+
+    /**
+     * Errors above this distance count as a stale position.
+     */
+    private static final double STALE = 200;
+
+    public static void main(String[] args) throws IOException {
+        long interval = 300 * 1000L;
+        int days = 30;
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--interval".equals(args[i])) {
+                interval = Long.parseLong(args[++i]) * 1000L;
+            } else if ("--days".equals(args[i])) {
+                days = Integer.parseInt(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        List<List<LocationTraces.Step>> traces = new ArrayList<List<LocationTraces.Step>>();
+        if (files.isEmpty()) {
+            traces.add(LocationTraces.synthesize(days, interval, 42));
+        } else {
+            traces.addAll(LocationTraces.read(files));
+        }
+
+        Random random = new Random(42);
+        int[] counts = new int[3];
+        long duration = 0;
+        List<Double> adaptiveErrors = new ArrayList<Double>();
+        List<Double> gpsErrors = new ArrayList<Double>();
+        long start = System.nanoTime();
+        for (List<LocationTraces.Step> trace : traces) {
+            if (trace.isEmpty()) {
+                continue;
+            }
+            AdaptiveLocationStrategy strategy = new AdaptiveLocationStrategy(
+                    AdaptiveLocationStrategy.Config.normal());
+            double knownX = Double.NaN;
+            double knownY = Double.NaN;
+            for (LocationTraces.Step step : trace) {
+                strategy.onMotion(step.time, step.variance);
+                if (null != step.bssids) {
+                    strategy.onWifiScan(step.bssids);
+                }
+                int decision = strategy.decide(step.time);
+                if (decision != AdaptiveLocationStrategy.SKIP || Double.isNaN(knownX)) {
+                    double error = decision == AdaptiveLocationStrategy.GPS ? GPS_ERROR
+                            : NETWORK_ERROR;
+                    knownX = step.x + random.nextGaussian() * error;
+                    knownY = step.y + random.nextGaussian() * error;
+                }
+                adaptiveErrors.add(Math.hypot(knownX - step.x, knownY - step.y));
+                gpsErrors.add(Math.hypot(random.nextGaussian() * GPS_ERROR,
+                        random.nextGaussian() * GPS_ERROR));
+            }
+            for (int d = 0; d < counts.length; d++) {
+                counts[d] += strategy.getCount(d);
+            }
+            duration += trace.get(trace.size() - 1).time - trace.get(0).time;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double replayedDays = duration / 86400000.0;
+        int steps = adaptiveErrors.size();
+        System.out.printf("Replayed %d traces, %.1f days, %d location samples%n", traces.size(),
+                replayedDays, steps);
+        System.out.printf("Per day: %.1f skipped, %.1f network, %.1f GPS (fixed schedule: %.1f"
+                + " GPS)%n", counts[AdaptiveLocationStrategy.SKIP] / replayedDays,
+                counts[AdaptiveLocationStrategy.NETWORK] / replayedDays,
+                counts[AdaptiveLocationStrategy.GPS] / replayedDays, steps / replayedDays);
+        System.out.printf("GPS fixes saved per day: %.1f (%.0f%%)%n",
+                (counts[AdaptiveLocationStrategy.SKIP] + counts[AdaptiveLocationStrategy.NETWORK])
+                        / replayedDays, 100.0 - 100.0 * counts[AdaptiveLocationStrategy.GPS]
+                        / steps);
+        printErrors("Adaptive", adaptiveErrors);
+        printErrors("Fixed GPS", gpsErrors);
+        System.out.printf("Replay: %.0f ns/sample%n", (double) elapsed / steps);
+    }
+
+    private static void printErrors(String label, List<Double> errors) {
+        double[] sorted = new double[errors.size()];
+        double sum = 0;
+        int stale = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = errors.get(i);
+            sum += sorted[i];
+            if (sorted[i] > STALE) {
+                stale++;
+            }
+        }
+        Arrays.sort(sorted);
+        System.out.printf("%-10s error m: mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, max %.0f,"
+                + " %.2f%% stale%n", label, sum / sorted.length, sorted[sorted.length / 2],
+                sorted[sorted.length * 9 / 10], sorted[sorted.length * 99 / 100],
+                sorted[sorted.length - 1], 100.0 * stale / sorted.length);
+    }
+}
@@ -0,0 +1,216 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Recorded or synthetic traces for the adaptive location replay. Each step of a trace is one
+ * location sample: the variance of the acceleration magnitude in a short window, the Wi-Fi scan
+ * and the true position.<br/>
+ * <br/>
+ * A trace file is CSV with one step per line: <code>time,variance,bssids,x,y</code>, with the time
+ * in milliseconds, the variance in (m/s^2)^2, the BSSIDs separated by spaces (empty if Wi-Fi was
+ * off) and the true position in meters on a local grid. Lines starting with <code>#</code> and
+ * lines that do not start with a number (headers) are skipped.
+ */
+public class LocationTraces {
+
+    /**
+     * One step of a trace.
+     */
+    public static class Step {
+        public final long time;
+        public final float variance;
+        public final List<String> bssids;
+        public final double x;
+        public final double y;
+
+        Step(long time, float variance, List<String> bssids, double x, double y) {
+            this.time = time;
+            this.variance = variance;
+            this.bssids = bssids;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * A place with its Wi-Fi access points.
+     */
+    private static class Place {
+        final double x;
+        final double y;
+        final String[] bssids;
+
+        Place(String name, double x, double y, int accessPoints) {
+            this.x = x;
+            this.y = y;
+            bssids = new String[accessPoints];
+            for (int i = 0; i < accessPoints; i++) {
+                bssids[i] = name + "-" + i;
+            }
+        }
+    }
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final Place HOME = new Place("home", 0, 0, 8);
+    private static final Place OFFICE = new Place("office", 12000, 3000, 20);
+    private static final Place CAFE = new Place("cafe", 12400, 3300, 5);
+    private static final Place GYM = new Place("gym", 3000, -2000, 6);
+
+    /**
+     * Reads trace files. Directories are searched for <code>.csv</code> files.
+     */
+    public static List<List<Step>> read(List<File> files) throws IOException {
+        List<List<Step>> traces = new ArrayList<List<Step>>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                List<File> children = new ArrayList<File>();
+                File[] list = file.listFiles();
+                if (null != list) {
+                    for (File child : list) {
+                        if (child.isDirectory() || child.getName().endsWith(".csv")) {
+                            children.add(child);
+                        }
+                    }
+                }
+                traces.addAll(read(children));
+            } else {
+                traces.add(readFile(file));
+            }
+        }
+        return traces;
+    }
+
+    private static List<Step> readFile(File file) throws IOException {
+        List<Step> steps = new ArrayList<Step>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                line = line.trim();
+                if (line.length() == 0 || !Character.isDigit(line.charAt(0))) {
+                    continue;
+                }
+                String[] columns = line.split(",", -1);
+                if (columns.length < 5) {
+                    throw new IOException("Expected time,variance,bssids,x,y in " + file + ": "
+                            + line);
+                }
+                String scan = columns[2].trim();
+                List<String> bssids = scan.length() == 0 ? null : Arrays.asList(scan
+                        .split("\\s+"));
+                steps.add(new Step(Long.parseLong(columns[0].trim()), Float
+                        .parseFloat(columns[1]), bssids, Double.parseDouble(columns[3]), Double
+                        .parseDouble(columns[4])));
+            }
+        } finally {
+            reader.close();
+        }
+        return steps;
+    }
+
+    /**
+     * Synthesizes a trace of office days: nights at home, a commute, office hours with a lunch
+     * walk now and then, and some evenings at the gym. The phone is picked up now and then while
+     * at a place.
+     *
+     * @param days
+     *            Number of days
+     * @param interval
+     *            Time between the steps in milliseconds
+     * @param seed
+     *            Seed for the random generator, so runs are reproducible
+     */
+    public static List<Step> synthesize(int days, long interval, long seed) {
+        Random random = new Random(seed);
+        List<Step> steps = new ArrayList<Step>();
+        for (int day = 0; day < days; day++) {
+            long start = day * 24 * HOUR;
+            long leave = start + 7 * HOUR + 30 * MINUTE + random.nextInt(60) * MINUTE;
+            long arrive = leave + (30 + random.nextInt(20)) * MINUTE;
+            long lunch = start + 12 * HOUR + random.nextInt(30) * MINUTE;
+            boolean lunchWalk = random.nextBoolean();
+            long leaveOffice = start + 16 * HOUR + 30 * MINUTE + random.nextInt(90) * MINUTE;
+            long home = leaveOffice + (30 + random.nextInt(20)) * MINUTE;
+            boolean gym = random.nextInt(10) < 3;
+            long gymStart = start + 19 * HOUR;
+            long gymEnd = start + 22 * HOUR;
+
+            long time = start;
+            if (!steps.isEmpty()) {
+                time = steps.get(steps.size() - 1).time + interval;
+            }
+            for (; time < start + 24 * HOUR; time += interval) {
+                if (time < leave) {
+                    steps.add(atPlace(random, time, HOME));
+                } else if (time < arrive) {
+                    steps.add(travel(random, time, HOME, OFFICE, leave, arrive, false));
+                } else if (lunchWalk && time >= lunch && time < lunch + 10 * MINUTE) {
+                    steps.add(travel(random, time, OFFICE, CAFE, lunch, lunch + 10 * MINUTE,
+                            true));
+                } else if (lunchWalk && time >= lunch + 10 * MINUTE
+                        && time < lunch + 35 * MINUTE) {
+                    steps.add(atPlace(random, time, CAFE));
+                } else if (lunchWalk && time >= lunch + 35 * MINUTE
+                        && time < lunch + 45 * MINUTE) {
+                    steps.add(travel(random, time, CAFE, OFFICE, lunch + 35 * MINUTE, lunch + 45
+                            * MINUTE, true));
+                } else if (time < leaveOffice) {
+                    steps.add(atPlace(random, time, OFFICE));
+                } else if (time < home) {
+                    steps.add(travel(random, time, OFFICE, HOME, leaveOffice, home, false));
+                } else if (gym && time >= gymStart - 15 * MINUTE && time < gymStart) {
+                    steps.add(travel(random, time, HOME, GYM, gymStart - 15 * MINUTE, gymStart,
+                            false));
+                } else if (gym && time >= gymStart && time < gymEnd) {
+                    steps.add(atPlace(random, time, GYM));
+                } else if (gym && time >= gymEnd && time < gymEnd + 15 * MINUTE) {
+                    steps.add(travel(random, time, GYM, HOME, gymEnd, gymEnd + 15 * MINUTE,
+                            false));
+                } else {
+                    steps.add(atPlace(random, time, HOME));
+                }
+            }
+        }
+        return steps;
+    }
+
+    private static Step atPlace(Random random, long time, Place place) {
+        // picked up now and then, otherwise on a table or in a pocket
+        float variance = random.nextInt(100) < 8 ? 0.5f + 3 * random.nextFloat()
+                : 0.002f + 0.05f * random.nextFloat();
+        List<String> bssids = new ArrayList<String>();
+        for (String bssid : place.bssids) {
+            if (random.nextInt(100) < 80) {
+                bssids.add(bssid);
+            }
+        }
+        if (random.nextBoolean()) {
+            // a passing hotspot
+            bssids.add("hotspot-" + random.nextInt(100000));
+        }
+        return new Step(time, variance, bssids, place.x + random.nextGaussian() * 5, place.y
+                + random.nextGaussian() * 5);
+    }
+
+    private static Step travel(Random random, long time, Place from, Place to, long start,
+            long end, boolean walking) {
+        double progress = (double) (time - start) / (end - start);
+        float variance = walking ? 2 + 6 * random.nextFloat() : 0.3f + 1.2f * random.nextFloat();
+        List<String> bssids = new ArrayList<String>();
+        int count = random.nextInt(6);
+        for (int i = 0; i < count; i++) {
+            bssids.add("street-" + random.nextInt(1000000));
+        }
+        return new Step(time, variance, bssids, from.x + progress * (to.x - from.x), from.y
+                + progress * (to.y - from.y));
+    }
+}
@@ -0,0 +1,131 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nl.sense_os.app.ambience.LuminanceSampler;
+
+/**
+ * Runs the {@link LuminanceSampler} over NV21 preview frames on the desktop JVM, at a few grid
+ * sizes, and compares it with a full-resolution pass that copies every frame into a new buffer
+ * first. Also reports how far the mean of each grid is from the full-resolution mean.<br/>
+ * <br/>
+ * Usage: <code>LuminanceBenchmark [width height [file ...]]</code>. A file holds raw NV21 frames
+ * back to back, e.g. preview buffers dumped from the camera. Without files synthetic frames are
+ * used. The default size is 640x480.
+ */
+public class LuminanceBenchmark {
+
+    private static final int BINS = 16;
+
+    private static List<byte[]> read(File file, int frameSize) throws IOException {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        long length = file.length();
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            for (long offset = 0; offset + frameSize <= length; offset += frameSize) {
+                byte[] frame = new byte[frameSize];
+                in.readFully(frame);
+                frames.add(frame);
+            }
+        } finally {
+            in.close();
+        }
+        return frames;
+    }
+
+    /**
+     * Creates frames of a lit scene: a vertical gradient with a bright spot and sensor noise, at
+     * a few exposure levels.
+     */
+    private static List<byte[]> synthesize(int width, int height) {
+        Random random = new Random(42);
+        List<byte[]> frames = new ArrayList<byte[]>();
+        int[] levels = { 20, 60, 120, 200 };
+        for (int level : levels) {
+            byte[] frame = new byte[LuminanceSampler.frameSize(width, height)];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int dx = x - width / 3;
+                    int dy = y - height / 4;
+                    double spot = dx * dx + dy * dy < width * width / 64 ? 60 : 0;
+                    double value = level * (0.6 + 0.8 * y / height) + spot
+                            + random.nextGaussian() * 6;
+                    frame[y * width + x] = (byte) Math.max(0, Math.min(255, (int) value));
+                }
+            }
+            for (int i = width * height; i < frame.length; i++) {
+                frame[i] = (byte) 128;
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int width = args.length > 1 ? Integer.parseInt(args[0]) : 640;
+        final int height = args.length > 1 ? Integer.parseInt(args[1]) : 480;
+        final int frameSize = LuminanceSampler.frameSize(width, height);
+        List<byte[]> frameList = new ArrayList<byte[]>();
+        for (int i = 2; i < args.length; i++) {
+            List<byte[]> frames = read(new File(args[i]), frameSize);
+            System.out.println("Loaded " + args[i] + ": " + frames.size() + " frames");
+            frameList.addAll(frames);
+        }
+        if (frameList.isEmpty()) {
+            frameList = synthesize(width, height);
+        }
+        final byte[][] frames = frameList.toArray(new byte[frameList.size()][]);
+
+        BenchmarkRunner runner = new BenchmarkRunner(20, 20);
+        runner.run("copy + full resolution " + width + "x" + height, frames.length,
+                new BenchmarkRunner.Operation() {
+                    private int mIndex;
+
+                    @Override
+                    public long run() {
+                        byte[] frame = frames[mIndex++ % frames.length];
+                        // a new buffer for every frame, like grabbing a picture
+                        byte[] copy = new byte[frame.length];
+                        System.arraycopy(frame, 0, copy, 0, frame.length);
+                        int[] histogram = new int[BINS];
+                        double sum = 0;
+                        for (int i = 0; i < width * height; i++) {
+                            double y = copy[i] & 0xff;
+                            sum += y;
+                            histogram[(int) (y * BINS / 256)]++;
+                        }
+                        return (long) (sum / (width * height)) + histogram[0];
+                    }
+                });
+
+        LuminanceSampler full = new LuminanceSampler(width, height, 1, BINS);
+        int[] maxSamples = { width * height, 16384, 4096, 1024 };
+        for (int max : maxSamples) {
+            int step = LuminanceSampler.gridStep(width, height, max);
+            final LuminanceSampler sampler = new LuminanceSampler(width, height, step, BINS);
+            runner.run("grid step " + step + " (" + sampler.getCount() + " pixels)",
+                    frames.length, new BenchmarkRunner.Operation() {
+                        private int mIndex;
+
+                        @Override
+                        public long run() {
+                            return sampler.sample(frames[mIndex++ % frames.length]);
+                        }
+                    });
+            float maxError = 0;
+            for (byte[] frame : frames) {
+                full.sample(frame);
+                sampler.sample(frame);
+                maxError = Math.max(maxError, Math.abs(full.getMean() - sampler.getMean()));
+            }
+            System.out.printf("    max error of the mean: %.2f of 255%n", maxError);
+        }
+        System.out.println("(sink " + runner.getSink() + ")");
+    }
+}
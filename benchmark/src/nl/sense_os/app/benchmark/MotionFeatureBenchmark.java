@@ -0,0 +1,49 @@
+package nl.sense_os.app.benchmark;
+
+import java.util.Random;
+
+import nl.sense_os.app.motion.MotionFeatureExtractor;
+
+/**
+ * Benchmarks the {@link MotionFeatureExtractor} with a synthetic accelerometer signal: a walking
+ * pattern of about 2 Hz plus noise, at 50 Hz. The reported time and allocation are per sample,
+ * including the feature computation every <code>hop</code> samples.
+ */
+public class MotionFeatureBenchmark {
+
+    public static void main(String[] args) {
+        final int samples = 4096;
+        final float[] xs = new float[samples];
+        final float[] ys = new float[samples];
+        final float[] zs = new float[samples];
+        Random random = new Random(42);
+        for (int i = 0; i < samples; i++) {
+            double t = i / 50.0;
+            xs[i] = (float) (0.5 * Math.sin(2 * Math.PI * 2 * t) + 0.1 * random.nextGaussian());
+            ys[i] = (float) (0.3 * Math.cos(2 * Math.PI * 2 * t) + 0.1 * random.nextGaussian());
+            zs[i] = (float) (9.81 + 1.5 * Math.sin(2 * Math.PI * 2 * t) + 0.1 * random
+                    .nextGaussian());
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(5, 10);
+        int[][] configs = { { 64, 32 }, { 128, 64 }, { 256, 128 } };
+        for (int[] config : configs) {
+            final MotionFeatureExtractor extractor = new MotionFeatureExtractor(config[0],
+                    config[1], 50f);
+            runner.run("motion features window=" + config[0] + " hop=" + config[1], 100000,
+                    new BenchmarkRunner.Operation() {
+                        private int mIndex;
+
+                        @Override
+                        public long run() {
+                            int i = mIndex++ & (samples - 1);
+                            if (extractor.addSample(xs[i], ys[i], zs[i])) {
+                                return Float.floatToIntBits(extractor.getDominantFrequency());
+                            }
+                            return 0;
+                        }
+                    });
+        }
+        System.out.println("(sink " + runner.getSink() + ")");
+    }
+}
@@ -0,0 +1,178 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import nl.sense_os.app.external.Obd2Poller;
+
+/**
+ * Polls an {@link Elm327Simulator} over a local socket with the {@link Obd2Poller}, in real
+ * time, with the PIDs of the OBD-II sampler. The engine and driving PIDs are polled as fast as
+ * the link allows, down to a minimum interval. Compares one PID per request without response
+ * counts, like a strict request-then-response poller, with multi-PID requests, requests in
+ * flight (on an ELM327 that aborts, and on an adapter that queues) and adaptive intervals.
+ * Reports the requests per second, the updates per second of the PIDs, and how far the last
+ * reported engine rpm and speed are off from the simulated car, sampled every 20 ms.<br/>
+ * <br/>
+ * Usage: <code>Obd2Benchmark [--seconds n] [--interval ms] [--latency ms] [--ecu ms]
+ * [--wait ms]</code>. The defaults are 10 s per configuration, a minimum interval of 20 ms, a
+ * one-way Bluetooth latency of 20 ms, an ECU that answers in 25 ms, and an adapter that waits
+ * 100 ms for more ECUs without a response count.
+ */
+public class Obd2Benchmark {
+
+    private static final int FAST_PIDS = 5;
+    private static final int[] PIDS = { Obd2Poller.ENGINE_RPM, Obd2Poller.VEHICLE_SPEED,
+            Obd2Poller.THROTTLE, Obd2Poller.ENGINE_LOAD, Obd2Poller.MAF_RATE,
+            Obd2Poller.COOLANT_TEMP, Obd2Poller.INTAKE_TEMP, Obd2Poller.FUEL_LEVEL,
+            Obd2Poller.AMBIENT_TEMP, Obd2Poller.OIL_TEMP };
+
+    private static class LastValues implements Obd2Poller.Listener {
+        volatile float rpm = Float.NaN;
+        volatile float speed = Float.NaN;
+
+        @Override
+        public void onValue(int pid, float value, long time) {
+            if (pid == Obd2Poller.ENGINE_RPM) {
+                rpm = value;
+            } else if (pid == Obd2Poller.VEHICLE_SPEED) {
+                speed = value;
+            }
+        }
+    }
+
+    private static void run(String name, boolean queues, int maxPids, int maxInFlight,
+            boolean counts, boolean adaptive, int seconds, long interval, long latency, long ecu,
+            long wait) throws Exception {
+        Elm327Simulator simulator = new Elm327Simulator(queues, latency, ecu, wait);
+        final Socket socket = new Socket("127.0.0.1", simulator.getPort());
+        socket.setTcpNoDelay(true);
+        final OutputStream out = socket.getOutputStream();
+        LastValues values = new LastValues();
+        final Obd2Poller poller = new Obd2Poller(new Obd2Poller.Link() {
+
+            @Override
+            public void send(byte[] command, int length) throws IOException {
+                out.write(command, 0, length);
+                out.flush();
+            }
+        }, values);
+        for (int i = 0; i < PIDS.length; i++) {
+            if (i < FAST_PIDS) {
+                // as fast as the link allows, to compare the throughput
+                float threshold = Obd2Poller.ENGINE_RPM == PIDS[i] ? 100 : 2;
+                poller.addPid(PIDS[i], interval, 2000, threshold);
+            } else {
+                poller.addPid(PIDS[i]);
+            }
+        }
+        poller.setMaxPids(maxPids);
+        poller.setMaxInFlight(maxInFlight);
+        poller.setResponseCounts(counts);
+        poller.setAdaptive(adaptive);
+        Thread thread = new Thread("poller") {
+
+            @Override
+            public void run() {
+                try {
+                    poller.run(socket.getInputStream());
+                } catch (IOException e) {
+                    // closed at the end
+                }
+            }
+        };
+        thread.start();
+
+        long start = System.currentTimeMillis();
+        while (!isReady(poller)) {
+            Thread.sleep(10);
+        }
+        long init = System.currentTimeMillis() - start;
+        long requests;
+        long[] updates = new long[PIDS.length];
+        synchronized (poller) {
+            requests = poller.getRequests();
+            for (int i = 0; i < PIDS.length; i++) {
+                updates[i] = poller.getUpdates(PIDS[i]);
+            }
+        }
+
+        double rpmError = 0;
+        double speedError = 0;
+        int samples = 0;
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+            double time = simulator.getTime(System.currentTimeMillis());
+            if (!Float.isNaN(values.rpm) && !Float.isNaN(values.speed)) {
+                rpmError += Math.abs(values.rpm
+                        - Elm327Simulator.value(Obd2Poller.ENGINE_RPM, time));
+                speedError += Math.abs(values.speed
+                        - Elm327Simulator.value(Obd2Poller.VEHICLE_SPEED, time));
+                samples++;
+            }
+        }
+
+        synchronized (poller) {
+            System.out.printf("%s%n  setup %d ms, %.1f requests/s, at most %d PIDs per request, "
+                    + "%d in flight, %d stops, %d timeouts%n", name, init,
+                    (poller.getRequests() - requests) / (double) seconds, poller.getMaxPids(),
+                    poller.getMaxInFlight(), poller.getStops(), poller.getTimeouts());
+            StringBuilder rates = new StringBuilder("  updates/s:");
+            for (int i = 0; i < PIDS.length; i++) {
+                if (poller.getInterval(PIDS[i]) < 0) {
+                    continue;
+                }
+                rates.append(i > 0 ? ", " : " ").append(Obd2Poller.name(PIDS[i])).append(' ')
+                        .append(String.format("%.1f", (poller.getUpdates(PIDS[i]) - updates[i])
+                                / (double) seconds));
+            }
+            System.out.println(rates);
+        }
+        System.out.printf("  mean error: %.0f rpm, %.1f km/h%n", rpmError / samples,
+                speedError / samples);
+        poller.stop();
+        simulator.close();
+        socket.close();
+        thread.join();
+    }
+
+    private static boolean isReady(Obd2Poller poller) {
+        synchronized (poller) {
+            return poller.isReady();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = 10;
+        long interval = 20;
+        long latency = 20;
+        long ecu = 25;
+        long wait = 100;
+        for (int i = 0; i < args.length; i++) {
+            if ("--seconds".equals(args[i])) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if ("--interval".equals(args[i])) {
+                interval = Long.parseLong(args[++i]);
+            } else if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            } else if ("--ecu".equals(args[i])) {
+                ecu = Long.parseLong(args[++i]);
+            } else if ("--wait".equals(args[i])) {
+                wait = Long.parseLong(args[++i]);
+            }
+        }
+
+        run("One PID per request, ELM327", false, 1, 1, false, false, seconds, interval,
+                latency, ecu, wait);
+        run("Multi-PID with response counts, ELM327", false, 6, 1, true, false, seconds,
+                interval, latency, ecu, wait);
+        run("Multi-PID, 2 in flight, ELM327", false, 6, 2, true, false, seconds, interval,
+                latency, ecu, wait);
+        run("Multi-PID, 2 in flight, queueing adapter", true, 6, 2, true, false, seconds,
+                interval, latency, ecu, wait);
+        run("Multi-PID, 2 in flight, adaptive, queueing adapter", true, 6, 2, true, true,
+                seconds, interval, latency, ecu, wait);
+    }
+}
@@ -0,0 +1,98 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads recorded 16-bit mono PCM audio for the benchmarks. Supports WAV files (the data chunk is
+ * located by scanning the RIFF chunks) and headerless little-endian raw files.
+ */
+public class PcmFiles {
+
+    private static int readIntLE(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        int b2 = in.readUnsignedByte();
+        int b3 = in.readUnsignedByte();
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    /**
+     * Reads all samples from a WAV or raw PCM file.
+     */
+    public static short[] read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            long length = file.length();
+            if (file.getName().toLowerCase().endsWith(".wav")) {
+                length = skipToWavData(in);
+            }
+            return readSamples(in, (int) (length / 2));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static short[] readSamples(InputStream in, int count) throws IOException {
+        byte[] bytes = new byte[count * 2];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read < 0) {
+                break;
+            }
+            offset += read;
+        }
+        short[] samples = new short[offset / 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((bytes[2 * i] & 0xFF) | (bytes[2 * i + 1] << 8));
+        }
+        return samples;
+    }
+
+    /**
+     * Skips the RIFF header and chunks up to the start of the sample data.
+     *
+     * @return The length of the data chunk in bytes
+     */
+    private static long skipToWavData(DataInputStream in) throws IOException {
+        byte[] id = new byte[4];
+        in.readFully(id);
+        if (!"RIFF".equals(new String(id, "US-ASCII"))) {
+            throw new IOException("Not a WAV file");
+        }
+        readIntLE(in);
+        in.readFully(id);
+        while (true) {
+            in.readFully(id);
+            long size = readIntLE(in) & 0xFFFFFFFFL;
+            if ("data".equals(new String(id, "US-ASCII"))) {
+                return size;
+            }
+            in.skipBytes((int) size);
+        }
+    }
+
+    /**
+     * Generates a test signal when no recording is available: a 440 Hz tone, a sweep and noise.
+     */
+    public static short[] synthesize(int sampleRate, int seconds) {
+        short[] samples = new short[sampleRate * seconds];
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < samples.length; i++) {
+            double t = (double) i / sampleRate;
+            double sweep = Math.sin(2 * Math.PI * (100 + 1000 * t / seconds) * t);
+            double v = 0.3 * Math.sin(2 * Math.PI * 440 * t) + 0.2 * sweep + 0.05
+                    * random.nextGaussian();
+            samples[i] = (short) Math.max(-32768, Math.min(32767, v * 32767));
+        }
+        return samples;
+    }
+
+    private PcmFiles() {
+        // class should not be instantiated
+    }
+}
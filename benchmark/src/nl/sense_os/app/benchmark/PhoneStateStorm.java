@@ -0,0 +1,97 @@
+package nl.sense_os.app.benchmark;
+
+import java.util.Random;
+
+import nl.sense_os.app.phonestate.EventCoalescer;
+
+/**
+ * Replays synthetic phone state event storms through the {@link EventCoalescer} with the rules
+ * of the phone state sampler, and compares the emitted events with the raw events. The signal
+ * strength jitters a few dB around a level that drifts, with bursts of several events per second
+ * while moving between cells; the data connection flaps during handovers.<br/>
+ * <br/>
+ * Usage: <code>PhoneStateStorm [--window ms] [--hours n]</code>. The default window is 30 s.
+ */
+public class PhoneStateStorm {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private static class CountingSink implements EventCoalescer.Sink {
+        long events;
+        long maxDelay;
+        long now;
+
+        @Override
+        public void onEvent(String type, String value, long time, int merged) {
+            events++;
+            maxDelay = Math.max(maxDelay, now - time);
+        }
+    }
+
+    public static void main(String[] args) {
+        long window = 30 * 1000L;
+        int hours = 24;
+        for (int i = 0; i < args.length; i++) {
+            if ("--window".equals(args[i])) {
+                window = Long.parseLong(args[++i]);
+            } else if ("--hours".equals(args[i])) {
+                hours = Integer.parseInt(args[++i]);
+            }
+        }
+
+        CountingSink sink = new CountingSink();
+        EventCoalescer coalescer = new EventCoalescer(sink);
+        coalescer.setRule("call state", 0, 0);
+        coalescer.setRule("data connection", Math.min(window, 5000), 0);
+        coalescer.setRule("service state", window, 0);
+        coalescer.setRule("signal strength", window, 4);
+
+        Random random = new Random(42);
+        double level = -85;
+        long start = System.nanoTime();
+        for (long time = 0; time < hours * HOUR; time += 250) {
+            sink.now = time;
+            coalescer.flush(time);
+
+            // moving for 10 minutes every hour: more events, bigger changes, handovers
+            boolean moving = time % HOUR < 10 * 60 * 1000L;
+            if (random.nextInt(100) < (moving ? 40 : 4)) {
+                level += random.nextGaussian() * (moving ? 1.5 : 0.2);
+                level = Math.max(-113, Math.min(-51, level));
+                int asu = (int) Math.round((level + random.nextGaussian() * 2 + 113) / 2);
+                coalescer.offer("signal strength", "{\"GSM signal strength\":" + asu + "}",
+                        -113 + 2 * asu, time);
+            }
+            if (moving && random.nextInt(1000) < 3) {
+                coalescer.offer("data connection", "disconnected", Double.NaN, time);
+                coalescer.offer("data connection", "connecting", Double.NaN, time + 100);
+                coalescer.offer("data connection", "connected", Double.NaN, time + 200);
+            }
+            if (moving && random.nextInt(10000) < 5) {
+                coalescer.offer("service state", "{\"state\":\"out of service\"}", Double.NaN,
+                        time);
+                coalescer.offer("service state", "{\"state\":\"in service\"}", Double.NaN,
+                        time + 1000);
+            }
+            if (random.nextInt(100000) < 3) {
+                coalescer.offer("call state", "{\"state\":\"ringing\"}", Double.NaN, time);
+                coalescer.offer("call state", "{\"state\":\"idle\"}", Double.NaN, time + 200);
+            }
+        }
+        sink.now = hours * HOUR;
+        coalescer.flush(Long.MAX_VALUE);
+        long elapsed = System.nanoTime() - start;
+
+        long raw = coalescer.getRaw();
+        System.out.printf("%d hours, window %d ms%n", hours, window);
+        System.out.printf("Raw events:     %d (%.0f/hour)%n", raw, (double) raw / hours);
+        System.out.printf("Emitted events: %d (%.0f/hour, %.0f%% less), max delay %d ms%n",
+                sink.events, (double) sink.events / hours, 100.0 - 100.0 * sink.events / raw,
+                sink.maxDelay);
+        for (String type : new String[] { "signal strength", "data connection", "service state",
+                "call state" }) {
+            System.out.printf("  %s: %d merged%n", type, coalescer.getMerged(type));
+        }
+        System.out.printf("Replay: %.0f ns/event%n", (double) elapsed / raw);
+    }
+}
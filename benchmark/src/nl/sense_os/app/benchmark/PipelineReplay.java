@@ -0,0 +1,107 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.trace.TraceReader;
+import nl.sense_os.app.trace.TraceReplayer;
+import nl.sense_os.app.trace.TraceWriter;
+
+/**
+ * Replays sensor traces that were recorded on a phone (see
+ * {@link nl.sense_os.app.trace.TraceRecorder}) through the {@link DesktopPipeline}, at the
+ * recorded pace, faster, or as fast as the pipeline goes. Reports the samples per second, how
+ * late the samples were fed when the pipeline could not keep up, and the report of the pipeline
+ * stages.<br/>
+ * <br/>
+ * Usage: <code>PipelineReplay [--speed 1|10|max] [--sync s] [--hours n] [--write file]
+ * [file ...]</code>. The defaults are the maximum speed and a sync interval of 30 minutes.
+ * Without files it replays a synthetic trace of <code>n</code> hours (default 24) from
+ * {@link SampleTraces}; with <code>--write</code> it only writes that trace to a file.
+ */
+public class PipelineReplay {
+
+    public static void main(String[] args) throws Exception {
+        float speed = TraceReplayer.MAX_SPEED;
+        long sync = 30 * 60 * 1000L;
+        int hours = 24;
+        File write = null;
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--speed".equals(args[i])) {
+                String value = args[++i];
+                speed = "max".equals(value) ? TraceReplayer.MAX_SPEED : Float.parseFloat(value);
+            } else if ("--sync".equals(args[i])) {
+                sync = Long.parseLong(args[++i]) * 1000;
+            } else if ("--hours".equals(args[i])) {
+                hours = Integer.parseInt(args[++i]);
+            } else if ("--write".equals(args[i])) {
+                write = new File(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+
+        if (null != write) {
+            OutputStream out = new FileOutputStream(write);
+            try {
+                TraceWriter writer = new TraceWriter(out);
+                SampleTraces.synthesize(writer, hours, 1384250000000L, 42);
+                writer.finish();
+                System.out.println("Wrote " + writer.getCount() + " samples to " + write);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+
+        byte[] synthetic = null;
+        if (files.isEmpty()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            TraceWriter writer = new TraceWriter(bytes);
+            SampleTraces.synthesize(writer, hours, 1384250000000L, 42);
+            writer.finish();
+            synthetic = bytes.toByteArray();
+            System.out.printf("Synthetic trace: %d hours, %d samples, %d kB%n", hours,
+                    writer.getCount(), synthetic.length / 1024);
+        }
+
+        DesktopPipeline pipeline = new DesktopPipeline(sync, null);
+        TraceReplayer replayer = new TraceReplayer(speed);
+        if (null != synthetic) {
+            replayer.replay(new TraceReader(new ByteArrayInputStream(synthetic)), pipeline);
+        }
+        for (File file : files) {
+            InputStream in = new FileInputStream(file);
+            try {
+                TraceReader reader = new TraceReader(in);
+                replayer.replay(reader, pipeline);
+                if (reader.isCutOff()) {
+                    System.out.println(file + " was cut off");
+                }
+            } finally {
+                in.close();
+            }
+        }
+        pipeline.finish();
+
+        long wall = Math.max(1, replayer.getWallTime());
+        System.out.printf("Replayed %d samples of %.1f h in %.1f s (%.0fx), %.0f samples/s%n",
+                replayer.getSamples(), replayer.getTraceTime() / 3600000d, wall / 1000d,
+                replayer.getTraceTime() / (double) wall, replayer.getSamples() * 1000d / wall);
+        if (speed > 0) {
+            System.out.println("Lateness (ms): " + replayer.getLateness());
+        }
+        StringBuilder report = new StringBuilder();
+        pipeline.appendReport(report);
+        System.out.println(report);
+    }
+}
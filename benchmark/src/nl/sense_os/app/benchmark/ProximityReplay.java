@@ -0,0 +1,98 @@
+package nl.sense_os.app.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nl.sense_os.app.deviceprox.SeenDeviceCache;
+
+/**
+ * Replays synthetic proximity scans through the {@link SeenDeviceCache}, and compares the data
+ * volume of the changes with recording the full scan every interval. A day moves between three
+ * places with stable access points, each seen by 90% of the scans with a noisy signal strength,
+ * plus a few passing devices per scan.<br/>
+ * <br/>
+ * Usage: <code>ProximityReplay [--interval s] [--hours n]</code>. The default interval is 60 s,
+ * the scan interval of the neighboring devices module at the "often" sample rate.
+ */
+public class ProximityReplay {
+
+    private static final int[] PLACE_DEVICES = { 8, 25, 12 };
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    public static void main(String[] args) {
+        long interval = 60 * 1000L;
+        int hours = 24;
+        for (int i = 0; i < args.length; i++) {
+            if ("--interval".equals(args[i])) {
+                interval = Long.parseLong(args[++i]) * 1000L;
+            } else if ("--hours".equals(args[i])) {
+                hours = Integer.parseInt(args[++i]);
+            }
+        }
+
+        Random random = new Random(42);
+        int[][] baseRssi = new int[PLACE_DEVICES.length][];
+        for (int p = 0; p < PLACE_DEVICES.length; p++) {
+            baseRssi[p] = new int[PLACE_DEVICES[p]];
+            for (int d = 0; d < PLACE_DEVICES[p]; d++) {
+                baseRssi[p][d] = -45 - random.nextInt(45);
+            }
+        }
+
+        SeenDeviceCache cache = new SeenDeviceCache(Math.max(3 * 60 * 1000L, 3 * interval), 10,
+                HOUR);
+        long fullEntries = 0;
+        long fullBytes = 0;
+        long deltaPoints = 0;
+        long deltaBytes = 0;
+        int scans = 0;
+        long start = System.nanoTime();
+        for (long time = 0; time < hours * HOUR; time += interval) {
+            // home at night, office during the day, a bar in the evening
+            long hourOfDay = time / HOUR % 24;
+            int place = hourOfDay >= 8 && hourOfDay < 17 ? 1 : hourOfDay >= 19
+                    && hourOfDay < 21 ? 2 : 0;
+            List<String> ids = new ArrayList<String>();
+            List<Integer> rssis = new ArrayList<Integer>();
+            for (int d = 0; d < PLACE_DEVICES[place]; d++) {
+                if (random.nextInt(100) < 90) {
+                    ids.add(place + ":" + d);
+                    rssis.add(baseRssi[place][d] + (int) Math.round(random.nextGaussian() * 3));
+                }
+            }
+            int passing = random.nextInt(4);
+            for (int i = 0; i < passing; i++) {
+                ids.add("passing:" + random.nextInt(1000000));
+                rssis.add(-80 - random.nextInt(15));
+            }
+            List<SeenDeviceCache.Device> scan = new ArrayList<SeenDeviceCache.Device>();
+            for (int i = 0; i < ids.size(); i++) {
+                scan.add(new SeenDeviceCache.Device(ids.get(i), rssis.get(i),
+                        "\"ssid\":\"network " + ids.get(i) + "\""));
+            }
+
+            // the full scan: one data point per device, like the scans of the Sense service
+            for (int i = 0; i < scan.size(); i++) {
+                fullBytes += ("{\"ssid\":\"network " + ids.get(i) + "\",\"bssid\":\""
+                        + ids.get(i) + "\",\"rssi\":" + rssis.get(i) + "}").length();
+            }
+            fullEntries += scan.size();
+
+            SeenDeviceCache.Delta delta = cache.update(time, scan);
+            if (!delta.isEmpty()) {
+                deltaPoints++;
+                deltaBytes += delta.toJson("bssid").length();
+            }
+            scans++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%d scans in %d hours, every %d s%n", scans, hours, interval / 1000);
+        System.out.printf("Full scans: %d data points, %d KiB%n", fullEntries, fullBytes / 1024);
+        System.out.printf("Changes:    %d data points, %d KiB (%.0f%% less), %d devices"
+                + " reported, %d suppressed%n", deltaPoints, deltaBytes / 1024,
+                100.0 - 100.0 * deltaBytes / fullBytes, cache.getReported(), cache.getSuppressed());
+        System.out.printf("Replay: %.0f ns/scan%n", (double) elapsed / scans);
+    }
+}
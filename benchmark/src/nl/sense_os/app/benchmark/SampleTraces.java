@@ -0,0 +1,110 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import nl.sense_os.app.trace.SampleSink;
+
+/**
+ * Synthetic sensor traces, like a {@link nl.sense_os.app.trace.TraceRecorder} records on a phone
+ * with the default modules at the normal sample rate: a burst of accelerometer data, the noise
+ * level and the light every minute, the signal strength every 30 s, the position, the battery
+ * and a Wi-Fi scan every 5 minutes, and screen and call state events at random.
+ */
+public class SampleTraces {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    /**
+     * Writes the samples of a synthetic trace to a sink, in order of their timestamps.
+     *
+     * @param hours
+     *            Length of the trace
+     * @param start
+     *            Timestamp of the first sample
+     */
+    public static void synthesize(SampleSink sink, int hours, long start, long seed)
+            throws IOException {
+        Random random = new Random(seed);
+        StringBuilder value = new StringBuilder();
+        long end = start + hours * 60 * MINUTE;
+        long nextEvent = start + (long) (random.nextDouble() * 10 * MINUTE);
+        for (long time = start; time < end; time += MINUTE / 2) {
+            boolean minute = (time - start) % MINUTE == 0;
+            boolean fiveMinutes = (time - start) % (5 * MINUTE) == 0;
+            sink.onSample("signal strength", "signal strength", "json", String.format(Locale.US,
+                    "{\"GSM signal strength\":%d,\"GSM bit error rate\":-1}",
+                    -113 + 2 * random.nextInt(20)), time);
+            if (minute) {
+                sink.onSample("accelerometer (burst-mode)", "BMA150 3-axis Accelerometer",
+                        "json", burst(value, random), time);
+                sink.onSample("noise_sensor", "noise_sensor", "float", String.format(Locale.US,
+                        "%.2f", 30 + 40 * random.nextDouble()), time + 2000);
+                sink.onSample("light", "CM3602 Light sensor", "json", String.format(Locale.US,
+                        "{\"lux\":%.1f}", 10 + 500 * random.nextDouble()), time + 3000);
+            }
+            if (fiveMinutes) {
+                sink.onSample("position", "network", "json", String.format(Locale.US,
+                        "{\"longitude\":%.6f,\"latitude\":%.6f,\"accuracy\":%.1f,"
+                                + "\"provider\":\"network\"}",
+                        4.47 + random.nextGaussian() / 1000, 51.92 + random.nextGaussian() / 1000,
+                        20 + 30 * random.nextDouble()), time + 4000);
+                sink.onSample("battery sensor", "battery sensor", "json", String.format(
+                        Locale.US, "{\"status\":\"discharging\",\"level\":\"%d%%\"}",
+                        100 - (int) ((time - start) / (15 * MINUTE)) % 100), time + 5000);
+                sink.onSample("wifi scan", "wifi scan", "json", wifiScan(value, random),
+                        time + 6000);
+            }
+            while (nextEvent < time + MINUTE / 2) {
+                if (random.nextInt(4) == 0) {
+                    sink.onSample("call state", "call state", "json",
+                            "{\"state\":\"idle\"}", nextEvent);
+                } else {
+                    sink.onSample("screen activity", "screen activity", "json", random
+                            .nextBoolean() ? "{\"screen\":\"on\"}" : "{\"screen\":\"off\"}",
+                            nextEvent);
+                }
+                nextEvent += (long) (random.nextDouble() * 10 * MINUTE);
+            }
+        }
+    }
+
+    /**
+     * @return A 3 s accelerometer burst at 50 Hz in the JSON format of the Sense Platform
+     */
+    private static String burst(StringBuilder value, Random random) {
+        value.setLength(0);
+        value.append("{\"interval\":20,\"header\":\"x-axis,y-axis,z-axis\",\"values\":[");
+        double phase = random.nextDouble() * Math.PI;
+        for (int i = 0; i < 150; i++) {
+            if (i > 0) {
+                value.append(',');
+            }
+            double walk = 2 * Math.sin(phase + i * 0.23);
+            value.append(String.format(Locale.US, "[%.3f,%.3f,%.3f]", walk * 0.3
+                    + random.nextGaussian() * 0.05, 9.81 + walk + random.nextGaussian() * 0.05,
+                    random.nextGaussian() * 0.2));
+        }
+        return value.append("]}").toString();
+    }
+
+    private static String wifiScan(StringBuilder value, Random random) {
+        value.setLength(0);
+        value.append('[');
+        int count = 3 + random.nextInt(10);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                value.append(',');
+            }
+            value.append(String.format(Locale.US, "{\"ssid\":\"net%d\",\"bssid\":"
+                    + "\"00:1a:2b:3c:4d:%02x\",\"frequency\":2412,\"rssi\":%d,"
+                    + "\"capabilities\":\"[WPA2-PSK-CCMP]\"}", i, i, -90 + random.nextInt(50)));
+        }
+        return value.append(']').toString();
+    }
+
+    private SampleTraces() {
+        // class should not be instantiated
+    }
+}
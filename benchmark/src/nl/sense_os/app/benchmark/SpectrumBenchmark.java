@@ -0,0 +1,61 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import nl.sense_os.app.ambience.SpectrumEngine;
+
+/**
+ * Runs the {@link SpectrumEngine} over recorded PCM files (16-bit mono WAV or raw) on the desktop
+ * JVM. For each frame size it reports the time and allocation per frame, and how much faster
+ * than real time the engine runs.<br/>
+ * <br/>
+ * Usage: <code>SpectrumBenchmark [sampleRate] [file ...]</code>. Without files a synthetic
+ * signal is used.
+ */
+public class SpectrumBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int sampleRate = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+        short[][] recordings;
+        if (args.length > 1) {
+            recordings = new short[args.length - 1][];
+            for (int i = 1; i < args.length; i++) {
+                recordings[i - 1] = PcmFiles.read(new File(args[i]));
+                System.out.println("Loaded " + args[i] + ": " + recordings[i - 1].length
+                        + " samples");
+            }
+        } else {
+            recordings = new short[][] { PcmFiles.synthesize(sampleRate, 10) };
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(10, 10);
+        int[] frameSizes = { 256, 512, 1024, 2048 };
+        for (int frameSize : frameSizes) {
+            for (int r = 0; r < recordings.length; r++) {
+                final short[] pcm = recordings[r];
+                final SpectrumEngine engine = new SpectrumEngine(frameSize, sampleRate,
+                        SpectrumEngine.octaveBands(62.5f, sampleRate / 2f));
+                final int chunk = frameSize;
+                BenchmarkRunner.Result result = runner.run("spectrum frame=" + frameSize
+                        + " recording=" + r, Math.max(1, pcm.length / chunk),
+                        new BenchmarkRunner.Operation() {
+                            private int mOffset;
+
+                            @Override
+                            public long run() {
+                                if (mOffset + chunk > pcm.length) {
+                                    mOffset = 0;
+                                }
+                                int frames = engine.feed(pcm, mOffset, chunk, null);
+                                mOffset += chunk;
+                                return frames + Float.floatToIntBits(engine.getLoudness());
+                            }
+                        });
+                double frameDurationNs = 1e9 * frameSize / sampleRate;
+                System.out.printf("    %.0fx real time%n", frameDurationNs / result.nsPerOp);
+            }
+        }
+        System.out.println("(sink " + runner.getSink() + ")");
+    }
+}
@@ -0,0 +1,61 @@
+package nl.sense_os.app.benchmark;
+
+/**
+ * Status bitmasks of the Sense service for the benchmarks, and their decoding into the state of
+ * the modules, the way <code>SenseMainActivity.updateUi</code> and the widget read them. The bits
+ * are copies of <code>SenseStatusCodes</code> in the Sense Platform library, which the
+ * benchmarks cannot use; keep them in sync with the library.
+ */
+public class StatusFixtures {
+
+    public static final int PHONESTATE = 0;
+    public static final int LOCATION = 1;
+    public static final int MOTION = 2;
+    public static final int AMBIENCE = 3;
+    public static final int DEVICE_PROX = 4;
+    public static final int EXTERNAL = 5;
+    public static final int MODULE_COUNT = 6;
+
+    /** <code>SenseStatusCodes.RUNNING</code> */
+    private static final int RUNNING = 1;
+    /** <code>SenseStatusCodes</code> of the modules, in the order of the module constants */
+    private static final int[] BITS = { 4, 8, 32, 16, 64, 128 };
+
+    /**
+     * @return Statuses of a service that is stopped, running with some modules, and running
+     *         with all of them, 8 in total
+     */
+    public static int[] statuses() {
+        return new int[] { 0, RUNNING, RUNNING | 4 | 8, RUNNING | 4 | 8 | 16 | 32,
+                RUNNING | 4 | 8 | 16 | 32 | 64 | 128, RUNNING | 2 | 4 | 8 | 16 | 32 | 64 | 128,
+                RUNNING | 2 | 32, RUNNING | 2 | 4 | 16 };
+    }
+
+    /**
+     * Decodes the status of all modules at once, as for the list rows of the main screen.
+     *
+     * @param active
+     *            Array of at least {@link #MODULE_COUNT} elements that receives the status of
+     *            each module, in the order of the module constants
+     * @return <code>true</code> if the Sense service is running
+     */
+    public static boolean decode(int status, boolean[] active) {
+        for (int i = 0; i < MODULE_COUNT; i++) {
+            active[i] = (status & BITS[i]) > 0;
+        }
+        return (status & RUNNING) > 0;
+    }
+
+    /**
+     * @param module
+     *            Module, e.g. {@link #MOTION}
+     * @return <code>true</code> if the module is switched on, as for a button of the widget
+     */
+    public static boolean isActive(int status, int module) {
+        return (status & BITS[module]) > 0;
+    }
+
+    private StatusFixtures() {
+        // class should not be instantiated
+    }
+}
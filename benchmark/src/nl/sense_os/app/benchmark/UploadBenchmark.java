@@ -0,0 +1,241 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import nl.sense_os.app.commonsense.CommonSenseClient;
+import nl.sense_os.app.commonsense.CommonSenseException;
+import nl.sense_os.app.commonsense.CommonSenseSession;
+import nl.sense_os.app.commonsense.SensorRegistrar;
+import nl.sense_os.app.commonsense.SensorRegistrationCache;
+import nl.sense_os.app.commonsense.SensorSpec;
+import nl.sense_os.app.commonsense.UploadMessage;
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.app.trace.SampleSink;
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Uploads the samples of a synthetic trace (see {@link SampleTraces}) to the
+ * {@link CommonSenseSimulator} with the {@link CommonSenseClient}: a login, the registration of
+ * the sensors with the {@link SensorRegistrar}, and data uploads of {@link UploadMessage}s with a
+ * number of points each. A failed upload is retried right away, up to {@link #MAX_ATTEMPTS}
+ * times. The sessions of the simulator expire, and a {@link CommonSenseSession} logs in again,
+ * in the background unless <code>--no-renewal</code> is given. For each upload size it reports
+ * the points per second, the bytes sent per point, and the overhead of the retries, and at the
+ * end the logins and the time that requests waited for them.<br/>
+ * <br/>
+ * Usage: <code>UploadBenchmark [--latency ms] [--bandwidth kB/s] [--failures percentage]
+ * [--hours n] [--plain] [--session s] [--no-renewal] [--batch n ...]</code>. The defaults are a
+ * latency of 150 ms, 64 kB/s, 5% failures, 6 hours of samples, gzipped uploads, sessions of 10 s
+ * that are renewed 2 s before they expire, and 25, 100 and 400 points per upload.
+ */
+public class UploadBenchmark {
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final String USERNAME = "benchmark";
+    /** MD5 hash of "password" */
+    private static final String PASSWORD_HASH = "5f4dcc3b5aa765d61d8327deb882cf99";
+    private static final long RENEWAL_MARGIN = 2000;
+
+    /**
+     * Samples of the trace, with the sensor of each.
+     */
+    private static class Samples implements SampleSink {
+        final Map<String, SensorSpec> specs = new LinkedHashMap<String, SensorSpec>();
+        final List<SensorSpec> sensors = new ArrayList<SensorSpec>();
+        final List<String> values = new ArrayList<String>();
+        final List<Long> timestamps = new ArrayList<Long>();
+
+        @Override
+        public void onSample(String sensor, String description, String dataType, String value,
+                long timestamp) {
+            SensorSpec spec = new SensorSpec(sensor, description, dataType, "benchmark", null);
+            SensorSpec known = specs.get(spec.getKey());
+            if (null == known) {
+                specs.put(spec.getKey(), spec);
+                known = spec;
+            }
+            sensors.add(known);
+            values.add(value);
+            timestamps.add(timestamp);
+        }
+
+        int size() {
+            return sensors.size();
+        }
+    }
+
+    /**
+     * Logs in for the first time, with retries. Later logins are done by the session.
+     *
+     * @return The number of requests
+     */
+    private static int login(CommonSenseSession session) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                session.getSessionId();
+                return attempt;
+            } catch (CommonSenseException e) {
+                if (attempt >= MAX_ATTEMPTS || e.isAuthError()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long latency = 150;
+        long bandwidth = 64 * 1024;
+        double failures = 0.05;
+        int hours = 6;
+        boolean compress = true;
+        long lifetime = 10 * 1000L;
+        boolean renewal = true;
+        List<Integer> batches = new ArrayList<Integer>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--latency".equals(args[i])) {
+                latency = Long.parseLong(args[++i]);
+            } else if ("--bandwidth".equals(args[i])) {
+                bandwidth = Long.parseLong(args[++i]) * 1024;
+            } else if ("--failures".equals(args[i])) {
+                failures = Double.parseDouble(args[++i]) / 100;
+            } else if ("--hours".equals(args[i])) {
+                hours = Integer.parseInt(args[++i]);
+            } else if ("--plain".equals(args[i])) {
+                compress = false;
+            } else if ("--session".equals(args[i])) {
+                lifetime = Long.parseLong(args[++i]) * 1000;
+            } else if ("--no-renewal".equals(args[i])) {
+                renewal = false;
+            } else if ("--batch".equals(args[i])) {
+                batches.add(Integer.parseInt(args[++i]));
+            }
+        }
+        if (batches.isEmpty()) {
+            batches.add(25);
+            batches.add(100);
+            batches.add(400);
+        }
+
+        Samples samples = new Samples();
+        SampleTraces.synthesize(samples, hours, 1384250000000L, 42);
+        System.out.printf("%d samples of %d sensors, latency %d ms, %d kB/s, %.0f%% failures, %s%n",
+                samples.size(), samples.specs.size(), latency, bandwidth / 1024, failures * 100,
+                compress ? "gzip" : "no compression");
+
+        CommonSenseSimulator server = new CommonSenseSimulator(latency, bandwidth, failures, 42);
+        server.addUser(USERNAME, PASSWORD_HASH);
+        server.setSessionLifetime(lifetime);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        CommonSenseSession session = null;
+        try {
+            CommonSenseClient client = new CommonSenseClient(server.getUrl());
+            session = new CommonSenseSession(client, USERNAME, PASSWORD_HASH, lifetime,
+                    RENEWAL_MARGIN, renewal ? scheduler : null);
+            long start = System.nanoTime();
+            int requests = login(session);
+            SensorRegistrationCache cache = new SensorRegistrationCache();
+            SensorRegistrar registrar = new SensorRegistrar(client, cache, executor,
+                    60 * 60 * 1000L);
+            List<SensorSpec> specs = new ArrayList<SensorSpec>(samples.specs.values());
+            for (int attempt = 1;; attempt++) {
+                SensorRegistrar.Result result = registrar.ensureRegistered(specs,
+                        System.currentTimeMillis());
+                requests += result.requests;
+                if (result.failed == 0 && result.registered + result.cached == specs.size()) {
+                    break;
+                } else if (attempt >= MAX_ATTEMPTS) {
+                    throw new IOException("Sensor registration failed: " + result.lastError);
+                }
+            }
+            System.out.printf("Login and registration: %d requests in %.1f s%n", requests,
+                    (System.nanoTime() - start) / 1e9);
+
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            LatencyHistogram loginWait = metrics.histogram("session/login wait (ms)");
+            loginWait.reset();
+            long logins = metrics.counter("session/logins").get();
+            for (int batch : batches) {
+                upload(client, cache, samples, batch, compress);
+            }
+            System.out.printf("Session: %d logins (%d in the background), requests waited for "
+                    + "%d of them, p99 %d ms, %d requests refused as expired%n",
+                    metrics.counter("session/logins").get() - logins,
+                    metrics.counter("session/proactive renewals").get(), loginWait.getCount(),
+                    loginWait.getPercentile(99), server.getExpired());
+            System.out.printf("Server: %d requests, %d failed on purpose, %d points accepted, "
+                    + "%d kB in, %d kB out%n", server.getRequests(), server.getFailures(),
+                    server.getPoints(), server.getBytesIn() / 1024, server.getBytesOut() / 1024);
+        } finally {
+            if (null != session) {
+                session.close();
+            }
+            scheduler.shutdownNow();
+            executor.shutdownNow();
+            server.close();
+        }
+    }
+
+    private static void upload(CommonSenseClient client, SensorRegistrationCache cache,
+            Samples samples, int batch, boolean compress) throws IOException {
+        UploadMessage message = new UploadMessage();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 * 1024);
+        long points = 0;
+        long lost = 0;
+        long requests = 0;
+        long retries = 0;
+        long bytes = 0;
+        long retryBytes = 0;
+        long retryNanos = 0;
+        long start = System.nanoTime();
+        for (int from = 0; from < samples.size(); from += batch) {
+            message.clear();
+            for (int i = from; i < Math.min(samples.size(), from + batch); i++) {
+                SensorSpec spec = samples.sensors.get(i);
+                message.add(cache.get(spec), spec.getDataType(), samples.values.get(i),
+                        samples.timestamps.get(i));
+            }
+            body.reset();
+            message.writeTo(body, compress);
+            byte[] data = body.toByteArray();
+
+            boolean done = false;
+            for (int attempt = 0; attempt < MAX_ATTEMPTS && !done; attempt++) {
+                long attemptStart = System.nanoTime();
+                requests++;
+                bytes += data.length;
+                if (attempt > 0) {
+                    retries++;
+                    retryBytes += data.length;
+                }
+                try {
+                    client.uploadData(data, compress, message.getCount());
+                    done = true;
+                } catch (CommonSenseException e) {
+                    // retry
+                }
+                if (!done) {
+                    retryNanos += System.nanoTime() - attemptStart;
+                }
+            }
+            if (done) {
+                points += message.getCount();
+            } else {
+                lost += message.getCount();
+            }
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        System.out.printf("%4d points/upload: %.0f points/s, %.1f bytes/point, %d requests, "
+                + "%d retries (%.1f%% of the bytes, %.1f%% of the time), %d points lost%n",
+                batch, points * 1e9 / nanos, bytes / (double) Math.max(1, points), requests,
+                retries, retryBytes * 100d / Math.max(1, bytes), retryNanos * 100d / nanos, lost);
+    }
+}
@@ -0,0 +1,115 @@
+package nl.sense_os.app.benchmark;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.scheduler.TickPlanner;
+
+/**
+ * Simulates a day of periodic sampling for each value of the sample rate preference, and compares
+ * the number of wakeups per hour of independent module timers with the shared, aligned ticks of
+ * the {@link TickPlanner}. The independent timers start at a random phase, like modules that are
+ * switched on one by one; timers that fire within the same wake period count as one wakeup.<br/>
+ * <br/>
+ * Usage: <code>WakeupSimulation [--flex percentage] [--hours n]</code>. The flex of the sensor
+ * modules is a percentage of their interval (default 10), the burst pipeline has a full interval
+ * of flex.
+ */
+public class WakeupSimulation {
+
+    private static final String[] MODULES = { "ambience", "devprox", "external", "location",
+            "motion" };
+    private static final long BURST_INTERVAL = 15 * 60 * 1000L;
+
+    /**
+     * Timers that fire within this period of a wakeup share the wakeup.
+     */
+    private static final long WAKE_PERIOD = 1000;
+
+    public static void main(String[] args) {
+        int flexPercentage = 10;
+        int hours = 24;
+        for (int i = 0; i < args.length; i++) {
+            if ("--flex".equals(args[i])) {
+                flexPercentage = Integer.parseInt(args[++i]);
+            } else if ("--hours".equals(args[i])) {
+                hours = Integer.parseInt(args[++i]);
+            }
+        }
+        long duration = hours * 3600 * 1000L;
+
+        System.out.printf("%d hours, flex %d%% of the interval%n", hours, flexPercentage);
+        System.out.printf("%-10s %12s %12s %10s%n", "rate", "independent", "aligned", "saved");
+        for (int rate = SampleIntervals.RATE_REAL_TIME; rate <= SampleIntervals.RATE_RARELY;
+                rate++) {
+            Random random = new Random(42 + rate);
+            long independent = simulateIndependent(rate, duration, random);
+            long aligned = simulateAligned(rate, duration, flexPercentage, random);
+            System.out.printf("%-10d %12.1f %12.1f %9.0f%%%n", rate, independent * 3600000.0
+                    / duration, aligned * 3600000.0 / duration, 100.0 - 100.0 * aligned
+                    / independent);
+        }
+    }
+
+    /**
+     * @return The number of wakeups when every module has its own repeating alarm
+     */
+    private static long simulateIndependent(int rate, long duration, Random random) {
+        TreeSet<Long> fireTimes = new TreeSet<Long>();
+        for (int module = 0; module < SampleIntervals.MODULE_COUNT; module++) {
+            long interval = SampleIntervals.getInterval(module, rate);
+            if (interval > 0) {
+                addFireTimes(fireTimes, interval, random, duration);
+            }
+        }
+        addFireTimes(fireTimes, BURST_INTERVAL, random, duration);
+
+        long wakeups = 0;
+        long awakeUntil = -1;
+        for (long time : fireTimes) {
+            if (time >= awakeUntil) {
+                wakeups++;
+                awakeUntil = time + WAKE_PERIOD;
+            }
+        }
+        return wakeups;
+    }
+
+    private static void addFireTimes(TreeSet<Long> fireTimes, long interval, Random random,
+            long duration) {
+        long time = (long) (random.nextDouble() * interval);
+        while (time < duration) {
+            fireTimes.add(time);
+            time += interval;
+        }
+    }
+
+    /**
+     * @return The number of wakeups when all modules share the ticks of a {@link TickPlanner}
+     */
+    private static long simulateAligned(int rate, long duration, int flexPercentage,
+            Random random) {
+        TickPlanner planner = new TickPlanner();
+        long now = (long) (random.nextDouble() * BURST_INTERVAL);
+        for (int module = 0; module < SampleIntervals.MODULE_COUNT; module++) {
+            long interval = SampleIntervals.getInterval(module, rate);
+            if (interval > 0) {
+                planner.add(MODULES[module], interval, interval * flexPercentage / 100, now);
+            }
+        }
+        planner.add("bursts", BURST_INTERVAL, BURST_INTERVAL, now);
+
+        long end = now + duration;
+        long wakeups = 0;
+        while (true) {
+            now = planner.nextWakeup();
+            if (now >= end) {
+                break;
+            }
+            planner.collectDue(now);
+            wakeups++;
+        }
+        return wakeups;
+    }
+}
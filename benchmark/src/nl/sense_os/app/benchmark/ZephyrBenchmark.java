@@ -0,0 +1,197 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import nl.sense_os.app.external.ZephyrParser;
+
+/**
+ * Runs the {@link ZephyrParser} over BioHarness and HxM packet streams on the desktop JVM. The
+ * stream is fed in chunks of 256 bytes, like reads from the Bluetooth socket, into a reused heap
+ * or direct buffer. Reports the time and allocation per packet, and the packets per second. A
+ * corrupted copy of the stream, with one bit flipped per 2000 bytes, shows the cost of
+ * resynchronizing.<br/>
+ * <br/>
+ * Before the benchmark, the decoded fields of the synthetic streams are checked against the
+ * values they were generated with.<br/>
+ * <br/>
+ * Usage: <code>ZephyrBenchmark [file ...]</code>, with recorded streams of raw socket bytes.
+ * Without files, one hour of synthetic BioHarness and HxM data is used.
+ */
+public class ZephyrBenchmark {
+
+    private static final int CHUNK = 256;
+
+    private static class CountingListener implements ZephyrParser.Listener {
+        long packets;
+        long sum;
+
+        @Override
+        public void onFrame(int id, ByteBuffer buffer, int offset, int length, int terminator) {
+            // lifesigns
+        }
+
+        @Override
+        public void onGeneralData(ZephyrParser.GeneralData data) {
+            packets++;
+            sum += data.heartRate + data.skinTemperature;
+        }
+
+        @Override
+        public void onHxmData(ZephyrParser.HxmData data) {
+            packets++;
+            sum += data.heartRate + data.speed;
+        }
+
+        @Override
+        public void onWaveform(ZephyrParser.Waveform waveform) {
+            packets++;
+            sum += waveform.samples[waveform.count - 1];
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Fixture check failed: " + message);
+        }
+    }
+
+    /**
+     * Decodes the first packets of the synthetic streams and compares them with the generated
+     * values.
+     */
+    private static void checkFixtures() {
+        final int[] counts = new int[256];
+        ZephyrParser.Listener listener = new ZephyrParser.Listener() {
+
+            @Override
+            public void onFrame(int id, ByteBuffer buffer, int offset, int length,
+                    int terminator) {
+                check(false, "unknown frame " + id);
+            }
+
+            @Override
+            public void onGeneralData(ZephyrParser.GeneralData data) {
+                if (counts[ZephyrParser.GENERAL_DATA]++ == 1) {
+                    check(data.heartRate == 61, "heart rate " + data.heartRate);
+                    check(data.respirationRate == 152, "respiration " + data.respirationRate);
+                    check(data.skinTemperature == 334, "temperature " + data.skinTemperature);
+                    check(data.posture == -12, "posture " + data.posture);
+                    check(data.batteryVoltage == 4012, "battery " + data.batteryVoltage);
+                    check(data.accelerationRange[0] == -50, "acceleration range");
+                    check(data.time == ZephyrFixtures.time(1000), "time " + data.time);
+                }
+            }
+
+            @Override
+            public void onHxmData(ZephyrParser.HxmData data) {
+                if (counts[ZephyrParser.HXM_DATA]++ == 2) {
+                    check(data.heartRate == 72, "HxM heart rate " + data.heartRate);
+                    check(data.battery == 87, "HxM battery " + data.battery);
+                    check(data.heartBeatTimes[1] == 1150, "beat time " + data.heartBeatTimes[1]);
+                    check(data.speed == 640, "HxM speed " + data.speed);
+                    check(data.strides == 3, "HxM strides " + data.strides);
+                }
+            }
+
+            @Override
+            public void onWaveform(ZephyrParser.Waveform waveform) {
+                counts[waveform.type]++;
+                for (int i = 0; i < waveform.count; i++) {
+                    int sample = waveform.samples[i];
+                    if (waveform.type == ZephyrParser.R_TO_R) {
+                        check(Math.abs(sample) >= 800 && Math.abs(sample) < 900, "R to R");
+                    } else {
+                        check(sample >= 0 && sample < 1024, "10-bit sample " + sample);
+                    }
+                }
+                int expected = waveform.type == ZephyrParser.ECG ? 63
+                        : waveform.type == ZephyrParser.ACCELEROMETER ? 60 : 18;
+                check(waveform.count == expected, "sample count " + waveform.count);
+            }
+        };
+        ZephyrParser parser = new ZephyrParser();
+        parser.parse(ByteBuffer.wrap(ZephyrFixtures.bioHarness(10)), listener);
+        parser.parse(ByteBuffer.wrap(ZephyrFixtures.hxm(10)), listener);
+        check(counts[ZephyrParser.GENERAL_DATA] == 10, "general packets");
+        check(counts[ZephyrParser.ECG] == 40, "ECG packets " + counts[ZephyrParser.ECG]);
+        check(counts[ZephyrParser.ACCELEROMETER] == 25, "accelerometer packets");
+        check(counts[ZephyrParser.HXM_DATA] == 10, "HxM packets");
+        check(parser.getCrcErrors() == 0 && parser.getSkippedBytes() == 0, "errors");
+        System.out.println("Fixtures OK");
+    }
+
+    private static byte[] corrupt(byte[] stream) {
+        byte[] corrupted = stream.clone();
+        Random random = new Random(7);
+        for (int i = random.nextInt(2000); i < corrupted.length; i += 1 + random.nextInt(4000)) {
+            corrupted[i] ^= 1 << random.nextInt(8);
+        }
+        return corrupted;
+    }
+
+    /**
+     * Feeds a stream through a parser in chunks.
+     */
+    private static long feed(ZephyrParser parser, ByteBuffer buffer, byte[] stream,
+            ZephyrParser.Listener listener) {
+        buffer.clear();
+        long frames = 0;
+        for (int offset = 0; offset < stream.length; offset += CHUNK) {
+            buffer.put(stream, offset, Math.min(CHUNK, stream.length - offset));
+            buffer.flip();
+            frames += parser.parse(buffer, listener);
+            buffer.compact();
+        }
+        return frames;
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkFixtures();
+
+        String[] names;
+        byte[][] streams;
+        if (args.length > 0) {
+            names = args;
+            streams = new byte[args.length][];
+            for (int i = 0; i < args.length; i++) {
+                streams[i] = ZephyrFixtures.read(new File(args[i]));
+            }
+        } else {
+            byte[] bioHarness = ZephyrFixtures.bioHarness(3600);
+            names = new String[] { "bioharness", "hxm", "bioharness corrupted" };
+            streams = new byte[][] { bioHarness, ZephyrFixtures.hxm(3600), corrupt(bioHarness) };
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(5, 10);
+        for (int i = 0; i < streams.length; i++) {
+            final byte[] stream = streams[i];
+            final CountingListener listener = new CountingListener();
+            final ZephyrParser parser = new ZephyrParser();
+            final long packets = feed(parser, ByteBuffer.allocate(1024), stream, listener);
+            System.out.printf("%s: %d bytes, %d packets, %d CRC errors, %d bytes skipped%n",
+                    names[i], stream.length, packets, parser.getCrcErrors(),
+                    parser.getSkippedBytes());
+            if (packets == 0) {
+                continue;
+            }
+            ByteBuffer[] buffers = { ByteBuffer.allocate(1024), ByteBuffer.allocateDirect(1024) };
+            for (final ByteBuffer buffer : buffers) {
+                BenchmarkRunner.Result result = runner.run("  " + (buffer.isDirect() ? "direct"
+                        : "heap") + " buffer, per stream", 1, new BenchmarkRunner.Operation() {
+
+                    @Override
+                    public long run() {
+                        return feed(parser, buffer, stream, listener);
+                    }
+                });
+                System.out.printf("    %.0f ns/packet, %.0f B/packet, %.2f M packets/s%n",
+                        result.nsPerOp / packets, result.bytesPerOp / packets, packets * 1000
+                                / result.nsPerOp);
+            }
+        }
+        System.out.println("(sink " + runner.getSink() + ")");
+    }
+}
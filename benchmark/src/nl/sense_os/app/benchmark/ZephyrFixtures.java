@@ -0,0 +1,172 @@
+package nl.sense_os.app.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import nl.sense_os.app.external.ZephyrParser;
+
+/**
+ * Packet streams of the Zephyr BioHarness and HxM for the benchmarks. Reads recorded streams
+ * (the raw bytes from the Bluetooth socket), or generates them with the packet layouts of the
+ * API guides: a BioHarness with all waveforms on sends per second a general data packet, a
+ * breathing and an R to R packet (18 samples), 4 ECG packets (63 samples at 250 Hz) and 2.5
+ * accelerometer packets (20 samples at 50 Hz); a HxM sends one general data packet.
+ */
+public class ZephyrFixtures {
+
+    /** Start of the synthetic streams: 2013-05-01 */
+    private static final int YEAR = 2013, MONTH = 5, DAY = 1;
+    private static final long EPOCH_TIME = 1367366400000L;
+
+    /**
+     * Appends a frame with a valid CRC.
+     */
+    public static void frame(ByteArrayOutputStream out, int id, byte[] payload) {
+        out.write(ZephyrParser.STX);
+        out.write(id);
+        out.write(payload.length);
+        out.write(payload, 0, payload.length);
+        out.write(ZephyrParser.crc8(ByteBuffer.wrap(payload), 0, payload.length));
+        out.write(ZephyrParser.ETX);
+    }
+
+    /**
+     * @return The time of the synthetic streams, for a number of milliseconds after the start
+     */
+    public static long time(long millis) {
+        return EPOCH_TIME + millis;
+    }
+
+    /**
+     * Creates a BioHarness stream with all waveforms.
+     *
+     * @param seconds
+     *            Length of the stream
+     * @return The bytes of the stream
+     */
+    public static byte[] bioHarness(int seconds) {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int sequence = 0;
+        int ecgPackets = 0;
+        int accPackets = 0;
+        for (int s = 0; s < seconds; s++) {
+            long millis = s * 1000L;
+            frame(out, ZephyrParser.GENERAL_DATA, generalData(sequence++, millis, 60 + s % 40));
+            frame(out, ZephyrParser.BREATHING, waveform(sequence++, millis, 18, random));
+            frame(out, ZephyrParser.R_TO_R, rToR(sequence++, millis, random));
+            // 250 Hz ECG in packets of 63 samples, 50 Hz accelerometer in packets of 20 samples
+            for (; ecgPackets * 63 < (s + 1) * 250; ecgPackets++) {
+                frame(out, ZephyrParser.ECG, waveform(sequence++, ecgPackets * 63 * 4L, 63,
+                        random));
+            }
+            for (; accPackets * 20 < (s + 1) * 50; accPackets++) {
+                frame(out, ZephyrParser.ACCELEROMETER, waveform(sequence++, accPackets * 400L,
+                        60, random));
+            }
+            sequence &= 0xff;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Payload of a BioHarness general data packet. The fields are recognizable: heart rate as
+     * given, respiration 15.2/min, skin temperature 33.4 C, posture -12, activity 0.21 g,
+     * battery 4012 mV.
+     */
+    public static byte[] generalData(int sequence, long millis, int heartRate) {
+        ByteBuffer payload = header(53, sequence, millis);
+        payload.putShort((short) heartRate).putShort((short) 152).putShort((short) 334)
+                .putShort((short) -12).putShort((short) 21).putShort((short) 87)
+                .putShort((short) 4012).putShort((short) 310).putShort((short) 120)
+                .putShort((short) 3);
+        for (int i = 0; i < 6; i++) {
+            payload.putShort((short) (i % 2 == 0 ? -50 - i : 50 + i));
+        }
+        return payload.array();
+    }
+
+    private static ByteBuffer header(int dlc, int sequence, long millis) {
+        ByteBuffer payload = ByteBuffer.allocate(dlc).order(ByteOrder.LITTLE_ENDIAN);
+        payload.put((byte) sequence).putShort((short) YEAR).put((byte) MONTH).put((byte) DAY)
+                .putInt((int) (millis % 86400000L));
+        return payload;
+    }
+
+    /**
+     * Creates a HxM stream.
+     */
+    public static byte[] hxm(int seconds) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int s = 0; s < seconds; s++) {
+            frame(out, ZephyrParser.HXM_DATA, hxmData(70 + s % 30, s));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Payload of a HxM general data packet: battery 87%, 15 beats 850 ms apart, distance and
+     * speed of 2.5 m/s.
+     */
+    public static byte[] hxmData(int heartRate, int second) {
+        ByteBuffer payload = ByteBuffer.allocate(55).order(ByteOrder.LITTLE_ENDIAN);
+        payload.putShort((short) 0x1A).putShort((short) 0x4F).putShort((short) 0x1A)
+                .putShort((short) 0x4F).put((byte) 87).put((byte) heartRate)
+                .put((byte) second);
+        for (int i = 0; i < 15; i++) {
+            payload.putShort((short) ((second * 1000 - i * 850) & 0xffff));
+        }
+        payload.position(47);
+        payload.putShort((short) (second * 40 % 4096)).putShort((short) 640)
+                .put((byte) (second * 3 / 2));
+        return payload.array();
+    }
+
+    /**
+     * Reads a recorded stream.
+     */
+    public static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] rToR(int sequence, long millis, Random random) {
+        ByteBuffer payload = header(9 + 36, sequence, millis);
+        for (int i = 0; i < 18; i++) {
+            // the sign flips at every detected beat
+            payload.putShort((short) ((i / 9 % 2 == 0 ? 1 : -1) * (800 + random.nextInt(100))));
+        }
+        return payload.array();
+    }
+
+    /**
+     * Payload of a waveform packet with packed 10-bit samples around the mid-scale.
+     */
+    private static byte[] waveform(int sequence, long millis, int samples, Random random) {
+        byte[] payload = header(9 + (samples * 10 + 7) / 8, sequence, millis).array();
+        for (int i = 0, bit = 0; i < samples; i++, bit += 10) {
+            int value = 512 + (int) (random.nextGaussian() * 60) & 0x3ff;
+            int index = 9 + (bit >> 3);
+            int bits = value << (bit & 7);
+            payload[index] |= (byte) bits;
+            payload[index + 1] |= (byte) (bits >> 8);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,52 @@
+package nl.sense_os.app;
+
+import nl.sense_os.app.ambience.AudioSpectrumSampler;
+import nl.sense_os.app.ambience.CameraLightMeter;
+import nl.sense_os.app.deviceprox.DeviceProximitySampler;
+import nl.sense_os.app.external.BioHarnessLogSampler;
+import nl.sense_os.app.external.Obd2Sampler;
+import nl.sense_os.app.location.AdaptiveLocationSampler;
+import nl.sense_os.app.motion.FallDetectionSampler;
+import nl.sense_os.app.motion.MotionFeatureSampler;
+import nl.sense_os.app.phonestate.PhoneStateSampler;
+import nl.sense_os.app.trace.TraceRecorder;
+import nl.sense_os.service.SenseServiceStub;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Starts and stops the samplers of the app. Each sampler decides from the preferences of the
+ * Sense service whether it should run, so call {@link #updateAll(Context)} after every change of
+ * the status of the service, its modules, or the preferences of the samplers.
+ */
+public class AppSamplers {
+
+    private static final String TAG = "AppSamplers";
+
+    /**
+     * Starts or stops every sampler of the app, depending on the status of the Sense service and
+     * the preferences. Samplers that are already in the right state are left alone.
+     */
+    public static void updateAll(Context context) {
+        SenseServiceStub service = ((SenseApplication) context.getApplicationContext())
+                .getSensePlatform().getService();
+        if (null == service) {
+            Log.w(TAG, "Cannot update the samplers: Sense service is not bound");
+            return;
+        }
+        AdaptiveLocationSampler.update(context, service);
+        BioHarnessLogSampler.update(context, service);
+        Obd2Sampler.update(context, service);
+        CameraLightMeter.update(context, service);
+        AudioSpectrumSampler.update(context, service);
+        DeviceProximitySampler.update(context, service);
+        MotionFeatureSampler.update(context, service);
+        FallDetectionSampler.update(context, service);
+        PhoneStateSampler.update(context, service);
+        TraceRecorder.update(context, service);
+    }
+
+    private AppSamplers() {
+        // class should not be instantiated
+    }
+}
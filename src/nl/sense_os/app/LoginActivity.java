@@ -1,5 +1,6 @@
 package nl.sense_os.app;
 
+import nl.sense_os.app.commonsense.SensorRegistrationWarmup;
 import nl.sense_os.platform.SensePlatform;
 import nl.sense_os.service.ISenseServiceCallback;
 import nl.sense_os.service.commonsense.SenseApi;
@@ -119,6 +120,9 @@ public class LoginActivity extends FragmentActivity {
         mSensePlatform.getService().toggleDeviceProx(false);
         mSensePlatform.getService().toggleExternalSensors(false);
 
+        // registers the sensors that the service leaves out, after the service is done
+        SensorRegistrationWarmup.start(this, mSensePlatform.getService());
+
         setResult(RESULT_OK);
         finish();
     }
@@ -1,5 +1,10 @@
 package nl.sense_os.app;
 
+import nl.sense_os.app.burst.BurstService;
+import nl.sense_os.app.commonsense.SensorRegistrationWarmup;
+import nl.sense_os.app.energy.EnergyMonitor;
+import nl.sense_os.app.metrics.StartupTrace;
+import nl.sense_os.app.metrics.StartupTraceLog;
 import nl.sense_os.platform.SensePlatform;
 import nl.sense_os.service.ServiceStateHelper;
 import nl.sense_os.service.constants.SensePrefs;
@@ -31,12 +36,20 @@ public class SenseApplication extends Application implements ServiceConnection {
     @Override
     public void onCreate() {
         super.onCreate();
+
+        // the startup trace starts here, and is stored when the main screen shows the status
+        StartupTrace.getInstance().begin(StartupTrace.BIND);
         mSensePlatform = new SensePlatform(this, this);
+        StartupTraceLog.finishLater(this);
+
+        // account the energy use of the modules, also while Sense is stopped
+        EnergyMonitor.getInstance(this).start();
     }
 
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
         Log.v(TAG, "Service connected");
+        StartupTrace.getInstance().end(StartupTrace.BIND);
 
         // check the sense service status
         new Thread() {
@@ -63,9 +76,20 @@ public class SenseApplication extends Application implements ServiceConnection {
         if (true == mainStatus) {
             // check of the service is not already running
             ServiceStateHelper ssh = ServiceStateHelper.getInstance(getApplicationContext());
+            StartupTrace trace = StartupTrace.getInstance();
             if (!ssh.isStarted()) {
+                trace.begin(StartupTrace.SERVICE_CREATE);
                 mSensePlatform.getService().toggleMain(true);
+                trace.end(StartupTrace.SERVICE_CREATE);
             }
+
+            trace.begin(StartupTrace.MODULE_RESTORE);
+            AppSamplers.updateAll(this);
+            BurstService.schedule(this);
+
+            // checks the cached sensor registrations after the service registered its sensors
+            SensorRegistrationWarmup.start(this, mSensePlatform.getService());
+            trace.end(StartupTrace.MODULE_RESTORE);
         }
     }
 }
@@ -6,11 +6,19 @@
 
 package nl.sense_os.app;
 
+import nl.sense_os.app.commonsense.SharedSession;
 import nl.sense_os.app.dialogs.FaqDialog;
 import nl.sense_os.app.dialogs.LogoutConfirmDialog;
 import nl.sense_os.app.dialogs.LogoutConfirmDialog.LogoutActivity;
 import nl.sense_os.app.dialogs.SampleRateDialog;
 import nl.sense_os.app.dialogs.SyncRateDialog;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.energy.EnergyMonitor;
+import nl.sense_os.app.metrics.ScreenMetrics;
+import nl.sense_os.app.metrics.StartupTrace;
+import nl.sense_os.app.metrics.StartupTraceLog;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.scheduler.SampleRates;
 import nl.sense_os.platform.SensePlatform;
 import nl.sense_os.service.DataTransmitter;
 import nl.sense_os.service.ISenseServiceCallback;
@@ -32,12 +40,14 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.text.format.Formatter;
 import android.support.v4.app.FragmentActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.View.OnLongClickListener;
 import android.widget.CheckBox;
 import android.widget.ProgressBar;
 import android.widget.Switch;
@@ -47,6 +57,29 @@ import android.widget.Toast;
 public class SenseMainActivity extends FragmentActivity implements LogoutActivity,
         SampleRateDialog.Listener, SyncRateDialog.Listener {
 
+    /**
+     * Task to read the energy use of the modules in the last day from the
+     * {@link EnergyMonitor}, which is shown in the rows of the modules.
+     */
+    private class EnergyTask extends AsyncTask<Void, Void, long[]> {
+
+        @Override
+        protected long[] doInBackground(Void... params) {
+            return EnergyMonitor.getInstance(SenseMainActivity.this).getTotals(24);
+        }
+
+        @Override
+        protected void onPostExecute(long[] totals) {
+            showEnergy(R.id.phonestate_energy, EnergyLedger.PHONE_STATE, totals);
+            showEnergy(R.id.location_energy, EnergyLedger.LOCATION, totals);
+            showEnergy(R.id.ambience_energy, EnergyLedger.AMBIENCE, totals);
+            showEnergy(R.id.motion_energy, EnergyLedger.MOTION, totals);
+            showEnergy(R.id.device_prox_energy, EnergyLedger.DEV_PROX, totals);
+            showEnergy(R.id.external_sensor_energy, EnergyLedger.EXTERNAL, totals);
+            showEnergy(R.id.sync_energy, EnergyLedger.UPLOAD, totals);
+        }
+    }
+
     /**
      * Task to log out the Sense service. This can take some time (due to persisting of data
      * points), so it is implemented as an {@link AsyncTask}.
@@ -62,6 +95,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
             service = mSensePlatform.getService();
             service.logout();
             service.toggleMain(false);
+            SharedSession.close();
 
             try {
                 service.getStatus(mCallback);
@@ -107,6 +141,8 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         @Override
         public void statusReport(final int status) {
             // Log.v(TAG, "Received status report from Sense Platform service...");
+            StartupTrace.getInstance().end(StartupTrace.STATUS_CALLBACK);
+            StartupTrace.getInstance().begin(StartupTrace.FIRST_UI);
 
             runOnUiThread(new Runnable() {
 
@@ -155,6 +191,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
 
             service = mSensePlatform.getService();
             service.toggleMain(active);
+            AppSamplers.updateAll(SenseMainActivity.this);
 
             return true;
         }
@@ -180,7 +217,25 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
     private static final int REQ_CODE_REGISTER = 3;
     private static final String TAG = "SenseActivity";
 
+    /** Status bit of each module, in the order of {@link #MODULE_ROWS} */
+    private static final int[] MODULE_BITS = { SenseStatusCodes.PHONESTATE,
+            SenseStatusCodes.LOCATION, SenseStatusCodes.MOTION, SenseStatusCodes.AMBIENCE,
+            SenseStatusCodes.DEVICE_PROX, SenseStatusCodes.EXTERNAL };
+
+    /**
+     * Check box, first line and second line of the list row of each module
+     */
+    private static final int[][] MODULE_ROWS = {
+            { R.id.phonestate_cb, R.id.phonestate_firstline, R.id.phonestate_secondLine },
+            { R.id.location_cb, R.id.location_firstline, R.id.location_secondLine },
+            { R.id.motion_cb, R.id.motion_firstline, R.id.motion_secondLine },
+            { R.id.ambience_cb, R.id.ambience_firstline, R.id.ambience_secondLine },
+            { R.id.device_prox_cb, R.id.device_prox_firstline, R.id.device_prox_secondLine },
+            { R.id.external_sensor_cb, R.id.external_sensor_firstline,
+                    R.id.external_sensor_secondLine } };
+
     private final ISenseServiceCallback mCallback = new SenseCallback();
+    private final ScreenMetrics mScreenMetrics = new ScreenMetrics("main");
     private SensePlatform mSensePlatform;
     private final SenseServiceListener mServiceListener = new SenseServiceListener();
     private boolean busyTurningOn;
@@ -192,6 +247,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
      */
     private void checkServiceStatus() {
         Log.v(TAG, "Check service status");
+        StartupTrace.getInstance().begin(StartupTrace.STATUS_CALLBACK);
 
         try {
             // request status report
@@ -199,8 +255,24 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
             service.getStatus(mCallback);
         } catch (final IllegalStateException e) {
             Log.v(TAG, "Service not connected (yet)");
+            StartupTrace.getInstance().fail(StartupTrace.STATUS_CALLBACK,
+                    "service not connected (yet)");
         } catch (final RemoteException e) {
             Log.e(TAG, "Error checking service status. ", e);
+            StartupTrace.getInstance().fail(StartupTrace.STATUS_CALLBACK, e.toString());
+        }
+    }
+
+    /**
+     * @return A short duration for the energy use, e.g. "12 s", "4 min" or "1.5 h"
+     */
+    private String formatDuration(long millis) {
+        if (millis < 60 * 1000) {
+            return getString(R.string.main_scr_energy_s, millis / 1000);
+        } else if (millis < 60 * 60 * 1000) {
+            return getString(R.string.main_scr_energy_min, millis / (60 * 1000));
+        } else {
+            return getString(R.string.main_scr_energy_h, millis / (60 * 60 * 1000f));
         }
     }
 
@@ -307,6 +379,22 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+
+        // long-press a module to select its own sample rate, the external sensors have no samplers
+        // in the app that read it
+        setSampleRateLongClick(R.id.ambience_field, SampleIntervals.AMBIENCE);
+        setSampleRateLongClick(R.id.device_prox_field, SampleIntervals.DEV_PROX);
+        setSampleRateLongClick(R.id.location_field, SampleIntervals.LOCATION);
+        setSampleRateLongClick(R.id.motion_field, SampleIntervals.MOTION);
+    }
+
+    @Override
+    public void onModuleSampleRateChanged(int module, String rate) {
+        Log.v(TAG, "Sample rate of module " + module + " changed: " + rate);
+        SenseServiceStub service = mSensePlatform.getService();
+        service.setPrefString(SampleIntervals.getRateKey(module), rate);
+        AppSamplers.updateAll(this);
+        updateSummaries();
     }
 
     @Override
@@ -359,6 +447,12 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         return true;
     }
 
+    @Override
+    protected void onPause() {
+        mScreenMetrics.onPause();
+        super.onPause();
+    }
+
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
 
@@ -378,6 +472,8 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
     @Override
     protected void onResume() {
         super.onResume();
+        mScreenMetrics.onResume();
+        new EnergyTask().execute();
 
         // check login
         long lastLogin = getSharedPreferences(SensePrefs.MAIN_PREFS, MODE_PRIVATE).getLong(
@@ -396,7 +492,9 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
     @Override
     public void onSampleRateChanged(String rate) {
         Log.v(TAG, "Sample rate changed: " + rate);
-        mSensePlatform.getService().setPrefString(SensePrefs.Main.SAMPLE_RATE, rate);
+        SenseServiceStub service = mSensePlatform.getService();
+        service.setPrefString(SensePrefs.Main.SAMPLE_RATE, rate);
+        AppSamplers.updateAll(this);
         updateSummaries();
     }
 
@@ -441,6 +539,26 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         updateSummaries();
     }
 
+    private void setSampleRateLongClick(int fieldId, final int module) {
+        findViewById(fieldId).setOnLongClickListener(new OnLongClickListener() {
+
+            @Override
+            public boolean onLongClick(View v) {
+                SenseServiceStub service = mSensePlatform.getService();
+                if (null == service || !SampleRates.isSupported(service, module)) {
+                    String name = getResources().getStringArray(R.array.sample_rate_modules)[
+                            module];
+                    showToast(getString(R.string.toast_module_rate_unsupported, name),
+                            Toast.LENGTH_LONG);
+                    return true;
+                }
+                SampleRateDialog dialog = SampleRateDialog.create(module);
+                dialog.show(getSupportFragmentManager(), "sample_rate_" + module);
+                return true;
+            }
+        });
+    }
+
     private void setMainStatusSpinner(boolean enable) {
         ProgressBar spinner = (ProgressBar) findViewById(R.id.main_spinner);
         View checkBox = findViewById(R.id.main_cb);
@@ -448,6 +566,43 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         spinner.setVisibility(enable ? View.VISIBLE : View.GONE);
     }
 
+    /**
+     * Shows the energy use of a module below its row, or hides the line if the module used
+     * nothing.
+     *
+     * @param totals
+     *            Totals of all modules, see {@link EnergyMonitor#getTotals(int)}
+     */
+    private void showEnergy(int viewId, int module, long[] totals) {
+        int offset = module * EnergyLedger.RESOURCE_COUNT;
+        long wakeLock = totals[offset + EnergyLedger.WAKE_LOCK];
+        long wakeups = totals[offset + EnergyLedger.WAKEUPS];
+        long sensor = totals[offset + EnergyLedger.SENSOR];
+        long gps = totals[offset + EnergyLedger.GPS];
+        long radio = totals[offset + EnergyLedger.RADIO];
+        long cpu = totals[offset + EnergyLedger.CPU] / 1000;
+
+        TextView view = (TextView) findViewById(viewId);
+        if (wakeLock + wakeups + sensor + gps + radio + cpu == 0) {
+            view.setVisibility(View.GONE);
+            return;
+        }
+        String text = getString(R.string.main_scr_energy, formatDuration(wakeLock), wakeups,
+                formatDuration(cpu));
+        if (sensor > 0) {
+            text = getString(R.string.main_scr_energy_sensor, text, formatDuration(sensor));
+        }
+        if (gps > 0) {
+            text = getString(R.string.main_scr_energy_gps, text, formatDuration(gps));
+        }
+        if (radio > 0) {
+            text = getString(R.string.main_scr_energy_radio, text,
+                    Formatter.formatShortFileSize(this, radio));
+        }
+        view.setText(text);
+        view.setVisibility(View.VISIBLE);
+    }
+
     private void showFaq() {
         FaqDialog faqDialog = new FaqDialog();
         faqDialog.show(getSupportFragmentManager(), "faq");
@@ -468,6 +623,17 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         logoutDialog.show(getSupportFragmentManager(), "logout");
     }
 
+    /**
+     * @return The message of a module toast, with a note if the samplers of the app use the
+     *         sample rate override of the module instead of the general sample rate
+     */
+    private String addOverrideNote(String msg, SenseServiceStub service, int module) {
+        if (SampleRates.hasOverride(service, module)) {
+            return msg + " " + getString(R.string.toast_module_rate_override);
+        }
+        return msg;
+    }
+
     private void showToast(final CharSequence text, final int duration) {
         runOnUiThread(new Runnable() {
 
@@ -498,6 +664,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         if (null != service) {
 
             service.toggleAmbience(active);
+            AppSamplers.updateAll(this);
 
             // show informational toast
             if (active) {
@@ -528,7 +695,8 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
                 }
                 String msg = getString(R.string.toast_toggle_ambience).replace("?", intervalString)
                         + extraString;
-                showToast(msg, Toast.LENGTH_LONG);
+                showToast(addOverrideNote(msg, service, SampleIntervals.AMBIENCE),
+                        Toast.LENGTH_LONG);
             }
 
         } else {
@@ -544,6 +712,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         SenseServiceStub service = mSensePlatform.getService();
         if (null != service) {
             service.toggleDeviceProx(active);
+            AppSamplers.updateAll(this);
 
             // show informational Toast
             if (active) {
@@ -567,8 +736,9 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
                 default:
                     Log.e(TAG, "Unexpected device prox preference.");
                 }
-                final String msg = getString(R.string.toast_toggle_dev_prox);
-                showToast(msg.replace("?", interval), Toast.LENGTH_LONG);
+                final String msg = getString(R.string.toast_toggle_dev_prox).replace("?", interval);
+                showToast(addOverrideNote(msg, service, SampleIntervals.DEV_PROX),
+                        Toast.LENGTH_LONG);
             }
         } else {
             Log.w(TAG, "Could not toggle device proximity service: Sense service is not bound.");
@@ -583,6 +753,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         SenseServiceStub service = mSensePlatform.getService();
         if (null != service) {
             service.toggleExternalSensors(active);
+            AppSamplers.updateAll(this);
 
             // show informational toast
             if (active) {
@@ -625,6 +796,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         SenseServiceStub service = mSensePlatform.getService();
         if (null != service) {
             service.toggleLocation(active);
+            AppSamplers.updateAll(this);
 
             // show informational toast
             if (active) {
@@ -650,7 +822,8 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
                     break;
                 }
                 final String msg = getString(R.string.toast_toggle_location).replace("?", interval);
-                showToast(msg, Toast.LENGTH_LONG);
+                showToast(addOverrideNote(msg, service, SampleIntervals.LOCATION),
+                        Toast.LENGTH_LONG);
             }
         } else {
             Log.w(TAG, "Could not toggle location service: Sense service is not bound.");
@@ -688,6 +861,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         SenseServiceStub service = mSensePlatform.getService();
         if (null != service) {
             service.toggleMotion(active);
+            AppSamplers.updateAll(this);
 
             // show informational toast
             if (active) {
@@ -713,7 +887,8 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
                     break;
                 }
                 final String msg = getString(R.string.toast_toggle_motion).replace("?", interval);
-                showToast(msg, Toast.LENGTH_LONG);
+                showToast(addOverrideNote(msg, service, SampleIntervals.MOTION),
+                        Toast.LENGTH_LONG);
             }
 
         } else {
@@ -731,6 +906,7 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         if (null != service) {
 
             service.togglePhoneState(active);
+            AppSamplers.updateAll(this);
 
             // show informational toast
             if (active) {
@@ -772,6 +948,16 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
         default:
             sampleSummaryView.setText("ERROR");
         }
+        int overrides = 0;
+        for (int module = 0; module < SampleIntervals.MODULE_COUNT; module++) {
+            if (SampleRates.hasOverride(prefs, module)) {
+                overrides++;
+            }
+        }
+        if (overrides > 0) {
+            sampleSummaryView.setText(getString(R.string.main_scr_smp_overrides,
+                    sampleSummaryView.getText(), overrides));
+        }
 
         TextView syncSummaryView = (TextView) findViewById(R.id.sync_details);
         int syncRate = Integer.parseInt(prefs.getString(SensePrefs.Main.SYNC_RATE, "0"));
@@ -823,86 +1009,21 @@ public class SenseMainActivity extends FragmentActivity implements LogoutActivit
             ((CheckBox) findViewById(R.id.main_cb)).setChecked(running);
         }
 
-        // enable phone state list row
-        CheckBox button = (CheckBox) findViewById(R.id.phonestate_cb);
-        final boolean callstate = (status & SenseStatusCodes.PHONESTATE) > 0;
-        button.setChecked(callstate);
-        button.setEnabled(running);
-        View text1 = findViewById(R.id.phonestate_firstline);
-        View text2 = findViewById(R.id.phonestate_secondLine);
-        text1.setEnabled(running);
-        text2.setEnabled(running);
-        if (callstate) {
-            // Log.v(TAG, "'phone state' enabled");
-        }
-
-        // enable location list row
-        button = (CheckBox) findViewById(R.id.location_cb);
-        final boolean location = (status & SenseStatusCodes.LOCATION) > 0;
-        button.setChecked(location);
-        button.setEnabled(running);
-        button = (CheckBox) findViewById(R.id.ambience_cb);
-        text1 = findViewById(R.id.location_firstline);
-        text2 = findViewById(R.id.location_secondLine);
-        text1.setEnabled(running);
-        text2.setEnabled(running);
-        if (location) {
-            // Log.v(TAG, "'location' enabled");
-        }
-
-        // enable motion list row
-        button = (CheckBox) findViewById(R.id.motion_cb);
-        final boolean motion = (status & SenseStatusCodes.MOTION) > 0;
-        button.setChecked(motion);
-        button.setEnabled(running);
-        text1 = findViewById(R.id.motion_firstline);
-        text2 = findViewById(R.id.motion_secondLine);
-        text1.setEnabled(running);
-        text2.setEnabled(running);
-        if (motion) {
-            // Log.v(TAG, "'motion' enabled");
-        }
-
-        // enable ambience list row
-        button = (CheckBox) findViewById(R.id.ambience_cb);
-        final boolean ambience = (status & SenseStatusCodes.AMBIENCE) > 0;
-        button.setChecked(ambience);
-        button.setEnabled(running);
-        button = (CheckBox) findViewById(R.id.ambience_cb);
-        text1 = findViewById(R.id.ambience_firstline);
-        text2 = findViewById(R.id.ambience_secondLine);
-        text1.setEnabled(running);
-        text2.setEnabled(running);
-        if (ambience) {
-            // Log.v(TAG, "'ambience' enabled");
-        }
-
-        // enable device proximity row
-        button = (CheckBox) findViewById(R.id.device_prox_cb);
-        final boolean deviceProx = (status & SenseStatusCodes.DEVICE_PROX) > 0;
-        button.setChecked(deviceProx);
-        button.setEnabled(running);
-        text1 = findViewById(R.id.device_prox_firstline);
-        text2 = findViewById(R.id.device_prox_secondLine);
-        text1.setEnabled(running);
-        text2.setEnabled(running);
-        if (deviceProx) {
-            // Log.v(TAG, "'neighboring devices' enabled");
-        }
-
-        // enable external sensor list row
-        button = (CheckBox) findViewById(R.id.external_sensor_cb);
-        final boolean external_sensors = (status & SenseStatusCodes.EXTERNAL) > 0;
-        button.setChecked(external_sensors);
-        button.setEnabled(running);
-        text1 = findViewById(R.id.external_sensor_firstline);
-        text2 = findViewById(R.id.external_sensor_secondLine);
-        text1.setEnabled(running);
-        text2.setEnabled(running);
-        if (external_sensors) {
-            // Log.v(TAG, "'external sensors' enabled");
+        // enable the list rows of the modules
+        for (int i = 0; i < MODULE_ROWS.length; i++) {
+            CheckBox button = (CheckBox) findViewById(MODULE_ROWS[i][0]);
+            button.setChecked((status & MODULE_BITS[i]) > 0);
+            button.setEnabled(running);
+            findViewById(MODULE_ROWS[i][1]).setEnabled(running);
+            findViewById(MODULE_ROWS[i][2]).setEnabled(running);
         }
 
         updateSummaries();
+
+        StartupTrace trace = StartupTrace.getInstance();
+        trace.end(StartupTrace.FIRST_UI);
+        if (trace.isComplete()) {
+            StartupTraceLog.finish(this);
+        }
     }
 }
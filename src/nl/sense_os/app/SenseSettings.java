@@ -6,6 +6,13 @@
  */
 package nl.sense_os.app;
 
+import nl.sense_os.app.burst.BurstService;
+import nl.sense_os.app.burst.BurstUploadPolicy;
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.load.LoadTest;
+import nl.sense_os.app.metrics.ScreenMetrics;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.scheduler.SampleRates;
 import nl.sense_os.platform.SensePlatform;
 import nl.sense_os.service.SenseServiceStub;
 import nl.sense_os.service.constants.SensePrefs;
@@ -35,6 +42,7 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.Preference.OnPreferenceClickListener;
@@ -73,6 +81,13 @@ public class SenseSettings extends PreferenceActivity {
             try {
                 String value = sharedPreferences.getString(key, "");
                 service.setPrefString(key, value);
+                if (AppPrefs.SampleRate.AMBIENCE.equals(key)
+                        || AppPrefs.SampleRate.MOTION.equals(key)
+                        || AppPrefs.SampleRate.LOCATION.equals(key)
+                        || AppPrefs.SampleRate.DEV_PROX.equals(key)
+                        || AppPrefs.PhoneState.COALESCE.equals(key)) {
+                    AppSamplers.updateAll(SenseSettings.this);
+                }
                 showSummaries();
                 return;
             } catch (ClassCastException e) {
@@ -81,6 +96,25 @@ public class SenseSettings extends PreferenceActivity {
             try {
                 boolean value = sharedPreferences.getBoolean(key, false);
                 service.setPrefBool(key, value);
+                if (AppPrefs.Burst.COMPACT.equals(key) && value) {
+                    BurstService.schedule(SenseSettings.this);
+                }
+                if (Advanced.DEV_MODE.equals(key) && !value) {
+                    // the load test only runs against the development server
+                    LoadTest.getInstance(SenseSettings.this).stop();
+                }
+                if (AppPrefs.Ambience.CAMERA_LIGHT_METER.equals(key)
+                        || AppPrefs.Ambience.SPECTRUM_ENGINE.equals(key)
+                        || AppPrefs.External.BIOHARNESS_LOG.equals(key)
+                        || AppPrefs.External.OBD2_PIPELINED.equals(key)
+                        || AppPrefs.Motion.FEATURES_ONLY.equals(key)
+                        || AppPrefs.Location.ADAPTIVE.equals(key)
+                        || AppPrefs.DevProx.DELTA.equals(key)
+                        || AppPrefs.Motion.FALL_ENGINE.equals(key)
+                        || Motion.FALL_DETECT_DEMO.equals(key)
+                        || AppPrefs.Trace.RECORD.equals(key)) {
+                    AppSamplers.updateAll(SenseSettings.this);
+                }
                 showSummaries();
                 return;
             } catch (ClassCastException e) {
@@ -123,6 +157,7 @@ public class SenseSettings extends PreferenceActivity {
     private static final String TAG = "SenseSettings";
 
     private PrefSyncListener mPrefChangeListener = new PrefSyncListener();
+    private final ScreenMetrics mScreenMetrics = new ScreenMetrics("settings");
     private SensePlatform mSensePlatform;
 
     @TargetApi(11)
@@ -203,6 +238,10 @@ public class SenseSettings extends PreferenceActivity {
         editor.putString(SensePrefs.Main.SYNC_RATE,
                 service.getPrefString(SensePrefs.Main.SYNC_RATE, "0"));
         editor.putBoolean(Status.AUTOSTART, service.getPrefBool(Status.AUTOSTART, false));
+        for (int module = 0; module < SampleIntervals.MODULE_COUNT; module++) {
+            String key = SampleIntervals.getRateKey(module);
+            editor.putString(key, service.getPrefString(key, AppPrefs.SampleRate.GLOBAL));
+        }
 
         // phone state preferences
         editor.putBoolean(PhoneState.BATTERY, service.getPrefBool(PhoneState.BATTERY, true));
@@ -218,11 +257,15 @@ public class SenseSettings extends PreferenceActivity {
                 service.getPrefBool(PhoneState.SIGNAL_STRENGTH, true));
         editor.putBoolean(PhoneState.IP_ADDRESS, service.getPrefBool(PhoneState.IP_ADDRESS, true));
         editor.putBoolean(PhoneState.UNREAD_MSG, service.getPrefBool(PhoneState.UNREAD_MSG, true));
+        editor.putString(AppPrefs.PhoneState.COALESCE,
+                service.getPrefString(AppPrefs.PhoneState.COALESCE, "0"));
 
         // location preferences
         editor.putBoolean(Location.GPS, service.getPrefBool(Location.GPS, true));
         editor.putBoolean(Location.NETWORK, service.getPrefBool(Location.NETWORK, true));
         editor.putBoolean(Location.AUTO_GPS, service.getPrefBool(Location.AUTO_GPS, true));
+        editor.putBoolean(AppPrefs.Location.ADAPTIVE,
+                service.getPrefBool(AppPrefs.Location.ADAPTIVE, false));
 
         // ambience preferences
         editor.putBoolean(Ambience.LIGHT, service.getPrefBool(Ambience.LIGHT, true));
@@ -233,6 +276,10 @@ public class SenseSettings extends PreferenceActivity {
                 service.getPrefBool(Ambience.AUDIO_SPECTRUM, true));
         editor.putBoolean(Ambience.MAGNETIC_FIELD,
                 service.getPrefBool(Ambience.MAGNETIC_FIELD, true));
+        editor.putBoolean(AppPrefs.Ambience.CAMERA_LIGHT_METER,
+                service.getPrefBool(AppPrefs.Ambience.CAMERA_LIGHT_METER, false));
+        editor.putBoolean(AppPrefs.Ambience.SPECTRUM_ENGINE,
+                service.getPrefBool(AppPrefs.Ambience.SPECTRUM_ENGINE, false));
 
         // motion preferences
         editor.putBoolean(Motion.FALL_DETECT, service.getPrefBool(Motion.FALL_DETECT, false));
@@ -240,11 +287,17 @@ public class SenseSettings extends PreferenceActivity {
                 service.getPrefBool(Motion.FALL_DETECT_DEMO, false));
         editor.putBoolean(Motion.UNREG, service.getPrefBool(Motion.UNREG, true));
         editor.putBoolean(Motion.SCREENOFF_FIX, service.getPrefBool(Motion.SCREENOFF_FIX, false));
+        editor.putBoolean(AppPrefs.Motion.FEATURES_ONLY,
+                service.getPrefBool(AppPrefs.Motion.FEATURES_ONLY, false));
+        editor.putBoolean(AppPrefs.Motion.FALL_ENGINE,
+                service.getPrefBool(AppPrefs.Motion.FALL_ENGINE, false));
 
         // neighboring devices
         editor.putBoolean(DevProx.BLUETOOTH, service.getPrefBool(DevProx.BLUETOOTH, true));
         editor.putBoolean(DevProx.WIFI, service.getPrefBool(DevProx.WIFI, true));
         editor.putBoolean(DevProx.NFC, service.getPrefBool(DevProx.NFC, true));
+        editor.putBoolean(AppPrefs.DevProx.DELTA,
+                service.getPrefBool(AppPrefs.DevProx.DELTA, false));
 
         // pop quiz preferences
         editor.putString(Quiz.RATE, service.getPrefString(Quiz.RATE, "0"));
@@ -261,6 +314,8 @@ public class SenseSettings extends PreferenceActivity {
         editor.putBoolean(ZephyrBioHarness.TEMP, service.getPrefBool(ZephyrBioHarness.TEMP, true));
         editor.putBoolean(ZephyrBioHarness.WORN_STATUS,
                 service.getPrefBool(ZephyrBioHarness.WORN_STATUS, true));
+        editor.putBoolean(AppPrefs.External.BIOHARNESS_LOG,
+                service.getPrefBool(AppPrefs.External.BIOHARNESS_LOG, false));
 
         // Zephir HxM preferences
         editor.putBoolean(ZephyrHxM.MAIN, service.getPrefBool(ZephyrHxM.MAIN, false));
@@ -278,6 +333,8 @@ public class SenseSettings extends PreferenceActivity {
 
         // ODB-II dongle
         editor.putBoolean(OBD2Sensor.MAIN, service.getPrefBool(OBD2Sensor.MAIN, false));
+        editor.putBoolean(AppPrefs.External.OBD2_PIPELINED,
+                service.getPrefBool(AppPrefs.External.OBD2_PIPELINED, false));
 
         // advanced settings
         editor.putBoolean(Advanced.DEV_MODE, service.getPrefBool(Advanced.DEV_MODE, false));
@@ -288,6 +345,16 @@ public class SenseSettings extends PreferenceActivity {
         editor.putBoolean(Motion.EPIMODE, service.getPrefBool(Motion.EPIMODE, false));
         editor.putBoolean(Advanced.LOCATION_FEEDBACK,
                 service.getPrefBool(Advanced.LOCATION_FEEDBACK, false));
+        editor.putBoolean(AppPrefs.Burst.COMPACT,
+                service.getPrefBool(AppPrefs.Burst.COMPACT, false));
+        editor.putString(AppPrefs.Burst.SUMMARY,
+                service.getPrefString(AppPrefs.Burst.SUMMARY, "spectrum"));
+        editor.putString(AppPrefs.Burst.UPLOAD_WIFI,
+                service.getPrefString(AppPrefs.Burst.UPLOAD_WIFI, BurstUploadPolicy.MODE_FULL));
+        editor.putString(AppPrefs.Burst.UPLOAD_MOBILE, service.getPrefString(
+                AppPrefs.Burst.UPLOAD_MOBILE, BurstUploadPolicy.MODE_SUMMARY));
+        editor.putBoolean(AppPrefs.Trace.RECORD,
+                service.getPrefBool(AppPrefs.Trace.RECORD, false));
 
         editor.commit();
     }
@@ -312,6 +379,7 @@ public class SenseSettings extends PreferenceActivity {
         setupLoginPref();
         setupRegisterPref();
         setupExternalSensorPrefs();
+        setupAppSamplerPrefs();
 
         final Preference devMode = findPreference(Advanced.DEV_MODE);
         devMode.setOnPreferenceClickListener(new OnPreferenceClickListener() {
@@ -380,6 +448,7 @@ public class SenseSettings extends PreferenceActivity {
     protected void onPause() {
         SharedPreferences appPrefs = PreferenceManager.getDefaultSharedPreferences(this);
         appPrefs.unregisterOnSharedPreferenceChangeListener(mPrefChangeListener);
+        mScreenMetrics.onPause();
 
         super.onPause();
     }
@@ -398,6 +467,7 @@ public class SenseSettings extends PreferenceActivity {
     @Override
     protected void onResume() {
         super.onResume();
+        mScreenMetrics.onResume();
 
         loadPreferences();
 
@@ -470,6 +540,71 @@ public class SenseSettings extends PreferenceActivity {
         });
     }
 
+    /**
+     * Sets up the preferences of the samplers in the app that replace sensors of the Sense
+     * service. The replaced sensors are switched off when the app sampler is switched on.
+     */
+    private void setupAppSamplerPrefs() {
+        replaceServicePrefs(AppPrefs.Location.ADAPTIVE, Location.GPS, Location.NETWORK,
+                Location.AUTO_GPS);
+        replaceServicePrefs(AppPrefs.Ambience.CAMERA_LIGHT_METER, Ambience.CAMERA_LIGHT);
+        replaceServicePrefs(AppPrefs.Ambience.SPECTRUM_ENGINE, Ambience.AUDIO_SPECTRUM);
+        replaceServicePrefs(AppPrefs.DevProx.DELTA, DevProx.BLUETOOTH, DevProx.WIFI);
+        replaceServicePrefs(AppPrefs.Motion.FEATURES_ONLY, "accelerometer",
+                "linear_acceleration", "gyroscope");
+        replaceServicePrefs(AppPrefs.Motion.FALL_ENGINE, Motion.FALL_DETECT);
+        replaceServicePrefs(AppPrefs.PhoneState.COALESCE, PhoneState.CALL_STATE,
+                PhoneState.DATA_CONNECTION, PhoneState.SERVICE_STATE, PhoneState.SIGNAL_STRENGTH);
+        replaceServicePrefs(AppPrefs.External.BIOHARNESS_LOG, ZephyrBioHarness.MAIN);
+        replaceServicePrefs(AppPrefs.External.OBD2_PIPELINED, OBD2Sensor.MAIN);
+    }
+
+    /**
+     * Disables the service preferences while the app preference is on, and switches them off when
+     * the user switches the app preference on.<br/>
+     * <br/>
+     * The app preference is either a check box, or a list where "0" means off.
+     * 
+     * @param appKey
+     *            Key of the preference of the app sampler
+     * @param serviceKeys
+     *            Keys of the check box preferences of the Sense service sensors it replaces
+     */
+    private void replaceServicePrefs(String appKey, final String... serviceKeys) {
+        Preference appPref = findPreference(appKey);
+        boolean on;
+        if (appPref instanceof ListPreference) {
+            on = !"0".equals(((ListPreference) appPref).getValue());
+        } else {
+            on = ((CheckBoxPreference) appPref).isChecked();
+        }
+        for (String key : serviceKeys) {
+            findPreference(key).setEnabled(!on);
+        }
+        appPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                boolean on = newValue instanceof Boolean ? (Boolean) newValue : !"0"
+                        .equals(newValue);
+                for (String key : serviceKeys) {
+                    CheckBoxPreference servicePref = (CheckBoxPreference) findPreference(key);
+                    if (on && servicePref.isChecked()) {
+                        // setChecked does not notify the listener of the service preference
+                        OnPreferenceChangeListener listener = servicePref
+                                .getOnPreferenceChangeListener();
+                        if (null != listener) {
+                            listener.onPreferenceChange(servicePref, false);
+                        }
+                        servicePref.setChecked(false);
+                    }
+                    servicePref.setEnabled(!on);
+                }
+                return true;
+            }
+        });
+    }
+
     /**
      * Shows the summaries of the two sync/sense rate list preferences.
      */
@@ -497,5 +632,14 @@ public class SenseSettings extends PreferenceActivity {
             loginPref.setSummary(R.string.pref_login_summary);
             regPref.setEnabled(true);
         }
+
+        // module sample rates are only used by the samplers of the app
+        for (int module = 0; module < SampleIntervals.MODULE_COUNT; module++) {
+            Preference ratePref = findPreference(SampleIntervals.getRateKey(module));
+            boolean supported = SampleRates.isSupported(service, module);
+            ratePref.setEnabled(supported);
+            ratePref.setSummary(supported ? R.string.pref_module_sample_rate_summary
+                    : R.string.pref_module_sample_rate_unsupported);
+        }
     }
 }
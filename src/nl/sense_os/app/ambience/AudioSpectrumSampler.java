@@ -0,0 +1,206 @@
+package nl.sense_os.app.ambience;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.AccountedWakeLock;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.scheduler.SampleRates;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Measures the audio spectrum with the {@link SpectrumEngine}. At every ambience interval, the
+ * sampler records a few seconds from the microphone and feeds the PCM samples to the engine. The
+ * power of each octave band, averaged over the frames, is sent as an "audio_spectrum" data point
+ * with description "octave bands", in dB relative to full scale.<br/>
+ * <br/>
+ * The recording buffer and the engine are kept between measurements, so a measurement does not
+ * allocate. Used when the user enabled the spectrum engine of the ambience module; the audio
+ * spectrum sensor of the Sense service is switched off then, see
+ * {@link nl.sense_os.app.SenseSettings}. When the microphone is busy, e.g. with the noise sensor
+ * of the service, the measurement is skipped.
+ */
+public class AudioSpectrumSampler implements SpectrumEngine.FrameListener {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int FRAME_SIZE = 512;
+    private static final long DURATION = 2000;
+    private static final String JOB = "audio spectrum";
+    private static final String TAG = "AudioSpectrumSampler";
+    private static AudioSpectrumSampler sInstance;
+
+    public static synchronized AudioSpectrumSampler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new AudioSpectrumSampler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or stops measuring, depending on the status of the ambience module and the
+     * {@link AppPrefs.Ambience#SPECTRUM_ENGINE} preference. The interval follows the sample rate
+     * of the ambience module.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.AMBIENCE, false)
+                && service.getPrefBool(AppPrefs.Ambience.SPECTRUM_ENGINE, false);
+        int rate = SampleRates.getRate(service, SampleIntervals.AMBIENCE);
+        long interval = SampleIntervals.getInterval(SampleIntervals.AMBIENCE, rate);
+        getInstance(context).setActive(active, interval);
+    }
+
+    private final Context mContext;
+    private final AccountedWakeLock mWakeLock;
+    private final SpectrumEngine mEngine;
+    private final float[] mSums;
+    private final short[] mBuffer = new short[FRAME_SIZE];
+    private Handler mHandler;
+    private long mInterval;
+    private int mFrames;
+
+    private final Runnable mMeasure = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                measure();
+            } finally {
+                mWakeLock.release();
+            }
+        }
+    };
+
+    private AudioSpectrumSampler(Context context) {
+        mContext = context;
+        mWakeLock = new AccountedWakeLock(context, TAG, EnergyLedger.AMBIENCE);
+        mEngine = new SpectrumEngine(FRAME_SIZE, SAMPLE_RATE, SpectrumEngine.octaveBands(62.5f,
+                SAMPLE_RATE / 2f));
+        mSums = new float[mEngine.getBandCount()];
+    }
+
+    /**
+     * Records and sends one spectrum. Runs on the handler thread.
+     */
+    private void measure() {
+        int minBuffer = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBuffer <= 0) {
+            Log.w(TAG, "Audio recording is not supported");
+            return;
+        }
+        AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, Math.max(minBuffer,
+                        2 * FRAME_SIZE * 2));
+        if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.w(TAG, "Microphone is not available");
+            recorder.release();
+            return;
+        }
+
+        EnergyLedger.getInstance().setOn(EnergyLedger.AMBIENCE, EnergyLedger.SENSOR, true,
+                System.currentTimeMillis());
+        mEngine.reset();
+        for (int i = 0; i < mSums.length; i++) {
+            mSums[i] = 0;
+        }
+        mFrames = 0;
+        long start = System.currentTimeMillis();
+        try {
+            recorder.startRecording();
+            int samples = (int) (SAMPLE_RATE * DURATION / 1000);
+            while (samples > 0) {
+                int read = recorder.read(mBuffer, 0, Math.min(mBuffer.length, samples));
+                if (read <= 0) {
+                    Log.w(TAG, "Failed to read from the microphone: " + read);
+                    break;
+                }
+                mEngine.feed(mBuffer, 0, read, this);
+                samples -= read;
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to record: " + e);
+        } finally {
+            try {
+                recorder.stop();
+            } catch (IllegalStateException e) {
+                // recording did not start
+            }
+            recorder.release();
+            EnergyLedger.getInstance().setOn(EnergyLedger.AMBIENCE, EnergyLedger.SENSOR, false,
+                    System.currentTimeMillis());
+        }
+        if (mFrames == 0) {
+            return;
+        }
+
+        // mean band power in dB, with the reference of SpectrumEngine#getBandLevel
+        float reference = (FRAME_SIZE / 4f) * (FRAME_SIZE / 4f);
+        float[] edges = mEngine.getBandEdges();
+        StringBuilder value = new StringBuilder("{");
+        for (int i = 0; i < mSums.length; i++) {
+            if (i > 0) {
+                value.append(',');
+            }
+            float power = mSums[i] / mFrames;
+            float level = power > 0 ? (float) (10 * Math.log10(power / reference)) : -120f;
+            value.append('"').append(Math.round(edges[i])).append('-')
+                    .append(Math.round(edges[i + 1])).append(" Hz\":")
+                    .append(Math.round(level * 10) / 10f);
+        }
+        value.append('}');
+        DataPoints.send(mContext, "audio_spectrum", "octave bands", "json", value.toString(),
+                start);
+    }
+
+    @Override
+    public void onFrame(SpectrumEngine engine) {
+        for (int i = 0; i < mSums.length; i++) {
+            mSums[i] += engine.getBandPower(i);
+        }
+        mFrames++;
+    }
+
+    /**
+     * Schedules or cancels the measurements.
+     *
+     * @param active
+     *            <code>true</code> to start measuring
+     * @param interval
+     *            Measurement interval in milliseconds
+     */
+    public synchronized void setActive(boolean active, long interval) {
+        boolean scheduled = mInterval > 0;
+        if (active == scheduled && (!active || interval == mInterval)) {
+            return;
+        }
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(mContext);
+        scheduler.cancel(JOB);
+        mInterval = active ? interval : 0;
+        if (active) {
+            if (null == mHandler) {
+                HandlerThread thread = new HandlerThread(TAG);
+                thread.start();
+                mHandler = new Handler(thread.getLooper());
+            }
+            scheduler.schedule(JOB, EnergyLedger.AMBIENCE, interval, interval / 10, new Runnable() {
+
+                @Override
+                public void run() {
+                    mWakeLock.acquire(DURATION + 5000);
+                    mHandler.post(mMeasure);
+                }
+            });
+        }
+        Log.v(TAG, "Audio spectrum sampling " + (active ? "started" : "stopped"));
+    }
+}
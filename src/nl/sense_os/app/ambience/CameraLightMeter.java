@@ -0,0 +1,271 @@
+package nl.sense_os.app.ambience;
+
+import java.io.IOException;
+import java.util.List;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.AccountedWakeLock;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.scheduler.SampleRates;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Measures the light level with the camera. At every ambience interval, the meter starts the
+ * preview at the smallest supported size, skips a few frames while the auto-exposure settles,
+ * and feeds one frame to a {@link LuminanceSampler}. The mean luminance and a 16-bin histogram
+ * are sent as a "camera_light" data point with description "luminance".<br/>
+ * <br/>
+ * The preview callback buffer and the sampler are kept between measurements, so a measurement
+ * does not allocate frame-sized buffers. Used when the user enabled the camera light meter of
+ * the ambience module; the camera light sensor of the Sense service is switched off then, see
+ * {@link nl.sense_os.app.SenseSettings}. Needs Android 3.0 to run the preview without a
+ * surface on screen.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class CameraLightMeter implements Camera.PreviewCallback {
+
+    private static final int SKIP_FRAMES = 8;
+    private static final int MAX_PIXELS = 4096;
+    private static final int BINS = 16;
+    private static final long TIMEOUT = 5000;
+    private static final String JOB = "camera light";
+    private static final String TAG = "CameraLightMeter";
+    private static CameraLightMeter sInstance;
+
+    public static synchronized CameraLightMeter getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new CameraLightMeter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or stops measuring, depending on the status of the ambience module and the
+     * {@link AppPrefs.Ambience#CAMERA_LIGHT_METER} preference. The interval follows the sample
+     * rate of the ambience module.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.AMBIENCE, false)
+                && service.getPrefBool(AppPrefs.Ambience.CAMERA_LIGHT_METER, false);
+        int rate = SampleRates.getRate(service, SampleIntervals.AMBIENCE);
+        long interval = SampleIntervals.getInterval(SampleIntervals.AMBIENCE, rate);
+        getInstance(context).setActive(active, interval);
+    }
+
+    private final Context mContext;
+    private final AccountedWakeLock mWakeLock;
+    private Handler mHandler;
+    private long mInterval;
+    private Camera mCamera;
+    private SurfaceTexture mTexture;
+    private byte[] mBuffer;
+    private LuminanceSampler mSampler;
+    private int mFrames;
+
+    private final Runnable mMeasure = new Runnable() {
+
+        @Override
+        public void run() {
+            startPreview();
+        }
+    };
+
+    private final Runnable mTimeout = new Runnable() {
+
+        @Override
+        public void run() {
+            Log.w(TAG, "No preview frames");
+            stopPreview();
+        }
+    };
+
+    private CameraLightMeter(Context context) {
+        mContext = context;
+        mWakeLock = new AccountedWakeLock(context, TAG, EnergyLedger.AMBIENCE);
+    }
+
+    /**
+     * @return The smallest supported preview size, for the least work per frame
+     */
+    private Camera.Size getSmallestSize(Camera.Parameters params) {
+        List<Camera.Size> sizes = params.getSupportedPreviewSizes();
+        Camera.Size smallest = params.getPreviewSize();
+        if (null != sizes) {
+            for (Camera.Size size : sizes) {
+                if (size.width * size.height < smallest.width * smallest.height) {
+                    smallest = size;
+                }
+            }
+        }
+        return smallest;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (camera != mCamera) {
+            return;
+        }
+        mFrames++;
+        if (mFrames <= SKIP_FRAMES) {
+            // let the auto-exposure settle, and hand the buffer back
+            camera.addCallbackBuffer(data);
+            return;
+        }
+        mSampler.sample(data);
+        stopPreview();
+
+        int[] histogram = mSampler.getHistogram();
+        StringBuilder value = new StringBuilder("{\"mean\":");
+        value.append(Math.round(mSampler.getMean() * 10) / 10f).append(",\"histogram\":[");
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                value.append(',');
+            }
+            value.append(histogram[i]);
+        }
+        value.append("]}");
+        DataPoints.send(mContext, "camera_light", "luminance", "json", value.toString(),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Schedules or cancels the measurements.
+     *
+     * @param active
+     *            <code>true</code> to start measuring
+     * @param interval
+     *            Measurement interval in milliseconds
+     */
+    public synchronized void setActive(boolean active, long interval) {
+        if (active && Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            Log.w(TAG, "Camera light meter needs Android 3.0");
+            active = false;
+        }
+        boolean scheduled = mInterval > 0;
+        if (active == scheduled && (!active || interval == mInterval)) {
+            return;
+        }
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(mContext);
+        scheduler.cancel(JOB);
+        mInterval = active ? interval : 0;
+        if (active) {
+            if (null == mHandler) {
+                // the camera calls back on the thread that opened it
+                HandlerThread thread = new HandlerThread(TAG);
+                thread.start();
+                mHandler = new Handler(thread.getLooper());
+            }
+            scheduler.schedule(JOB, EnergyLedger.AMBIENCE, interval, interval / 10, new Runnable() {
+
+                @Override
+                public void run() {
+                    mWakeLock.acquire(TIMEOUT + 1000);
+                    mHandler.post(mMeasure);
+                }
+            });
+        } else if (null != mHandler) {
+            mHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    stopPreview();
+                    mBuffer = null;
+                    mSampler = null;
+                    if (null != mTexture) {
+                        mTexture.release();
+                        mTexture = null;
+                    }
+                }
+            });
+        }
+        Log.v(TAG, "Camera light meter " + (active ? "started" : "stopped"));
+    }
+
+    /**
+     * Opens the camera and starts the preview. Runs on the handler thread.
+     */
+    private void startPreview() {
+        if (null != mCamera) {
+            // still busy with the previous measurement
+            return;
+        }
+        try {
+            mCamera = Camera.open();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Camera is not available: " + e);
+            mCamera = null;
+        }
+        if (null == mCamera) {
+            mWakeLock.release();
+            return;
+        }
+        EnergyLedger.getInstance().setOn(EnergyLedger.AMBIENCE, EnergyLedger.SENSOR, true,
+                System.currentTimeMillis());
+        try {
+            Camera.Parameters params = mCamera.getParameters();
+            Camera.Size size = getSmallestSize(params);
+            params.setPreviewSize(size.width, size.height);
+            params.setPreviewFormat(ImageFormat.NV21);
+            mCamera.setParameters(params);
+
+            // only reallocate when the preview size changes
+            int frameSize = LuminanceSampler.frameSize(size.width, size.height);
+            if (null == mBuffer || mBuffer.length != frameSize) {
+                mBuffer = new byte[frameSize];
+            }
+            if (null == mSampler || mSampler.getWidth() != size.width
+                    || mSampler.getHeight() != size.height) {
+                int step = LuminanceSampler.gridStep(size.width, size.height, MAX_PIXELS);
+                mSampler = new LuminanceSampler(size.width, size.height, step, BINS);
+            }
+            if (null == mTexture) {
+                mTexture = new SurfaceTexture(0);
+            }
+
+            mFrames = 0;
+            mCamera.addCallbackBuffer(mBuffer);
+            mCamera.setPreviewCallbackWithBuffer(this);
+            mCamera.setPreviewTexture(mTexture);
+            mCamera.startPreview();
+            mHandler.postDelayed(mTimeout, TIMEOUT);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to start the camera preview: " + e);
+            stopPreview();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to start the camera preview: " + e);
+            stopPreview();
+        }
+    }
+
+    /**
+     * Stops the preview and releases the camera. Runs on the handler thread.
+     */
+    private void stopPreview() {
+        mHandler.removeCallbacks(mTimeout);
+        if (null != mCamera) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+            mCamera.stopPreview();
+            mCamera.release();
+            mCamera = null;
+            EnergyLedger.getInstance().setOn(EnergyLedger.AMBIENCE, EnergyLedger.SENSOR, false,
+                    System.currentTimeMillis());
+        }
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package nl.sense_os.app.ambience;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the light level from camera preview frames in NV21 format. Only the luminance (Y)
+ * plane is read, which is the first <code>width * height</code> bytes of the frame, and only on a
+ * fixed grid of pixels: every <code>step</code>-th pixel of every <code>step</code>-th row,
+ * starting at the center of the first cell. The pixels go into a luminance histogram with a
+ * power-of-two number of bins, and their mean is kept in 24.8 fixed point.<br/>
+ * <br/>
+ * The sampler uses integer math only and does not allocate after the constructor, so it can run
+ * on every preview frame. Use one sampler per preview size; instances are not thread-safe.
+ */
+public class LuminanceSampler {
+
+    /**
+     * @return The size in bytes of an NV21 frame: a full-resolution Y plane and an interleaved,
+     *         subsampled VU plane
+     */
+    public static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * @return The smallest grid step that samples at most <code>maxSamples</code> pixels of a
+     *         frame
+     */
+    public static int gridStep(int width, int height, int maxSamples) {
+        int step = 1;
+        while ((width / step) * (height / step) > maxSamples) {
+            step++;
+        }
+        return step;
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStep;
+    private final int mShift;
+    private final int mCount;
+    private final int[] mHistogram;
+    private int mMeanFixed;
+
+    /**
+     * @param width
+     *            Frame width in pixels
+     * @param height
+     *            Frame height in pixels
+     * @param step
+     *            Distance between sampled pixels, in both directions
+     * @param bins
+     *            Number of histogram bins, a power of two from 2 to 256
+     */
+    public LuminanceSampler(int width, int height, int step, int bins) {
+        if (width <= 0 || height <= 0 || step < 1 || step > width || step > height) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height
+                    + " or grid step " + step);
+        }
+        if (bins < 2 || bins > 256 || Integer.bitCount(bins) != 1) {
+            throw new IllegalArgumentException("Invalid number of bins: " + bins);
+        }
+        mWidth = width;
+        mHeight = height;
+        mStep = step;
+        mShift = 8 - Integer.numberOfTrailingZeros(bins);
+        mCount = ((width - step / 2 + step - 1) / step) * ((height - step / 2 + step - 1) / step);
+        mHistogram = new int[bins];
+    }
+
+    /**
+     * @return The number of pixels that are sampled per frame
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The luminance histogram of the last frame. Bin <code>i</code> counts the pixels
+     *         with luminance <code>i * 256 / bins</code> up to the next bin. The array is
+     *         overwritten by the next frame.
+     */
+    public int[] getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * @return The mean luminance of the last frame, from 0 to 255
+     */
+    public float getMean() {
+        return mMeanFixed / 256f;
+    }
+
+    /**
+     * @return The mean luminance of the last frame in 24.8 fixed point, from 0 to 255 * 256
+     */
+    public int getMeanFixed() {
+        return mMeanFixed;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getStep() {
+        return mStep;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Samples a frame.
+     *
+     * @param frame
+     *            NV21 frame, or any frame that starts with a full-resolution 8-bit Y plane
+     * @return The mean luminance in 24.8 fixed point, see {@link #getMeanFixed()}
+     */
+    public int sample(byte[] frame) {
+        if (frame.length < mWidth * mHeight) {
+            throw new IllegalArgumentException("Frame of " + frame.length
+                    + " bytes is too small for " + mWidth + "x" + mHeight);
+        }
+        Arrays.fill(mHistogram, 0);
+        final int[] histogram = mHistogram;
+        final int shift = mShift;
+        final int step = mStep;
+        final int rowStep = step * mWidth;
+        final int end = mWidth * mHeight;
+        int sum = 0;
+        for (int row = (step / 2) * mWidth; row < end; row += rowStep) {
+            int rowEnd = row + mWidth;
+            for (int i = row + step / 2; i < rowEnd; i += step) {
+                int y = frame[i] & 0xff;
+                sum += y;
+                histogram[y >> shift]++;
+            }
+        }
+        // 255 * 256 * 1920 * 1080 does not fit in an int
+        mMeanFixed = (int) (((long) sum << 8) / mCount);
+        return mMeanFixed;
+    }
+}
@@ -0,0 +1,343 @@
+package nl.sense_os.app.ambience;
+
+/**
+ * Streaming audio spectrum engine for the ambience sensors. PCM samples are collected into frames
+ * of a fixed power-of-two size; each full frame is windowed (Hann), transformed with an in-place
+ * radix-2 real FFT, and the power is aggregated into frequency bands. The frame loudness is
+ * computed on the way.<br/>
+ * <br/>
+ * All buffers and twiddle tables are allocated in the constructor, so feeding samples does not
+ * allocate. Instances are not thread-safe: feed them from the audio recording thread only. The
+ * app records and feeds the engine in {@link AudioSpectrumSampler}.
+ */
+public class SpectrumEngine {
+
+    /**
+     * Callback for each processed frame. Read the results from the engine during the callback;
+     * they are overwritten by the next frame.
+     */
+    public interface FrameListener {
+        void onFrame(SpectrumEngine engine);
+    }
+
+    /**
+     * Creates band edges of equal width.
+     *
+     * @param count
+     *            Number of bands
+     * @param maxFrequency
+     *            Upper edge of the highest band, in Hz
+     * @return <code>count + 1</code> band edges in Hz
+     */
+    public static float[] linearBands(int count, float maxFrequency) {
+        float[] edges = new float[count + 1];
+        for (int i = 0; i <= count; i++) {
+            edges[i] = maxFrequency * i / count;
+        }
+        return edges;
+    }
+
+    /**
+     * Creates octave band edges, e.g. 62.5, 125, 250, ..., 8000 Hz.
+     *
+     * @param lowest
+     *            Lower edge of the lowest band, in Hz
+     * @param highest
+     *            Upper limit for the highest band edge, in Hz
+     * @return The band edges in Hz
+     */
+    public static float[] octaveBands(float lowest, float highest) {
+        int count = 0;
+        for (float f = lowest; f * 2 <= highest; f *= 2) {
+            count++;
+        }
+        float[] edges = new float[count + 1];
+        edges[0] = lowest;
+        for (int i = 1; i <= count; i++) {
+            edges[i] = edges[i - 1] * 2;
+        }
+        return edges;
+    }
+
+    private final int mFrameSize;
+    private final int mHalf;
+    private final float mSampleRate;
+    private final float[] mWindow;
+    private final float[] mFrame;
+    private final float[] mRe;
+    private final float[] mIm;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final float[] mRealCos;
+    private final float[] mRealSin;
+    private final int[] mBitReverse;
+    private final float[] mPower;
+    private final int[] mBandStart;
+    private final int[] mBandEnd;
+    private final float[] mBands;
+    private final float[] mBandEdges;
+    private int mFill;
+    private float mLoudness;
+    private long mFrameCount;
+
+    /**
+     * @param frameSize
+     *            Number of samples per frame, must be a power of two of at least 8
+     * @param sampleRate
+     *            Sample rate of the PCM data in Hz
+     * @param bandEdges
+     *            Ascending band edges in Hz, see {@link #linearBands(int, float)} and
+     *            {@link #octaveBands(float, float)}
+     */
+    public SpectrumEngine(int frameSize, float sampleRate, float[] bandEdges) {
+        if (frameSize < 8 || Integer.bitCount(frameSize) != 1) {
+            throw new IllegalArgumentException("Frame size must be a power of two: " + frameSize);
+        }
+        if (bandEdges.length < 2) {
+            throw new IllegalArgumentException("Need at least one band");
+        }
+        mFrameSize = frameSize;
+        mHalf = frameSize / 2;
+        mSampleRate = sampleRate;
+        mFrame = new float[frameSize];
+        mRe = new float[mHalf];
+        mIm = new float[mHalf];
+        mPower = new float[mHalf + 1];
+
+        // Hann window
+        mWindow = new float[frameSize];
+        for (int i = 0; i < frameSize; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (frameSize - 1)));
+        }
+
+        // twiddles for the complex FFT of half the frame size
+        mCos = new float[mHalf / 2];
+        mSin = new float[mHalf / 2];
+        for (int i = 0; i < mHalf / 2; i++) {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / mHalf);
+            mSin[i] = (float) -Math.sin(2 * Math.PI * i / mHalf);
+        }
+
+        // twiddles to split the complex result into the real spectrum
+        mRealCos = new float[mHalf];
+        mRealSin = new float[mHalf];
+        for (int i = 0; i < mHalf; i++) {
+            mRealCos[i] = (float) Math.cos(2 * Math.PI * i / frameSize);
+            mRealSin[i] = (float) -Math.sin(2 * Math.PI * i / frameSize);
+        }
+
+        int bits = Integer.numberOfTrailingZeros(mHalf);
+        mBitReverse = new int[mHalf];
+        for (int i = 0; i < mHalf; i++) {
+            mBitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        // map the band edges to FFT bins
+        mBandEdges = bandEdges.clone();
+        int bands = bandEdges.length - 1;
+        mBands = new float[bands];
+        mBandStart = new int[bands];
+        mBandEnd = new int[bands];
+        float binWidth = sampleRate / frameSize;
+        for (int b = 0; b < bands; b++) {
+            mBandStart[b] = Math.min(mHalf + 1, Math.round(bandEdges[b] / binWidth));
+            mBandEnd[b] = Math.min(mHalf + 1, Math.round(bandEdges[b + 1] / binWidth));
+        }
+    }
+
+    /**
+     * Transforms the current frame and aggregates the bands.
+     */
+    private void processFrame() {
+        // loudness of the raw frame, in dB relative to full scale
+        float sumSquares = 0;
+        for (int i = 0; i < mFrameSize; i++) {
+            sumSquares += mFrame[i] * mFrame[i];
+        }
+        float rms = (float) Math.sqrt(sumSquares / mFrameSize);
+        mLoudness = rms > 0 ? (float) (20 * Math.log10(rms)) : Float.NEGATIVE_INFINITY;
+
+        // pack the windowed real frame into a half-size complex array, in bit-reversed order
+        for (int i = 0; i < mHalf; i++) {
+            int j = mBitReverse[i];
+            mRe[j] = mFrame[2 * i] * mWindow[2 * i];
+            mIm[j] = mFrame[2 * i + 1] * mWindow[2 * i + 1];
+        }
+
+        // iterative radix-2 complex FFT
+        for (int size = 2; size <= mHalf; size <<= 1) {
+            int halfSize = size >> 1;
+            int step = mHalf / size;
+            for (int start = 0; start < mHalf; start += size) {
+                for (int k = 0; k < halfSize; k++) {
+                    float wr = mCos[k * step];
+                    float wi = mSin[k * step];
+                    int a = start + k;
+                    int b = a + halfSize;
+                    float tr = mRe[b] * wr - mIm[b] * wi;
+                    float ti = mRe[b] * wi + mIm[b] * wr;
+                    mRe[b] = mRe[a] - tr;
+                    mIm[b] = mIm[a] - ti;
+                    mRe[a] += tr;
+                    mIm[a] += ti;
+                }
+            }
+        }
+
+        // split into the spectrum of the real frame
+        mPower[0] = (mRe[0] + mIm[0]) * (mRe[0] + mIm[0]);
+        mPower[mHalf] = (mRe[0] - mIm[0]) * (mRe[0] - mIm[0]);
+        for (int k = 1; k < mHalf; k++) {
+            float zr = mRe[k];
+            float zi = mIm[k];
+            float cr = mRe[mHalf - k];
+            float ci = -mIm[mHalf - k];
+            float er = 0.5f * (zr + cr);
+            float ei = 0.5f * (zi + ci);
+            float or = 0.5f * (zi - ci);
+            float oi = -0.5f * (zr - cr);
+            float wr = mRealCos[k];
+            float wi = mRealSin[k];
+            float xr = er + or * wr - oi * wi;
+            float xi = ei + or * wi + oi * wr;
+            mPower[k] = xr * xr + xi * xi;
+        }
+
+        for (int b = 0; b < mBands.length; b++) {
+            float sum = 0;
+            for (int k = mBandStart[b]; k < mBandEnd[b]; k++) {
+                sum += mPower[k];
+            }
+            mBands[b] = sum;
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * Feeds 16-bit PCM samples to the engine. Calls the listener for every frame that is completed
+     * by these samples.
+     *
+     * @param pcm
+     *            Buffer with samples
+     * @param offset
+     *            Offset of the first sample in the buffer
+     * @param length
+     *            Number of samples
+     * @param listener
+     *            Listener for completed frames, may be <code>null</code>
+     * @return The number of completed frames
+     */
+    public int feed(short[] pcm, int offset, int length, FrameListener listener) {
+        int frames = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            mFrame[mFill++] = pcm[i] / 32768f;
+            if (mFill == mFrameSize) {
+                mFill = 0;
+                processFrame();
+                frames++;
+                if (null != listener) {
+                    listener.onFrame(this);
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Feeds float samples (nominally between -1 and 1) to the engine, e.g. one axis of a motion
+     * burst. Calls the listener for every frame that is completed by these samples.
+     *
+     * @return The number of completed frames
+     * @see #feed(short[], int, int, FrameListener)
+     */
+    public int feed(float[] samples, int offset, int length, FrameListener listener) {
+        int frames = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            mFrame[mFill++] = samples[i];
+            if (mFill == mFrameSize) {
+                mFill = 0;
+                processFrame();
+                frames++;
+                if (null != listener) {
+                    listener.onFrame(this);
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return The number of bands
+     */
+    public int getBandCount() {
+        return mBands.length;
+    }
+
+    /**
+     * @return Copy of the band edges in Hz
+     */
+    public float[] getBandEdges() {
+        return mBandEdges.clone();
+    }
+
+    /**
+     * @param band
+     *            Band index
+     * @return Power of the band in dB, relative to a full scale sine wave
+     */
+    public float getBandLevel(int band) {
+        float power = mBands[band];
+        // a full scale sine concentrates (N/4)^2 of windowed power in its peak bin
+        float reference = (mFrameSize / 4f) * (mFrameSize / 4f);
+        return power > 0 ? (float) (10 * Math.log10(power / reference)) : Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @param band
+     *            Band index
+     * @return The summed linear power of the band in the last frame
+     */
+    public float getBandPower(int band) {
+        return mBands[band];
+    }
+
+    /**
+     * @return The number of frames processed so far
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * @return The RMS level of the last frame in dB relative to full scale
+     */
+    public float getLoudness() {
+        return mLoudness;
+    }
+
+    /**
+     * @param bin
+     *            FFT bin between 0 and frameSize / 2 (inclusive)
+     * @return The power of a single bin in the last frame
+     */
+    public float getPower(int bin) {
+        return mPower[bin];
+    }
+
+    public float getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Discards a partially filled frame, e.g. when recording restarts.
+     */
+    public void reset() {
+        mFill = 0;
+    }
+}
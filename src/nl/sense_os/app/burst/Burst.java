@@ -0,0 +1,160 @@
+package nl.sense_os.app.burst;
+
+import java.util.List;
+import java.util.Map;
+
+import nl.sense_os.app.commonsense.Json;
+
+/**
+ * A burst of high-frequency samples from a multi-axis sensor, e.g. 3 seconds of accelerometer
+ * data. Samples are stored interleaved in one primitive array: <code>x0, y0, z0, x1, y1, ...</code>
+ */
+public class Burst {
+
+    /**
+     * Parses the JSON value of a burst-mode data point of the Sense Platform, e.g.
+     * <code>{"interval":20,"header":"x-axis,y-axis,z-axis","values":[[0.1,9.8,0.2],...]}</code>.
+     * The header may also be a JSON array or be left out, in which case the axes are numbered.
+     *
+     * @param value
+     *            The data point value
+     * @param timestamp
+     *            Timestamp of the data point, used as start of the burst
+     * @throws IllegalArgumentException
+     *             If the value is not a burst
+     */
+    public static Burst fromJson(String value, long timestamp) {
+        Map<String, Object> json = Json.parseObject(value);
+        Object values = json.get("values");
+        if (!(values instanceof List) || ((List<?>) values).isEmpty()) {
+            throw new IllegalArgumentException("Burst has no values");
+        }
+        List<?> samples = (List<?>) values;
+        int axisCount = 0;
+        float[] data;
+        try {
+            axisCount = ((List<?>) samples.get(0)).size();
+            data = new float[samples.size() * axisCount];
+            int i = 0;
+            for (Object sample : samples) {
+                List<?> axes = (List<?>) sample;
+                if (axes.size() != axisCount) {
+                    throw new IllegalArgumentException("Samples have different numbers of axes");
+                }
+                for (Object v : axes) {
+                    data[i++] = ((Number) v).floatValue();
+                }
+            }
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Burst values are not arrays of numbers");
+        }
+        if (axisCount == 0) {
+            throw new IllegalArgumentException("Burst has no axes");
+        }
+
+        String[] names = parseHeader(json.get("header"), axisCount);
+        Object interval = json.get("interval");
+        float ms = interval instanceof Number ? ((Number) interval).floatValue() : 0;
+        return new Burst(timestamp, ms, names, data, samples.size());
+    }
+
+    private static String[] parseHeader(Object header, int axisCount) {
+        String[] names = null;
+        if (header instanceof List) {
+            List<?> list = (List<?>) header;
+            names = new String[list.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = String.valueOf(list.get(i));
+            }
+        } else if (header instanceof String) {
+            names = ((String) header).replace("[", "").replace("]", "").split(",");
+            for (int i = 0; i < names.length; i++) {
+                names[i] = names[i].trim();
+            }
+        }
+        if (null == names || names.length != axisCount) {
+            names = new String[axisCount];
+            for (int i = 0; i < axisCount; i++) {
+                names[i] = "axis " + i;
+            }
+        }
+        return names;
+    }
+
+    private final long mStart;
+    private final float mInterval;
+    private final String[] mAxes;
+    private final float[] mValues;
+    private final int mCount;
+
+    /**
+     * @param start
+     *            Timestamp of the first sample in milliseconds
+     * @param interval
+     *            Time between two samples in milliseconds
+     * @param axes
+     *            Names of the axes, e.g. "x-axis", "y-axis", "z-axis"
+     * @param values
+     *            Interleaved sample values, at least <code>count * axes.length</code> long
+     * @param count
+     *            Number of samples
+     */
+    public Burst(long start, float interval, String[] axes, float[] values, int count) {
+        if (axes.length < 1 || values.length < count * axes.length) {
+            throw new IllegalArgumentException("Not enough values for " + count + " samples of "
+                    + axes.length + " axes");
+        }
+        mStart = start;
+        mInterval = interval;
+        mAxes = axes;
+        mValues = values;
+        mCount = count;
+    }
+
+    public int getAxisCount() {
+        return mAxes.length;
+    }
+
+    public String getAxisName(int axis) {
+        return mAxes[axis];
+    }
+
+    /**
+     * @return The number of samples
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return Time between two samples in milliseconds
+     */
+    public float getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * @return The sample rate in Hz, or 0 if the interval is unknown
+     */
+    public float getSampleRate() {
+        return mInterval > 0 ? 1000f / mInterval : 0;
+    }
+
+    /**
+     * @return Timestamp of the first sample in milliseconds
+     */
+    public long getStart() {
+        return mStart;
+    }
+
+    public float getValue(int sample, int axis) {
+        return mValues[sample * mAxes.length + axis];
+    }
+
+    /**
+     * @return The interleaved sample values (not a copy)
+     */
+    public float[] getValues() {
+        return mValues;
+    }
+}
@@ -0,0 +1,159 @@
+package nl.sense_os.app.burst;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import nl.sense_os.app.util.VarInts;
+
+/**
+ * Encodes bursts in a compact delta-quantized binary block. Each value is rounded to a multiple of
+ * the quantum of its axis, and per axis only the difference with the previous quantized value is
+ * stored as a zigzag varint. Slowly changing sensor data mostly needs one or two bytes per value,
+ * instead of the ten or so characters of a JSON number.<br/>
+ * <br/>
+ * Layout of a block:
+ * <ul>
+ * <li>magic bytes <code>SNSB</code> and a version byte</li>
+ * <li>number of axes and number of samples (varints)</li>
+ * <li>start timestamp in ms (varint) and sample interval in us (varint)</li>
+ * <li>per axis: name length (varint), UTF-8 name bytes, quantum (32-bit float)</li>
+ * <li>per axis: the deltas of all samples (zigzag varints)</li>
+ * </ul>
+ * Axes are stored one after the other, so the deltas of each axis stay small and the block
+ * compresses well if the upload is gzipped.
+ */
+public class BurstCodec {
+
+    static final byte[] MAGIC = { 'S', 'N', 'S', 'B' };
+    static final int VERSION = 1;
+
+    /**
+     * Default quantum: a thousandth of the unit, which is well below the noise of phone motion
+     * sensors (m/s^2, rad/s).
+     */
+    public static final float DEFAULT_QUANTUM = 0.001f;
+
+    /**
+     * Decodes a block that was encoded with {@link #encode(Burst)}.
+     *
+     * @throws IOException
+     *             If the block is truncated or not a burst block
+     */
+    public static Burst decode(byte[] block) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a burst block");
+            }
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported burst block version: " + version);
+        }
+
+        int axisCount = readInt(in);
+        int count = readInt(in);
+        long start = VarInts.readVarLong(in);
+        float interval = VarInts.readVarLong(in) / 1000f;
+        String[] axes = new String[axisCount];
+        float[] quanta = new float[axisCount];
+        for (int a = 0; a < axisCount; a++) {
+            byte[] name = new byte[readInt(in)];
+            in.readFully(name);
+            axes[a] = new String(name, "UTF-8");
+            quanta[a] = in.readFloat();
+        }
+
+        float[] values = new float[count * axisCount];
+        for (int a = 0; a < axisCount; a++) {
+            long quantized = 0;
+            for (int i = 0; i < count; i++) {
+                quantized += VarInts.unzigzag(VarInts.readVarLong(in));
+                values[i * axisCount + a] = quantized * quanta[a];
+            }
+        }
+        return new Burst(start, interval, axes, values, count);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        long value = VarInts.readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length: " + value);
+        }
+        return (int) value;
+    }
+
+    private final float mQuantum;
+
+    /**
+     * Creates a codec with the {@link #DEFAULT_QUANTUM}.
+     */
+    public BurstCodec() {
+        this(DEFAULT_QUANTUM);
+    }
+
+    /**
+     * @param quantum
+     *            Resolution of the encoded values. Decoded values differ at most half a quantum
+     *            from the original.
+     */
+    public BurstCodec(float quantum) {
+        if (!(quantum > 0)) {
+            throw new IllegalArgumentException("Quantum must be positive: " + quantum);
+        }
+        mQuantum = quantum;
+    }
+
+    /**
+     * Encodes a burst.
+     *
+     * @return The binary block
+     */
+    public byte[] encode(Burst burst) {
+        int axisCount = burst.getAxisCount();
+        int count = burst.getCount();
+        float[] values = burst.getValues();
+
+        // a typical burst needs less than two bytes per value
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + 2 * count * axisCount);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(MAGIC);
+            out.write(VERSION);
+            VarInts.writeVarLong(out, axisCount);
+            VarInts.writeVarLong(out, count);
+            VarInts.writeVarLong(out, burst.getStart());
+            VarInts.writeVarLong(out, Math.round(burst.getInterval() * 1000));
+            for (int a = 0; a < axisCount; a++) {
+                byte[] name = burst.getAxisName(a).getBytes("UTF-8");
+                VarInts.writeVarLong(out, name.length);
+                out.write(name);
+                out.writeFloat(mQuantum);
+            }
+
+            for (int a = 0; a < axisCount; a++) {
+                long previous = 0;
+                for (int i = 0; i < count; i++) {
+                    long quantized = Math.round((double) values[i * axisCount + a] / mQuantum);
+                    VarInts.writeVarLong(out, VarInts.zigzag(quantized - previous));
+                    previous = quantized;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen when writing to a byte array
+            throw new IllegalStateException("Failed to encode burst: " + e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    public float getQuantum() {
+        return mQuantum;
+    }
+}
@@ -0,0 +1,301 @@
+package nl.sense_os.app.burst;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.R;
+import nl.sense_os.app.SenseApplication;
+import nl.sense_os.app.commonsense.CommonSenseClient;
+import nl.sense_os.app.commonsense.SensorRegistrationCache;
+import nl.sense_os.app.commonsense.SensorRegistrationWarmup;
+import nl.sense_os.app.commonsense.SensorSpec;
+import nl.sense_os.app.commonsense.SharedSession;
+import nl.sense_os.app.commonsense.UploadMessage;
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.app.util.Base64;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.commonsense.SenseApi;
+import nl.sense_os.service.constants.SensePrefs;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import nl.sense_os.service.constants.SensorData.DataPoint;
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Burst pipeline of the app. When the "dont upload bursts" preference is set, the Sense Platform
+ * keeps the burst-mode data points in the local storage. If the user also opted in to
+ * {@link AppPrefs.Burst#COMPACT}, this service periodically picks up the new bursts, and uploads
+ * instead of the blob of JSON numbers:
+ * <ul>
+ * <li>a JSON summary (see {@link BurstSummarizer}), sent as "&lt;sensor&gt; summary"</li>
+ * <li>depending on the {@link BurstUploadPolicy}, the compact binary block of the full burst
+ * (see {@link BurstCodec}), Base64 encoded as "&lt;sensor&gt; compact"</li>
+ * </ul>
+ * The summaries are handed to the MsgHandler, but the compact bursts are uploaded by the service
+ * itself with the {@link SharedSession}, so the policy is applied to the network that the upload
+ * actually uses. The bursts are processed in time slices, and a slice is only done when its
+ * compact bursts are uploaded: after a failed upload, the slice and its summaries are processed
+ * again in the next run. Bursts that are still not uploaded after {@link #MAX_BACKLOG} are
+ * dropped.<br/>
+ * <br/>
+ * The service is started by the {@link WakeupScheduler}, with enough flex to piggyback on the
+ * wakeups of other jobs. Every run checks the preferences again, so the job keeps running while
+ * the user did not opt in, and picks up the bursts as soon as they do.
+ */
+public class BurstService extends IntentService {
+
+    /**
+     * Burst that may be uploaded in full.
+     */
+    private static class Candidate {
+        final SensorSpec spec;
+        final Burst burst;
+        final long index;
+
+        Candidate(SensorSpec spec, Burst burst, long index) {
+            this.spec = spec;
+            this.burst = burst;
+            this.index = index;
+        }
+    }
+
+    private static final String TAG = "BurstService";
+    private static final String PREFS = "burst_pipeline";
+    private static final String PREF_LAST_TIMESTAMP = "last_timestamp";
+    private static final String PREF_BURST_INDEX = "burst_index";
+    private static final String BURST_SENSORS = "%burst-mode%";
+    private static final long SLICE = 10L * 60 * 1000;
+    private static final long MAX_BACKLOG = 6L * 60 * 60 * 1000;
+    private static final int SAMPLE_EVERY = 10;
+    private static final int PEAKS = 3;
+    private static final String[] PROJECTION = new String[] { DataPoint.SENSOR_NAME,
+            DataPoint.SENSOR_DESCRIPTION, DataPoint.TIMESTAMP, DataPoint.VALUE };
+    private static final String JOB = "bursts";
+    private static final long INTERVAL = 15L * 60 * 1000;
+
+    /**
+     * Schedules the burst pipeline to run every 15 minutes. It is not time critical, so it can
+     * run up to an interval late to share a wakeup with other jobs.
+     */
+    public static void schedule(Context context) {
+        final Context appContext = context.getApplicationContext();
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(context);
+        scheduler.schedule(JOB, EnergyLedger.UPLOAD, INTERVAL, INTERVAL, new Runnable() {
+
+            @Override
+            public void run() {
+                appContext.startService(new Intent(appContext, BurstService.class));
+            }
+        });
+    }
+
+    private BurstSummarizer mSummarizer;
+    private BurstUploadPolicy mPolicy;
+    private final BurstCodec mCodec = new BurstCodec();
+    private long mIndex;
+
+    public BurstService() {
+        super(TAG);
+    }
+
+    private boolean isOnWifi() {
+        ConnectivityManager connMgr = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo info = connMgr.getActiveNetworkInfo();
+        return null != info && info.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        SharedPreferences statusPrefs = getSharedPreferences(SensePrefs.STATUS_PREFS,
+                MODE_PRIVATE);
+        SharedPreferences mainPrefs = getSharedPreferences(SensePrefs.MAIN_PREFS, MODE_PRIVATE);
+        if (!statusPrefs.getBoolean(Status.MAIN, false)
+                || !mainPrefs.getBoolean(AppPrefs.Burst.COMPACT, false)
+                || !mainPrefs.getBoolean(AppPrefs.Burst.DONT_UPLOAD, true)) {
+            // the platform is stopped, the user did not opt in, or the platform uploads the
+            // bursts itself: check again in the next run
+            Log.v(TAG, "Burst pipeline not needed");
+            return;
+        }
+
+        String summary = mainPrefs.getString(AppPrefs.Burst.SUMMARY, "spectrum");
+        mSummarizer = new BurstSummarizer(!"stats".equals(summary),
+                "spectrum".equals(summary) ? PEAKS : 0);
+        mPolicy = new BurstUploadPolicy(mainPrefs.getString(AppPrefs.Burst.UPLOAD_WIFI,
+                BurstUploadPolicy.MODE_FULL), mainPrefs.getString(AppPrefs.Burst.UPLOAD_MOBILE,
+                BurstUploadPolicy.MODE_SUMMARY), SAMPLE_EVERY);
+
+        SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        long last = prefs.getLong(PREF_LAST_TIMESTAMP, 0);
+        long from = Math.max(last, now - MAX_BACKLOG);
+        if (last > 0 && from > last) {
+            Log.w(TAG, "Dropped the bursts before " + from + ", they were not uploaded in time");
+        }
+        mIndex = prefs.getLong(PREF_BURST_INDEX, 0);
+        String authority = getString(R.string.local_storage_authority);
+        Uri source = Uri.parse("content://" + authority + DataPoint.CONTENT_URI_PATH);
+
+        int bursts = 0;
+        try {
+            // query in slices, burst values are large
+            while (from < now) {
+                long to = Math.min(now, from + SLICE);
+                long index = mIndex;
+                int count = processSlice(source, from, to);
+                if (count < 0) {
+                    // upload failed: process the slice again in the next run
+                    mIndex = index;
+                    break;
+                }
+                bursts += count;
+                from = to;
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to process bursts!", e);
+        } finally {
+            prefs.edit().putLong(PREF_LAST_TIMESTAMP, from).putLong(PREF_BURST_INDEX, mIndex)
+                    .commit();
+        }
+        Log.v(TAG, "Processed " + bursts + " bursts");
+    }
+
+    /**
+     * @return The client of the app, or <code>null</code> if the Sense service is not bound or not
+     *         logged in
+     */
+    private CommonSenseClient getClient() {
+        SenseServiceStub service = ((SenseApplication) getApplication()).getSensePlatform()
+                .getService();
+        return null != service ? SharedSession.getClient(service) : null;
+    }
+
+    /**
+     * Uploads the compact bursts of one time slice, and sends the summaries once the upload
+     * succeeded.
+     *
+     * @return The number of bursts, or -1 if the compact bursts could not be uploaded
+     */
+    private int processSlice(Uri source, long from, long to) {
+        String where = DataPoint.SENSOR_NAME + " LIKE ? AND " + DataPoint.TIMESTAMP + ">=? AND "
+                + DataPoint.TIMESTAMP + "<?";
+        String[] selectionArgs = new String[] { BURST_SENSORS, "" + from, "" + to };
+        Cursor cursor = null;
+        int count = 0;
+        String deviceType = SenseApi.getDefaultDeviceType(this);
+        String deviceUuid = SenseApi.getDefaultDeviceUuid(this);
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        List<String[]> summaries = new ArrayList<String[]>();
+        List<Long> timestamps = new ArrayList<Long>();
+        try {
+            cursor = getContentResolver().query(source, PROJECTION, where, selectionArgs,
+                    DataPoint.TIMESTAMP + " ASC");
+            if (null == cursor) {
+                return 0;
+            }
+            int nameIdx = cursor.getColumnIndex(DataPoint.SENSOR_NAME);
+            int descriptionIdx = cursor.getColumnIndex(DataPoint.SENSOR_DESCRIPTION);
+            int timeIdx = cursor.getColumnIndex(DataPoint.TIMESTAMP);
+            int valueIdx = cursor.getColumnIndex(DataPoint.VALUE);
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(nameIdx);
+                String description = cursor.getString(descriptionIdx);
+                long timestamp = cursor.getLong(timeIdx);
+                Burst burst;
+                try {
+                    burst = Burst.fromJson(cursor.getString(valueIdx), timestamp);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Skipping invalid burst of " + name + ": " + e.getMessage());
+                    continue;
+                }
+
+                summaries.add(new String[] { name + " summary", description,
+                        mSummarizer.summarize(burst) });
+                timestamps.add(timestamp);
+                if (mPolicy.uploadFull(true, mIndex) || mPolicy.uploadFull(false, mIndex)) {
+                    candidates.add(new Candidate(new SensorSpec(name + " compact", description,
+                            "string", deviceType, deviceUuid), burst, mIndex));
+                }
+                mIndex++;
+                count++;
+            }
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+        if (!uploadCompact(candidates)) {
+            return -1;
+        }
+        for (int i = 0; i < summaries.size(); i++) {
+            String[] summary = summaries.get(i);
+            DataPoints.send(this, summary[0], summary[1], "json", summary[2], timestamps.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Uploads the compact blocks of the bursts that the policy selects for the current network.
+     *
+     * @return <code>true</code> if the selected bursts were uploaded, or there were none
+     */
+    private boolean uploadCompact(List<Candidate> candidates) {
+        // the network of the upload, which need not be the network when the burst was sampled
+        boolean wifi = isOnWifi();
+        List<Candidate> selected = new ArrayList<Candidate>();
+        List<SensorSpec> specs = new ArrayList<SensorSpec>();
+        for (Candidate candidate : candidates) {
+            if (mPolicy.uploadFull(wifi, candidate.index)) {
+                selected.add(candidate);
+                specs.add(candidate.spec);
+            }
+        }
+        if (selected.isEmpty()) {
+            return true;
+        }
+        CommonSenseClient client = getClient();
+        if (null == client) {
+            Log.w(TAG, "Cannot upload " + selected.size() + " compact bursts: not logged in");
+            return false;
+        }
+
+        SensorRegistrationCache cache = SensorRegistrationWarmup.register(this, client, specs);
+        if (null == cache) {
+            return false;
+        }
+        UploadMessage message = new UploadMessage();
+        for (Candidate candidate : selected) {
+            String sensorId = cache.get(candidate.spec);
+            if (null != sensorId) {
+                message.add(sensorId, "string", Base64.encode(mCodec.encode(candidate.burst)),
+                        candidate.burst.getStart());
+            }
+        }
+        if (message.getCount() < selected.size()) {
+            Log.w(TAG, "Cannot upload compact bursts: sensors not registered");
+            return false;
+        }
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            message.writeTo(body, true);
+            client.uploadData(body.toByteArray(), true, message.getCount());
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to upload " + message.getCount() + " compact bursts: "
+                    + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package nl.sense_os.app.burst;
+
+import nl.sense_os.app.ambience.SpectrumEngine;
+import nl.sense_os.app.commonsense.Json;
+
+/**
+ * Computes a compact JSON summary of a burst on the device. Per axis the summary always contains
+ * the mean, standard deviation, minimum and maximum. Depending on the configuration it also
+ * contains the number of zero-crossings (of the mean-free signal) and the strongest peaks of the
+ * spectrum, which is computed with a {@link SpectrumEngine}.<br/>
+ * <br/>
+ * Example of a summary with one spectrum peak:
+ *
+ * <pre>
+ * {"samples":150,"interval":20.0,"axes":{"x-axis":{"mean":0.1,"std":0.5,"min":-1.2,"max":1.3,
+ * "zero crossings":12,"peaks":[{"frequency":1.8,"amplitude":0.6}]}, ...}}
+ * </pre>
+ *
+ * Instances reuse their buffers between bursts and are not thread-safe.
+ */
+public class BurstSummarizer {
+
+    private static final int MIN_FRAME = 8;
+    private static final int MAX_FRAME = 512;
+
+    private final boolean mCrossings;
+    private final int mPeaks;
+    private SpectrumEngine mEngine;
+    private float[] mSignal = new float[0];
+    private int[] mPeakBins = new int[0];
+
+    /**
+     * @param crossings
+     *            <code>true</code> to count zero-crossings
+     * @param peaks
+     *            Number of spectrum peaks per axis, 0 to skip the spectrum
+     */
+    public BurstSummarizer(boolean crossings, int peaks) {
+        mCrossings = crossings;
+        mPeaks = Math.max(0, peaks);
+    }
+
+    private void appendAxis(StringBuilder sb, Burst burst, int axis) {
+        int count = burst.getCount();
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        double sum = 0;
+        double sumSquares = 0;
+        for (int i = 0; i < count; i++) {
+            float v = burst.getValue(i, axis);
+            sum += v;
+            sumSquares += v * v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        float mean = (float) (sum / count);
+        float std = (float) Math.sqrt(Math.max(0, sumSquares / count - (double) mean * mean));
+
+        Json.appendQuoted(sb, burst.getAxisName(axis));
+        sb.append(":{\"mean\":").append(mean);
+        sb.append(",\"std\":").append(std);
+        sb.append(",\"min\":").append(min);
+        sb.append(",\"max\":").append(max);
+
+        // mean-free signal for the crossings and the spectrum
+        for (int i = 0; i < count; i++) {
+            mSignal[i] = burst.getValue(i, axis) - mean;
+        }
+        if (mCrossings) {
+            int crossings = 0;
+            for (int i = 1; i < count; i++) {
+                if ((mSignal[i - 1] < 0 && mSignal[i] >= 0)
+                        || (mSignal[i - 1] >= 0 && mSignal[i] < 0)) {
+                    crossings++;
+                }
+            }
+            sb.append(",\"zero crossings\":").append(crossings);
+        }
+        if (mPeaks > 0 && null != mEngine) {
+            appendPeaks(sb, count);
+        }
+        sb.append('}');
+    }
+
+    /**
+     * Transforms the last frame of the mean-free signal and appends the strongest local maxima of
+     * the spectrum.
+     */
+    private void appendPeaks(StringBuilder sb, int count) {
+        int frameSize = mEngine.getFrameSize();
+        mEngine.reset();
+        mEngine.feed(mSignal, count - frameSize, frameSize, null);
+
+        // keep the strongest local maxima, sorted by descending power
+        int found = 0;
+        for (int bin = 1; bin < frameSize / 2; bin++) {
+            float power = mEngine.getPower(bin);
+            if (power <= 0 || power < mEngine.getPower(bin - 1)
+                    || power < mEngine.getPower(bin + 1)) {
+                continue;
+            }
+            int pos = found < mPeaks ? found++ : mPeaks;
+            while (pos > 0 && mEngine.getPower(mPeakBins[pos - 1]) < power) {
+                if (pos < mPeaks) {
+                    mPeakBins[pos] = mPeakBins[pos - 1];
+                }
+                pos--;
+            }
+            if (pos < mPeaks) {
+                mPeakBins[pos] = bin;
+            }
+        }
+
+        sb.append(",\"peaks\":[");
+        float binWidth = mEngine.getSampleRate() / frameSize;
+        for (int p = 0; p < found; p++) {
+            if (p > 0) {
+                sb.append(',');
+            }
+            // a Hann windowed sine of amplitude A has a peak of A * N / 4
+            float amplitude = (float) Math.sqrt(mEngine.getPower(mPeakBins[p])) * 4 / frameSize;
+            sb.append("{\"frequency\":").append(mPeakBins[p] * binWidth);
+            sb.append(",\"amplitude\":").append(amplitude).append('}');
+        }
+        sb.append(']');
+    }
+
+    /**
+     * Prepares the buffers and the spectrum engine for a burst.
+     */
+    private void prepare(Burst burst) {
+        int count = burst.getCount();
+        if (mSignal.length < count) {
+            mSignal = new float[count];
+        }
+        if (mPeakBins.length < mPeaks) {
+            mPeakBins = new int[mPeaks];
+        }
+
+        float sampleRate = burst.getSampleRate();
+        if (mPeaks == 0 || count < MIN_FRAME || sampleRate <= 0) {
+            mEngine = null;
+            return;
+        }
+        int frameSize = Math.min(MAX_FRAME, Integer.highestOneBit(count));
+        if (null == mEngine || mEngine.getFrameSize() != frameSize
+                || mEngine.getSampleRate() != sampleRate) {
+            mEngine = new SpectrumEngine(frameSize, sampleRate,
+                    SpectrumEngine.linearBands(1, sampleRate / 2));
+        }
+    }
+
+    /**
+     * @return The JSON summary of the burst
+     */
+    public String summarize(Burst burst) {
+        StringBuilder sb = new StringBuilder(128 + 160 * burst.getAxisCount());
+        sb.append("{\"samples\":").append(burst.getCount());
+        sb.append(",\"interval\":").append(burst.getInterval());
+        sb.append(",\"axes\":{");
+        if (burst.getCount() > 0) {
+            prepare(burst);
+            for (int a = 0; a < burst.getAxisCount(); a++) {
+                if (a > 0) {
+                    sb.append(',');
+                }
+                appendAxis(sb, burst, a);
+            }
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+}
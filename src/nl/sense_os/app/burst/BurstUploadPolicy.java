@@ -0,0 +1,61 @@
+package nl.sense_os.app.burst;
+
+/**
+ * Decides which representation of a burst is uploaded, depending on the network type. The summary
+ * is always uploaded; the compact binary block of the full burst is uploaded according to the
+ * mode of the current network:
+ * <ul>
+ * <li>{@link #MODE_SUMMARY}: never</li>
+ * <li>{@link #MODE_SAMPLED}: for one in every <code>sampleEvery</code> bursts</li>
+ * <li>{@link #MODE_FULL}: for every burst</li>
+ * </ul>
+ */
+public class BurstUploadPolicy {
+
+    public static final String MODE_SUMMARY = "summary";
+    public static final String MODE_SAMPLED = "sampled";
+    public static final String MODE_FULL = "full";
+
+    private final String mWifiMode;
+    private final String mMobileMode;
+    private final int mSampleEvery;
+
+    /**
+     * @param wifiMode
+     *            Mode on Wi-Fi (or other unmetered networks)
+     * @param mobileMode
+     *            Mode on mobile networks
+     * @param sampleEvery
+     *            Interval of the full bursts in {@link #MODE_SAMPLED}
+     */
+    public BurstUploadPolicy(String wifiMode, String mobileMode, int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("Invalid sample interval: " + sampleEvery);
+        }
+        mWifiMode = wifiMode;
+        mMobileMode = mobileMode;
+        mSampleEvery = sampleEvery;
+    }
+
+    public String getMode(boolean wifi) {
+        return wifi ? mWifiMode : mMobileMode;
+    }
+
+    /**
+     * @param wifi
+     *            <code>true</code> if the phone is connected to Wi-Fi
+     * @param index
+     *            Sequence number of the burst
+     * @return <code>true</code> if the full burst should be uploaded
+     */
+    public boolean uploadFull(boolean wifi, long index) {
+        String mode = getMode(wifi);
+        if (MODE_FULL.equals(mode)) {
+            return true;
+        } else if (MODE_SAMPLED.equals(mode)) {
+            return index % mSampleEvery == 0;
+        } else {
+            return false;
+        }
+    }
+}
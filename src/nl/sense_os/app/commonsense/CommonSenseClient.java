@@ -0,0 +1,393 @@
+package nl.sense_os.app.commonsense;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.app.metrics.MetricsRegistry.Counter;
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Lightweight client for the CommonSense REST API. Uses plain {@link HttpURLConnection}, so it
+ * works on the phone as well as in the desktop benchmarks against a mock server.<br/>
+ * <br/>
+ * Instances are thread-safe once the session ID is set, so sensor registrations can be done in
+ * parallel with one client. With a {@link CommonSenseSession}, the client logs in by itself and
+ * keeps the session alive in the background.
+ */
+public class CommonSenseClient {
+
+    /**
+     * Result of a (conditional) request for the list of sensors.
+     */
+    public static class SensorListing {
+
+        private final boolean mNotModified;
+        private final String mETag;
+        private final Map<String, String> mSensorIds;
+
+        SensorListing(boolean notModified, String eTag, Map<String, String> sensorIds) {
+            mNotModified = notModified;
+            mETag = eTag;
+            mSensorIds = sensorIds;
+        }
+
+        /**
+         * @return The entity tag of the listing, to use in the next conditional request
+         */
+        public String getETag() {
+            return mETag;
+        }
+
+        /**
+         * @return Sensor IDs by {@link SensorSpec#getKey()}, or <code>null</code> if not modified
+         */
+        public Map<String, String> getSensorIds() {
+            return mSensorIds;
+        }
+
+        /**
+         * @return <code>true</code> if the listing did not change since the given entity tag
+         */
+        public boolean isNotModified() {
+            return mNotModified;
+        }
+    }
+
+    /**
+     * Response of a single HTTP request.
+     */
+    static class Response {
+        int code;
+        String body;
+        String eTag;
+    }
+
+    public static final String DEFAULT_URL = "https://api.sense-os.nl";
+    /** Development server, which the Sense service uses in developer mode */
+    public static final String DEV_URL = "http://api.dev.sense-os.nl";
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final int PAGE_SIZE = 1000;
+    private static final String LOGIN_PATH = "/login.json";
+    private static final String CURRENT_USER_PATH = "/users/current.json";
+    private static final LatencyHistogram LATENCY = MetricsRegistry.getInstance().histogram(
+            "upload/latency (ms)");
+    private static final Counter BYTES_SENT = MetricsRegistry.getInstance().counter(
+            "upload/bytes sent");
+    private static final Counter BYTES_RECEIVED = MetricsRegistry.getInstance().counter(
+            "upload/bytes received");
+    /** Data points that the app uploads itself, not the uploads of the Sense service */
+    private static final Counter DIRECT_POINTS = MetricsRegistry.getInstance().counter(
+            "upload/direct points");
+
+    private final String mBaseUrl;
+    private volatile String mSessionId;
+    private volatile CommonSenseSession mSession;
+
+    public CommonSenseClient(String baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    private static String getString(Map<?, ?> map, String key) {
+        Object value = map.get(key);
+        if (value instanceof Double) {
+            // IDs are sometimes sent as numbers
+            return Long.toString(((Double) value).longValue());
+        }
+        return null != value ? value.toString() : null;
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        if (null == in) {
+            return "";
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            BYTES_RECEIVED.add(out.size());
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Fetches the sensors of the current user. Only the first page is requested conditionally: if
+     * it is not modified, the user did not add or remove sensors since the last listing.
+     *
+     * @param eTag
+     *            Entity tag of the previous listing, or <code>null</code>
+     * @return The listing
+     * @throws IOException
+     *             If the request failed
+     */
+    public SensorListing getSensors(String eTag) throws IOException {
+        Map<String, String> ids = new HashMap<String, String>();
+        String firstETag = null;
+        for (int page = 0;; page++) {
+            Map<String, String> headers = new HashMap<String, String>();
+            if (page == 0 && null != eTag) {
+                headers.put("If-None-Match", eTag);
+            }
+            Response response = request("GET", "/sensors.json?details=full&per_page=" + PAGE_SIZE
+                    + "&page=" + page, null, headers);
+            if (response.code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new SensorListing(true, eTag, null);
+            } else if (response.code != HttpURLConnection.HTTP_OK) {
+                throw new CommonSenseException(response.code, "Failed to get sensor list");
+            }
+            if (page == 0) {
+                firstETag = response.eTag;
+            }
+
+            List<?> sensors = (List<?>) Json.parseObject(response.body).get("sensors");
+            if (null == sensors) {
+                break;
+            }
+            for (Object item : sensors) {
+                Map<?, ?> sensor = (Map<?, ?>) item;
+                Map<?, ?> device = (Map<?, ?>) sensor.get("device");
+                String deviceType = null != device ? getString(device, "type") : null;
+                ids.put(SensorSpec.key(getString(sensor, "name"), getString(sensor, "device_type"),
+                        deviceType), getString(sensor, "id"));
+            }
+            if (sensors.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+        return new SensorListing(false, firstETag, ids);
+    }
+
+    /**
+     * @return The URL of the server, e.g. {@link #DEFAULT_URL}
+     */
+    public String getBaseUrl() {
+        return mBaseUrl;
+    }
+
+    /**
+     * @return The session ID that is sent with each request
+     */
+    public String getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * Logs in at CommonSense.
+     *
+     * @param username
+     * @param passwordHash
+     *            MD5 hash of the password
+     * @return The new session ID, which is also used for subsequent requests of this client
+     * @throws CommonSenseException
+     *             If the credentials were refused
+     */
+    public String login(String username, String passwordHash) throws IOException {
+        StringBuilder body = new StringBuilder("{\"username\":");
+        Json.appendQuoted(body, username);
+        body.append(",\"password\":");
+        Json.appendQuoted(body, passwordHash);
+        body.append('}');
+
+        Response response = request("POST", LOGIN_PATH, body.toString(), null);
+        if (response.code != HttpURLConnection.HTTP_OK) {
+            throw new CommonSenseException(response.code, "Login failed");
+        }
+        String sessionId = getString(Json.parseObject(response.body), "session_id");
+        if (null == sessionId) {
+            throw new IOException("Login response did not contain a session ID");
+        }
+        mSessionId = sessionId;
+        return sessionId;
+    }
+
+    /**
+     * Registers a new sensor, and links it to the device if the spec has a device UUID.
+     *
+     * @return The ID of the new sensor
+     * @throws IOException
+     *             If one of the requests failed
+     */
+    public String registerSensor(SensorSpec spec) throws IOException {
+        StringBuilder body = new StringBuilder("{\"sensor\":{\"name\":");
+        Json.appendQuoted(body, spec.getName());
+        body.append(",\"display_name\":");
+        Json.appendQuoted(body, spec.getName());
+        body.append(",\"device_type\":");
+        Json.appendQuoted(body, spec.getDescription());
+        body.append(",\"data_type\":");
+        Json.appendQuoted(body, spec.getDataType());
+        body.append("}}");
+
+        Response response = request("POST", "/sensors.json", body.toString(), null);
+        if (response.code != HttpURLConnection.HTTP_CREATED
+                && response.code != HttpURLConnection.HTTP_OK) {
+            throw new CommonSenseException(response.code, "Failed to register " + spec);
+        }
+        Map<?, ?> sensor = (Map<?, ?>) Json.parseObject(response.body).get("sensor");
+        String id = null != sensor ? getString(sensor, "id") : null;
+        if (null == id) {
+            throw new IOException("Registration response did not contain a sensor ID");
+        }
+
+        if (null != spec.getDeviceUuid()) {
+            body = new StringBuilder("{\"device\":{\"type\":");
+            Json.appendQuoted(body, spec.getDeviceType());
+            body.append(",\"uuid\":");
+            Json.appendQuoted(body, spec.getDeviceUuid());
+            body.append("}}");
+            response = request("POST", "/sensors/" + id + "/device.json", body.toString(), null);
+            if (response.code != HttpURLConnection.HTTP_CREATED
+                    && response.code != HttpURLConnection.HTTP_OK) {
+                throw new CommonSenseException(response.code, "Failed to link " + spec);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Performs a request with a JSON body, see {@link #send}.
+     */
+    Response request(String method, String path, String body, Map<String, String> headers)
+            throws IOException {
+        return send(method, path, null != body ? body.getBytes("UTF-8") : null, headers);
+    }
+
+    /**
+     * @return <code>false</code> if CommonSense refuses the session ID, to tell an expired session
+     *         from a request that is not allowed for the user
+     */
+    private boolean isSessionValid(String sessionId) throws IOException {
+        int code = send("GET", CURRENT_USER_PATH, null, null, sessionId).code;
+        return code != HttpURLConnection.HTTP_UNAUTHORIZED
+                && code != HttpURLConnection.HTTP_FORBIDDEN;
+    }
+
+    /**
+     * Performs a request and reads the complete response. With a session, the request waits for
+     * a login if there is no valid session ID. When CommonSense refuses the session ID anyway, and
+     * also refuses it for the current user (a 403 can also mean that the request is not allowed),
+     * the request is sent once more after a new login.
+     *
+     * @param body
+     *            JSON body, or <code>null</code>
+     */
+    Response send(String method, String path, byte[] body, Map<String, String> headers)
+            throws IOException {
+        CommonSenseSession session = mSession;
+        if (null == session || LOGIN_PATH.equals(path)) {
+            return send(method, path, body, headers, mSessionId);
+        }
+        String sessionId = session.getSessionId();
+        Response response = send(method, path, body, headers, sessionId);
+        if (response.code == HttpURLConnection.HTTP_UNAUTHORIZED
+                || (response.code == HttpURLConnection.HTTP_FORBIDDEN
+                        && !isSessionValid(sessionId))) {
+            // the session lapsed before its expected expiry
+            session.invalidate(sessionId);
+            response = send(method, path, body, headers, session.getSessionId());
+        }
+        return response;
+    }
+
+    /**
+     * Performs a single request with the session ID. The time of the request and the bytes of the
+     * bodies are counted in the <code>"upload/..."</code> metrics. The Sense service sends its
+     * data with its own transmitter, so these metrics only cover the requests of the app.
+     */
+    private Response send(String method, String path, byte[] body, Map<String, String> headers,
+            String sessionId) throws IOException {
+        long start = System.currentTimeMillis();
+        HttpURLConnection conn = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            conn.setRequestMethod(method);
+            conn.setRequestProperty("Accept", "application/json");
+            if (null != sessionId) {
+                conn.setRequestProperty("X-SESSION_ID", sessionId);
+            }
+            if (null != headers) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    conn.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            if (null != body) {
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(body.length);
+                conn.setRequestProperty("Content-Type", "application/json");
+                OutputStream out = conn.getOutputStream();
+                out.write(body);
+                out.close();
+                BYTES_SENT.add(body.length);
+            }
+
+            Response response = new Response();
+            response.code = conn.getResponseCode();
+            response.eTag = conn.getHeaderField("ETag");
+            InputStream in = response.code < 400 ? conn.getInputStream() : conn.getErrorStream();
+            response.body = response.code == HttpURLConnection.HTTP_NOT_MODIFIED ? ""
+                    : readFully(in);
+            return response;
+        } finally {
+            conn.disconnect();
+            LATENCY.record(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Uploads the data points of several sensors in one request, e.g. the bursts of the
+     * <code>BurstService</code>. Most data is uploaded by the Sense service, not with this
+     * method.
+     *
+     * @param body
+     *            Body of an {@link UploadMessage}, see {@link UploadMessage#writeTo}
+     * @param compressed
+     *            <code>true</code> if the body is gzipped
+     * @param points
+     *            Number of data points in the body, counted in the
+     *            <code>"upload/direct points"</code> metric when the upload succeeds
+     * @throws CommonSenseException
+     *             If CommonSense did not accept the data
+     */
+    public void uploadData(byte[] body, boolean compressed, int points) throws IOException {
+        Map<String, String> headers = null;
+        if (compressed) {
+            headers = new HashMap<String, String>();
+            headers.put("Content-Encoding", "gzip");
+        }
+        Response response = send("POST", "/sensors/data.json", body, headers);
+        if (response.code != HttpURLConnection.HTTP_CREATED
+                && response.code != HttpURLConnection.HTTP_OK) {
+            throw new CommonSenseException(response.code, "Failed to upload " + points
+                    + " data points");
+        }
+        DIRECT_POINTS.add(points);
+    }
+
+    /**
+     * Sets the session that logs in for the requests, see {@link CommonSenseSession}.
+     */
+    void setSession(CommonSenseSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Sets the session ID to use for requests, e.g. from an earlier login by the Sense service.
+     */
+    public void setSessionId(String sessionId) {
+        mSessionId = sessionId;
+    }
+}
@@ -0,0 +1,31 @@
+package nl.sense_os.app.commonsense;
+
+import java.io.IOException;
+
+/**
+ * Thrown when CommonSense responds to a request with an unexpected HTTP status code.
+ */
+public class CommonSenseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    private final int mCode;
+
+    public CommonSenseException(int code, String msg) {
+        super(msg + " (HTTP " + code + ")");
+        mCode = code;
+    }
+
+    /**
+     * @return The HTTP status code of the response
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * @return <code>true</code> if the request failed because the session was not valid
+     */
+    public boolean isAuthError() {
+        return mCode == 401 || mCode == 403;
+    }
+}
@@ -0,0 +1,225 @@
+package nl.sense_os.app.commonsense;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.app.metrics.MetricsRegistry.Counter;
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Session of a {@link CommonSenseClient} that logs in by itself. The session ID is cached with
+ * the time at which it lapses, and is renewed in the background shortly before that time, so
+ * requests do not have to wait for a login. CommonSense does not tell when a session expires, so
+ * the lifetime is a setting, counted from the start of the login.<br/>
+ * <br/>
+ * Threads that need a session while there is none (at the start, after an expiry, or after the
+ * session was refused) wait for a single login together. The time they wait is recorded in the
+ * <code>"session/login wait (ms)"</code> metric, which stays empty when the proactive renewal
+ * keeps up.
+ */
+public class CommonSenseSession {
+
+    private static final Counter LOGINS = MetricsRegistry.getInstance().counter(
+            "session/logins");
+    private static final Counter RENEWALS = MetricsRegistry.getInstance().counter(
+            "session/proactive renewals");
+    private static final LatencyHistogram WAIT = MetricsRegistry.getInstance().histogram(
+            "session/login wait (ms)");
+
+    private final CommonSenseClient mClient;
+    private final String mUsername;
+    private final String mPasswordHash;
+    private final long mLifetime;
+    private final long mMargin;
+    private final ScheduledExecutorService mScheduler;
+    private String mSessionId;
+    private long mExpiry;
+    private FutureTask<String> mLogin;
+    private ScheduledFuture<?> mRenewal;
+    private boolean mClosed;
+
+    /**
+     * Creates the session and attaches it to the client, see
+     * {@link CommonSenseClient#setSession(CommonSenseSession)}. The first login happens at the
+     * first request, or when {@link #getSessionId()} is called.
+     *
+     * @param client
+     *            Client to log in with
+     * @param username
+     * @param passwordHash
+     *            MD5 hash of the password
+     * @param lifetime
+     *            Time in milliseconds after which a session is no longer trusted
+     * @param margin
+     *            Time in milliseconds before the expiry at which the session is renewed
+     * @param scheduler
+     *            Scheduler for the renewals, or <code>null</code> to only log in when a request
+     *            needs a session
+     */
+    public CommonSenseSession(CommonSenseClient client, String username, String passwordHash,
+            long lifetime, long margin, ScheduledExecutorService scheduler) {
+        mClient = client;
+        mUsername = username;
+        mPasswordHash = passwordHash;
+        mLifetime = lifetime;
+        mMargin = Math.min(margin, lifetime / 2);
+        mScheduler = scheduler;
+        client.setSession(this);
+    }
+
+    /**
+     * Stops the renewals. Requests that still need a session will log in without renewals.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (null != mRenewal) {
+            mRenewal.cancel(false);
+            mRenewal = null;
+        }
+    }
+
+    /**
+     * @return A valid session ID, after waiting for a login if there is none
+     * @throws CommonSenseException
+     *             If the credentials were refused
+     * @throws IOException
+     *             If the login failed
+     */
+    public String getSessionId() throws IOException {
+        FutureTask<String> login;
+        boolean start = false;
+        synchronized (this) {
+            if (null != mSessionId && System.currentTimeMillis() < mExpiry) {
+                return mSessionId;
+            }
+            login = mLogin;
+            if (null == login) {
+                login = newLogin();
+                start = true;
+            }
+        }
+
+        long waitStart = System.currentTimeMillis();
+        try {
+            if (start) {
+                login.run();
+            }
+            return login.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the login");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            WAIT.record(System.currentTimeMillis() - waitStart);
+        }
+    }
+
+    /**
+     * Forgets the session when CommonSense refused it, so the next request logs in again.
+     *
+     * @param sessionId
+     *            The session ID that was refused. A session of a later login is kept.
+     */
+    public synchronized void invalidate(String sessionId) {
+        if (null != sessionId && sessionId.equals(mSessionId)) {
+            mSessionId = null;
+        }
+    }
+
+    /**
+     * Logs in, and schedules the renewal of the new session.
+     */
+    private String login() throws IOException {
+        long start = System.currentTimeMillis();
+        String sessionId = null;
+        try {
+            sessionId = mClient.login(mUsername, mPasswordHash);
+            LOGINS.increment();
+            return sessionId;
+        } finally {
+            synchronized (this) {
+                mLogin = null;
+                if (null != sessionId) {
+                    mSessionId = sessionId;
+                    mExpiry = start + mLifetime;
+                }
+                // a failed renewal is retried while the current session is still valid
+                scheduleRenewal(null != sessionId ? mExpiry - mMargin : System
+                        .currentTimeMillis() + mMargin / 4);
+            }
+        }
+    }
+
+    /**
+     * @return A login that is not running yet, registered as the login in flight
+     */
+    private FutureTask<String> newLogin() {
+        mLogin = new FutureTask<String>(new Callable<String>() {
+
+            @Override
+            public String call() throws IOException {
+                return login();
+            }
+        });
+        return mLogin;
+    }
+
+    private void renew() {
+        FutureTask<String> login;
+        synchronized (this) {
+            mRenewal = null;
+            if (mClosed || null != mLogin) {
+                return;
+            }
+            login = newLogin();
+        }
+        login.run();
+        try {
+            login.get();
+            RENEWALS.increment();
+        } catch (ExecutionException e) {
+            // retried by the login while the current session is valid
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param time
+     *            Time of the renewal in milliseconds
+     */
+    private void scheduleRenewal(long time) {
+        if (null != mRenewal) {
+            mRenewal.cancel(false);
+            mRenewal = null;
+        }
+        if (mClosed || null == mScheduler || mMargin <= 0 || null == mSessionId
+                || time >= mExpiry) {
+            // nothing to keep alive: the next request logs in
+            return;
+        }
+        long delay = Math.max(0, time - System.currentTimeMillis());
+        try {
+            mRenewal = mScheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    renew();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the scheduler was shut down
+        }
+    }
+}
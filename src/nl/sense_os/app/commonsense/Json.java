@@ -0,0 +1,241 @@
+package nl.sense_os.app.commonsense;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the CommonSense API messages. Unlike <code>org.json</code>
+ * this does not depend on the Android framework, so the same client code runs in the desktop
+ * benchmarks. Objects are parsed to {@link Map}, arrays to {@link List}, numbers to
+ * {@link Double}, and literals to {@link Boolean} or <code>null</code>.
+ */
+public class Json {
+
+    private final String mText;
+    private int mPos;
+
+    /**
+     * Appends a JSON string literal to the builder, escaping where necessary.
+     */
+    public static void appendQuoted(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Parses a JSON text.
+     *
+     * @throws IllegalArgumentException
+     *             If the text is not valid JSON
+     */
+    public static Object parse(String text) {
+        Json parser = new Json(text);
+        Object result = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.mPos != text.length()) {
+            throw parser.error("Trailing characters");
+        }
+        return result;
+    }
+
+    /**
+     * Parses a JSON text that should contain an object.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(String text) {
+        Object result = parse(text);
+        if (!(result instanceof Map)) {
+            throw new IllegalArgumentException("Expected JSON object");
+        }
+        return (Map<String, Object>) result;
+    }
+
+    private Json(String text) {
+        mText = text;
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(msg + " at position " + mPos);
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if (mPos >= mText.length() || mText.charAt(mPos) != c) {
+            throw error("Expected '" + c + "'");
+        }
+        mPos++;
+    }
+
+    private List<Object> readArray() {
+        List<Object> list = new ArrayList<Object>();
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            mPos++;
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            skipWhitespace();
+            char c = next();
+            if (c == ']') {
+                return list;
+            } else if (c != ',') {
+                throw error("Expected ',' or ']'");
+            }
+        }
+    }
+
+    private Object readLiteral(String literal, Object value) {
+        if (!mText.startsWith(literal, mPos)) {
+            throw error("Unexpected token");
+        }
+        mPos += literal.length();
+        return value;
+    }
+
+    private Double readNumber() {
+        int start = mPos;
+        while (mPos < mText.length() && "+-0123456789.eE".indexOf(mText.charAt(mPos)) >= 0) {
+            mPos++;
+        }
+        try {
+            return Double.valueOf(mText.substring(start, mPos));
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            mPos++;
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            String key = readString();
+            expect(':');
+            map.put(key, readValue());
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return map;
+            } else if (c != ',') {
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private String readString() {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return sb.toString();
+            } else if (c == '\\') {
+                c = next();
+                switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (mPos + 4 > mText.length()) {
+                        throw error("Invalid escape");
+                    }
+                    sb.append((char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16));
+                    mPos += 4;
+                    break;
+                default:
+                    sb.append(c);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        char c = peek();
+        switch (c) {
+        case '{':
+            return readObject();
+        case '[':
+            return readArray();
+        case '"':
+            return readString();
+        case 't':
+            return readLiteral("true", Boolean.TRUE);
+        case 'f':
+            return readLiteral("false", Boolean.FALSE);
+        case 'n':
+            return readLiteral("null", null);
+        default:
+            return readNumber();
+        }
+    }
+
+    private char next() {
+        if (mPos >= mText.length()) {
+            throw error("Unexpected end of text");
+        }
+        return mText.charAt(mPos++);
+    }
+
+    private char peek() {
+        if (mPos >= mText.length()) {
+            throw error("Unexpected end of text");
+        }
+        return mText.charAt(mPos);
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos))) {
+            mPos++;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package nl.sense_os.app.commonsense;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Makes sure a set of sensors is registered at CommonSense, using the
+ * {@link SensorRegistrationCache} to avoid round-trips. The cache is only validated when it is
+ * stale or when a sensor is missing from it, and missing sensors are registered in parallel.
+ */
+public class SensorRegistrar {
+
+    /**
+     * Outcome of {@link SensorRegistrar#ensureRegistered(List, long)}.
+     */
+    public static class Result {
+        public int cached;
+        public int registered;
+        public int failed;
+        public int requests;
+        public IOException lastError;
+
+        @Override
+        public String toString() {
+            return "cached: " + cached + ", registered: " + registered + ", failed: " + failed
+                    + ", requests: " + requests;
+        }
+    }
+
+    private final CommonSenseClient mClient;
+    private final SensorRegistrationCache mCache;
+    private final ExecutorService mExecutor;
+    private final long mMaxAge;
+
+    /**
+     * @param client
+     *            Client with a valid session
+     * @param cache
+     *            Cache of registered sensors
+     * @param executor
+     *            Executor for the parallel registration requests
+     * @param maxAge
+     *            Time in milliseconds after which the cache is validated again
+     */
+    public SensorRegistrar(CommonSenseClient client, SensorRegistrationCache cache,
+            ExecutorService executor, long maxAge) {
+        mClient = client;
+        mCache = cache;
+        mExecutor = executor;
+        mMaxAge = maxAge;
+    }
+
+    private List<SensorSpec> findMissing(List<SensorSpec> specs, Result result) {
+        List<SensorSpec> missing = new ArrayList<SensorSpec>();
+        for (SensorSpec spec : specs) {
+            if (null == mCache.get(spec)) {
+                missing.add(spec);
+            }
+        }
+        result.cached = specs.size() - missing.size();
+        return missing;
+    }
+
+    /**
+     * Ensures all sensors are registered. Returns immediately if the cache is fresh and complete.
+     * Sensors are only registered after the sensor list was fetched, because a sensor that seems
+     * missing from a stale cache may well exist. If the list cannot be fetched, nothing is
+     * registered and the missing sensors are left for the next pass.
+     *
+     * @param specs
+     *            Sensors that should be registered
+     * @param now
+     *            Current time in milliseconds
+     * @return Statistics about the cache hits and registrations
+     * @throws InterruptedException
+     *             If the thread was interrupted while waiting for the registrations
+     */
+    public Result ensureRegistered(List<SensorSpec> specs, long now) throws InterruptedException {
+        Result result = new Result();
+        List<SensorSpec> missing = findMissing(specs, result);
+        if (missing.isEmpty() && !mCache.isStale(now, mMaxAge)) {
+            return result;
+        }
+
+        // one (conditional) request to see which sensors exist already
+        try {
+            result.requests++;
+            validate(now);
+            missing = findMissing(specs, result);
+        } catch (IOException e) {
+            // keep using the cached IDs, and do not register duplicates of sensors that we could
+            // not see: we will validate again next time
+            result.lastError = e;
+            return result;
+        }
+
+        List<Future<String>> futures = new ArrayList<Future<String>>(missing.size());
+        for (final SensorSpec spec : missing) {
+            futures.add(mExecutor.submit(new Callable<String>() {
+
+                @Override
+                public String call() throws IOException {
+                    String id = mClient.registerSensor(spec);
+                    mCache.put(spec, id);
+                    return id;
+                }
+            }));
+        }
+        for (Future<String> future : futures) {
+            result.requests++;
+            try {
+                future.get();
+                result.registered++;
+            } catch (ExecutionException e) {
+                result.failed++;
+                if (e.getCause() instanceof IOException) {
+                    result.lastError = (IOException) e.getCause();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Validates the cache with a conditional request for the sensor list.
+     *
+     * @throws IOException
+     *             If the request failed
+     */
+    public void validate(long now) throws IOException {
+        CommonSenseClient.SensorListing listing = mClient.getSensors(mCache.getETag());
+        if (listing.isNotModified()) {
+            mCache.setValidated(now);
+        } else {
+            mCache.replaceAll(listing.getSensorIds(), listing.getETag(), now);
+        }
+    }
+}
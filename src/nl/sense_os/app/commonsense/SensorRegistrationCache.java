@@ -0,0 +1,95 @@
+package nl.sense_os.app.commonsense;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local map of CommonSense sensor IDs, keyed by sensor name, description and device type. The
+ * cache also remembers the entity tag of the last sensor listing, so it can be validated with a
+ * cheap conditional request instead of downloading the full list again.
+ */
+public class SensorRegistrationCache {
+
+    private static final String KEY_ETAG = "__etag";
+    private static final String KEY_VALIDATED = "__validated";
+
+    private final Map<String, String> mIds = new ConcurrentHashMap<String, String>();
+    private volatile String mETag;
+    private volatile long mLastValidated;
+
+    /**
+     * @return The cached sensor ID, or <code>null</code> if the sensor is not known
+     */
+    public String get(SensorSpec spec) {
+        return mIds.get(spec.getKey());
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public long getLastValidated() {
+        return mLastValidated;
+    }
+
+    /**
+     * @return <code>true</code> if the cache was not validated for longer than <code>maxAge</code>
+     */
+    public boolean isStale(long now, long maxAge) {
+        return now - mLastValidated > maxAge;
+    }
+
+    public void put(SensorSpec spec, String id) {
+        mIds.put(spec.getKey(), id);
+    }
+
+    /**
+     * Replaces the cached IDs with a fresh listing from CommonSense.
+     */
+    public void replaceAll(Map<String, String> ids, String eTag, long now) {
+        mIds.clear();
+        mIds.putAll(ids);
+        mETag = eTag;
+        mLastValidated = now;
+    }
+
+    /**
+     * Restores the cache from a snapshot made with {@link #snapshot()}.
+     */
+    public void restore(Map<String, ?> snapshot) {
+        mIds.clear();
+        for (Map.Entry<String, ?> entry : snapshot.entrySet()) {
+            if (KEY_ETAG.equals(entry.getKey())) {
+                mETag = (String) entry.getValue();
+            } else if (KEY_VALIDATED.equals(entry.getKey())) {
+                mLastValidated = Long.parseLong((String) entry.getValue());
+            } else if (entry.getValue() instanceof String) {
+                mIds.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Marks the cached IDs as up to date, e.g. after a "not modified" response.
+     */
+    public void setValidated(long now) {
+        mLastValidated = now;
+    }
+
+    public int size() {
+        return mIds.size();
+    }
+
+    /**
+     * @return A copy of the cache contents as string pairs, for persisting
+     */
+    public Map<String, String> snapshot() {
+        Map<String, String> snapshot = new HashMap<String, String>(mIds);
+        if (null != mETag) {
+            snapshot.put(KEY_ETAG, mETag);
+        }
+        snapshot.put(KEY_VALIDATED, Long.toString(mLastValidated));
+        return snapshot;
+    }
+}
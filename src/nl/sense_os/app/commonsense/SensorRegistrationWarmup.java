@@ -0,0 +1,184 @@
+package nl.sense_os.app.commonsense;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.commonsense.SenseApi;
+import nl.sense_os.service.constants.SenseDataTypes;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import nl.sense_os.service.constants.SensorData.SensorNames;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.util.Log;
+
+/**
+ * Checks the registrations of the sensors of the active sensing modules at CommonSense in the
+ * background, after login or service start. Sensor IDs are kept in a persistent
+ * {@link SensorRegistrationCache}, so a warm start costs no requests at all, and a cold start
+ * costs one conditional sensor listing plus parallel registrations of the sensors that are still
+ * missing.<br/>
+ * <br/>
+ * The Sense service registers its own sensors when it logs in or starts. Both would see the
+ * sensors of a new account as missing and register them twice, so the warm-up waits
+ * {@link #DELAY} for the service to finish. The registrar fetches the sensor list before it
+ * registers anything, so it only registers the sensors that the service left out, e.g. after a
+ * failed request.
+ */
+public class SensorRegistrationWarmup implements Runnable {
+
+    private static final String TAG = "SensorRegistration";
+    private static final String PREFS = "sensor_registrations";
+    private static final long MAX_AGE = 24L * 60 * 60 * 1000;
+    private static final int THREADS = 4;
+    /** Time for the Sense service to register its sensors before the warm-up registers any */
+    private static final long DELAY = 5L * 60 * 1000;
+    private static final Object sLock = new Object();
+
+    /**
+     * Makes sure the sensors are registered, with the persistent cache of the warm-up. Blocks
+     * until the registrations are done, so call it from a background thread.
+     *
+     * @return The cache with the IDs of the registered sensors, or <code>null</code> if the
+     *         thread was interrupted
+     */
+    public static SensorRegistrationCache register(Context context, CommonSenseClient client,
+            List<SensorSpec> specs) {
+        // only one registration run at a time, a second run will find everything cached
+        synchronized (sLock) {
+            // the development server has other sensor IDs
+            String name = CommonSenseClient.DEV_URL.equals(client.getBaseUrl()) ? PREFS + "_dev"
+                    : PREFS;
+            SharedPreferences prefs = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+            SensorRegistrationCache cache = new SensorRegistrationCache();
+            cache.restore(prefs.getAll());
+
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                SensorRegistrar registrar = new SensorRegistrar(client, cache, executor, MAX_AGE);
+                SensorRegistrar.Result result = registrar.ensureRegistered(specs,
+                        System.currentTimeMillis());
+                Log.v(TAG, "Sensor registration done. " + result);
+                if (null != result.lastError) {
+                    Log.w(TAG, "Sensor registration error: " + result.lastError.getMessage());
+                }
+
+                Editor editor = prefs.edit().clear();
+                for (Map.Entry<String, String> entry : cache.snapshot().entrySet()) {
+                    editor.putString(entry.getKey(), entry.getValue());
+                }
+                editor.commit();
+                return cache;
+
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Sensor registration interrupted");
+                return null;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Starts the sensor registration in a background thread, after {@link #DELAY}.
+     */
+    public static void start(Context context, SenseServiceStub service) {
+        new Thread(new SensorRegistrationWarmup(context.getApplicationContext(), service), TAG)
+                .start();
+    }
+
+    private final Context mContext;
+    private final SenseServiceStub mService;
+
+    private SensorRegistrationWarmup(Context context, SenseServiceStub service) {
+        mContext = context;
+        mService = service;
+    }
+
+    /**
+     * Adds the spec of a hardware sensor, described by the name of the hardware sensor like the
+     * service does. Nothing is added if the phone does not have the sensor.
+     */
+    private void addHardwareSpec(List<SensorSpec> specs, SensorManager sensorMgr, int type,
+            String name, String dataType, String deviceType, String deviceUuid) {
+        Sensor sensor = null != sensorMgr ? sensorMgr.getDefaultSensor(type) : null;
+        if (null != sensor) {
+            specs.add(new SensorSpec(name, sensor.getName(), dataType, deviceType, deviceUuid));
+        }
+    }
+
+    private void addSpecs(List<SensorSpec> specs, String[][] sensors, String deviceType,
+            String deviceUuid) {
+        for (String[] sensor : sensors) {
+            specs.add(new SensorSpec(sensor[0], sensor[0], sensor[1], deviceType, deviceUuid));
+        }
+    }
+
+    /**
+     * @return Specs of the sensors of the active modules, with the device type and UUID that the
+     *         service uses, so phones without IMEI get the same cache keys every time. Motion
+     *         sensors are left out, because the service registers one per hardware sensor.
+     */
+    private List<SensorSpec> getExpectedSensors() {
+        String deviceType = SenseApi.getDefaultDeviceType(mContext);
+        String deviceUuid = SenseApi.getDefaultDeviceUuid(mContext);
+
+        List<SensorSpec> specs = new ArrayList<SensorSpec>();
+        if (mService.getPrefBool(Status.PHONESTATE, false)) {
+            addSpecs(specs, new String[][] {
+                    { SensorNames.BATTERY_SENSOR, SenseDataTypes.JSON },
+                    { SensorNames.CALL_STATE, SenseDataTypes.JSON },
+                    { SensorNames.SCREEN_ACTIVITY, SenseDataTypes.JSON },
+                    { SensorNames.PROXIMITY, SenseDataTypes.FLOAT },
+                    { SensorNames.CONNECTION_TYPE, SenseDataTypes.STRING },
+                    { SensorNames.SERVICE_STATE, SenseDataTypes.JSON },
+                    { SensorNames.SIGNAL_STRENGTH, SenseDataTypes.JSON },
+                    { SensorNames.IP_ADDRESS, SenseDataTypes.STRING },
+                    { SensorNames.UNREAD_MSG, SenseDataTypes.JSON } }, deviceType, deviceUuid);
+        }
+        if (mService.getPrefBool(Status.LOCATION, false)) {
+            addSpecs(specs, new String[][] { { SensorNames.LOCATION, SenseDataTypes.JSON } },
+                    deviceType, deviceUuid);
+        }
+        if (mService.getPrefBool(Status.AMBIENCE, false)) {
+            addSpecs(specs, new String[][] { { SensorNames.NOISE, SenseDataTypes.FLOAT },
+                    { SensorNames.AUDIO_SPECTRUM, SenseDataTypes.JSON } }, deviceType,
+                    deviceUuid);
+            SensorManager sensorMgr = (SensorManager) mContext
+                    .getSystemService(Context.SENSOR_SERVICE);
+            addHardwareSpec(specs, sensorMgr, Sensor.TYPE_LIGHT, SensorNames.LIGHT,
+                    SenseDataTypes.JSON, deviceType, deviceUuid);
+            addHardwareSpec(specs, sensorMgr, Sensor.TYPE_PRESSURE, SensorNames.PRESSURE,
+                    SenseDataTypes.FLOAT, deviceType, deviceUuid);
+            addHardwareSpec(specs, sensorMgr, Sensor.TYPE_MAGNETIC_FIELD,
+                    SensorNames.MAGNETIC_FIELD, SenseDataTypes.JSON, deviceType, deviceUuid);
+        }
+        if (mService.getPrefBool(Status.DEV_PROX, false)) {
+            addSpecs(specs, new String[][] {
+                    { SensorNames.BLUETOOTH_DISCOVERY, SenseDataTypes.JSON },
+                    { SensorNames.WIFI_SCAN, SenseDataTypes.JSON } }, deviceType, deviceUuid);
+        }
+        return specs;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(DELAY);
+        } catch (InterruptedException e) {
+            return;
+        }
+        CommonSenseClient client = SharedSession.getClient(mService);
+        if (null == client) {
+            Log.w(TAG, "Cannot register sensors: not logged in");
+            return;
+        }
+        register(mContext, client, getExpectedSensors());
+    }
+}
@@ -0,0 +1,75 @@
+package nl.sense_os.app.commonsense;
+
+/**
+ * Description of a sensor as it is registered at CommonSense. A sensor is identified by its name,
+ * its description (stored as "device_type" at CommonSense), and the type of the device it belongs
+ * to.
+ */
+public class SensorSpec {
+
+    private final String mName;
+    private final String mDescription;
+    private final String mDataType;
+    private final String mDeviceType;
+    private final String mDeviceUuid;
+
+    /**
+     * @param name
+     *            Sensor name, e.g. "battery sensor"
+     * @param description
+     *            Sensor description, e.g. the name of the hardware sensor
+     * @param dataType
+     *            CommonSense data type: "json", "float", "int", "bool" or "string"
+     * @param deviceType
+     *            Type of the device, usually the phone model
+     * @param deviceUuid
+     *            Unique ID of the device, or <code>null</code> to skip linking to a device
+     */
+    public SensorSpec(String name, String description, String dataType, String deviceType,
+            String deviceUuid) {
+        mName = name;
+        mDescription = null != description ? description : name;
+        mDataType = dataType;
+        mDeviceType = deviceType;
+        mDeviceUuid = deviceUuid;
+    }
+
+    public String getDataType() {
+        return mDataType;
+    }
+
+    public String getDescription() {
+        return mDescription;
+    }
+
+    public String getDeviceType() {
+        return mDeviceType;
+    }
+
+    public String getDeviceUuid() {
+        return mDeviceUuid;
+    }
+
+    /**
+     * @return Key that identifies this sensor in the {@link SensorRegistrationCache}
+     */
+    public String getKey() {
+        return key(mName, mDescription, mDeviceType);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return The cache key for a sensor with the given identifying fields
+     */
+    static String key(String name, String description, String deviceType) {
+        return name + '\u001F' + description + '\u001F' + (null != deviceType ? deviceType : "");
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mDescription + ")";
+    }
+}
@@ -0,0 +1,110 @@
+package nl.sense_os.app.commonsense;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Auth;
+import nl.sense_os.service.constants.SensePrefs.Main.Advanced;
+import android.util.Log;
+
+/**
+ * The {@link CommonSenseClient} that the app uses for its own requests, logged in with the
+ * account of the Sense service. The client has a {@link CommonSenseSession}, so the requests do
+ * not wait for a login while the session is renewed in the background. The renewals stop when
+ * the user logs out or logs in with another account.<br/>
+ * <br/>
+ * Like the Sense service, the client talks to the development server when the developer mode is
+ * on, see {@link #getBaseUrl(SenseServiceStub)}. Switching the developer mode starts a new
+ * session.
+ */
+public class SharedSession {
+
+    private static final String TAG = "SharedSession";
+    /** CommonSense sessions lapse after a while without requests, trust them for 30 minutes */
+    private static final long LIFETIME = 30L * 60 * 1000;
+    private static final long MARGIN = 5L * 60 * 1000;
+    private static ScheduledExecutorService sScheduler;
+    private static CommonSenseClient sClient;
+    private static CommonSenseSession sSession;
+    private static String sAccount;
+
+    /**
+     * @return The client with the login of the service, or <code>null</code> if the service is
+     *         not logged in
+     */
+    public static synchronized CommonSenseClient getClient(SenseServiceStub service) {
+        String username = service.getPrefString(Auth.LOGIN_USERNAME, null);
+        String passwordHash = service.getPrefString(Auth.LOGIN_PASS, null);
+        if (null == username || null == passwordHash) {
+            close();
+            return getCookieClient(service);
+        }
+
+        String baseUrl = getBaseUrl(service);
+        String account = baseUrl + '\u001F' + username + '\u001F' + passwordHash;
+        if (null == sSession || !account.equals(sAccount)) {
+            close();
+            if (null == sScheduler) {
+                sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            sClient = new CommonSenseClient(baseUrl);
+            sSession = new CommonSenseSession(sClient, username, passwordHash, LIFETIME, MARGIN,
+                    sScheduler);
+            sAccount = account;
+            Log.v(TAG, "New session for " + username + " at " + baseUrl);
+        }
+        return sClient;
+    }
+
+    /**
+     * Stops the renewals of the session, e.g. after a logout.
+     */
+    public static synchronized void close() {
+        if (null != sSession) {
+            sSession.close();
+            sSession = null;
+            sClient = null;
+            sAccount = null;
+        }
+    }
+
+    /**
+     * @return The server that the Sense service uses: the development server in developer mode,
+     *         the production server otherwise
+     */
+    public static String getBaseUrl(SenseServiceStub service) {
+        return service.getPrefBool(Advanced.DEV_MODE, false) ? CommonSenseClient.DEV_URL
+                : CommonSenseClient.DEFAULT_URL;
+    }
+
+    /**
+     * @return A client with the session cookie of the service, for a service that does not keep
+     *         the password hash, or <code>null</code> if it is not logged in
+     */
+    private static CommonSenseClient getCookieClient(SenseServiceStub service) {
+        String cookie = service.getPrefString(Auth.LOGIN_COOKIE, null);
+        if (null != cookie && cookie.startsWith("session_id=")) {
+            cookie = cookie.substring("session_id=".length());
+        }
+        if (null == cookie) {
+            return null;
+        }
+        CommonSenseClient client = new CommonSenseClient(getBaseUrl(service));
+        client.setSessionId(cookie);
+        return client;
+    }
+
+    private SharedSession() {
+        // class should not be instantiated
+    }
+}
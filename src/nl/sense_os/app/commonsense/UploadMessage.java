@@ -0,0 +1,122 @@
+package nl.sense_os.app.commonsense;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds the body of a CommonSense data upload for several sensors, in the format of the
+ * <code>/sensors/data</code> call:
+ *
+ * <pre>
+ * {"sensors":[{"sensor_id":"123","data":[{"value":21.5,"date":1384250000.123},...]},...]}
+ * </pre>
+ *
+ * Numeric values are written as numbers, other values as JSON strings. The data points of each
+ * sensor are collected in their own buffer, which is kept after {@link #clear()}, so building a
+ * message per sync interval does not allocate much once the buffers have grown. Not thread-safe.
+ */
+public class UploadMessage {
+
+    private final Map<String, StringBuilder> mData = new HashMap<String, StringBuilder>();
+    private final List<String> mSensorIds = new ArrayList<String>();
+    private final StringBuilder mBody = new StringBuilder();
+    private int mCount;
+
+    /**
+     * Adds a data point.
+     *
+     * @param sensorId
+     *            ID of the sensor at CommonSense
+     * @param dataType
+     *            CommonSense data type, e.g. "json" or "float"
+     * @param value
+     *            The value, as string
+     * @param timestamp
+     *            Timestamp in milliseconds
+     */
+    public void add(String sensorId, String dataType, String value, long timestamp) {
+        StringBuilder data = mData.get(sensorId);
+        if (null == data) {
+            data = new StringBuilder();
+            mData.put(sensorId, data);
+        }
+        if (data.length() == 0) {
+            mSensorIds.add(sensorId);
+        } else {
+            data.append(',');
+        }
+        data.append("{\"value\":");
+        if ("float".equals(dataType) || "int".equals(dataType)) {
+            data.append(value);
+        } else {
+            Json.appendQuoted(data, value);
+        }
+        long millis = timestamp % 1000;
+        data.append(",\"date\":").append(timestamp / 1000).append('.');
+        if (millis < 100) {
+            data.append(millis < 10 ? "00" : "0");
+        }
+        data.append(millis).append('}');
+        mCount++;
+    }
+
+    /**
+     * Removes all data points, and keeps the buffers.
+     */
+    public void clear() {
+        for (String sensorId : mSensorIds) {
+            mData.get(sensorId).setLength(0);
+        }
+        mSensorIds.clear();
+        mBody.setLength(0);
+        mCount = 0;
+    }
+
+    /**
+     * @return The number of data points in the message
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The JSON body, in a buffer of the message that is reused after {@link #clear()}
+     */
+    public CharSequence toJson() {
+        mBody.setLength(0);
+        mBody.append("{\"sensors\":[");
+        for (int i = 0; i < mSensorIds.size(); i++) {
+            if (i > 0) {
+                mBody.append(',');
+            }
+            String sensorId = mSensorIds.get(i);
+            mBody.append("{\"sensor_id\":");
+            Json.appendQuoted(mBody, sensorId);
+            mBody.append(",\"data\":[").append(mData.get(sensorId)).append("]}");
+        }
+        return mBody.append("]}");
+    }
+
+    /**
+     * Writes the JSON body as UTF-8, gzipped if the upload is compressed (see
+     * {@link nl.sense_os.service.constants.SensePrefs.Main.Advanced#COMPRESS}), and closes the
+     * stream.
+     */
+    public void writeTo(OutputStream out, boolean compress) throws IOException {
+        Writer writer = new OutputStreamWriter(compress ? new GZIPOutputStream(out, 8192) : out,
+                "UTF-8");
+        try {
+            writer.append(toJson());
+        } finally {
+            // also releases the deflater
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package nl.sense_os.app.constants;
+
+/**
+ * Keys of the preferences that are specific to the Sense app. Like the keys in
+ * {@link nl.sense_os.service.constants.SensePrefs.Main}, they are stored in the main preferences
+ * of the Sense Platform (see {@link nl.sense_os.service.constants.SensePrefs#MAIN_PREFS}), so
+ * the settings screen synchronizes them with the service as usual.
+ */
+public class AppPrefs {
+
+    /**
+     * Ambience sensing preferences.
+     */
+    public static class Ambience {
+
+        /**
+         * Key for preference to measure the light level with the camera preview in the app.
+         * Replaces the camera light sensor of the Sense service.
+         */
+        public static final String CAMERA_LIGHT_METER = "ambience_camera_light_meter";
+
+        /**
+         * Key for preference to compute the audio spectrum with the spectrum engine of the app.
+         * Replaces the audio spectrum sensor of the Sense service.
+         */
+        public static final String SPECTRUM_ENGINE = "ambience_spectrum_engine";
+    }
+
+    /**
+     * Burst-mode preferences.
+     */
+    public static class Burst {
+
+        /**
+         * Key for preference to upload summaries and compact bursts instead of the bursts that
+         * the Sense Platform keeps in the local storage when {@link #DONT_UPLOAD} is set. Off by
+         * default.
+         */
+        public static final String COMPACT = "compact_bursts";
+
+        /**
+         * Key for the Sense Platform preference to keep burst-mode data in the local storage
+         * instead of uploading it.
+         */
+        public static final String DONT_UPLOAD = "dont upload bursts";
+
+        /**
+         * Key for preference with the contents of the burst summary: "stats", "crossings" (stats
+         * and zero-crossings) or "spectrum" (stats, zero-crossings and spectrum peaks).
+         */
+        public static final String SUMMARY = "burst_summary";
+
+        /**
+         * Key for preference with the upload mode on Wi-Fi. See
+         * {@link nl.sense_os.app.burst.BurstUploadPolicy} for the values.
+         */
+        public static final String UPLOAD_WIFI = "burst_upload_wifi";
+
+        /**
+         * Key for preference with the upload mode on mobile networks.
+         */
+        public static final String UPLOAD_MOBILE = "burst_upload_mobile";
+    }
+
+    /**
+     * Neighboring devices preferences.
+     */
+    public static class DevProx {
+
+        /**
+         * Key for preference to scan for Bluetooth devices and Wi-Fi access points in the app, and
+         * to report only the changes between scans. Replaces the scans of the Sense service.
+         */
+        public static final String DELTA = "proximity_delta";
+    }
+
+    /**
+     * External sensor preferences.
+     */
+    public static class External {
+
+        /**
+         * Key for preference to let the Zephyr BioHarness log on its own and download the log
+         * every few hours, instead of streaming live data. Replaces the BioHarness sensor of the
+         * Sense service.
+         */
+        public static final String BIOHARNESS_LOG = "zephyrBioHarness_log";
+
+        /**
+         * Key for preference to poll the OBD-II dongle in the app, with multi-PID requests,
+         * requests in flight where the dongle allows it, and an interval per PID that adapts to
+         * how fast the value changes. Replaces the OBD-II sensor of the Sense service.
+         */
+        public static final String OBD2_PIPELINED = "obd2sensor_pipelined";
+    }
+
+    /**
+     * Location sensing preferences.
+     */
+    public static class Location {
+
+        /**
+         * Key for preference to sample the location in the app, with an adaptive strategy that
+         * skips fixes or uses the network provider when the phone does not move. Replaces the
+         * location providers of the Sense service.
+         */
+        public static final String ADAPTIVE = "location_adaptive";
+    }
+
+    /**
+     * Motion sensing preferences.
+     */
+    public static class Motion {
+
+        /**
+         * Key for preference to compute motion features on the phone and upload only the
+         * features, instead of the raw accelerometer, gyroscope and linear acceleration data.
+         */
+        public static final String FEATURES_ONLY = "motion_features_only";
+
+        /**
+         * Key for preference to detect falls in the app, at a fixed rate that is independent of
+         * the sample rate. Replaces the fall detector of the Sense service.
+         */
+        public static final String FALL_ENGINE = "motion_fall_engine";
+    }
+
+    /**
+     * Phone state preferences.
+     */
+    public static class PhoneState {
+
+        /**
+         * Key for preference with the coalescing window for phone state events in milliseconds,
+         * or "0" to let the Sense service record every event. When it is set, the app listens to
+         * the call state, data connection, service state and signal strength instead.
+         */
+        public static final String COALESCE = "phonestate_coalesce";
+    }
+
+    /**
+     * Sample rate overrides per sensing module. The value is a sample rate like the value of
+     * {@link nl.sense_os.service.constants.SensePrefs.Main#SAMPLE_RATE} (-2 to 1), or
+     * {@link #GLOBAL} to use the general sample rate. See
+     * {@link nl.sense_os.app.scheduler.SampleIntervals} for the intervals of each module.
+     */
+    public static class SampleRate {
+
+        /**
+         * Value of an override that follows the general sample rate.
+         */
+        public static final String GLOBAL = "global";
+
+        public static final String AMBIENCE = "sample_rate_ambience";
+        public static final String DEV_PROX = "sample_rate_devprox";
+        public static final String EXTERNAL = "sample_rate_external";
+        public static final String LOCATION = "sample_rate_location";
+        public static final String MOTION = "sample_rate_motion";
+    }
+
+    /**
+     * Sensor trace preferences.
+     */
+    public static class Trace {
+
+        /**
+         * Key for preference to record every sample that enters the MsgHandler to a trace file,
+         * for replays of the data pipeline on a desktop JVM. See
+         * {@link nl.sense_os.app.trace.TraceRecorder}.
+         */
+        public static final String RECORD = "trace_record";
+    }
+
+    private AppPrefs() {
+        // class should not be instantiated
+    }
+}
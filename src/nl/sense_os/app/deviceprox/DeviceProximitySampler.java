@@ -0,0 +1,266 @@
+package nl.sense_os.app.deviceprox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.commonsense.Json;
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.AccountedWakeLock;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.scheduler.SampleRates;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Scans for Bluetooth devices and Wi-Fi access points, and sends only the changes between scans
+ * (see {@link SeenDeviceCache}) as "bluetooth_discovery delta" and "wifi scan delta" data points.
+ * A full snapshot is sent every hour. Used when the user enabled the delta reporting of the
+ * neighboring devices module; the scans of the Sense service are switched off then, see
+ * {@link nl.sense_os.app.SenseSettings}.<br/>
+ * <br/>
+ * The devices that were seen but not reported are counted per sensor in the
+ * <code>"deviceprox/suppressed/..."</code> metrics.
+ */
+public class DeviceProximitySampler {
+
+    private static final long SCAN_TIMEOUT = 20 * 1000L;
+    private static final long MIN_TTL = 3 * 60 * 1000L;
+    private static final int RSSI_DELTA = 10;
+    private static final long SNAPSHOT_INTERVAL = 60 * 60 * 1000L;
+    private static final String JOB = "device proximity";
+    private static final String TAG = "DeviceProximitySampler";
+    private static final MetricsRegistry.Family SUPPRESSED = MetricsRegistry.getInstance().family(
+            "deviceprox/suppressed/");
+    private static DeviceProximitySampler sInstance;
+
+    public static synchronized DeviceProximitySampler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new DeviceProximitySampler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or stops scanning, depending on the status of the neighboring devices module and the
+     * {@link AppPrefs.DevProx#DELTA} preference. The scan interval follows the sample rate of the
+     * module.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.DEV_PROX, false)
+                && service.getPrefBool(AppPrefs.DevProx.DELTA, false);
+        int rate = SampleRates.getRate(service, SampleIntervals.DEV_PROX);
+        long interval = SampleIntervals.getInterval(SampleIntervals.DEV_PROX, rate);
+        getInstance(context).setActive(active, interval);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AccountedWakeLock mWakeLock;
+    private long mInterval;
+    private SeenDeviceCache mBluetoothCache;
+    private SeenDeviceCache mWifiCache;
+    private List<SeenDeviceCache.Device> mBluetoothScan;
+    private boolean mScanningBluetooth;
+    private boolean mScanningWifi;
+
+    private final BroadcastReceiver mBluetoothReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (BluetoothDevice.ACTION_FOUND.equals(intent.getAction())) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) 0);
+                onBluetoothDevice(device, rssi);
+            } else {
+                onBluetoothFinished();
+            }
+        }
+    };
+
+    private final BroadcastReceiver mWifiReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onWifiResults();
+        }
+    };
+
+    private final Runnable mTimeout = new Runnable() {
+
+        @Override
+        public void run() {
+            Log.w(TAG, "Scan timeout");
+            onBluetoothFinished();
+            onWifiResults();
+        }
+    };
+
+    private DeviceProximitySampler(Context context) {
+        mContext = context;
+        mWakeLock = new AccountedWakeLock(context, TAG, EnergyLedger.DEV_PROX);
+    }
+
+    /**
+     * Sends the changes of a scan, if there are any.
+     */
+    private void report(SeenDeviceCache cache, List<SeenDeviceCache.Device> scan, String sensor,
+            String description, String idField) {
+        SeenDeviceCache.Delta delta = cache.update(System.currentTimeMillis(), scan);
+        SUPPRESSED.counter(sensor).add(delta.suppressed);
+        Log.v(TAG, sensor + ": " + delta.appeared.size() + " appeared, "
+                + delta.disappeared.size() + " disappeared, " + delta.changed.size()
+                + " changed, " + delta.suppressed + " suppressed (total " + cache.getSuppressed()
+                + " suppressed, " + cache.getReported() + " reported)");
+        if (!delta.isEmpty()) {
+            DataPoints.send(mContext, sensor, description, "json", delta.toJson(idField),
+                    System.currentTimeMillis());
+        }
+    }
+
+    private synchronized void onBluetoothDevice(BluetoothDevice device, short rssi) {
+        if (!mScanningBluetooth || null == device) {
+            return;
+        }
+        StringBuilder info = new StringBuilder("\"name\":");
+        Json.appendQuoted(info, null == device.getName() ? "" : device.getName());
+        mBluetoothScan.add(new SeenDeviceCache.Device(device.getAddress(), rssi, info
+                .toString()));
+    }
+
+    private synchronized void onBluetoothFinished() {
+        if (!mScanningBluetooth) {
+            return;
+        }
+        mScanningBluetooth = false;
+        mContext.unregisterReceiver(mBluetoothReceiver);
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (null != adapter) {
+            adapter.cancelDiscovery();
+        }
+        report(mBluetoothCache, mBluetoothScan, "bluetooth_discovery delta",
+                "bluetooth scan changes", "address");
+        mBluetoothScan = null;
+        onScanFinished();
+    }
+
+    private void onScanFinished() {
+        if (!mScanningBluetooth && !mScanningWifi) {
+            mHandler.removeCallbacks(mTimeout);
+            EnergyLedger.getInstance().setOn(EnergyLedger.DEV_PROX, EnergyLedger.SENSOR, false,
+                    System.currentTimeMillis());
+            if (mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+        }
+    }
+
+    private synchronized void onWifiResults() {
+        if (!mScanningWifi) {
+            return;
+        }
+        mScanningWifi = false;
+        mContext.unregisterReceiver(mWifiReceiver);
+        WifiManager wifiMgr = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+        List<ScanResult> results = wifiMgr.getScanResults();
+        List<SeenDeviceCache.Device> scan = new ArrayList<SeenDeviceCache.Device>();
+        if (null != results) {
+            for (ScanResult result : results) {
+                StringBuilder info = new StringBuilder("\"ssid\":");
+                Json.appendQuoted(info, result.SSID);
+                info.append(",\"frequency\":").append(result.frequency);
+                scan.add(new SeenDeviceCache.Device(result.BSSID, result.level, info.toString()));
+            }
+        }
+        report(mWifiCache, scan, "wifi scan delta", "wifi scan changes", "bssid");
+        onScanFinished();
+    }
+
+    /**
+     * Schedules or cancels the scans. Changing the interval starts with a new snapshot.
+     *
+     * @param active
+     *            <code>true</code> to start scanning
+     * @param interval
+     *            Scan interval in milliseconds
+     */
+    public synchronized void setActive(boolean active, long interval) {
+        boolean scheduled = mInterval > 0;
+        if (active == scheduled && (!active || interval == mInterval)) {
+            return;
+        }
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(mContext);
+        scheduler.cancel(JOB);
+        onBluetoothFinished();
+        onWifiResults();
+        mInterval = active ? interval : 0;
+        if (active) {
+            // a device disappears when it was missed by a few scans
+            long ttl = Math.max(MIN_TTL, 3 * interval);
+            mBluetoothCache = new SeenDeviceCache(ttl, RSSI_DELTA, SNAPSHOT_INTERVAL);
+            mWifiCache = new SeenDeviceCache(ttl, RSSI_DELTA, SNAPSHOT_INTERVAL);
+            scheduler.schedule(JOB, EnergyLedger.DEV_PROX, interval, interval / 10, new Runnable() {
+
+                @Override
+                public void run() {
+                    startScan();
+                }
+            });
+        }
+        Log.v(TAG, "Device proximity deltas " + (active ? "started" : "stopped"));
+    }
+
+    /**
+     * Starts a Bluetooth discovery and a Wi-Fi scan. The results are reported when both are
+     * finished, or after a timeout.
+     */
+    private synchronized void startScan() {
+        if (mScanningBluetooth || mScanningWifi) {
+            // still busy with the previous scan
+            return;
+        }
+        mWakeLock.acquire(SCAN_TIMEOUT + 1000);
+
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (null != adapter && adapter.isEnabled()) {
+            IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+            filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+            mContext.registerReceiver(mBluetoothReceiver, filter);
+            mBluetoothScan = new ArrayList<SeenDeviceCache.Device>();
+            mScanningBluetooth = true;
+            adapter.startDiscovery();
+        }
+
+        WifiManager wifiMgr = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+        if (wifiMgr.isWifiEnabled()) {
+            mContext.registerReceiver(mWifiReceiver, new IntentFilter(
+                    WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+            mScanningWifi = true;
+            wifiMgr.startScan();
+        }
+
+        if (mScanningBluetooth || mScanningWifi) {
+            EnergyLedger.getInstance().setOn(EnergyLedger.DEV_PROX, EnergyLedger.SENSOR, true,
+                    System.currentTimeMillis());
+            mHandler.postDelayed(mTimeout, SCAN_TIMEOUT);
+        } else {
+            Log.v(TAG, "Bluetooth and Wi-Fi are off");
+            mWakeLock.release();
+        }
+    }
+}
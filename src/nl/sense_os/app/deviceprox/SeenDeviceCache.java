@@ -0,0 +1,231 @@
+package nl.sense_os.app.deviceprox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.sense_os.app.commonsense.Json;
+
+/**
+ * Cache of the devices that were seen in proximity scans (Bluetooth devices or Wi-Fi access
+ * points). For each scan it reports only the changes since the previous scans:
+ * <ul>
+ * <li>devices that appeared</li>
+ * <li>devices that disappeared: not seen for longer than the time-to-live, so a device that is
+ * missed by one scan does not disappear and appear again</li>
+ * <li>devices with a significant change of the signal strength</li>
+ * </ul>
+ * Now and then the scan is reported as a full snapshot of all devices instead, so the receiver
+ * can resynchronize. Devices that were seen but not reported are counted as suppressed.<br/>
+ * <br/>
+ * Times are in milliseconds. Not thread-safe.
+ */
+public class SeenDeviceCache {
+
+    /**
+     * A device in a scan.
+     */
+    public static class Device {
+        final String id;
+        final int rssi;
+        final String info;
+        long lastSeen;
+        int reportedRssi;
+
+        /**
+         * @param id
+         *            Unique ID of the device, e.g. the Bluetooth address or the BSSID
+         * @param rssi
+         *            Signal strength in dBm
+         * @param info
+         *            Extra fields for the JSON value of the device, e.g.
+         *            <code>"name":"phone"</code>, or <code>null</code>
+         */
+        public Device(String id, int rssi, String info) {
+            this.id = id;
+            this.rssi = rssi;
+            this.info = info;
+        }
+
+        void appendJson(StringBuilder sb, String idField) {
+            sb.append('{');
+            Json.appendQuoted(sb, idField);
+            sb.append(':');
+            Json.appendQuoted(sb, id);
+            sb.append(",\"rssi\":").append(rssi);
+            if (null != info && info.length() > 0) {
+                sb.append(',').append(info);
+            }
+            sb.append('}');
+        }
+    }
+
+    /**
+     * Changes of one scan.
+     */
+    public static class Delta {
+        public final boolean snapshot;
+        public final List<Device> appeared = new ArrayList<Device>();
+        public final List<String> disappeared = new ArrayList<String>();
+        public final List<Device> changed = new ArrayList<Device>();
+        public int suppressed;
+
+        Delta(boolean snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @return <code>true</code> if there is nothing to report
+         */
+        public boolean isEmpty() {
+            return !snapshot && appeared.isEmpty() && disappeared.isEmpty() && changed.isEmpty();
+        }
+
+        /**
+         * Formats the changes as JSON value for a data point. In a snapshot, all devices are in
+         * the "appeared" list.
+         *
+         * @param idField
+         *            Name of the ID field of the devices, e.g. "address" or "bssid"
+         */
+        public String toJson(String idField) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"snapshot\":").append(snapshot).append(",\"appeared\":[");
+            for (int i = 0; i < appeared.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appeared.get(i).appendJson(sb, idField);
+            }
+            sb.append("],\"disappeared\":[");
+            for (int i = 0; i < disappeared.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                Json.appendQuoted(sb, disappeared.get(i));
+            }
+            sb.append("],\"changed\":[");
+            for (int i = 0; i < changed.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                Device device = changed.get(i);
+                sb.append('{');
+                Json.appendQuoted(sb, idField);
+                sb.append(':');
+                Json.appendQuoted(sb, device.id);
+                sb.append(",\"rssi\":").append(device.rssi).append('}');
+            }
+            sb.append("]}");
+            return sb.toString();
+        }
+    }
+
+    private final Map<String, Device> mDevices = new LinkedHashMap<String, Device>();
+    private final long mTtl;
+    private final int mRssiDelta;
+    private final long mSnapshotInterval;
+    private long mLastSnapshot = Long.MIN_VALUE;
+    private long mReported;
+    private long mSuppressed;
+
+    /**
+     * @param ttl
+     *            Time in ms after which a device that is not seen anymore disappears
+     * @param rssiDelta
+     *            Minimum change of the signal strength in dB to report
+     * @param snapshotInterval
+     *            Time in ms between full snapshots
+     */
+    public SeenDeviceCache(long ttl, int rssiDelta, long snapshotInterval) {
+        mTtl = ttl;
+        mRssiDelta = rssiDelta;
+        mSnapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * @return The number of devices in the cache
+     */
+    public int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * @return The total number of reported devices, in appearances, disappearances, changes and
+     *         snapshots
+     */
+    public long getReported() {
+        return mReported;
+    }
+
+    /**
+     * @return The total number of seen devices that were not reported
+     */
+    public long getSuppressed() {
+        return mSuppressed;
+    }
+
+    /**
+     * Handles the results of a scan.
+     *
+     * @param time
+     *            Time of the scan
+     * @param scan
+     *            Devices that were found, a device may be in the list more than once
+     * @return The changes to report
+     */
+    public Delta update(long time, List<Device> scan) {
+        boolean snapshot = mLastSnapshot == Long.MIN_VALUE
+                || time - mLastSnapshot >= mSnapshotInterval;
+        Delta delta = new Delta(snapshot);
+
+        for (Device device : scan) {
+            Device known = mDevices.get(device.id);
+            device.lastSeen = time;
+            if (null == known) {
+                device.reportedRssi = device.rssi;
+                mDevices.put(device.id, device);
+                if (!snapshot) {
+                    delta.appeared.add(device);
+                }
+            } else if (known.lastSeen == time) {
+                // seen twice in the same scan
+                continue;
+            } else if (Math.abs(device.rssi - known.reportedRssi) >= mRssiDelta) {
+                device.reportedRssi = device.rssi;
+                mDevices.put(device.id, device);
+                if (!snapshot) {
+                    delta.changed.add(device);
+                }
+            } else {
+                device.reportedRssi = known.reportedRssi;
+                mDevices.put(device.id, device);
+                if (!snapshot) {
+                    delta.suppressed++;
+                }
+            }
+        }
+
+        for (Iterator<Device> it = mDevices.values().iterator(); it.hasNext();) {
+            Device device = it.next();
+            if (time - device.lastSeen > mTtl) {
+                it.remove();
+                if (!snapshot) {
+                    delta.disappeared.add(device.id);
+                }
+            } else if (snapshot) {
+                device.reportedRssi = device.rssi;
+                delta.appeared.add(device);
+            }
+        }
+
+        if (snapshot) {
+            mLastSnapshot = time;
+        }
+        mReported += delta.appeared.size() + delta.disappeared.size() + delta.changed.size();
+        mSuppressed += delta.suppressed;
+        return delta;
+    }
+}
@@ -1,6 +1,8 @@
 package nl.sense_os.app.dialogs;
 
 import nl.sense_os.app.R;
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.scheduler.SampleIntervals;
 import nl.sense_os.service.constants.SensePrefs;
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -11,14 +13,41 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
 
+/**
+ * Dialog to select the general sample rate, or the sample rate of one sensing module when the
+ * {@link #ARG_MODULE} argument is set.
+ */
 public class SampleRateDialog extends DialogFragment {
 
     public interface Listener {
         public abstract void onSampleRateChanged(String rate);
+
+        /**
+         * @param module
+         *            Module, e.g. {@link SampleIntervals#MOTION}
+         * @param rate
+         *            New sample rate of the module, or {@link AppPrefs.SampleRate#GLOBAL}
+         */
+        public abstract void onModuleSampleRateChanged(int module, String rate);
     }
 
+    /**
+     * Argument with the module to select the sample rate for, e.g. {@link SampleIntervals#MOTION}
+     */
+    public static final String ARG_MODULE = "module";
     protected static final String TAG = "SampleRateDialog";
 
+    /**
+     * Creates a dialog to select the sample rate of one module.
+     */
+    public static SampleRateDialog create(int module) {
+        Bundle args = new Bundle();
+        args.putInt(ARG_MODULE, module);
+        SampleRateDialog dialog = new SampleRateDialog();
+        dialog.setArguments(args);
+        return dialog;
+    }
+
     // Use this instance of the interface to deliver action events
     private Listener mListener;
     private String mRate;
@@ -37,8 +66,51 @@ public class SampleRateDialog extends DialogFragment {
         }
     }
 
+    /**
+     * Creates the dialog for the override of a module, with the general sample rate as extra
+     * option.
+     */
+    private Dialog createModuleDialog(final int module) {
+        SharedPreferences prefs = getActivity().getSharedPreferences(SensePrefs.MAIN_PREFS,
+                Context.MODE_PRIVATE);
+        mRate = prefs.getString(SampleIntervals.getRateKey(module), AppPrefs.SampleRate.GLOBAL);
+        final String[] values = getResources().getStringArray(R.array.module_sample_rate_values);
+        int rateIndex = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(mRate)) {
+                rateIndex = i;
+            }
+        }
+        String name = getResources().getStringArray(R.array.sample_rate_modules)[module];
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle(getString(R.string.dialog_module_sample_title, name));
+        builder.setSingleChoiceItems(R.array.module_sample_rate_items, rateIndex,
+                new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mRate = values[which];
+                    }
+                });
+        builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                mListener.onModuleSampleRateChanged(module, mRate);
+            }
+        });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        return builder.create();
+    }
+
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
+        Bundle args = getArguments();
+        if (null != args && args.containsKey(ARG_MODULE)) {
+            return createModuleDialog(args.getInt(ARG_MODULE));
+        }
+
         // read the current preference
         SharedPreferences prefs = getActivity().getSharedPreferences(SensePrefs.MAIN_PREFS,
                 Context.MODE_PRIVATE);
@@ -0,0 +1,89 @@
+package nl.sense_os.app.energy;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+
+/**
+ * Partial wake lock that charges its hold time to a module in the {@link EnergyLedger}. Not
+ * reference counted, like the wake locks of the samplers. A lock that expires after its timeout
+ * is charged up to the timeout, the next time it is checked, acquired or released.
+ */
+public class AccountedWakeLock {
+
+    private final WakeLock mWakeLock;
+    private final int mModule;
+    private long mAcquired = -1;
+    private long mTimeout;
+
+    /**
+     * @param module
+     *            Module to charge, e.g. {@link EnergyLedger#LOCATION}
+     */
+    public AccountedWakeLock(Context context, String tag, int module) {
+        PowerManager powerMgr = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerMgr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+        mWakeLock.setReferenceCounted(false);
+        mModule = module;
+    }
+
+    /**
+     * Acquires the lock until it is released.
+     */
+    public synchronized void acquire() {
+        acquire(0);
+    }
+
+    /**
+     * Acquires the lock, or extends it if it is held.
+     *
+     * @param timeout
+     *            Time in milliseconds after which the lock is released, or 0 for no timeout
+     */
+    public synchronized void acquire(long timeout) {
+        charge(SystemClock.elapsedRealtime());
+        if (timeout > 0) {
+            mWakeLock.acquire(timeout);
+        } else {
+            mWakeLock.acquire();
+        }
+        mAcquired = SystemClock.elapsedRealtime();
+        mTimeout = timeout;
+    }
+
+    /**
+     * Charges the time since the lock was acquired, or since the previous charge.
+     */
+    private void charge(long now) {
+        if (mAcquired < 0) {
+            return;
+        }
+        long held = now - mAcquired;
+        if (mTimeout > 0 && held >= mTimeout) {
+            // expired
+            EnergyLedger.getInstance().add(mModule, EnergyLedger.WAKE_LOCK, mTimeout);
+            mAcquired = -1;
+        } else {
+            EnergyLedger.getInstance().add(mModule, EnergyLedger.WAKE_LOCK, held);
+            mAcquired = now;
+            mTimeout = mTimeout > 0 ? mTimeout - held : 0;
+        }
+    }
+
+    public synchronized boolean isHeld() {
+        charge(SystemClock.elapsedRealtime());
+        return mWakeLock.isHeld();
+    }
+
+    /**
+     * Releases the lock if it is held.
+     */
+    public synchronized void release() {
+        charge(SystemClock.elapsedRealtime());
+        mAcquired = -1;
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package nl.sense_os.app.energy;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Compact table with the hourly totals of the {@link EnergyLedger}: one row per hour and module
+ * that used anything, with a column per resource. Hours are counted since the epoch. Rows older
+ * than a week are removed.
+ */
+public class EnergyDatabase extends SQLiteOpenHelper {
+
+    private static final String NAME = "energy.db";
+    private static final int VERSION = 1;
+    private static final String TABLE = "energy";
+    private static final String HOUR = "hour";
+    private static final String MODULE = "module";
+    /**
+     * Columns of the resources, in the order of the resource constants of the
+     * {@link EnergyLedger}.
+     */
+    private static final String[] RESOURCES = { "wake_lock", "wakeups", "sensor", "gps", "radio",
+            "cpu" };
+    private static final long KEEP_HOURS = 7 * 24;
+
+    public EnergyDatabase(Context context) {
+        super(context, NAME, null, VERSION);
+    }
+
+    /**
+     * Adds amounts to the totals of an hour, and removes the rows that are older than a week.
+     *
+     * @param hour
+     *            Hours since the epoch
+     * @param amounts
+     *            Amounts by <code>module * RESOURCE_COUNT + resource</code>, as drained from the
+     *            ledger
+     */
+    public void add(long hour, long[] amounts) {
+        StringBuilder update = new StringBuilder("UPDATE " + TABLE + " SET ");
+        for (int r = 0; r < RESOURCES.length; r++) {
+            update.append(r > 0 ? ", " : "").append(RESOURCES[r]).append(" = ")
+                    .append(RESOURCES[r]).append(" + ?");
+        }
+        update.append(" WHERE " + HOUR + " = ? AND " + MODULE + " = ?");
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int m = 0; m < EnergyLedger.MODULE_COUNT; m++) {
+                Object[] args = new Object[RESOURCES.length + 2];
+                boolean used = false;
+                for (int r = 0; r < RESOURCES.length; r++) {
+                    long amount = amounts[m * EnergyLedger.RESOURCE_COUNT + r];
+                    args[r] = amount;
+                    used |= amount != 0;
+                }
+                if (!used) {
+                    continue;
+                }
+                args[RESOURCES.length] = hour;
+                args[RESOURCES.length + 1] = m;
+                db.execSQL("INSERT OR IGNORE INTO " + TABLE + " (" + HOUR + ", " + MODULE
+                        + ") VALUES (?, ?)", new Object[] { hour, m });
+                db.execSQL(update.toString(), args);
+            }
+            db.delete(TABLE, HOUR + " < ?", new String[] { Long.toString(hour - KEEP_HOURS) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        StringBuilder create = new StringBuilder("CREATE TABLE " + TABLE + " (" + HOUR
+                + " INTEGER NOT NULL, " + MODULE + " INTEGER NOT NULL");
+        for (String resource : RESOURCES) {
+            create.append(", ").append(resource).append(" INTEGER NOT NULL DEFAULT 0");
+        }
+        create.append(", PRIMARY KEY (" + HOUR + ", " + MODULE + "))");
+        db.execSQL(create.toString());
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * @param since
+     *            First hour to count, in hours since the epoch
+     * @return The totals since the hour, by <code>module * RESOURCE_COUNT + resource</code>
+     */
+    public long[] sum(long since) {
+        StringBuilder query = new StringBuilder("SELECT " + MODULE);
+        for (String resource : RESOURCES) {
+            query.append(", SUM(").append(resource).append(')');
+        }
+        query.append(" FROM " + TABLE + " WHERE " + HOUR + " >= ? GROUP BY " + MODULE);
+
+        long[] totals = new long[EnergyLedger.MODULE_COUNT * EnergyLedger.RESOURCE_COUNT];
+        Cursor cursor = getReadableDatabase().rawQuery(query.toString(),
+                new String[] { Long.toString(since) });
+        try {
+            while (cursor.moveToNext()) {
+                int module = cursor.getInt(0);
+                if (module < 0 || module >= EnergyLedger.MODULE_COUNT) {
+                    continue;
+                }
+                for (int r = 0; r < RESOURCES.length; r++) {
+                    totals[module * EnergyLedger.RESOURCE_COUNT + r] = cursor.getLong(r + 1);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,128 @@
+package nl.sense_os.app.energy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accounts the use of the energy-hungry resources of the phone per sensing module: wake lock
+ * hold time, alarm wakeups, sensor-on time, GPS-on time, radio bytes and CPU time. The components
+ * of the app charge their use as they go, either as an amount with {@link #add}, or as a span of
+ * time with {@link #setOn}. The {@link EnergyMonitor} drains the ledger every hour into its table.
+ * <br/>
+ * <br/>
+ * Adding is lock-free. Spans are counted per module and resource, so two components that keep
+ * e.g. the GPS of the location module on at the same time are charged once.
+ */
+public class EnergyLedger {
+
+    public static final int LOCATION = 0;
+    public static final int MOTION = 1;
+    public static final int AMBIENCE = 2;
+    public static final int DEV_PROX = 3;
+    public static final int PHONE_STATE = 4;
+    public static final int EXTERNAL = 5;
+    public static final int UPLOAD = 6;
+    /**
+     * Work of the app that is not part of a module, e.g. recording traces.
+     */
+    public static final int OTHER = 7;
+    public static final int MODULE_COUNT = 8;
+
+    /**
+     * Wake lock hold time, in milliseconds.
+     */
+    public static final int WAKE_LOCK = 0;
+    /**
+     * Alarm wakeups.
+     */
+    public static final int WAKEUPS = 1;
+    /**
+     * Time that a sensor, the camera, or a radio scan was on, in milliseconds.
+     */
+    public static final int SENSOR = 2;
+    /**
+     * Time that the GPS was on, in milliseconds.
+     */
+    public static final int GPS = 3;
+    /**
+     * Bytes sent and received.
+     */
+    public static final int RADIO = 4;
+    /**
+     * CPU time, in microseconds.
+     */
+    public static final int CPU = 5;
+    public static final int RESOURCE_COUNT = 6;
+
+    private static final EnergyLedger sInstance = new EnergyLedger();
+
+    /**
+     * @return The ledger of the app
+     */
+    public static EnergyLedger getInstance() {
+        return sInstance;
+    }
+
+    private final AtomicLongArray mAmounts = new AtomicLongArray(MODULE_COUNT * RESOURCE_COUNT);
+    private final int[] mOnCount = new int[MODULE_COUNT * RESOURCE_COUNT];
+    private final long[] mOnSince = new long[MODULE_COUNT * RESOURCE_COUNT];
+
+    /**
+     * Charges an amount of a resource to a module.
+     */
+    public void add(int module, int resource, long amount) {
+        mAmounts.addAndGet(module * RESOURCE_COUNT + resource, amount);
+    }
+
+    /**
+     * @return The amounts since the previous drain, by <code>module * RESOURCE_COUNT +
+     *         resource</code>, with the spans that are on charged up to now. The ledger starts
+     *         counting from 0 again.
+     */
+    public synchronized long[] drain(long now) {
+        return collect(now, true);
+    }
+
+    private long[] collect(long now, boolean reset) {
+        long[] amounts = new long[mOnCount.length];
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = reset ? mAmounts.getAndSet(i, 0) : mAmounts.get(i);
+            if (mOnCount[i] > 0) {
+                amounts[i] += Math.max(0, now - mOnSince[i]);
+                if (reset) {
+                    mOnSince[i] = now;
+                }
+            }
+        }
+        return amounts;
+    }
+
+    /**
+     * @return The amounts since the previous drain, like {@link #drain(long)}, without draining
+     */
+    public synchronized long[] peek(long now) {
+        return collect(now, false);
+    }
+
+    /**
+     * Starts or stops a span of time that a module uses a resource, e.g. the time that a sensor
+     * listener is registered. Calls must be paired; starting a span that is already on only
+     * counts how many times it must be stopped.
+     *
+     * @param resource
+     *            {@link #WAKE_LOCK}, {@link #SENSOR} or {@link #GPS}
+     * @param now
+     *            Current time in milliseconds
+     */
+    public synchronized void setOn(int module, int resource, boolean on, long now) {
+        int i = module * RESOURCE_COUNT + resource;
+        if (on) {
+            if (mOnCount[i]++ == 0) {
+                mOnSince[i] = now;
+            }
+        } else if (mOnCount[i] > 0) {
+            if (--mOnCount[i] == 0) {
+                mAmounts.addAndGet(i, Math.max(0, now - mOnSince[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package nl.sense_os.app.energy;
+
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Drains the {@link EnergyLedger} every hour into the {@link EnergyDatabase}, so the use of each
+ * module can be looked back on, e.g. next to the modules in the main screen.<br/>
+ * <br/>
+ * Before each drain, the bytes that the app sent and received since the previous drain are
+ * charged to the upload, because that is where the traffic of the app goes. Amounts that were
+ * not drained yet when the process is killed are lost.
+ */
+public class EnergyMonitor {
+
+    private static final String JOB = "energy";
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long FLEX = 15 * 60 * 1000L;
+    private static final String TAG = "EnergyMonitor";
+    private static EnergyMonitor sInstance;
+
+    public static synchronized EnergyMonitor getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new EnergyMonitor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final EnergyDatabase mDatabase;
+    private final int mUid = Process.myUid();
+    private long mPeriodStart = System.currentTimeMillis();
+    private long mRadioBytes = -1;
+
+    private EnergyMonitor(Context context) {
+        mContext = context;
+        mDatabase = new EnergyDatabase(context);
+    }
+
+    /**
+     * Charges the traffic since the previous call to the upload.
+     */
+    @TargetApi(Build.VERSION_CODES.FROYO)
+    private void chargeRadio() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            return;
+        }
+        long rx = TrafficStats.getUidRxBytes(mUid);
+        long tx = TrafficStats.getUidTxBytes(mUid);
+        if (rx == TrafficStats.UNSUPPORTED || tx == TrafficStats.UNSUPPORTED) {
+            return;
+        }
+        long bytes = rx + tx;
+        if (mRadioBytes >= 0 && bytes >= mRadioBytes) {
+            EnergyLedger.getInstance().add(EnergyLedger.UPLOAD, EnergyLedger.RADIO,
+                    bytes - mRadioBytes);
+        }
+        mRadioBytes = bytes;
+    }
+
+    /**
+     * Writes the amounts of the ledger to the table, under the hour in which the period started.
+     */
+    synchronized void flush() {
+        long now = System.currentTimeMillis();
+        chargeRadio();
+        long[] amounts = EnergyLedger.getInstance().drain(now);
+        try {
+            mDatabase.add(mPeriodStart / HOUR, amounts);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to store the energy use!", e);
+        }
+        mPeriodStart = now;
+    }
+
+    /**
+     * Reads the totals of the last hours, including what the ledger counted since the last
+     * drain. Reads the database, so call it off the main thread.
+     *
+     * @param hours
+     *            Number of hours to look back
+     * @return The totals by <code>module * RESOURCE_COUNT + resource</code>, see
+     *         {@link EnergyLedger}
+     */
+    public synchronized long[] getTotals(int hours) {
+        long now = System.currentTimeMillis();
+        chargeRadio();
+        long[] totals;
+        try {
+            totals = mDatabase.sum(now / HOUR - hours + 1);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read the energy use!", e);
+            totals = new long[EnergyLedger.MODULE_COUNT * EnergyLedger.RESOURCE_COUNT];
+        }
+        long[] recent = EnergyLedger.getInstance().peek(now);
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] += recent[i];
+        }
+        return totals;
+    }
+
+    /**
+     * Schedules the hourly drain. Safe to call more than once.
+     */
+    public void start() {
+        WakeupScheduler.getInstance(mContext).schedule(JOB, EnergyLedger.OTHER, HOUR, FLEX,
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+    }
+}
@@ -0,0 +1,109 @@
+package nl.sense_os.app.export;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.util.VarInts;
+
+/**
+ * Reads the binary export format written by {@link BinaryRowEncoder}. Rows are read one at a time,
+ * so arbitrarily long exports can be consumed with constant memory:
+ *
+ * <pre>
+ * BinaryRowDecoder decoder = new BinaryRowDecoder(in);
+ * while (decoder.next()) {
+ *     handle(decoder.getSensor(), decoder.getTimestamp(), decoder.getValue());
+ * }
+ * </pre>
+ */
+public class BinaryRowDecoder {
+
+    private final InputStream mIn;
+    private final List<String> mSensors = new ArrayList<String>();
+    private String mSensor;
+    private long mTimestamp;
+    private String mValue;
+    private byte[] mBuffer = new byte[256];
+
+    public BinaryRowDecoder(InputStream in) throws IOException {
+        mIn = new BufferedInputStream(in, 8192);
+        for (int i = 0; i < BinaryRowEncoder.MAGIC.length; i++) {
+            if (mIn.read() != BinaryRowEncoder.MAGIC[i]) {
+                throw new IOException("Not a Sense binary export stream");
+            }
+        }
+        int version = mIn.read();
+        if (version != BinaryRowEncoder.VERSION) {
+            throw new IOException("Unsupported export version: " + version);
+        }
+    }
+
+    public String getSensor() {
+        return mSensor;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public String getValue() {
+        return mValue;
+    }
+
+    /**
+     * Advances to the next row.
+     *
+     * @return <code>false</code> if the end of the export was reached
+     * @throws EOFException
+     *             If the stream was cut off before the end tag
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int tag = mIn.read();
+            switch (tag) {
+            case BinaryRowEncoder.TAG_END:
+                return false;
+            case BinaryRowEncoder.TAG_SENSOR:
+                int id = (int) VarInts.readVarLong(mIn);
+                if (id != mSensors.size()) {
+                    throw new IOException("Unexpected sensor id: " + id);
+                }
+                mSensors.add(readString());
+                break;
+            case BinaryRowEncoder.TAG_ROW:
+                int sensorId = (int) VarInts.readVarLong(mIn);
+                if (sensorId >= mSensors.size()) {
+                    throw new IOException("Unknown sensor id: " + sensorId);
+                }
+                mSensor = mSensors.get(sensorId);
+                mTimestamp += VarInts.unzigzag(VarInts.readVarLong(mIn));
+                mValue = readString();
+                return true;
+            case -1:
+                throw new EOFException("Export stream was cut off");
+            default:
+                throw new IOException("Unexpected tag: " + tag);
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        int length = (int) VarInts.readVarLong(mIn);
+        if (length > mBuffer.length) {
+            mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+        }
+        int offset = 0;
+        while (offset < length) {
+            int read = mIn.read(mBuffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Export stream was cut off");
+            }
+            offset += read;
+        }
+        return new String(mBuffer, 0, length, "UTF-8");
+    }
+}
@@ -0,0 +1,105 @@
+package nl.sense_os.app.export;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.sense_os.app.util.VarInts;
+
+/**
+ * Encodes data points in a compact binary format. The stream starts with the magic bytes
+ * <code>SNSX</code> and a version byte, followed by tagged records:
+ * <ul>
+ * <li>{@link #TAG_SENSOR}: sensor id (varint), name length (varint), UTF-8 name bytes. Written the
+ * first time a sensor name occurs, so rows only carry the small id.</li>
+ * <li>{@link #TAG_ROW}: sensor id (varint), timestamp delta to the previous row (zigzag varint),
+ * value length (varint), UTF-8 value bytes.</li>
+ * <li>{@link #TAG_END}: end of stream. A stream without end tag was cut off.</li>
+ * </ul>
+ * Use {@link BinaryRowDecoder} to read the stream back.<br/>
+ * <br/>
+ * Strings are encoded into a buffer of the encoder, so writing a row does not allocate once the
+ * buffer fits the longest value.
+ */
+public class BinaryRowEncoder implements RowEncoder {
+
+    static final byte[] MAGIC = { 'S', 'N', 'S', 'X' };
+    static final int VERSION = 1;
+    static final int TAG_END = 0;
+    static final int TAG_SENSOR = 1;
+    static final int TAG_ROW = 2;
+
+    private final OutputStream mOut;
+    private final Map<String, Integer> mSensorIds = new HashMap<String, Integer>();
+    private long mLastTimestamp;
+    private byte[] mBuffer = new byte[256];
+
+    public BinaryRowEncoder(OutputStream out) throws IOException {
+        mOut = new BufferedOutputStream(out, 8192);
+        mOut.write(MAGIC);
+        mOut.write(VERSION);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        mOut.write(TAG_END);
+        mOut.flush();
+    }
+
+    @Override
+    public void writeRow(String sensor, long timestamp, String value) throws IOException {
+        Integer id = mSensorIds.get(sensor);
+        if (null == id) {
+            id = mSensorIds.size();
+            mSensorIds.put(sensor, id);
+            mOut.write(TAG_SENSOR);
+            VarInts.writeVarLong(mOut, id);
+            writeString(sensor);
+        }
+        mOut.write(TAG_ROW);
+        VarInts.writeVarLong(mOut, id);
+        VarInts.writeVarLong(mOut, VarInts.zigzag(timestamp - mLastTimestamp));
+        writeString(value);
+        mLastTimestamp = timestamp;
+    }
+
+    /**
+     * Writes the length and the UTF-8 bytes of a string. Like {@link String#getBytes(String)},
+     * unpaired surrogates are written as '?'.
+     */
+    private void writeString(String s) throws IOException {
+        int length = null == s ? 0 : s.length();
+        if (mBuffer.length < length * 3) {
+            // at most 3 bytes per char, or 4 per surrogate pair
+            mBuffer = new byte[Math.max(length * 3, mBuffer.length * 2)];
+        }
+        byte[] buffer = mBuffer;
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xC0 | c >> 6);
+                buffer[size++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer[size++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[size++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[size++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[size++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                buffer[size++] = '?';
+            } else {
+                buffer[size++] = (byte) (0xE0 | c >> 12);
+                buffer[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[size++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        VarInts.writeVarLong(mOut, size);
+        mOut.write(buffer, 0, size);
+    }
+}
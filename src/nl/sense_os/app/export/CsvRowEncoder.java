@@ -0,0 +1,64 @@
+package nl.sense_os.app.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Encodes data points as comma separated values, one data point per line. The first line is a
+ * header with the column names. Values that contain separators or quotes are quoted.
+ */
+public class CsvRowEncoder implements RowEncoder {
+
+    private static final String HEADER = "sensor,timestamp,value\n";
+    private final Writer mWriter;
+
+    public CsvRowEncoder(OutputStream out) throws IOException {
+        mWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+        mWriter.write(HEADER);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        mWriter.flush();
+    }
+
+    @Override
+    public void writeRow(String sensor, long timestamp, String value) throws IOException {
+        writeField(sensor);
+        mWriter.write(',');
+        mWriter.write(Long.toString(timestamp));
+        mWriter.write(',');
+        writeField(value);
+        mWriter.write('\n');
+    }
+
+    private void writeField(String field) throws IOException {
+        if (null == field) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) {
+            mWriter.write(field);
+            return;
+        }
+        mWriter.write('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"') {
+                mWriter.write('"');
+            }
+            mWriter.write(c);
+        }
+        mWriter.write('"');
+    }
+}
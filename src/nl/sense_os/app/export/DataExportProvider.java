@@ -0,0 +1,135 @@
+package nl.sense_os.app.export;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import nl.sense_os.app.R;
+import nl.sense_os.service.constants.SensorData.DataPoint;
+import android.annotation.TargetApi;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Provider that streams sensor data from the local storage through a pipe, instead of returning a
+ * Cursor. The data is written by a background thread, so clients can read exports of any size
+ * with constant memory. Open a stream with {@link android.content.ContentResolver#openInputStream}
+ * on a URI like:
+ *
+ * <pre>
+ * content://nl.sense_os.app.export/data?sensor=accelerometer&amp;start=0&amp;end=1376993855000&amp;format=binary
+ * </pre>
+ *
+ * All query parameters are optional. The <code>format</code> is either {@link #FORMAT_CSV}
+ * (default) or {@link #FORMAT_BINARY}, see {@link BinaryRowEncoder} for the binary layout.<br/>
+ * <br/>
+ * The provider requires the signature permission {@link #PERMISSION_READ}, so only apps that are
+ * signed with the key of this app can read the sensor history.
+ */
+public class DataExportProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "nl.sense_os.app.export";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/data");
+    public static final String PARAM_SENSOR = "sensor";
+    public static final String PARAM_START = "start";
+    public static final String PARAM_END = "end";
+    public static final String PARAM_FORMAT = "format";
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_BINARY = "binary";
+    public static final String PERMISSION_READ = "nl.sense_os.app.permission.READ_SENSOR_DATA";
+    private static final String TAG = "DataExportProvider";
+
+    private static long parseLong(String value, long defaultValue) {
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid timestamp: " + value);
+        }
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Data export is read-only");
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        if (FORMAT_BINARY.equals(uri.getQueryParameter(PARAM_FORMAT))) {
+            return "application/octet-stream";
+        }
+        return "text/csv";
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Data export is read-only");
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Data export can only be opened for reading");
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) {
+            throw new FileNotFoundException("Data export requires Android 2.3 or higher");
+        }
+
+        String sensor = uri.getQueryParameter(PARAM_SENSOR);
+        long start = parseLong(uri.getQueryParameter(PARAM_START), 0);
+        long end = parseLong(uri.getQueryParameter(PARAM_END), System.currentTimeMillis());
+        String format = uri.getQueryParameter(PARAM_FORMAT);
+        String authority = getContext().getString(R.string.local_storage_authority);
+        Uri source = Uri.parse("content://" + authority + DataPoint.CONTENT_URI_PATH);
+
+        ParcelFileDescriptor[] pipe;
+        RowEncoder encoder;
+        OutputStream out;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+            out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+            if (FORMAT_BINARY.equals(format)) {
+                encoder = new BinaryRowEncoder(out);
+            } else {
+                encoder = new CsvRowEncoder(out);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to set up export pipe!", e);
+            throw new FileNotFoundException("Failed to set up export pipe: " + e.getMessage());
+        }
+
+        Log.v(TAG, "Export " + (null != sensor ? sensor : "all sensors") + " from " + start
+                + " to " + end);
+        ExportWriter writer = new ExportWriter(getContext().getContentResolver(), source, sensor,
+                start, end, encoder, out);
+        Thread thread = new Thread(writer, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+
+        return pipe[0];
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        throw new UnsupportedOperationException("Use openInputStream to read the data export");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Data export is read-only");
+    }
+}
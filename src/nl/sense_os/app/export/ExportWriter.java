@@ -0,0 +1,175 @@
+package nl.sense_os.app.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import nl.sense_os.service.constants.SensorData.DataPoint;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Runnable that copies data points from the local storage into an export stream. The data is
+ * queried in consecutive time slices, so only one small cursor is open at any time. The export
+ * starts at the first stored data point in the range, and skips ahead to the next stored data
+ * point after an empty slice, so a range without start does not query every hour since 1970.
+ * The first slice is short, and the slice length follows the number of rows of the previous
+ * slice, to keep each cursor well below the size of a CursorWindow.<br/>
+ * <br/>
+ * The output is typically the write side of a pipe: when the reader is slower than the writer,
+ * writes block and the next query is postponed. When the reader closes its side, the next write
+ * fails and the export stops.
+ */
+public class ExportWriter implements Runnable {
+
+    private static final String TAG = "ExportWriter";
+    private static final long MIN_SLICE = 1000L;
+    private static final long MAX_SLICE = 24L * 60 * 60 * 1000;
+    private static final long INITIAL_SLICE = 10L * 1000;
+    private static final int TARGET_ROWS = 2000;
+    private static final String[] PROJECTION = new String[] { DataPoint.SENSOR_NAME,
+            DataPoint.TIMESTAMP, DataPoint.VALUE };
+    private static final String[] FIRST_TIMESTAMP = new String[] { "MIN(" + DataPoint.TIMESTAMP
+            + ")" };
+
+    private final ContentResolver mResolver;
+    private final Uri mSource;
+    private final String mSensor;
+    private final long mStart;
+    private final long mEnd;
+    private final RowEncoder mEncoder;
+    private final OutputStream mOut;
+
+    /**
+     * @param resolver
+     *            ContentResolver to query the local storage
+     * @param source
+     *            Content URI of the local storage data points
+     * @param sensor
+     *            Name of the sensor to export, or <code>null</code> to export all sensors
+     * @param start
+     *            Start of the export range (inclusive)
+     * @param end
+     *            End of the export range (exclusive)
+     * @param encoder
+     *            Encoder that writes to <code>out</code>
+     * @param out
+     *            Stream that is closed when the export is done
+     */
+    public ExportWriter(ContentResolver resolver, Uri source, String sensor, long start,
+            long end, RowEncoder encoder, OutputStream out) {
+        mResolver = resolver;
+        mSource = source;
+        mSensor = sensor;
+        mStart = start;
+        mEnd = end;
+        mEncoder = encoder;
+        mOut = out;
+    }
+
+    /**
+     * Queries one time slice and writes the rows to the encoder.
+     *
+     * @return The number of rows that were written
+     */
+    private int exportSlice(long from, long to) throws IOException {
+        String where = DataPoint.TIMESTAMP + ">=? AND " + DataPoint.TIMESTAMP + "<?";
+        String[] selectionArgs;
+        if (null != mSensor) {
+            where += " AND " + DataPoint.SENSOR_NAME + "=?";
+            selectionArgs = new String[] { "" + from, "" + to, mSensor };
+        } else {
+            selectionArgs = new String[] { "" + from, "" + to };
+        }
+
+        Cursor cursor = null;
+        int count = 0;
+        try {
+            cursor = mResolver.query(mSource, PROJECTION, where, selectionArgs,
+                    DataPoint.TIMESTAMP + " ASC");
+            if (null == cursor) {
+                return 0;
+            }
+            int nameIdx = cursor.getColumnIndex(DataPoint.SENSOR_NAME);
+            int timeIdx = cursor.getColumnIndex(DataPoint.TIMESTAMP);
+            int valueIdx = cursor.getColumnIndex(DataPoint.VALUE);
+            while (cursor.moveToNext()) {
+                mEncoder.writeRow(cursor.getString(nameIdx), cursor.getLong(timeIdx),
+                        cursor.getString(valueIdx));
+                count++;
+            }
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The timestamp of the first stored data point at or after <code>from</code>, or
+     *         {@link Long#MAX_VALUE} if there is none
+     */
+    private long nextTimestamp(long from) {
+        String where = DataPoint.TIMESTAMP + ">=?";
+        String[] selectionArgs;
+        if (null != mSensor) {
+            where += " AND " + DataPoint.SENSOR_NAME + "=?";
+            selectionArgs = new String[] { "" + from, mSensor };
+        } else {
+            selectionArgs = new String[] { "" + from };
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(mSource, FIRST_TIMESTAMP, where, selectionArgs, null);
+            if (null == cursor || !cursor.moveToFirst() || cursor.isNull(0)) {
+                return Long.MAX_VALUE;
+            }
+            return cursor.getLong(0);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long rows = 0;
+        try {
+            long slice = INITIAL_SLICE;
+            long from = nextTimestamp(mStart);
+            while (from < mEnd) {
+                long to = Math.min(mEnd, from + slice);
+                int count = exportSlice(from, to);
+                rows += count;
+                if (0 == count) {
+                    // skip the gap up to the next stored data point
+                    from = nextTimestamp(to);
+                    continue;
+                }
+                from = to;
+
+                // adapt the slice length to the density of the data, growing at most 4 times
+                long fit = slice * TARGET_ROWS / count;
+                slice = Math.max(MIN_SLICE, Math.min(MAX_SLICE, Math.min(4 * slice, fit)));
+            }
+            mEncoder.finish();
+            Log.v(TAG, "Exported " + rows + " data points");
+
+        } catch (IOException e) {
+            // the reader closed the pipe before the export was done
+            Log.w(TAG, "Export stopped after " + rows + " data points: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to export data points!", e);
+        } finally {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package nl.sense_os.app.export;
+
+import java.io.IOException;
+
+/**
+ * Writes sensor data rows to an export stream. Implementations are not thread-safe: a single
+ * {@link ExportWriter} owns an encoder for the lifetime of one export.
+ */
+public interface RowEncoder {
+
+    /**
+     * Writes a single data point to the stream.
+     *
+     * @param sensor
+     *            Name of the sensor that produced the data point
+     * @param timestamp
+     *            Timestamp of the data point in milliseconds
+     * @param value
+     *            Value of the data point, as stored in the local storage
+     * @throws IOException
+     *             If the stream was closed, e.g. because the reading side went away
+     */
+    public abstract void writeRow(String sensor, long timestamp, String value) throws IOException;
+
+    /**
+     * Writes the end of the stream and flushes any buffered output. Does not close the stream.
+     *
+     * @throws IOException
+     */
+    public abstract void finish() throws IOException;
+}
@@ -0,0 +1,392 @@
+package nl.sense_os.app.external;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Downloads the log sessions of a Zephyr BioHarness over one connection, with the commands of
+ * the logging interface:
+ * <ol>
+ * <li>get the number of log sessions</li>
+ * <li>for each session, get its start time and length, then read its data in chunks of at most
+ * {@link #MAX_CHUNK} bytes</li>
+ * <li>optionally, delete the sessions that the {@link RecordSink} stored completely, the newest
+ * first</li>
+ * </ol>
+ * Commands are frames with ETX, the strap replies with ACK, or NAK when it refuses a command.
+ * The log records have the layout of the general data packet ({@link #RECORD_SIZE} bytes, see
+ * {@link ZephyrParser#decodeGeneralData}), and are decoded while the chunks come in, so a
+ * session of hours is streamed to the {@link RecordSink} without being held in memory. Nothing
+ * is allocated per chunk.<br/>
+ * <br/>
+ * Feed the replies through a {@link ZephyrParser} with this download as listener. The download
+ * does not keep time: call {@link #retry()} when a reply is overdue. Not thread-safe.
+ */
+public class BioHarnessLogDownload implements ZephyrParser.Listener {
+
+    /**
+     * Sends commands to the strap.
+     */
+    public interface Link {
+
+        /**
+         * @param frame
+         *            Buffer with a complete frame between its position and limit
+         */
+        void send(ByteBuffer frame) throws IOException;
+    }
+
+    /**
+     * Receives the log records.
+     */
+    public interface RecordSink {
+
+        /**
+         * A log record. The object is reused for the next record.
+         */
+        void onRecord(ZephyrParser.GeneralData record);
+
+        /**
+         * All records of a session are delivered.
+         *
+         * @param session
+         *            Index of the session
+         * @param start
+         *            Start time of the session, see {@link ZephyrParser.GeneralData#time}
+         * @param records
+         *            Number of records in the session
+         * @return <code>true</code> if all records of the session are stored, so it may be
+         *         deleted from the strap
+         */
+        boolean onSessionComplete(int session, long start, int records);
+
+        /**
+         * The records of a session follow.
+         *
+         * @param session
+         *            Index of the session
+         * @param start
+         *            Start time of the session, see {@link ZephyrParser.GeneralData#time}
+         */
+        void onSessionStart(int session, long start);
+    }
+
+    public static final int GET_SESSION_COUNT = 0x51;
+    public static final int GET_SESSION_INFO = 0x52;
+    public static final int GET_SESSION_DATA = 0x53;
+    public static final int DELETE_SESSION = 0x54;
+
+    /** Size of a log record: a general data packet payload */
+    public static final int RECORD_SIZE = 53;
+    /** Maximum number of log bytes per data reply: the maximum DLC minus the offset field */
+    public static final int MAX_CHUNK = 124;
+
+    private static final int IDLE = 0, COUNT = 1, INFO = 2, DATA = 3, DELETE = 4, DONE = 5,
+            FAILED = 6;
+    private static final int MAX_RETRIES = 3;
+    private static final int MAX_SESSIONS = 256;
+
+    private static int u32(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8
+                | (buffer.get(index + 2) & 0xff) << 16 | (buffer.get(index + 3) & 0xff) << 24;
+    }
+
+    private final Link mLink;
+    private final RecordSink mSink;
+    private final boolean mDelete;
+    private final ByteBuffer mRequest = ByteBuffer.allocate(ZephyrParser.OVERHEAD + 5);
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final ZephyrParser.GeneralData mGeneral = new ZephyrParser.GeneralData();
+    private final boolean[] mStored = new boolean[MAX_SESSIONS];
+    private int mState = IDLE;
+    private int mRetries;
+    private int mSessions;
+    private int mSession;
+    private long mSessionStart;
+    private int mSessionLength;
+    private int mOffset;
+    private int mSessionRecords;
+    private long mBytes;
+    private long mRecords;
+    private long mReplies;
+    private int mDeleted;
+    private String mError;
+
+    /**
+     * @param link
+     *            Link to send the commands
+     * @param sink
+     *            Sink for the log records
+     * @param delete
+     *            <code>true</code> to delete the sessions that the sink stored from the strap,
+     *            after downloading all of them
+     */
+    public BioHarnessLogDownload(Link link, RecordSink sink, boolean delete) {
+        mLink = link;
+        mSink = sink;
+        mDelete = delete;
+    }
+
+    private void fail(String error) {
+        mState = FAILED;
+        mError = error;
+    }
+
+    /**
+     * @return The number of log bytes received
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return The number of sessions deleted from the strap
+     */
+    public int getDeleted() {
+        return mDeleted;
+    }
+
+    /**
+     * @return The reason of the failure, or <code>null</code>
+     */
+    public String getError() {
+        return mError;
+    }
+
+    /**
+     * @return The number of records delivered to the sink
+     */
+    public long getRecords() {
+        return mRecords;
+    }
+
+    /**
+     * @return The number of replies received, to detect a stalled download
+     */
+    public long getReplies() {
+        return mReplies;
+    }
+
+    /**
+     * @return The number of log sessions on the strap
+     */
+    public int getSessions() {
+        return mSessions;
+    }
+
+    /**
+     * @return <code>true</code> if all sessions are downloaded (and deleted)
+     */
+    public boolean isDone() {
+        return mState == DONE;
+    }
+
+    /**
+     * @return <code>true</code> if the download is done or failed
+     */
+    public boolean isFinished() {
+        return mState == DONE || mState == FAILED;
+    }
+
+    /**
+     * Deletes the next stored session, older than the current one, or finishes the download.
+     */
+    private void nextDelete() throws IOException {
+        do {
+            mSession--;
+        } while (mSession >= 0 && !mStored[mSession]);
+        if (mSession >= 0) {
+            mState = DELETE;
+            request(DELETE_SESSION, mSession, -1);
+        } else {
+            mState = DONE;
+        }
+    }
+
+    /**
+     * Starts the next session, or the deletes when all sessions are downloaded.
+     */
+    private void nextSession() throws IOException {
+        mSession++;
+        if (mSession < mSessions) {
+            mState = INFO;
+            request(GET_SESSION_INFO, mSession, -1);
+        } else if (mDelete) {
+            // the newest first, so the indices of the older sessions stay the same
+            nextDelete();
+        } else {
+            mState = DONE;
+        }
+    }
+
+    /**
+     * Hands a complete session to the sink.
+     */
+    private void completeSession() throws IOException {
+        mStored[mSession] = mSink.onSessionComplete(mSession, mSessionStart, mSessionRecords);
+        nextSession();
+    }
+
+    @Override
+    public void onFrame(int id, ByteBuffer buffer, int offset, int length, int terminator) {
+        if (isFinished() || mState == IDLE || id < GET_SESSION_COUNT || id > DELETE_SESSION) {
+            return;
+        }
+        if (terminator == ZephyrParser.NAK
+                && !(mState == DELETE && id == DELETE_SESSION && mRetries > 0)) {
+            // a repeated delete is refused when the first one went through
+            fail("Command " + id + " refused");
+            return;
+        }
+        try {
+            mRetries = 0;
+            mReplies++;
+            switch (mState) {
+            case COUNT:
+                if (id == GET_SESSION_COUNT && length >= 1) {
+                    mSessions = Math.min(buffer.get(offset) & 0xff, MAX_SESSIONS);
+                    mSession = -1;
+                    nextSession();
+                }
+                break;
+            case INFO:
+                if (id == GET_SESSION_INFO && length >= 13
+                        && (buffer.get(offset) & 0xff) == mSession) {
+                    mSessionStart = ZephyrParser.readTime(buffer, offset + 1);
+                    mSessionLength = u32(buffer, offset + 9);
+                    mOffset = 0;
+                    mSessionRecords = 0;
+                    mRecord.clear();
+                    mSink.onSessionStart(mSession, mSessionStart);
+                    if (mSessionLength > 0) {
+                        mState = DATA;
+                        request(GET_SESSION_DATA, mSession, 0);
+                    } else {
+                        completeSession();
+                    }
+                }
+                break;
+            case DATA:
+                // a reply to a repeated request can arrive twice: only take the expected offset
+                if (id == GET_SESSION_DATA && length >= 4 && u32(buffer, offset) == mOffset) {
+                    onData(buffer, offset + 4, length - 4);
+                }
+                break;
+            case DELETE:
+                if (id == DELETE_SESSION) {
+                    mDeleted++;
+                    nextDelete();
+                }
+                break;
+            default:
+                // not waiting for a reply
+            }
+        } catch (IOException e) {
+            fail("Failed to send command: " + e.getMessage());
+        }
+    }
+
+    private void onData(ByteBuffer buffer, int offset, int length) throws IOException {
+        int count = Math.min(length, mSessionLength - mOffset);
+        for (int i = offset, end = offset + count; i < end;) {
+            int n = Math.min(end - i, mRecord.remaining());
+            for (int j = 0; j < n; j++) {
+                mRecord.put(buffer.get(i + j));
+            }
+            i += n;
+            if (!mRecord.hasRemaining()) {
+                ZephyrParser.decodeGeneralData(mRecord, 0, mGeneral);
+                mSink.onRecord(mGeneral);
+                mRecord.clear();
+                mSessionRecords++;
+                mRecords++;
+            }
+        }
+        mOffset += count;
+        mBytes += count;
+        if (count == 0 || mOffset >= mSessionLength) {
+            completeSession();
+        } else {
+            request(GET_SESSION_DATA, mSession, mOffset);
+        }
+    }
+
+    @Override
+    public void onGeneralData(ZephyrParser.GeneralData data) {
+        // live data, not part of the log
+    }
+
+    @Override
+    public void onHxmData(ZephyrParser.HxmData data) {
+        // not a BioHarness
+    }
+
+    @Override
+    public void onWaveform(ZephyrParser.Waveform waveform) {
+        // live data, not part of the log
+    }
+
+    /**
+     * Sends a command.
+     *
+     * @param id
+     *            Message ID
+     * @param session
+     *            Session index, or -1 for none
+     * @param offset
+     *            Data offset, or -1 for none
+     */
+    private void request(int id, int session, int offset) throws IOException {
+        ByteBuffer request = mRequest;
+        request.clear();
+        request.put((byte) ZephyrParser.STX).put((byte) id).put((byte) 0);
+        if (session >= 0) {
+            request.put((byte) session);
+        }
+        if (offset >= 0) {
+            request.put((byte) offset).put((byte) (offset >> 8)).put((byte) (offset >> 16))
+                    .put((byte) (offset >> 24));
+        }
+        int dlc = request.position() - 3;
+        request.put(2, (byte) dlc);
+        request.put((byte) ZephyrParser.crc8(request, 3, dlc)).put((byte) ZephyrParser.ETX);
+        request.flip();
+        mLink.send(request);
+    }
+
+    /**
+     * Repeats the last command, when its reply is overdue.
+     *
+     * @return <code>false</code> if the command was repeated too often, and the download failed
+     */
+    public boolean retry() {
+        if (mState == IDLE) {
+            return true;
+        } else if (isFinished()) {
+            return isDone();
+        }
+        if (++mRetries > MAX_RETRIES) {
+            fail("No reply from the BioHarness");
+            return false;
+        }
+        try {
+            mRequest.rewind();
+            mLink.send(mRequest);
+            return true;
+        } catch (IOException e) {
+            fail("Failed to send command: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Starts the download.
+     */
+    public void start() throws IOException {
+        if (mState != IDLE) {
+            throw new IllegalStateException("Download already started");
+        }
+        mState = COUNT;
+        request(GET_SESSION_COUNT, -1, -1);
+    }
+}
@@ -0,0 +1,380 @@
+package nl.sense_os.app.external;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.AccountedWakeLock;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Lets the Zephyr BioHarness log on its own, and pulls the log in bulk every few hours, instead
+ * of streaming live data over a connection that keeps the radio and the CPU of the phone awake.
+ * A download connects to the first paired BioHarness, runs a {@link BioHarnessLogDownload}, and
+ * streams the records into the local storage of the Sense Platform as "bioharness log" data
+ * points with a minute of records each, in the burst-mode format:
+ * <code>{"interval":1000,"header":"...","values":[[...],...]}</code>.<br/>
+ * <br/>
+ * The strap logs the local time of the phone that set its clock. The records are stored with the
+ * UTC time, converted with the time zone of this phone.<br/>
+ * <br/>
+ * A session is deleted from the strap when the download is complete and all of its records are
+ * stored. The number of stored records is kept per session, by its start time, so after an
+ * interrupted download the sessions are downloaded again and only the records that were not
+ * stored yet are stored. This does not depend on the clock of the strap running forward. Used
+ * when the user enabled log downloads for the BioHarness; the live BioHarness sensor of the
+ * Sense service is switched off then, see {@link nl.sense_os.app.SenseSettings}.
+ */
+public class BioHarnessLogSampler implements BioHarnessLogDownload.RecordSink {
+
+    private static final UUID SERIAL_PORT = UUID
+            .fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final String NAME_PREFIX = "BH";
+    private static final long INTERVAL = 4 * 60 * 60 * 1000L;
+    private static final long FLEX = 60 * 60 * 1000L;
+    private static final long REPLY_TIMEOUT = 3000;
+    private static final long MAX_DOWNLOAD_TIME = 15 * 60 * 1000L;
+    private static final int RECORDS_PER_POINT = 60;
+    private static final String HEADER = "heart rate,respiration rate,skin temperature,posture,"
+            + "activity,battery voltage";
+    private static final String PREFS = "bioharness_log";
+    /** Prefix of the preferences with the number of stored records of a session */
+    private static final String PREF_SESSION = "stored_records_";
+    private static final String JOB = "bioharness log";
+    private static final String TAG = "BioHarnessLogSampler";
+    private static BioHarnessLogSampler sInstance;
+
+    /**
+     * Appends a value in tenths or hundredths as a decimal number.
+     */
+    private static void appendFixed(StringBuilder builder, int value, int scale) {
+        if (value < 0) {
+            builder.append('-');
+            value = -value;
+        }
+        builder.append(value / scale).append('.');
+        int fraction = value % scale;
+        if (scale == 100 && fraction < 10) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+
+    public static synchronized BioHarnessLogSampler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new BioHarnessLogSampler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Schedules or cancels the downloads, depending on the status of the external sensors module
+     * and the {@link AppPrefs.External#BIOHARNESS_LOG} preference.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.EXTERNAL, false)
+                && service.getPrefBool(AppPrefs.External.BIOHARNESS_LOG, false);
+        getInstance(context).setActive(active);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AccountedWakeLock mWakeLock;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+    private final StringBuilder mValue = new StringBuilder();
+    private boolean mActive;
+    private boolean mDownloading;
+    private String mSessionKey;
+    private int mSessionStored;
+    private int mSessionRecords;
+    private long mFirstTime;
+    private long mLastTime;
+    private int mPending;
+    private long mSkipped;
+    private final Set<String> mSeen = new HashSet<String>();
+    private final Set<String> mComplete = new HashSet<String>();
+
+    private BioHarnessLogSampler(Context context) {
+        mContext = context;
+        mWakeLock = new AccountedWakeLock(context, TAG, EnergyLedger.EXTERNAL);
+    }
+
+    /**
+     * Connects to the BioHarness and downloads the log. Runs on its own thread.
+     */
+    private void download() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        BluetoothDevice device = findBioHarness(adapter);
+        if (null == device) {
+            Log.w(TAG, "No paired BioHarness, or Bluetooth is off");
+            return;
+        }
+        adapter.cancelDiscovery();
+
+        BluetoothSocket socket = null;
+        try {
+            socket = device.createRfcommSocketToServiceRecord(SERIAL_PORT);
+            socket.connect();
+            final OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            mSeen.clear();
+            mComplete.clear();
+            mSkipped = 0;
+            final BioHarnessLogDownload download = new BioHarnessLogDownload(
+                    new BioHarnessLogDownload.Link() {
+
+                        @Override
+                        public void send(ByteBuffer frame) throws IOException {
+                            out.write(frame.array(), frame.position(), frame.remaining());
+                            out.flush();
+                            frame.position(frame.limit());
+                        }
+                    }, this, true);
+            final BluetoothSocket watched = socket;
+            final long deadline = System.currentTimeMillis() + MAX_DOWNLOAD_TIME;
+            Runnable watchdog = new Runnable() {
+                private long mReplies = -1;
+
+                @Override
+                public void run() {
+                    synchronized (download) {
+                        if (System.currentTimeMillis() > deadline
+                                || (download.getReplies() == mReplies && !download.retry())) {
+                            // the blocking read ends with an exception
+                            closeQuietly(watched);
+                            return;
+                        }
+                        mReplies = download.getReplies();
+                    }
+                    mHandler.postDelayed(this, REPLY_TIMEOUT);
+                }
+            };
+
+            ZephyrParser parser = new ZephyrParser();
+            long start = System.currentTimeMillis();
+            mBuffer.clear();
+            synchronized (download) {
+                download.start();
+            }
+            mHandler.postDelayed(watchdog, REPLY_TIMEOUT);
+            EnergyLedger.getInstance().setOn(EnergyLedger.EXTERNAL, EnergyLedger.SENSOR, true,
+                    start);
+            try {
+                while (!download.isFinished()) {
+                    int read = in.read(mBuffer.array(), mBuffer.position(), mBuffer.remaining());
+                    if (read < 0) {
+                        throw new IOException("Connection closed");
+                    }
+                    mBuffer.position(mBuffer.position() + read);
+                    mBuffer.flip();
+                    synchronized (download) {
+                        parser.parse(mBuffer, download);
+                    }
+                    mBuffer.compact();
+                }
+            } finally {
+                EnergyLedger.getInstance().setOn(EnergyLedger.EXTERNAL, EnergyLedger.SENSOR,
+                        false, System.currentTimeMillis());
+                mHandler.removeCallbacks(watchdog);
+                flush();
+            }
+            if (download.isDone()) {
+                forgetDeleted();
+            }
+            Log.v(TAG, "BioHarness log download " + (download.isDone() ? "complete" : "failed: "
+                    + download.getError()) + ". " + download.getSessions() + " sessions ("
+                    + download.getDeleted() + " deleted), " + download.getBytes() + " bytes, "
+                    + download.getRecords() + " records ("
+                    + mSkipped + " stored before), " + parser.getCrcErrors() + " CRC errors, "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            Log.w(TAG, "BioHarness log download failed: " + e.getMessage());
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        if (null != socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * @param localTime
+     *            Time of the strap, in the local time of the phone
+     * @return The time in milliseconds since the epoch
+     */
+    private static long toUtc(long localTime) {
+        TimeZone timeZone = TimeZone.getDefault();
+        return localTime - timeZone.getOffset(localTime - timeZone.getRawOffset());
+    }
+
+    private static BluetoothDevice findBioHarness(BluetoothAdapter adapter) {
+        if (null == adapter || !adapter.isEnabled()) {
+            return null;
+        }
+        Set<BluetoothDevice> devices = adapter.getBondedDevices();
+        if (null != devices) {
+            for (BluetoothDevice device : devices) {
+                if (null != device.getName() && device.getName().startsWith(NAME_PREFIX)) {
+                    return device;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the pending records as one data point, and remembers how many records of the
+     * session are stored.
+     */
+    private void flush() {
+        if (mPending == 0) {
+            return;
+        }
+        mValue.append("]}");
+        DataPoints.send(mContext, "bioharness log", "BioHarness log", "json", mValue.toString(),
+                toUtc(mFirstTime));
+        mSessionStored += mPending;
+        mPending = 0;
+        mContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                .putInt(mSessionKey, mSessionStored).commit();
+    }
+
+    /**
+     * Forgets the stored record counts of the sessions that are no longer on the strap, after a
+     * complete download.
+     */
+    private void forgetDeleted() {
+        SharedPreferences prefs = mContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : prefs.getAll().keySet()) {
+            if (!mSeen.contains(key) || mComplete.contains(key)) {
+                editor.remove(key);
+            }
+        }
+        editor.commit();
+    }
+
+    @Override
+    public void onRecord(ZephyrParser.GeneralData record) {
+        if (mSessionRecords++ < mSessionStored) {
+            mSkipped++;
+            return;
+        }
+        // a gap in the log starts a new data point
+        if (mPending >= RECORDS_PER_POINT || (mPending > 0 && record.time - mLastTime > 1500)) {
+            flush();
+        }
+        if (mPending == 0) {
+            mValue.setLength(0);
+            mValue.append("{\"interval\":1000,\"header\":\"").append(HEADER)
+                    .append("\",\"values\":[");
+            mFirstTime = record.time;
+        } else {
+            mValue.append(',');
+        }
+        mValue.append('[').append(record.heartRate).append(',');
+        appendFixed(mValue, record.respirationRate, 10);
+        mValue.append(',');
+        appendFixed(mValue, record.skinTemperature, 10);
+        mValue.append(',').append(record.posture).append(',');
+        appendFixed(mValue, record.activity, 100);
+        mValue.append(',').append(record.batteryVoltage).append(']');
+        mPending++;
+        mLastTime = record.time;
+    }
+
+    @Override
+    public boolean onSessionComplete(int session, long start, int records) {
+        Log.v(TAG, "Log session " + session + ": " + records + " records");
+        flush();
+        boolean stored = mSessionStored >= records;
+        if (stored) {
+            mComplete.add(mSessionKey);
+        }
+        return stored;
+    }
+
+    @Override
+    public void onSessionStart(int session, long start) {
+        mSessionKey = PREF_SESSION + start;
+        mSeen.add(mSessionKey);
+        mSessionStored = mContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE).getInt(
+                mSessionKey, 0);
+        mSessionRecords = 0;
+    }
+
+    /**
+     * Schedules or cancels the downloads.
+     */
+    public synchronized void setActive(boolean active) {
+        if (active == mActive) {
+            return;
+        }
+        mActive = active;
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(mContext);
+        if (active) {
+            // not time critical: share a wakeup with other jobs
+            scheduler.schedule(JOB, EnergyLedger.EXTERNAL, INTERVAL, FLEX, new Runnable() {
+
+                @Override
+                public void run() {
+                    startDownload();
+                }
+            });
+        } else {
+            scheduler.cancel(JOB);
+        }
+        Log.v(TAG, "BioHarness log downloads " + (active ? "started" : "stopped"));
+    }
+
+    private synchronized void startDownload() {
+        if (mDownloading) {
+            return;
+        }
+        mDownloading = true;
+        mWakeLock.acquire(MAX_DOWNLOAD_TIME);
+        new Thread(TAG) {
+
+            @Override
+            public void run() {
+                try {
+                    download();
+                } finally {
+                    synchronized (BioHarnessLogSampler.this) {
+                        mDownloading = false;
+                    }
+                    if (mWakeLock.isHeld()) {
+                        mWakeLock.release();
+                    }
+                }
+            }
+        }.start();
+    }
+}
@@ -0,0 +1,826 @@
+package nl.sense_os.app.external;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Polls mode 01 PIDs from an ELM327-style OBD-II adapter. Instead of one request per PID, and
+ * waiting for each answer before the next request, the poller:
+ * <ul>
+ * <li>asks for several PIDs per request (<code>010C0D11</code>), which costs about the same
+ * round trip as one PID on CAN cars, and falls back to one PID per request when the car only
+ * answers the first PID</li>
+ * <li>adds the expected number of responses (<code>010C0D1</code>), so the adapter returns right
+ * away instead of waiting for more ECUs to answer. The count only works when the reply fits in
+ * one CAN frame, so a request then asks for as many PIDs as fit in one frame; without response
+ * counts it asks for up to six.</li>
+ * <li>keeps more than one request in flight, to hide the Bluetooth round trip, when the adapter
+ * queues commands. ELM327 chips abort the running command on new input and answer
+ * <code>STOPPED</code>; the poller then goes back to one request at a time</li>
+ * <li>adapts the interval of each PID to how fast its value changes: the interval is halved
+ * (down to a minimum) when a value changes by more than a threshold, and grows by a quarter (up
+ * to a maximum) when it does not. PIDs that are almost due ride along with a request.</li>
+ * </ul>
+ * Before polling, the adapter is reset and set up without echo, spaces and headers, and the
+ * supported PIDs are read; PIDs that the car does not support, or that stay unanswered, are
+ * dropped.<br/>
+ * <br/>
+ * Feed the bytes from the adapter to {@link #onReceive} and call {@link #poll} when it is due,
+ * or let {@link #run(InputStream)} do both. Nothing is allocated while polling. The methods are
+ * not thread-safe, except for {@link #run(InputStream)} and {@link #stop()}.
+ */
+public class Obd2Poller {
+
+    /**
+     * Sends commands to the adapter.
+     */
+    public interface Link {
+
+        /**
+         * @param command
+         *            Command, ending with a carriage return
+         * @param length
+         *            Number of bytes of the command
+         */
+        void send(byte[] command, int length) throws IOException;
+    }
+
+    /**
+     * Receives the values.
+     */
+    public interface Listener {
+
+        /**
+         * @param pid
+         *            Mode 01 PID
+         * @param value
+         *            Value in the unit of the PID, see {@link Obd2Poller#decode}
+         * @param time
+         *            Time of the response, in milliseconds
+         */
+        void onValue(int pid, float value, long time);
+    }
+
+    public static final int ENGINE_LOAD = 0x04;
+    public static final int COOLANT_TEMP = 0x05;
+    public static final int INTAKE_PRESSURE = 0x0B;
+    public static final int ENGINE_RPM = 0x0C;
+    public static final int VEHICLE_SPEED = 0x0D;
+    public static final int INTAKE_TEMP = 0x0F;
+    public static final int MAF_RATE = 0x10;
+    public static final int THROTTLE = 0x11;
+    public static final int FUEL_LEVEL = 0x2F;
+    public static final int AMBIENT_TEMP = 0x46;
+    public static final int OIL_TEMP = 0x5C;
+
+    /** Maximum number of PIDs in one mode 01 request */
+    public static final int MAX_PIDS = 6;
+    private static final int MAX_IN_FLIGHT = 4;
+    /** Number of data bytes in a single CAN frame */
+    private static final int SINGLE_FRAME = 7;
+    private static final int MAX_PID_COUNT = 16;
+    /** Number of unanswered requests after which a PID is dropped */
+    private static final int MAX_MISSES = 3;
+    private static final long REQUEST_TIMEOUT = 2000;
+    /** Reset and the protocol search can take seconds */
+    private static final long INIT_TIMEOUT = 10000;
+    private static final String[] INIT = { "ATZ", "ATE0", "ATL0", "ATS0", "ATH0", "ATAT2",
+            "ATSP0", "0100", "0120", "0140" };
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    /**
+     * @return The number of data bytes of a PID, or 0 if the PID is not known
+     */
+    public static int dataLength(int pid) {
+        switch (pid) {
+        case 0x00:
+        case 0x20:
+        case 0x40:
+            return 4;
+        case ENGINE_RPM:
+        case MAF_RATE:
+            return 2;
+        case ENGINE_LOAD:
+        case COOLANT_TEMP:
+        case INTAKE_PRESSURE:
+        case VEHICLE_SPEED:
+        case INTAKE_TEMP:
+        case THROTTLE:
+        case FUEL_LEVEL:
+        case AMBIENT_TEMP:
+        case OIL_TEMP:
+            return 1;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Decodes the data bytes of a PID.
+     *
+     * @return The value in percent, degrees Celsius, kPa, rpm, km/h or g/s
+     */
+    public static float decode(int pid, byte[] data, int offset) {
+        int a = data[offset] & 0xff;
+        switch (pid) {
+        case ENGINE_RPM:
+            return ((a << 8) | (data[offset + 1] & 0xff)) / 4f;
+        case MAF_RATE:
+            return ((a << 8) | (data[offset + 1] & 0xff)) / 100f;
+        case COOLANT_TEMP:
+        case INTAKE_TEMP:
+        case AMBIENT_TEMP:
+        case OIL_TEMP:
+            return a - 40;
+        case ENGINE_LOAD:
+        case THROTTLE:
+        case FUEL_LEVEL:
+            return a * 100f / 255;
+        default:
+            return a;
+        }
+    }
+
+    /**
+     * @return Name of the PID, for the data points
+     */
+    public static String name(int pid) {
+        switch (pid) {
+        case ENGINE_LOAD:
+            return "engine load";
+        case COOLANT_TEMP:
+            return "coolant temperature";
+        case INTAKE_PRESSURE:
+            return "intake pressure";
+        case ENGINE_RPM:
+            return "engine rpm";
+        case VEHICLE_SPEED:
+            return "vehicle speed";
+        case INTAKE_TEMP:
+            return "intake temperature";
+        case MAF_RATE:
+            return "air flow rate";
+        case THROTTLE:
+            return "throttle position";
+        case FUEL_LEVEL:
+            return "fuel level";
+        case AMBIENT_TEMP:
+            return "ambient temperature";
+        case OIL_TEMP:
+            return "oil temperature";
+        default:
+            return "pid " + pid;
+        }
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private final Link mLink;
+    private final Listener mListener;
+
+    // PIDs
+    private final int[] mPids = new int[MAX_PID_COUNT];
+    private final long[] mMinInterval = new long[MAX_PID_COUNT];
+    private final long[] mMaxInterval = new long[MAX_PID_COUNT];
+    private final float[] mThreshold = new float[MAX_PID_COUNT];
+    private final long[] mInterval = new long[MAX_PID_COUNT];
+    private final long[] mDue = new long[MAX_PID_COUNT];
+    private final float[] mLast = new float[MAX_PID_COUNT];
+    private final int[] mMisses = new int[MAX_PID_COUNT];
+    private final long[] mUpdates = new long[MAX_PID_COUNT];
+    private final boolean[] mEnabled = new boolean[MAX_PID_COUNT];
+    private final boolean[] mRequested = new boolean[MAX_PID_COUNT];
+    private final boolean[] mAnswered = new boolean[MAX_PID_COUNT];
+    private int mPidCount;
+
+    // requests in flight, oldest first
+    private final int[][] mFlightPids = new int[MAX_IN_FLIGHT][MAX_PIDS];
+    private final int[] mFlightCount = new int[MAX_IN_FLIGHT];
+    private final long[] mFlightSent = new long[MAX_IN_FLIGHT];
+    private final boolean[] mFlightInit = new boolean[MAX_IN_FLIGHT];
+    private int mFlightHead;
+    private int mInFlight;
+
+    // received bytes
+    private final byte[] mLine = new byte[128];
+    private final byte[] mMessage = new byte[64];
+    private final byte[] mCommand = new byte[32];
+    private int mLineLength;
+    private int mMessageLength;
+    private int mMessageSize;
+
+    // settings
+    private int mMaxInFlight = 2;
+    private int mMaxPids = MAX_PIDS;
+    private boolean mAdaptive = true;
+    private boolean mResponseCounts = true;
+
+    private int mInitStep;
+    private int mPartial;
+    private String mVersion;
+    private long mRequests;
+    private long mResponses;
+    private long mTimeouts;
+    private long mStops;
+    private boolean mStopped;
+    private IOException mError;
+
+    /**
+     * @param link
+     *            Link to send the commands to the adapter
+     * @param listener
+     *            Listener for the values
+     */
+    public Obd2Poller(Link link, Listener listener) {
+        mLink = link;
+        mListener = listener;
+    }
+
+    /**
+     * Adds a PID with the default intervals for it, see
+     * {@link #addPid(int, long, long, float)}.
+     */
+    public void addPid(int pid) {
+        switch (pid) {
+        case ENGINE_RPM:
+            addPid(pid, 200, 2000, 100);
+            break;
+        case VEHICLE_SPEED:
+            addPid(pid, 250, 2500, 2);
+            break;
+        case THROTTLE:
+        case ENGINE_LOAD:
+            addPid(pid, 250, 2500, 3);
+            break;
+        case MAF_RATE:
+        case INTAKE_PRESSURE:
+            addPid(pid, 250, 2500, 2);
+            break;
+        case COOLANT_TEMP:
+        case OIL_TEMP:
+        case INTAKE_TEMP:
+            addPid(pid, 2000, 30000, 1);
+            break;
+        default:
+            addPid(pid, 10000, 120000, 1);
+        }
+    }
+
+    /**
+     * Adds a PID to poll.
+     *
+     * @param pid
+     *            Mode 01 PID with a known length, see {@link #dataLength(int)}
+     * @param minInterval
+     *            Interval in milliseconds while the value changes
+     * @param maxInterval
+     *            Interval in milliseconds while the value is stable
+     * @param threshold
+     *            Change of the value that counts as a change
+     */
+    public void addPid(int pid, long minInterval, long maxInterval, float threshold) {
+        if (dataLength(pid) == 0 || pid == 0x00 || pid == 0x20 || pid == 0x40) {
+            throw new IllegalArgumentException("Unknown PID: " + pid);
+        }
+        if (mPidCount == MAX_PID_COUNT) {
+            throw new IllegalStateException("Too many PIDs");
+        }
+        int i = mPidCount++;
+        mPids[i] = pid;
+        mMinInterval[i] = minInterval;
+        mMaxInterval[i] = maxInterval;
+        mThreshold[i] = threshold;
+        mInterval[i] = minInterval;
+        mLast[i] = Float.NaN;
+        mEnabled[i] = true;
+    }
+
+    /**
+     * Appends a command to {@link #mCommand}, and queues it as in flight.
+     */
+    private void send(String command, long now) throws IOException {
+        int length = command.length();
+        for (int i = 0; i < length; i++) {
+            mCommand[i] = (byte) command.charAt(i);
+        }
+        mCommand[length++] = '\r';
+        int slot = (mFlightHead + mInFlight) % MAX_IN_FLIGHT;
+        mFlightCount[slot] = 0;
+        mFlightSent[slot] = now;
+        mFlightInit[slot] = true;
+        mInFlight++;
+        mLink.send(mCommand, length);
+    }
+
+    /**
+     * Clears the requests in flight, so their PIDs are requested again.
+     */
+    private void clearInFlight(long now) {
+        for (int n = 0; n < mInFlight; n++) {
+            int slot = (mFlightHead + n) % MAX_IN_FLIGHT;
+            for (int j = 0; j < mFlightCount[slot]; j++) {
+                int i = mFlightPids[slot][j];
+                mRequested[i] = false;
+                mDue[i] = now;
+            }
+            if (mFlightInit[slot]) {
+                mInitStep++;
+            }
+        }
+        mInFlight = 0;
+    }
+
+    private void decodeMessage(int length, long now) {
+        if (length < 2 || (mMessage[0] & 0xff) != 0x41) {
+            return;
+        }
+        for (int offset = 1; offset < length;) {
+            int pid = mMessage[offset] & 0xff;
+            int size = dataLength(pid);
+            if (size == 0 || offset + 1 + size > length) {
+                break;
+            }
+            if (pid == 0x00 || pid == 0x20 || pid == 0x40) {
+                onSupported(pid, offset + 1);
+            } else {
+                for (int i = 0; i < mPidCount; i++) {
+                    if (mPids[i] == pid && mEnabled[i]) {
+                        onValue(i, decode(pid, mMessage, offset + 1), now);
+                    }
+                }
+            }
+            offset += 1 + size;
+        }
+    }
+
+    /**
+     * @return The number of requests in flight after which the poller waits, which drops to 1
+     *         when the adapter does not queue commands
+     */
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    /**
+     * @return The number of PIDs per request, which drops to 1 when the car does not answer
+     *         multi-PID requests
+     */
+    public int getMaxPids() {
+        return mMaxPids;
+    }
+
+    /**
+     * @return The interval in milliseconds at which a PID is polled now, or -1 if the PID is
+     *         not polled (any more)
+     */
+    public long getInterval(int pid) {
+        for (int i = 0; i < mPidCount; i++) {
+            if (mPids[i] == pid) {
+                return mEnabled[i] ? mInterval[i] : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of data requests sent
+     */
+    public long getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * @return The number of data requests that were answered or refused
+     */
+    public long getResponses() {
+        return mResponses;
+    }
+
+    /**
+     * @return The number of commands aborted by the adapter because of a next command
+     */
+    public long getStops() {
+        return mStops;
+    }
+
+    /**
+     * @return The number of commands without an answer in time
+     */
+    public long getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return The number of values received for a PID
+     */
+    public long getUpdates(int pid) {
+        for (int i = 0; i < mPidCount; i++) {
+            if (mPids[i] == pid) {
+                return mUpdates[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The identification of the adapter, e.g. "ELM327 v1.5", or <code>null</code>
+     */
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return <code>true</code> if the adapter is set up and the PIDs are polled
+     */
+    public boolean isReady() {
+        return mInitStep >= INIT.length;
+    }
+
+    private void onLine(long now) {
+        byte[] line = mLine;
+        int length = mLineLength;
+        mLineLength = 0;
+        if (length == 0) {
+            return;
+        }
+        if (length >= 3 && line[0] == 'E' && line[1] == 'L' && line[2] == 'M') {
+            mVersion = new String(line, 0, length);
+            return;
+        }
+        if (length == 7 && line[0] == 'S' && line[1] == 'T' && line[2] == 'O') {
+            // STOPPED: the adapter aborted a command because the next one came in
+            mStops++;
+            mMaxInFlight = 1;
+            clearInFlight(now);
+            return;
+        }
+
+        // multi-frame message: a line with the byte count, then lines with "n:" and the bytes
+        int start = 0;
+        if (length == 3 && hexValue(line[0]) >= 0 && hexValue(line[1]) >= 0
+                && hexValue(line[2]) >= 0) {
+            mMessageLength = Math.min(mMessage.length,
+                    hexValue(line[0]) << 8 | hexValue(line[1]) << 4 | hexValue(line[2]));
+            mMessageSize = 0;
+            return;
+        } else if (length >= 2 && line[1] == ':' && hexValue(line[0]) >= 0) {
+            if (mMessageLength == 0) {
+                return;
+            }
+            start = 2;
+        } else {
+            mMessageLength = 0;
+            mMessageSize = 0;
+        }
+
+        // hex bytes, with or without spaces
+        int nibble = -1;
+        for (int i = start; i < length; i++) {
+            if (line[i] == ' ') {
+                continue;
+            }
+            int value = hexValue(line[i]);
+            if (value < 0) {
+                // NO DATA, SEARCHING..., ?, etc.
+                mMessageLength = 0;
+                mMessageSize = 0;
+                return;
+            }
+            if (nibble < 0) {
+                nibble = value;
+            } else {
+                if (mMessageSize < mMessage.length) {
+                    mMessage[mMessageSize++] = (byte) (nibble << 4 | value);
+                }
+                nibble = -1;
+            }
+        }
+        if (mMessageLength == 0) {
+            decodeMessage(mMessageSize, now);
+            mMessageSize = 0;
+        } else if (mMessageSize >= mMessageLength) {
+            decodeMessage(mMessageLength, now);
+            mMessageLength = 0;
+            mMessageSize = 0;
+        }
+    }
+
+    /**
+     * The adapter finished a command.
+     */
+    private void onPrompt(long now) {
+        mMessageLength = 0;
+        mMessageSize = 0;
+        if (mInFlight == 0) {
+            // answer to a command that timed out or was aborted
+            return;
+        }
+        int slot = mFlightHead;
+        mFlightHead = (mFlightHead + 1) % MAX_IN_FLIGHT;
+        mInFlight--;
+        if (mFlightInit[slot]) {
+            mInitStep++;
+            return;
+        }
+        mResponses++;
+        int count = mFlightCount[slot];
+        int answered = 0;
+        for (int j = 0; j < count; j++) {
+            int i = mFlightPids[slot][j];
+            mRequested[i] = false;
+            if (mAnswered[i]) {
+                answered++;
+                mMisses[i] = 0;
+            } else if (++mMisses[i] >= MAX_MISSES) {
+                mEnabled[i] = false;
+            }
+            mAnswered[i] = false;
+        }
+        if (count > 1) {
+            // cars on older protocols only answer the first PID of a multi-PID request
+            boolean partial = answered == 1 && mMisses[mFlightPids[slot][0]] == 0;
+            mPartial = partial ? mPartial + 1 : 0;
+            if (mPartial >= 2) {
+                mMaxPids = 1;
+                for (int j = 1; j < count; j++) {
+                    mMisses[mFlightPids[slot][j]] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes bytes from the adapter.
+     *
+     * @param now
+     *            Current time in milliseconds
+     */
+    public void onReceive(byte[] data, int offset, int length, long now) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            byte b = data[i];
+            if (b == '>') {
+                onLine(now);
+                onPrompt(now);
+            } else if (b == '\r' || b == '\n') {
+                onLine(now);
+            } else if (b != 0 && mLineLength < mLine.length) {
+                mLine[mLineLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Drops the configured PIDs in a range that the car does not support.
+     */
+    private void onSupported(int range, int offset) {
+        int bits = (mMessage[offset] & 0xff) << 24 | (mMessage[offset + 1] & 0xff) << 16
+                | (mMessage[offset + 2] & 0xff) << 8 | (mMessage[offset + 3] & 0xff);
+        for (int i = 0; i < mPidCount; i++) {
+            int bit = mPids[i] - range - 1;
+            if (bit >= 0 && bit < 32 && (bits & (1 << (31 - bit))) == 0) {
+                mEnabled[i] = false;
+            }
+        }
+    }
+
+    private void onValue(int i, float value, long now) {
+        mAnswered[i] = true;
+        mUpdates[i]++;
+        float last = mLast[i];
+        mLast[i] = value;
+        if (mAdaptive && !Float.isNaN(last)) {
+            if (Math.abs(value - last) >= mThreshold[i]) {
+                mInterval[i] = Math.max(mMinInterval[i], mInterval[i] / 2);
+                mDue[i] = Math.min(mDue[i], now + mInterval[i]);
+            } else {
+                mInterval[i] = Math.min(mMaxInterval[i], mInterval[i] + mInterval[i] / 4 + 1);
+            }
+        }
+        mListener.onValue(mPids[i], value, now);
+    }
+
+    /**
+     * Sends the commands that are due.
+     *
+     * @param now
+     *            Current time in milliseconds
+     * @return The time in milliseconds until the next call
+     */
+    public long poll(long now) throws IOException {
+        if (mInFlight > 0) {
+            long timeout = mFlightInit[mFlightHead] ? INIT_TIMEOUT : REQUEST_TIMEOUT;
+            if (now - mFlightSent[mFlightHead] >= timeout) {
+                mTimeouts++;
+                clearInFlight(now);
+            }
+        }
+
+        if (!isReady()) {
+            // one command at a time while setting up
+            if (mInFlight == 0) {
+                send(INIT[mInitStep], now);
+            }
+            return Math.max(1, mFlightSent[mFlightHead] + INIT_TIMEOUT - now);
+        }
+
+        while (mInFlight < mMaxInFlight && sendDue(now)) {
+            // next request
+        }
+
+        long next = Long.MAX_VALUE;
+        boolean enabled = false;
+        for (int i = 0; i < mPidCount; i++) {
+            if (mEnabled[i] && !mRequested[i]) {
+                next = Math.min(next, mDue[i]);
+            }
+            enabled |= mEnabled[i];
+        }
+        if (!enabled && mPidCount > 0) {
+            // e.g. the ignition is off
+            throw new IOException("None of the PIDs is answered");
+        }
+        if (mInFlight > 0) {
+            next = Math.min(next, mFlightSent[mFlightHead] + REQUEST_TIMEOUT);
+        }
+        return next == Long.MAX_VALUE ? REQUEST_TIMEOUT : Math.max(1, next - now);
+    }
+
+    /**
+     * Polls until {@link #stop()} is called, the stream ends, or none of the PIDs is answered
+     * any more. Reads from the adapter on the calling thread, and sends the commands from a
+     * second thread.
+     *
+     * @param in
+     *            Stream from the adapter. Close it from another thread to stop a blocking read;
+     *            the poller closes it when sending fails.
+     * @throws IOException
+     *             If the connection fails
+     */
+    public void run(final InputStream in) throws IOException {
+        synchronized (this) {
+            mStopped = false;
+            mError = null;
+        }
+        Thread sender = new Thread("Obd2Poller") {
+
+            @Override
+            public void run() {
+                synchronized (Obd2Poller.this) {
+                    try {
+                        while (!mStopped) {
+                            long delay = poll(System.currentTimeMillis());
+                            Obd2Poller.this.wait(delay);
+                        }
+                    } catch (IOException e) {
+                        mError = e;
+                        mStopped = true;
+                        try {
+                            // ends the blocking read
+                            in.close();
+                        } catch (IOException e1) {
+                            // nothing to do
+                        }
+                    } catch (InterruptedException e) {
+                        mStopped = true;
+                    }
+                }
+            }
+        };
+        sender.start();
+        byte[] buffer = new byte[256];
+        try {
+            while (true) {
+                int read = in.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("Connection closed");
+                }
+                synchronized (this) {
+                    if (mStopped) {
+                        break;
+                    }
+                    onReceive(buffer, 0, read, System.currentTimeMillis());
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                // the sender closes the stream when it fails
+                throw null != mError ? mError : e;
+            }
+        } finally {
+            synchronized (this) {
+                mStopped = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Selects the PIDs for a request, and sends it.
+     *
+     * @return <code>false</code> if no PID is due
+     */
+    private boolean sendDue(long now) throws IOException {
+        int slot = (mFlightHead + mInFlight) % MAX_IN_FLIGHT;
+        int[] pids = mFlightPids[slot];
+        int count = 0;
+        int expected = 1;
+        while (count < mMaxPids) {
+            // the PID that is due first; once a request goes out, PIDs that are almost due too
+            int best = -1;
+            for (int i = 0; i < mPidCount; i++) {
+                if (!mEnabled[i] || mRequested[i] || mResponseCounts && count > 0
+                        && expected + 1 + dataLength(mPids[i]) > SINGLE_FRAME) {
+                    continue;
+                }
+                long slack = count == 0 ? 0 : mInterval[i] / 4;
+                if (mDue[i] - slack <= now && (best < 0 || mDue[i] < mDue[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            pids[count++] = best;
+            mRequested[best] = true;
+            mDue[best] = now + mInterval[best];
+            expected += 1 + dataLength(mPids[best]);
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        int length = 0;
+        mCommand[length++] = '0';
+        mCommand[length++] = '1';
+        for (int j = 0; j < count; j++) {
+            int pid = mPids[pids[j]];
+            mCommand[length++] = HEX[pid >> 4];
+            mCommand[length++] = HEX[pid & 0xf];
+        }
+        if (mResponseCounts && expected <= SINGLE_FRAME) {
+            // one ECU answers in a single CAN frame: do not wait for more
+            mCommand[length++] = '1';
+        }
+        mCommand[length++] = '\r';
+        mFlightCount[slot] = count;
+        mFlightSent[slot] = now;
+        mFlightInit[slot] = false;
+        mInFlight++;
+        mRequests++;
+        mLink.send(mCommand, length);
+        return true;
+    }
+
+    /**
+     * @param adaptive
+     *            <code>true</code> to adapt the intervals to the changes of the values (the
+     *            default), <code>false</code> to poll each PID at its minimum interval
+     */
+    public void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+    }
+
+    /**
+     * @param maxInFlight
+     *            Number of requests to keep in flight, at most 4; 2 by default
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        mMaxInFlight = Math.max(1, Math.min(MAX_IN_FLIGHT, maxInFlight));
+    }
+
+    /**
+     * @param maxPids
+     *            Number of PIDs per request, at most {@link #MAX_PIDS} (the default)
+     */
+    public void setMaxPids(int maxPids) {
+        mMaxPids = Math.max(1, Math.min(MAX_PIDS, maxPids));
+    }
+
+    /**
+     * @param responseCounts
+     *            <code>true</code> to add the number of expected responses to the requests, and
+     *            keep the replies in one CAN frame (the default)
+     */
+    public void setResponseCounts(boolean responseCounts) {
+        mResponseCounts = responseCounts;
+    }
+
+    /**
+     * Stops {@link #run(InputStream)} after the next read.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,260 @@
+package nl.sense_os.app.external;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.UUID;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.AccountedWakeLock;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Reads the engine and driving values from a paired ELM327-style OBD-II dongle with an
+ * {@link Obd2Poller}, which asks for several PIDs per request, keeps requests in flight when
+ * the dongle allows it, and polls each PID only as often as its value changes. The latest
+ * values are stored at most once per second as one "obd2 sensor" data point, e.g.
+ * <code>{"engine rpm":1850,"vehicle speed":54}</code>, with the values that changed since the
+ * previous data point.<br/>
+ * <br/>
+ * While the sampler is active it tries to connect every few minutes, so it picks up the dongle
+ * when the car starts, and it stays connected until the dongle goes away with the ignition.
+ * Used when the user enabled the pipelined OBD-II sensor; the OBD-II sensor of the Sense
+ * service is switched off then, see {@link nl.sense_os.app.SenseSettings}.
+ */
+public class Obd2Sampler implements Obd2Poller.Listener {
+
+    private static final UUID SERIAL_PORT = UUID
+            .fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final String[] NAME_PARTS = { "OBD", "ELM", "V-LINK" };
+    private static final int[] PIDS = { Obd2Poller.ENGINE_RPM, Obd2Poller.VEHICLE_SPEED,
+            Obd2Poller.THROTTLE, Obd2Poller.ENGINE_LOAD, Obd2Poller.MAF_RATE,
+            Obd2Poller.COOLANT_TEMP, Obd2Poller.INTAKE_TEMP, Obd2Poller.FUEL_LEVEL,
+            Obd2Poller.AMBIENT_TEMP };
+    private static final long CONNECT_INTERVAL = 5 * 60 * 1000L;
+    private static final long CONNECT_FLEX = 60 * 1000L;
+    private static final long STORE_INTERVAL = 1000;
+    private static final String JOB = "obd2";
+    private static final String TAG = "Obd2Sampler";
+    private static Obd2Sampler sInstance;
+
+    public static synchronized Obd2Sampler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new Obd2Sampler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or stops the sampler, depending on the status of the external sensors module and
+     * the {@link AppPrefs.External#OBD2_PIPELINED} preference.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.EXTERNAL, false)
+                && service.getPrefBool(AppPrefs.External.OBD2_PIPELINED, false);
+        getInstance(context).setActive(active);
+    }
+
+    private final Context mContext;
+    private final AccountedWakeLock mWakeLock;
+    private final float[] mValues = new float[PIDS.length];
+    private final boolean[] mChanged = new boolean[PIDS.length];
+    private final StringBuilder mValue = new StringBuilder();
+    private boolean mActive;
+    private BluetoothSocket mSocket;
+    private long mLastStored;
+
+    private Obd2Sampler(Context context) {
+        mContext = context;
+        mWakeLock = new AccountedWakeLock(context, TAG, EnergyLedger.EXTERNAL);
+    }
+
+    /**
+     * Connects to the dongle and polls it until the connection ends. Runs on its own thread.
+     */
+    private void connect() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        BluetoothDevice device = findDongle(adapter);
+        if (null == device) {
+            Log.w(TAG, "No paired OBD-II dongle, or Bluetooth is off");
+            return;
+        }
+        adapter.cancelDiscovery();
+
+        BluetoothSocket socket = null;
+        Obd2Poller poller = null;
+        long start = System.currentTimeMillis();
+        try {
+            socket = device.createRfcommSocketToServiceRecord(SERIAL_PORT);
+            socket.connect();
+            synchronized (this) {
+                if (!mActive) {
+                    return;
+                }
+                mSocket = socket;
+            }
+            final OutputStream out = socket.getOutputStream();
+            poller = new Obd2Poller(new Obd2Poller.Link() {
+
+                @Override
+                public void send(byte[] command, int length) throws IOException {
+                    out.write(command, 0, length);
+                    out.flush();
+                }
+            }, this);
+            for (int pid : PIDS) {
+                poller.addPid(pid);
+            }
+            Log.v(TAG, "Connected to " + device.getName());
+            EnergyLedger.getInstance().setOn(EnergyLedger.EXTERNAL, EnergyLedger.SENSOR, true,
+                    System.currentTimeMillis());
+            try {
+                poller.run(socket.getInputStream());
+            } finally {
+                EnergyLedger.getInstance().setOn(EnergyLedger.EXTERNAL, EnergyLedger.SENSOR,
+                        false, System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            // also the normal end, when the ignition is switched off
+            Log.v(TAG, "OBD-II connection ended: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                mSocket = null;
+            }
+            closeQuietly(socket);
+            store(Long.MAX_VALUE);
+        }
+        if (null != poller && poller.getRequests() > 0) {
+            Log.v(TAG, poller.getVersion() + ": " + poller.getRequests() + " requests in "
+                    + (System.currentTimeMillis() - start) / 1000 + " s, " + poller.getTimeouts()
+                    + " timeouts, " + poller.getMaxPids() + " PIDs per request, "
+                    + poller.getMaxInFlight() + " in flight");
+        }
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        if (null != socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static BluetoothDevice findDongle(BluetoothAdapter adapter) {
+        if (null == adapter || !adapter.isEnabled()) {
+            return null;
+        }
+        Set<BluetoothDevice> devices = adapter.getBondedDevices();
+        if (null != devices) {
+            for (BluetoothDevice device : devices) {
+                String name = device.getName();
+                for (String part : NAME_PARTS) {
+                    if (null != name && name.toUpperCase().contains(part)) {
+                        return device;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onValue(int pid, float value, long time) {
+        for (int i = 0; i < PIDS.length; i++) {
+            if (PIDS[i] == pid) {
+                mChanged[i] |= value != mValues[i];
+                mValues[i] = value;
+            }
+        }
+        store(time);
+    }
+
+    /**
+     * Starts or stops the connection attempts.
+     */
+    public synchronized void setActive(boolean active) {
+        if (active == mActive) {
+            return;
+        }
+        mActive = active;
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(mContext);
+        if (active) {
+            scheduler.schedule(JOB, EnergyLedger.EXTERNAL, CONNECT_INTERVAL, CONNECT_FLEX,
+                    new Runnable() {
+
+                        @Override
+                        public void run() {
+                            startConnection();
+                        }
+                    });
+            startConnection();
+        } else {
+            scheduler.cancel(JOB);
+            // ends the blocking read of the poller
+            closeQuietly(mSocket);
+        }
+        Log.v(TAG, "OBD-II sampler " + (active ? "started" : "stopped"));
+    }
+
+    private synchronized void startConnection() {
+        if (!mActive || mWakeLock.isHeld()) {
+            // not active, or connecting or connected
+            return;
+        }
+        mWakeLock.acquire();
+        new Thread(TAG) {
+
+            @Override
+            public void run() {
+                try {
+                    connect();
+                } finally {
+                    mWakeLock.release();
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Stores the changed values as one data point, at most once per {@link #STORE_INTERVAL}.
+     *
+     * @param time
+     *            Current time, or {@link Long#MAX_VALUE} to store the pending values now
+     */
+    private void store(long time) {
+        if (time - mLastStored < STORE_INTERVAL) {
+            return;
+        }
+        mValue.setLength(0);
+        mValue.append('{');
+        for (int i = 0; i < PIDS.length; i++) {
+            if (mChanged[i]) {
+                if (mValue.length() > 1) {
+                    mValue.append(',');
+                }
+                mValue.append('"').append(Obd2Poller.name(PIDS[i])).append("\":")
+                        .append(mValues[i]);
+                mChanged[i] = false;
+            }
+        }
+        mValue.append('}');
+        if (mValue.length() > 2) {
+            long timestamp = time == Long.MAX_VALUE ? System.currentTimeMillis() : time;
+            DataPoints.send(mContext, "obd2 sensor", "OBD-II", "json", mValue.toString(),
+                    timestamp);
+            mLastStored = timestamp;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package nl.sense_os.app.external;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the Bluetooth packets of the Zephyr BioHarness and HxM straight from a
+ * {@link ByteBuffer}. A frame is <code>STX msgId DLC payload[DLC] CRC ETX</code>, where the CRC is
+ * an 8-bit CRC (polynomial 0x8C, LSB first) over the payload, and the frame ends with ETX, or
+ * with ACK or NAK for replies to commands. Multi-byte fields are little-endian.<br/>
+ * <br/>
+ * The parser reads the frames with absolute gets, validates the CRC on the way, and decodes the
+ * known packets into reusable objects with primitive fields, which are handed to a
+ * {@link Listener}. It does not allocate after the constructor, and does not need a backing
+ * array, so direct buffers work too. Frames that fail the CRC or the terminator are skipped,
+ * and the parser resynchronizes on the next STX.<br/>
+ * <br/>
+ * Not thread-safe: use one parser per connection.
+ */
+public class ZephyrParser {
+
+    /**
+     * Receives the decoded packets. The objects are reused for the next packet of the same type,
+     * so copy what must be kept.
+     */
+    public interface Listener {
+
+        /**
+         * Valid frame that is not decoded, e.g. a lifesign or a reply to a command.
+         *
+         * @param id
+         *            Message ID
+         * @param buffer
+         *            Buffer with the frame; do not change its position or limit
+         * @param offset
+         *            Absolute index of the payload
+         * @param length
+         *            Payload length
+         * @param terminator
+         *            {@link ZephyrParser#ETX}, {@link ZephyrParser#ACK} or
+         *            {@link ZephyrParser#NAK}
+         */
+        void onFrame(int id, ByteBuffer buffer, int offset, int length, int terminator);
+
+        /**
+         * BioHarness general data packet, once per second.
+         */
+        void onGeneralData(GeneralData data);
+
+        /**
+         * HxM general data packet, once per second.
+         */
+        void onHxmData(HxmData data);
+
+        /**
+         * BioHarness waveform packet: breathing, ECG, R to R or accelerometer samples.
+         */
+        void onWaveform(Waveform waveform);
+    }
+
+    /**
+     * BioHarness general data. Values that the strap could not measure are left as sent, e.g.
+     * a heart rate of 0xFFFF.
+     */
+    public static class GeneralData {
+        public int sequence;
+        /** Device time in milliseconds since the epoch, in the time zone of the strap */
+        public long time;
+        /** Beats per minute */
+        public int heartRate;
+        /** Breaths per minute, times 10 */
+        public int respirationRate;
+        /** Degrees Celsius, times 10 */
+        public int skinTemperature;
+        /** Degrees from vertical */
+        public int posture;
+        /** Vector magnitude of the activity, in 0.01 g */
+        public int activity;
+        /** Peak acceleration, in 0.01 g */
+        public int peakAcceleration;
+        /** Millivolts */
+        public int batteryVoltage;
+        public int breathingAmplitude;
+        public int ecgAmplitude;
+        public int ecgNoise;
+        /** Minimum and maximum acceleration of the vertical, lateral and sagittal axes */
+        public final int[] accelerationRange = new int[6];
+    }
+
+    /**
+     * HxM general data.
+     */
+    public static class HxmData {
+        /** Percent */
+        public int battery;
+        /** Beats per minute */
+        public int heartRate;
+        /** Rolling number of the last heart beat */
+        public int heartBeatNumber;
+        /** Timestamps of the last 15 heart beats in milliseconds, the newest first */
+        public final int[] heartBeatTimes = new int[HXM_BEATS];
+        /** Meters, times 16 */
+        public int distance;
+        /** Meters per second, times 256 */
+        public int speed;
+        public int strides;
+    }
+
+    /**
+     * BioHarness waveform samples. Single-channel waveforms have one sample per entry, the
+     * accelerometer has interleaved x, y, z samples.
+     */
+    public static class Waveform {
+        /** Message ID: {@link ZephyrParser#BREATHING}, {@link ZephyrParser#ECG}, ... */
+        public int type;
+        public int sequence;
+        /** Device time of the first sample, see {@link GeneralData#time} */
+        public long time;
+        /** Number of channels: 1, or 3 for the accelerometer */
+        public int channels;
+        /** Number of entries in {@link #samples} */
+        public int count;
+        /** Raw samples: 10-bit values, or signed 16-bit R to R intervals in milliseconds */
+        public final int[] samples = new int[MAX_SAMPLES];
+    }
+
+    public static final int STX = 0x02;
+    public static final int ETX = 0x03;
+    public static final int ACK = 0x06;
+    public static final int NAK = 0x15;
+
+    public static final int GENERAL_DATA = 0x20;
+    public static final int BREATHING = 0x21;
+    public static final int ECG = 0x22;
+    public static final int LIFESIGN = 0x23;
+    public static final int R_TO_R = 0x24;
+    public static final int ACCELEROMETER = 0x25;
+    public static final int HXM_DATA = 0x26;
+
+    /** Bytes around the payload: STX, message ID, DLC, CRC and ETX */
+    public static final int OVERHEAD = 5;
+    /** Minimum payload length of a general data packet, up to the acceleration range */
+    public static final int GENERAL_DATA_SIZE = 41;
+    private static final int MAX_DLC = 128;
+    private static final int HEADER = 9;
+    private static final int HXM_BEATS = 15;
+    private static final int MAX_SAMPLES = 63;
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x8C : crc >>> 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    /**
+     * Computes the CRC of a payload.
+     *
+     * @param buffer
+     *            Buffer with the payload
+     * @param offset
+     *            Absolute index of the first payload byte
+     * @param length
+     *            Payload length
+     * @return The CRC, from 0 to 255
+     */
+    public static int crc8(ByteBuffer buffer, int offset, int length) {
+        int crc = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = CRC_TABLE[(crc ^ buffer.get(i)) & 0xff];
+        }
+        return crc;
+    }
+
+    /**
+     * Decodes the payload of a BioHarness general data packet. The records of the BioHarness log
+     * have the same layout.
+     *
+     * @param buffer
+     *            Buffer with the payload
+     * @param offset
+     *            Absolute index of the payload
+     * @param general
+     *            Object to decode into
+     */
+    public static void decodeGeneralData(ByteBuffer buffer, int offset, GeneralData general) {
+        general.sequence = u8(buffer, offset);
+        general.time = readTime(buffer, offset + 1);
+        general.heartRate = u16(buffer, offset + 9);
+        general.respirationRate = u16(buffer, offset + 11);
+        general.skinTemperature = s16(buffer, offset + 13);
+        general.posture = s16(buffer, offset + 15);
+        general.activity = u16(buffer, offset + 17);
+        general.peakAcceleration = u16(buffer, offset + 19);
+        general.batteryVoltage = u16(buffer, offset + 21);
+        general.breathingAmplitude = u16(buffer, offset + 23);
+        general.ecgAmplitude = u16(buffer, offset + 25);
+        general.ecgNoise = u16(buffer, offset + 27);
+        for (int i = 0; i < 6; i++) {
+            general.accelerationRange[i] = s16(buffer, offset + 29 + 2 * i);
+        }
+    }
+
+    /**
+     * @return Days since 1970-01-01 of a date in the proleptic Gregorian calendar
+     */
+    private static long epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int u8(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xff;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8;
+    }
+
+    private static int s16(ByteBuffer buffer, int index) {
+        return (short) u16(buffer, index);
+    }
+
+    private final GeneralData mGeneral = new GeneralData();
+    private final HxmData mHxm = new HxmData();
+    private final Waveform mWaveform = new Waveform();
+    private long mFrames;
+    private long mCrcErrors;
+    private long mSkippedBytes;
+    private long mUnknown;
+
+    private void decode(int id, ByteBuffer buffer, int offset, int dlc, int terminator,
+            Listener listener) {
+        switch (id) {
+        case GENERAL_DATA:
+            if (dlc < GENERAL_DATA_SIZE) {
+                break;
+            }
+            decodeGeneralData(buffer, offset, mGeneral);
+            listener.onGeneralData(mGeneral);
+            return;
+        case HXM_DATA:
+            if (dlc < 55) {
+                break;
+            }
+            HxmData hxm = mHxm;
+            hxm.battery = u8(buffer, offset + 8);
+            hxm.heartRate = u8(buffer, offset + 9);
+            hxm.heartBeatNumber = u8(buffer, offset + 10);
+            for (int i = 0; i < HXM_BEATS; i++) {
+                hxm.heartBeatTimes[i] = u16(buffer, offset + 11 + 2 * i);
+            }
+            hxm.distance = u16(buffer, offset + 47);
+            hxm.speed = u16(buffer, offset + 49);
+            hxm.strides = u8(buffer, offset + 51);
+            listener.onHxmData(hxm);
+            return;
+        case BREATHING:
+        case ECG:
+        case ACCELEROMETER:
+            if (dlc <= HEADER) {
+                break;
+            }
+            // 10-bit samples, packed LSB first
+            int count = Math.min(MAX_SAMPLES, (dlc - HEADER) * 8 / 10);
+            if (id == ACCELEROMETER) {
+                count -= count % 3;
+            }
+            Waveform waveform = readWaveformHeader(id, buffer, offset, id == ACCELEROMETER ? 3
+                    : 1, count);
+            int start = offset + HEADER;
+            int last = offset + dlc - 1;
+            for (int i = 0, bit = 0; i < count; i++, bit += 10) {
+                int index = start + (bit >> 3);
+                int bits = buffer.get(index) & 0xff;
+                if (index < last) {
+                    bits |= (buffer.get(index + 1) & 0xff) << 8;
+                }
+                waveform.samples[i] = (bits >> (bit & 7)) & 0x3ff;
+            }
+            listener.onWaveform(waveform);
+            return;
+        case R_TO_R:
+            if (dlc <= HEADER) {
+                break;
+            }
+            int intervals = Math.min(MAX_SAMPLES, (dlc - HEADER) / 2);
+            Waveform rToR = readWaveformHeader(id, buffer, offset, 1, intervals);
+            for (int i = 0; i < intervals; i++) {
+                rToR.samples[i] = s16(buffer, offset + HEADER + 2 * i);
+            }
+            listener.onWaveform(rToR);
+            return;
+        default:
+            // e.g. lifesign, or replies to commands
+        }
+        mUnknown++;
+        listener.onFrame(id, buffer, offset, dlc, terminator);
+    }
+
+    /**
+     * @return The number of frames that failed the CRC or had no valid terminator
+     */
+    public long getCrcErrors() {
+        return mCrcErrors;
+    }
+
+    /**
+     * @return The number of valid frames
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return The number of bytes that were skipped while looking for the start of a frame
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    /**
+     * @return The number of valid frames that were not decoded, e.g. lifesigns, replies to
+     *         commands or packets that are too short
+     */
+    public long getUnknown() {
+        return mUnknown;
+    }
+
+    /**
+     * Decodes the complete frames between the position and the limit of a buffer. The position
+     * is moved past the last complete frame, so the caller can {@link ByteBuffer#compact()} the
+     * buffer and append the next bytes to the incomplete frame.
+     *
+     * @param buffer
+     *            Buffer in read mode
+     * @param listener
+     *            Listener for the decoded packets
+     * @return The number of valid frames
+     */
+    public int parse(ByteBuffer buffer, Listener listener) {
+        int frames = 0;
+        int limit = buffer.limit();
+        int start = buffer.position();
+        while (true) {
+            while (start < limit && buffer.get(start) != STX) {
+                start++;
+                mSkippedBytes++;
+            }
+            if (limit - start < OVERHEAD) {
+                break;
+            }
+            int id = u8(buffer, start + 1);
+            int dlc = u8(buffer, start + 2);
+            if (dlc > MAX_DLC) {
+                // not a frame: the STX was part of the data
+                mCrcErrors++;
+                start++;
+                continue;
+            }
+            int end = start + OVERHEAD + dlc;
+            if (end > limit) {
+                break;
+            }
+            int terminator = u8(buffer, end - 1);
+            if (crc8(buffer, start + 3, dlc) != u8(buffer, end - 2)
+                    || (terminator != ETX && terminator != ACK && terminator != NAK)) {
+                mCrcErrors++;
+                start++;
+                continue;
+            }
+            decode(id, buffer, start + 3, dlc, terminator, listener);
+            frames++;
+            start = end;
+        }
+        buffer.position(start);
+        mFrames += frames;
+        return frames;
+    }
+
+    /**
+     * Reads the timestamp of a BioHarness packet: year (2 bytes), month, day and milliseconds of
+     * the day (4 bytes).
+     */
+    public static long readTime(ByteBuffer buffer, int index) {
+        int year = u16(buffer, index);
+        int month = u8(buffer, index + 2);
+        int day = u8(buffer, index + 3);
+        long millis = u16(buffer, index + 4) | (long) u16(buffer, index + 6) << 16;
+        if (month < 1 || month > 12 || day < 1 || day > 31) {
+            return millis;
+        }
+        return epochDay(year, month, day) * 86400000L + millis;
+    }
+
+    private Waveform readWaveformHeader(int id, ByteBuffer buffer, int offset, int channels,
+            int count) {
+        Waveform waveform = mWaveform;
+        waveform.type = id;
+        waveform.sequence = u8(buffer, offset);
+        waveform.time = readTime(buffer, offset + 1);
+        waveform.channels = channels;
+        waveform.count = count;
+        return waveform;
+    }
+}
@@ -0,0 +1,371 @@
+package nl.sense_os.app.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.app.trace.SampleSink;
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Synthetic load for the ingest path: N virtual sensors that produce samples at a fixed rate and
+ * payload size. The load is ramped up in steps, with more sensors at every step, until a step
+ * breaches one of the service levels:
+ * <ul>
+ * <li>the queue of samples that are produced but not yet taken by the sink grows beyond its
+ * maximum depth, or samples are dropped because the queue is full. The depth is measured before
+ * each round of samples that are due, so it is the backlog of the sink.</li>
+ * <li>the 99th percentile of the latency from the time a sample was due until the sink took it
+ * exceeds its maximum</li>
+ * <li>the 99th percentile of an extra latency that is measured outside the generator, e.g. the
+ * lag of the main thread, exceeds its maximum (see {@link #addLimit})</li>
+ * </ul>
+ * The last step without a breach is the sustainable throughput. The ramp also ends at a maximum
+ * number of sensors.<br/>
+ * <br/>
+ * {@link #run} produces the samples on the calling thread, and a second thread hands them to the
+ * sink one by one, so the sink does not have to be thread-safe. The values are a fixed string of
+ * the payload size, so the generator itself costs little. The queue depth is also shown in the
+ * <code>"load/..."</code> gauges of the {@link MetricsRegistry}.
+ */
+public class LoadGenerator {
+
+    /**
+     * Settings of the ramp and the service levels.
+     */
+    public static class Config {
+
+        /**
+         * @return Settings for a mid-range phone: from 5 sensors at 10 Hz, 5 sensors more every
+         *         10 seconds up to 500, 100 byte values; at most 500 samples queued and a p99
+         *         latency of 250 ms
+         */
+        public static Config normal() {
+            return new Config(5, 5, 500, 10, 100, 10 * 1000L, 500, 250);
+        }
+
+        /** Number of sensors at the first step */
+        public final int sensors;
+        /** Number of sensors that is added at every next step */
+        public final int sensorStep;
+        /** Number of sensors of the last step */
+        public final int maxSensors;
+        /** Samples per second of each sensor */
+        public final float rate;
+        /** Length of the values, in characters */
+        public final int payload;
+        /** Duration of a step, in ms */
+        public final long stepTime;
+        /** Maximum number of samples in the queue */
+        public final int maxDepth;
+        /** Maximum 99th percentile of the latency, in ms */
+        public final long maxLatency;
+
+        public Config(int sensors, int sensorStep, int maxSensors, float rate, int payload,
+                long stepTime, int maxDepth, long maxLatency) {
+            this.sensors = sensors;
+            this.sensorStep = sensorStep;
+            this.maxSensors = maxSensors;
+            this.rate = rate;
+            this.payload = payload;
+            this.stepTime = stepTime;
+            this.maxDepth = maxDepth;
+            this.maxLatency = maxLatency;
+        }
+    }
+
+    /**
+     * Result of one step of the ramp.
+     */
+    public static class Step {
+        /** Number of sensors */
+        public final int sensors;
+        /** Samples per second that were produced */
+        public final double offered;
+        /** Samples per second that the sink took */
+        public final double ingested;
+        /** Maximum number of samples in the queue */
+        public final int maxDepth;
+        /** Samples that were dropped because the queue was full */
+        public final long dropped;
+        /** Latency percentiles in ms, see {@link LatencyHistogram#toString()} */
+        public final String latency;
+        /** The service level that was breached, or <code>null</code> */
+        public final String breach;
+
+        Step(int sensors, double offered, double ingested, int maxDepth, long dropped,
+                String latency, String breach) {
+            this.sensors = sensors;
+            this.offered = offered;
+            this.ingested = ingested;
+            this.maxDepth = maxDepth;
+            this.dropped = dropped;
+            this.latency = latency;
+            this.breach = breach;
+        }
+    }
+
+    /**
+     * Sample in the queue: the virtual sensor and the time it was due.
+     */
+    private static class Sample {
+        final int sensor;
+        final long due;
+
+        Sample(int sensor, long due) {
+            this.sensor = sensor;
+            this.due = due;
+        }
+    }
+
+    /**
+     * Marks the end of the samples in the queue.
+     */
+    private static final Sample END = new Sample(-1, 0);
+    private static final String DESCRIPTION = "load generator";
+    private static final String DATA_TYPE = "string";
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final Config mConfig;
+    private final BlockingQueue<Sample> mQueue;
+    private final String mValue;
+    private final List<String> mNames = new ArrayList<String>();
+    private final List<String> mLimitNames = new ArrayList<String>();
+    private final List<LatencyHistogram> mLimits = new ArrayList<LatencyHistogram>();
+    private final List<Long> mLimitMax = new ArrayList<Long>();
+    private final List<Step> mSteps = new ArrayList<Step>();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicLong mIngested = new AtomicLong();
+    private final MetricsRegistry.Gauge mDepthGauge;
+    private final MetricsRegistry.Gauge mSensorsGauge;
+    private volatile boolean mStopped;
+    private volatile IOException mError;
+    private int mSensors;
+
+    public LoadGenerator(Config config) {
+        mConfig = config;
+        // room for the samples beyond the maximum depth, to see how far the queue would grow
+        mQueue = new ArrayBlockingQueue<Sample>(Math.max(1, config.maxDepth) * 4);
+        char[] value = new char[config.payload];
+        Arrays.fill(value, 'x');
+        mValue = new String(value);
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        mDepthGauge = registry.gauge("load/queue depth");
+        mSensorsGauge = registry.gauge("load/sensors");
+    }
+
+    /**
+     * Adds a service level for a latency that is measured outside the generator, e.g. the lag of
+     * the main thread. The histogram is reset at the start of every step. Call before
+     * {@link #run}.
+     *
+     * @param maxP99
+     *            Maximum 99th percentile of the histogram
+     */
+    public void addLimit(String name, LatencyHistogram histogram, long maxP99) {
+        mLimitNames.add(name);
+        mLimits.add(histogram);
+        mLimitMax.add(maxP99);
+    }
+
+    /**
+     * Appends a line per step to a builder, and the sustainable throughput.
+     */
+    public void appendReport(StringBuilder builder) {
+        List<Step> steps = getSteps();
+        for (Step step : steps) {
+            builder.append(String.format(
+                    "%d sensors: offered %.0f/s, ingested %.0f/s, depth %d, dropped %d%n"
+                            + "  latency (ms) %s%n", step.sensors, step.offered, step.ingested,
+                    step.maxDepth, step.dropped, step.latency));
+            if (null != step.breach) {
+                builder.append("  breached: ").append(step.breach).append('\n');
+            }
+        }
+        Step sustainable = getSustainable();
+        if (null != sustainable) {
+            builder.append(String.format("Sustainable: %d sensors x %.1f Hz = %.0f samples/s, "
+                    + "%d byte values", sustainable.sensors, mConfig.rate, sustainable.ingested,
+                    mConfig.payload));
+        } else if (!steps.isEmpty()) {
+            builder.append("Not sustainable: the first step breached");
+        }
+    }
+
+    /**
+     * @return The failure of the sink that stopped the ramp, or <code>null</code>
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    private String getName(int sensor) {
+        while (mNames.size() <= sensor) {
+            mNames.add("load test " + mNames.size());
+        }
+        return mNames.get(sensor);
+    }
+
+    /**
+     * @return The number of sensors of the current step
+     */
+    public synchronized int getSensors() {
+        return mSensors;
+    }
+
+    /**
+     * @return The results of the steps that are done
+     */
+    public synchronized List<Step> getSteps() {
+        return new ArrayList<Step>(mSteps);
+    }
+
+    /**
+     * @return The last step without a breach, or <code>null</code> if there is none
+     */
+    public synchronized Step getSustainable() {
+        Step sustainable = null;
+        for (Step step : mSteps) {
+            if (null != step.breach) {
+                break;
+            }
+            sustainable = step;
+        }
+        return sustainable;
+    }
+
+    /**
+     * Ramps up the load until a service level is breached, the sink fails, the maximum number of
+     * sensors is done, or the generator is stopped. Samples that are still queued at the end are
+     * dropped.
+     *
+     * @param sink
+     *            Receives the samples, on another thread
+     * @throws InterruptedException
+     *             If the thread is interrupted
+     */
+    public void run(final SampleSink sink) throws InterruptedException {
+        Thread ingest = new Thread("LoadGenerator") {
+
+            @Override
+            public void run() {
+                take(sink);
+            }
+        };
+        ingest.start();
+        try {
+            int sensors = mConfig.sensors;
+            while (!mStopped && sensors <= mConfig.maxSensors) {
+                Step result = runStep(sensors);
+                synchronized (this) {
+                    mSteps.add(result);
+                }
+                if (null != result.breach) {
+                    break;
+                }
+                sensors += Math.max(1, mConfig.sensorStep);
+            }
+        } finally {
+            mQueue.clear();
+            mQueue.put(END);
+            ingest.join();
+            mDepthGauge.set(0);
+            mSensorsGauge.set(0);
+        }
+    }
+
+    private Step runStep(int sensors) throws InterruptedException {
+        synchronized (this) {
+            mSensors = sensors;
+        }
+        mSensorsGauge.set(sensors);
+        mLatency.reset();
+        for (LatencyHistogram limit : mLimits) {
+            limit.reset();
+        }
+        long ingested = mIngested.get();
+        long interval = Math.max(1, (long) (1000000000d / (mConfig.rate * sensors)));
+        long start = System.nanoTime();
+        long end = start + mConfig.stepTime * NANOS_PER_MILLI;
+        long due = start;
+        long produced = 0;
+        long dropped = 0;
+        int maxDepth = 0;
+        int sensor = 0;
+        String breach = null;
+        while (due < end && !mStopped && null == breach) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / NANOS_PER_MILLI, (int) (wait % NANOS_PER_MILLI));
+            }
+            // the backlog that the sink did not take since the previous round
+            int depth = mQueue.size();
+            mDepthGauge.set(depth);
+            maxDepth = Math.max(maxDepth, depth);
+            long now = System.nanoTime();
+            while (due <= now && due < end) {
+                if (!mQueue.offer(new Sample(sensor, due))) {
+                    dropped++;
+                }
+                produced++;
+                sensor = (sensor + 1) % sensors;
+                due += interval;
+            }
+            if (null != mError) {
+                breach = "sink failed: " + mError.getMessage();
+            } else if (dropped > 0) {
+                breach = "dropped samples";
+            } else if (depth > mConfig.maxDepth) {
+                breach = "queue depth " + depth + " > " + mConfig.maxDepth;
+            }
+        }
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        if (null == breach && mLatency.getPercentile(99) > mConfig.maxLatency) {
+            breach = "p99 latency " + mLatency.getPercentile(99) + " ms > " + mConfig.maxLatency
+                    + " ms";
+        }
+        for (int i = 0; i < mLimits.size() && null == breach; i++) {
+            long p99 = mLimits.get(i).getPercentile(99);
+            if (p99 > mLimitMax.get(i)) {
+                breach = mLimitNames.get(i) + " p99 " + p99 + " > " + mLimitMax.get(i);
+            }
+        }
+        return new Step(sensors, produced / seconds, (mIngested.get() - ingested) / seconds,
+                maxDepth, dropped, mLatency.toString(), breach);
+    }
+
+    /**
+     * Stops the ramp after the current round of samples.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    private void take(SampleSink sink) {
+        try {
+            Sample sample;
+            while (END != (sample = mQueue.take())) {
+                if (null != mError) {
+                    // keep the queue moving until the ramp notices
+                    continue;
+                }
+                try {
+                    sink.onSample(getName(sample.sensor), DESCRIPTION, DATA_TYPE, mValue,
+                            System.currentTimeMillis());
+                } catch (IOException e) {
+                    mError = e;
+                    continue;
+                }
+                mLatency.record((System.nanoTime() - sample.due) / NANOS_PER_MILLI);
+                mIngested.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package nl.sense_os.app.load;
+
+import nl.sense_os.app.SenseApplication;
+import nl.sense_os.app.trace.SampleSink;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.app.util.LatencyHistogram;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Main.Advanced;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs a {@link LoadGenerator} on the phone, for the developer mode. The virtual sensors send
+ * their samples with {@link DataPoints#send}, into the MsgHandler of the Sense Platform, like the
+ * samplers of the app. Next to the service levels of the generator, the lag of the main thread
+ * must stay below {@link #MAX_LAG}, so the load does not make the screens jank.<br/>
+ * <br/>
+ * The samples are stored and uploaded like other data, as the sensors "load test 0", "load test
+ * 1", etc. To keep them out of the production data, a test only starts when the Sense service
+ * uses the development server, and it stops when the developer mode is switched off, see
+ * {@link nl.sense_os.app.SenseSettings}.
+ */
+public class LoadTest {
+
+    /**
+     * Maximum 99th percentile of the lag of the main thread, in ms.
+     */
+    public static final long MAX_LAG = 100;
+    private static final long HEARTBEAT = 50;
+    private static final String TAG = "LoadTest";
+    private static LoadTest sInstance;
+
+    public static synchronized LoadTest getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new LoadTest(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LatencyHistogram mLag = new LatencyHistogram();
+    private LoadGenerator mGenerator;
+    private Thread mThread;
+    private long mNextBeat;
+    private final Runnable mHeartbeat = new Runnable() {
+
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            mLag.record(now - mNextBeat);
+            mNextBeat = now + HEARTBEAT;
+            mHandler.postAtTime(this, mNextBeat);
+        }
+    };
+
+    private LoadTest(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Appends the report of the current or last load test, see
+     * {@link LoadGenerator#appendReport}.
+     */
+    public synchronized void appendReport(StringBuilder builder) {
+        if (null == mGenerator) {
+            return;
+        }
+        if (isRunning()) {
+            builder.append("Running with ").append(mGenerator.getSensors())
+                    .append(" sensors\n");
+        }
+        mGenerator.appendReport(builder);
+        if (null != mGenerator.getError()) {
+            builder.append("\nFailed: ").append(mGenerator.getError().getMessage());
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return null != mThread && mThread.isAlive();
+    }
+
+    /**
+     * Starts a load test, unless one is running. Call on the main thread.
+     *
+     * @return <code>false</code> if the Sense service does not use the development server, so
+     *         the test did not start
+     */
+    public synchronized boolean start(LoadGenerator.Config config) {
+        if (isRunning()) {
+            return true;
+        }
+        SenseServiceStub service = ((SenseApplication) mContext).getSensePlatform()
+                .getService();
+        if (null == service || !service.getPrefBool(Advanced.DEV_MODE, false)) {
+            Log.w(TAG, "Load test only runs against the development server");
+            return false;
+        }
+        final LoadGenerator generator = new LoadGenerator(config);
+        generator.addLimit("main thread lag (ms)", mLag, MAX_LAG);
+        mGenerator = generator;
+        mNextBeat = SystemClock.uptimeMillis();
+        mHandler.post(mHeartbeat);
+        mThread = new Thread(TAG) {
+
+            @Override
+            public void run() {
+                try {
+                    generator.run(new SampleSink() {
+
+                        @Override
+                        public void onSample(String sensor, String description,
+                                String dataType, String value, long timestamp) {
+                            DataPoints.send(mContext, sensor, description, dataType, value,
+                                    timestamp);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Load test interrupted");
+                } finally {
+                    mHandler.removeCallbacks(mHeartbeat);
+                }
+                StringBuilder report = new StringBuilder();
+                generator.appendReport(report);
+                Log.i(TAG, "Load test done:\n" + report);
+            }
+        };
+        mThread.start();
+        return true;
+    }
+
+    /**
+     * Stops the load test after the current round of samples.
+     */
+    public synchronized void stop() {
+        if (null != mGenerator) {
+            mGenerator.stop();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package nl.sense_os.app.load;
+
+import nl.sense_os.app.R;
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Developer mode screen to run a {@link LoadTest} with the settings of a
+ * {@link LoadGenerator.Config}, and to follow its steps. The test keeps running when the screen
+ * is closed. Opened from the advanced settings when the developer mode is on.
+ */
+public class LoadTestActivity extends Activity {
+
+    private static final long REFRESH_INTERVAL = 1000;
+
+    private final Handler mHandler = new Handler();
+    private EditText mSensors;
+    private EditText mSensorStep;
+    private EditText mMaxSensors;
+    private EditText mRate;
+    private EditText mPayload;
+    private EditText mStepTime;
+    private EditText mMaxDepth;
+    private EditText mMaxLatency;
+    private Button mButton;
+    private TextView mReport;
+    private final Runnable mRefresh = new Runnable() {
+
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_load_test);
+        mSensors = (EditText) findViewById(R.id.load_sensors);
+        mSensorStep = (EditText) findViewById(R.id.load_sensor_step);
+        mMaxSensors = (EditText) findViewById(R.id.load_max_sensors);
+        mRate = (EditText) findViewById(R.id.load_rate);
+        mPayload = (EditText) findViewById(R.id.load_payload);
+        mStepTime = (EditText) findViewById(R.id.load_step_time);
+        mMaxDepth = (EditText) findViewById(R.id.load_max_depth);
+        mMaxLatency = (EditText) findViewById(R.id.load_max_latency);
+        mButton = (Button) findViewById(R.id.load_button);
+        mReport = (TextView) findViewById(R.id.load_report);
+
+        if (null == savedInstanceState) {
+            LoadGenerator.Config config = LoadGenerator.Config.normal();
+            mSensors.setText(String.valueOf(config.sensors));
+            mSensorStep.setText(String.valueOf(config.sensorStep));
+            mMaxSensors.setText(String.valueOf(config.maxSensors));
+            mRate.setText(String.valueOf(config.rate));
+            mPayload.setText(String.valueOf(config.payload));
+            mStepTime.setText(String.valueOf(config.stepTime / 1000));
+            mMaxDepth.setText(String.valueOf(config.maxDepth));
+            mMaxLatency.setText(String.valueOf(config.maxLatency));
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        mHandler.removeCallbacks(mRefresh);
+        super.onPause();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.post(mRefresh);
+    }
+
+    /**
+     * Handles clicks on the start/stop button.
+     */
+    public void onStartStopClick(View v) {
+        LoadTest test = LoadTest.getInstance(this);
+        if (test.isRunning()) {
+            test.stop();
+            return;
+        }
+        LoadGenerator.Config config;
+        try {
+            config = new LoadGenerator.Config(Integer.parseInt(mSensors.getText().toString()),
+                    Integer.parseInt(mSensorStep.getText().toString()),
+                    Integer.parseInt(mMaxSensors.getText().toString()),
+                    Float.parseFloat(mRate.getText().toString()),
+                    Integer.parseInt(mPayload.getText().toString()),
+                    Long.parseLong(mStepTime.getText().toString()) * 1000,
+                    Integer.parseInt(mMaxDepth.getText().toString()),
+                    Long.parseLong(mMaxLatency.getText().toString()));
+        } catch (NumberFormatException e) {
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (config.sensors < 1 || config.rate <= 0) {
+            Toast.makeText(this, R.string.load_invalid, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (!test.start(config)) {
+            Toast.makeText(this, R.string.load_dev_mode, Toast.LENGTH_LONG).show();
+            return;
+        }
+        refresh();
+    }
+
+    private void refresh() {
+        LoadTest test = LoadTest.getInstance(this);
+        mButton.setText(test.isRunning() ? R.string.load_stop : R.string.load_start);
+        StringBuilder report = new StringBuilder();
+        test.appendReport(report);
+        mReport.setText(report);
+    }
+}
@@ -0,0 +1,354 @@
+package nl.sense_os.app.location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.AccountedWakeLock;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.scheduler.SampleRates;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Samples the location with an {@link AdaptiveLocationStrategy}. At every location interval, the
+ * sampler listens to the accelerometer for a moment and starts a Wi-Fi scan. The strategy then
+ * decides to skip the fix, or to get it from the network provider or from GPS. Fixes are sent to
+ * the MsgHandler as "position" data points, and once a day a "location strategy" data point
+ * reports the fixes per provider and the GPS fixes that were saved.<br/>
+ * <br/>
+ * Used when the user enabled adaptive location. The location providers of the Sense service are
+ * switched off then, see {@link nl.sense_os.app.SenseSettings}.
+ */
+public class AdaptiveLocationSampler implements SensorEventListener, LocationListener {
+
+    private static final long MOTION_TIME = 2000;
+    private static final long GPS_TIMEOUT = 60 * 1000L;
+    private static final long NETWORK_TIMEOUT = 20 * 1000L;
+    private static final long STATS_INTERVAL = 24 * 60 * 60 * 1000L;
+    private static final String JOB = "adaptive location";
+    private static final String TAG = "AdaptiveLocationSampler";
+    private static AdaptiveLocationSampler sInstance;
+
+    public static synchronized AdaptiveLocationSampler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new AdaptiveLocationSampler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or stops sampling, depending on the status of the location module and the
+     * {@link AppPrefs.Location#ADAPTIVE} preference. The sample interval follows the sample rate
+     * of the location module.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.LOCATION, false)
+                && service.getPrefBool(AppPrefs.Location.ADAPTIVE, false);
+        int rate = SampleRates.getRate(service, SampleIntervals.LOCATION);
+        long interval = SampleIntervals.getInterval(SampleIntervals.LOCATION, rate);
+        getInstance(context).setActive(active, interval);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AdaptiveLocationStrategy mStrategy = new AdaptiveLocationStrategy(
+            AdaptiveLocationStrategy.Config.normal());
+    private final AccountedWakeLock mWakeLock;
+    private long mInterval;
+    private boolean mSampling;
+    private boolean mWaitingForFix;
+    private boolean mGpsOn;
+    private long mStatsStart = -1;
+    private int mSamples;
+    private double mSum;
+    private double mSumSquares;
+
+    private final Runnable mDecide = new Runnable() {
+
+        @Override
+        public void run() {
+            decide();
+        }
+    };
+
+    private final Runnable mFixTimeout = new Runnable() {
+
+        @Override
+        public void run() {
+            Log.w(TAG, "No location fix");
+            stopFix();
+        }
+    };
+
+    private AdaptiveLocationSampler(Context context) {
+        mContext = context;
+        mWakeLock = new AccountedWakeLock(context, TAG, EnergyLedger.LOCATION);
+    }
+
+    /**
+     * Stops listening to the accelerometer, and lets the strategy decide how to get a fix.
+     */
+    private synchronized void decide() {
+        if (!mSampling) {
+            return;
+        }
+        SensorManager sensorMgr = (SensorManager) mContext
+                .getSystemService(Context.SENSOR_SERVICE);
+        sensorMgr.unregisterListener(this);
+        mSampling = false;
+        EnergyLedger.getInstance().setOn(EnergyLedger.LOCATION, EnergyLedger.SENSOR, false,
+                System.currentTimeMillis());
+
+        long now = SystemClock.elapsedRealtime();
+        if (mSamples > 1) {
+            double mean = mSum / mSamples;
+            mStrategy.onMotion(now, (float) (mSumSquares / mSamples - mean * mean));
+        }
+        List<String> bssids = getWifiFingerprint();
+        if (null != bssids) {
+            mStrategy.onWifiScan(bssids);
+        }
+
+        int decision = mStrategy.decide(now);
+        sendStats(now);
+        String provider = getProvider(decision);
+        if (null == provider) {
+            Log.v(TAG, "Skip location fix");
+            releaseWakeLock();
+            return;
+        }
+        LocationManager locationMgr = (LocationManager) mContext
+                .getSystemService(Context.LOCATION_SERVICE);
+        Log.v(TAG, "Get location fix from " + provider);
+        mWaitingForFix = true;
+        locationMgr.requestLocationUpdates(provider, 0, 0, this, Looper.getMainLooper());
+        mGpsOn = LocationManager.GPS_PROVIDER.equals(provider);
+        if (mGpsOn) {
+            EnergyLedger.getInstance().setOn(EnergyLedger.LOCATION, EnergyLedger.GPS, true,
+                    System.currentTimeMillis());
+        }
+        mHandler.postDelayed(mFixTimeout,
+                LocationManager.GPS_PROVIDER.equals(provider) ? GPS_TIMEOUT : NETWORK_TIMEOUT);
+    }
+
+    /**
+     * @return The location provider for the decision of the strategy, another provider if that
+     *         one is disabled, or <code>null</code> to skip the fix
+     */
+    private String getProvider(int decision) {
+        if (decision == AdaptiveLocationStrategy.SKIP) {
+            return null;
+        }
+        LocationManager locationMgr = (LocationManager) mContext
+                .getSystemService(Context.LOCATION_SERVICE);
+        String provider = decision == AdaptiveLocationStrategy.GPS ? LocationManager.GPS_PROVIDER
+                : LocationManager.NETWORK_PROVIDER;
+        if (locationMgr.isProviderEnabled(provider)) {
+            return provider;
+        }
+        String other = decision == AdaptiveLocationStrategy.GPS ? LocationManager.NETWORK_PROVIDER
+                : LocationManager.GPS_PROVIDER;
+        return locationMgr.isProviderEnabled(other) ? other : null;
+    }
+
+    /**
+     * @return The BSSIDs of the last Wi-Fi scan, or <code>null</code> if Wi-Fi is off
+     */
+    private List<String> getWifiFingerprint() {
+        WifiManager wifiMgr = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+        if (!wifiMgr.isWifiEnabled()) {
+            return null;
+        }
+        List<ScanResult> results = wifiMgr.getScanResults();
+        if (null == results) {
+            return null;
+        }
+        List<String> bssids = new ArrayList<String>(results.size());
+        for (ScanResult result : results) {
+            bssids.add(result.BSSID);
+        }
+        return bssids;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // not used
+    }
+
+    @Override
+    public synchronized void onLocationChanged(Location location) {
+        if (!mWaitingForFix) {
+            return;
+        }
+        String value = "{\"latitude\":" + location.getLatitude() + ",\"longitude\":"
+                + location.getLongitude() + ",\"accuracy\":" + location.getAccuracy()
+                + ",\"altitude\":" + location.getAltitude() + ",\"speed\":" + location.getSpeed()
+                + ",\"bearing\":" + location.getBearing() + ",\"provider\":\""
+                + location.getProvider() + "\"}";
+        DataPoints.send(mContext, "position", location.getProvider(), "json", value,
+                location.getTime());
+        stopFix();
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+        // not used
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+        // not used
+    }
+
+    @Override
+    public synchronized void onSensorChanged(SensorEvent event) {
+        float x = event.values[0];
+        float y = event.values[1];
+        float z = event.values[2];
+        double magnitude = Math.sqrt(x * x + y * y + z * z);
+        mSamples++;
+        mSum += magnitude;
+        mSumSquares += magnitude * magnitude;
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+        // not used
+    }
+
+    private void releaseWakeLock() {
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    /**
+     * Sends the decisions of the strategy once a day.
+     */
+    private void sendStats(long now) {
+        if (mStatsStart < 0) {
+            mStatsStart = now;
+        }
+        if (now - mStatsStart < STATS_INTERVAL) {
+            return;
+        }
+        String value = "{\"skipped\":" + mStrategy.getCount(AdaptiveLocationStrategy.SKIP)
+                + ",\"network\":" + mStrategy.getCount(AdaptiveLocationStrategy.NETWORK)
+                + ",\"gps\":" + mStrategy.getCount(AdaptiveLocationStrategy.GPS)
+                + ",\"gps saved per day\":" + Math.round(mStrategy.getGpsFixesSavedPerDay())
+                + "}";
+        Log.v(TAG, "Location strategy: " + value);
+        DataPoints.send(mContext, "location strategy", "adaptive location", "json", value,
+                System.currentTimeMillis());
+        mStrategy.resetCounts();
+        mStatsStart = now;
+    }
+
+    /**
+     * Schedules or cancels the location samples.
+     *
+     * @param active
+     *            <code>true</code> to start sampling
+     * @param interval
+     *            Sample interval in milliseconds
+     */
+    public synchronized void setActive(boolean active, long interval) {
+        boolean scheduled = mInterval > 0;
+        if (active == scheduled && (!active || interval == mInterval)) {
+            return;
+        }
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(mContext);
+        scheduler.cancel(JOB);
+        stopSample();
+        stopFix();
+        mInterval = active ? interval : 0;
+        if (active) {
+            scheduler.schedule(JOB, EnergyLedger.LOCATION, interval, interval / 10, new Runnable() {
+
+                @Override
+                public void run() {
+                    startSample();
+                }
+            });
+        }
+        Log.v(TAG, "Adaptive location " + (active ? "started" : "stopped"));
+    }
+
+    /**
+     * Starts a sample: listens to the accelerometer and starts a Wi-Fi scan. The strategy decides
+     * when the motion window is complete.
+     */
+    private synchronized void startSample() {
+        if (mSampling || mWaitingForFix) {
+            // still busy with the previous sample
+            return;
+        }
+        mWakeLock.acquire(MOTION_TIME + GPS_TIMEOUT);
+        mSamples = 0;
+        mSum = 0;
+        mSumSquares = 0;
+        mSampling = true;
+
+        SensorManager sensorMgr = (SensorManager) mContext
+                .getSystemService(Context.SENSOR_SERVICE);
+        Sensor accelerometer = sensorMgr.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        if (null != accelerometer) {
+            sensorMgr.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_UI);
+            EnergyLedger.getInstance().setOn(EnergyLedger.LOCATION, EnergyLedger.SENSOR, true,
+                    System.currentTimeMillis());
+        }
+        WifiManager wifiMgr = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
+        if (wifiMgr.isWifiEnabled()) {
+            wifiMgr.startScan();
+        }
+        mHandler.postDelayed(mDecide, MOTION_TIME);
+    }
+
+    private synchronized void stopFix() {
+        mHandler.removeCallbacks(mFixTimeout);
+        if (mWaitingForFix) {
+            LocationManager locationMgr = (LocationManager) mContext
+                    .getSystemService(Context.LOCATION_SERVICE);
+            locationMgr.removeUpdates(this);
+            mWaitingForFix = false;
+            if (mGpsOn) {
+                mGpsOn = false;
+                EnergyLedger.getInstance().setOn(EnergyLedger.LOCATION, EnergyLedger.GPS, false,
+                        System.currentTimeMillis());
+            }
+        }
+        releaseWakeLock();
+    }
+
+    private synchronized void stopSample() {
+        mHandler.removeCallbacks(mDecide);
+        if (mSampling) {
+            SensorManager sensorMgr = (SensorManager) mContext
+                    .getSystemService(Context.SENSOR_SERVICE);
+            sensorMgr.unregisterListener(this);
+            mSampling = false;
+            EnergyLedger.getInstance().setOn(EnergyLedger.LOCATION, EnergyLedger.SENSOR, false,
+                    System.currentTimeMillis());
+        }
+    }
+}
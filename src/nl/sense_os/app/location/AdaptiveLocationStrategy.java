@@ -0,0 +1,219 @@
+package nl.sense_os.app.location;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides how to get the next location fix, based on whether the phone moved. The phone counts as
+ * stationary when the accelerometer has been still for a while, and the Wi-Fi access points
+ * around it are the same as at the last fix:
+ * <ul>
+ * <li>moving: {@link #GPS}</li>
+ * <li>stationary at the place of the last fix: {@link #SKIP}, with a {@link #NETWORK} fix now and
+ * then to confirm the position</li>
+ * <li>stationary at a new place, or no recent fix: {@link #NETWORK}</li>
+ * </ul>
+ * The Wi-Fi fingerprints are compared with the Jaccard similarity of the sets of BSSIDs. Without
+ * Wi-Fi scans, the decision is based on the accelerometer only.<br/>
+ * <br/>
+ * Times are in milliseconds on any monotonic clock. The strategy does no sensing itself, so it can
+ * be tested with replayed traces. Not thread-safe.
+ */
+public class AdaptiveLocationStrategy {
+
+    /**
+     * Settings of the strategy.
+     */
+    public static class Config {
+
+        /**
+         * @return The settings that are used on the phone
+         */
+        public static Config normal() {
+            return new Config(0.15f, 3 * 60 * 1000L, 0.4f, 30 * 60 * 1000L);
+        }
+
+        final float stillVariance;
+        final long stillTime;
+        final float minSimilarity;
+        final long maxSkip;
+
+        /**
+         * @param stillVariance
+         *            Maximum variance of the acceleration magnitude in (m/s&sup2;)&sup2; when the
+         *            phone is still
+         * @param stillTime
+         *            Time in ms that the phone must be still to count as stationary
+         * @param minSimilarity
+         *            Minimum similarity of the Wi-Fi fingerprints to count as the same place
+         * @param maxSkip
+         *            Maximum time in ms without a fix while stationary
+         */
+        public Config(float stillVariance, long stillTime, float minSimilarity, long maxSkip) {
+            this.stillVariance = stillVariance;
+            this.stillTime = stillTime;
+            this.minSimilarity = minSimilarity;
+            this.maxSkip = maxSkip;
+        }
+    }
+
+    /**
+     * Decision: do not get a fix, the phone did not move.
+     */
+    public static final int SKIP = 0;
+
+    /**
+     * Decision: get a fix from the network location provider.
+     */
+    public static final int NETWORK = 1;
+
+    /**
+     * Decision: get a fix from GPS.
+     */
+    public static final int GPS = 2;
+
+    /**
+     * Computes the Jaccard similarity of two Wi-Fi fingerprints: the number of access points they
+     * share, divided by the number of access points in either of them.
+     *
+     * @return The similarity between 0 and 1, or 1 if both are empty
+     */
+    public static float similarity(Set<String> a, Set<String> b) {
+        if (a.isEmpty() && b.isEmpty()) {
+            return 1;
+        }
+        int shared = 0;
+        for (String bssid : a) {
+            if (b.contains(bssid)) {
+                shared++;
+            }
+        }
+        return (float) shared / (a.size() + b.size() - shared);
+    }
+
+    private final Config mConfig;
+    private final int[] mCounts = new int[3];
+    private long mLastMovement;
+    private boolean mHasMotion;
+    private Set<String> mFingerprint;
+    private Set<String> mFixFingerprint;
+    private long mLastFix = Long.MIN_VALUE;
+    private long mFirstDecision = -1;
+    private long mLastDecision;
+
+    public AdaptiveLocationStrategy(Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * Decides how to get a fix now. The decision is counted, and a decision other than
+     * {@link #SKIP} is taken as a new fix.
+     *
+     * @param time
+     *            Current time
+     * @return {@link #SKIP}, {@link #NETWORK} or {@link #GPS}
+     */
+    public int decide(long time) {
+        int decision;
+        if (!isStationary(time)) {
+            decision = GPS;
+        } else if (mLastFix != Long.MIN_VALUE && time - mLastFix < mConfig.maxSkip
+                && isAtFixPlace()) {
+            decision = SKIP;
+        } else {
+            decision = NETWORK;
+        }
+
+        mCounts[decision]++;
+        if (mFirstDecision < 0) {
+            mFirstDecision = time;
+        }
+        mLastDecision = time;
+        if (decision != SKIP) {
+            mLastFix = time;
+            mFixFingerprint = mFingerprint;
+        }
+        return decision;
+    }
+
+    /**
+     * @param decision
+     *            {@link #SKIP}, {@link #NETWORK} or {@link #GPS}
+     * @return The number of times the decision was made
+     */
+    public int getCount(int decision) {
+        return mCounts[decision];
+    }
+
+    /**
+     * @return The number of decisions that did not use GPS, i.e. the GPS fixes that were saved
+     *         compared to getting a GPS fix every time
+     */
+    public int getGpsFixesSaved() {
+        return mCounts[SKIP] + mCounts[NETWORK];
+    }
+
+    /**
+     * @return The GPS fixes saved per day, since the first decision
+     */
+    public double getGpsFixesSavedPerDay() {
+        long elapsed = mLastDecision - mFirstDecision;
+        return elapsed > 0 ? getGpsFixesSaved() * 86400000.0 / elapsed : 0;
+    }
+
+    /**
+     * @return <code>true</code> if the Wi-Fi fingerprint did not change since the last fix, or
+     *         if there are no Wi-Fi scans
+     */
+    private boolean isAtFixPlace() {
+        if (null == mFingerprint || null == mFixFingerprint) {
+            return null == mFingerprint;
+        }
+        return similarity(mFingerprint, mFixFingerprint) >= mConfig.minSimilarity;
+    }
+
+    /**
+     * @return <code>true</code> if the accelerometer has been still for long enough
+     */
+    public boolean isStationary(long time) {
+        return mHasMotion && time - mLastMovement >= mConfig.stillTime;
+    }
+
+    /**
+     * Handles a window of accelerometer samples.
+     *
+     * @param time
+     *            End time of the window
+     * @param variance
+     *            Variance of the acceleration magnitude in the window, in (m/s&sup2;)&sup2;
+     */
+    public void onMotion(long time, float variance) {
+        if (!mHasMotion) {
+            // nothing is known about the time before the first window
+            mLastMovement = time;
+            mHasMotion = true;
+        }
+        if (variance > mConfig.stillVariance) {
+            mLastMovement = time;
+        }
+    }
+
+    /**
+     * Handles the results of a Wi-Fi scan.
+     *
+     * @param bssids
+     *            BSSIDs of the access points that were found
+     */
+    public void onWifiScan(Collection<String> bssids) {
+        mFingerprint = new HashSet<String>(bssids);
+    }
+
+    /**
+     * Resets the counts of the decisions.
+     */
+    public void resetCounts() {
+        mCounts[SKIP] = mCounts[NETWORK] = mCounts[GPS] = 0;
+        mFirstDecision = -1;
+    }
+}
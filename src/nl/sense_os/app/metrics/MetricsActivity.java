@@ -0,0 +1,91 @@
+package nl.sense_os.app.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.sense_os.app.R;
+import nl.sense_os.app.metrics.MetricsRegistry.Counter;
+import nl.sense_os.app.metrics.MetricsRegistry.Gauge;
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.widget.TextView;
+
+/**
+ * Developer mode screen with the live values of the {@link MetricsRegistry}, refreshed every
+ * second. Counters are shown with their rate since the previous refresh, histograms with their
+ * percentiles. Below the metrics are the phases of the last starts of the app, see
+ * {@link StartupTraceLog}. Opened from the advanced settings when the developer mode is on.
+ */
+public class MetricsActivity extends Activity {
+
+    private static final long REFRESH_INTERVAL = 1000;
+
+    private final Handler mHandler = new Handler();
+    private final Map<String, Long> mPrevious = new HashMap<String, Long>();
+    private long mPreviousTime;
+    private String mStartups;
+    private TextView mText;
+    private final Runnable mRefresh = new Runnable() {
+
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        mText = (TextView) findViewById(R.id.metrics_text);
+    }
+
+    @Override
+    protected void onPause() {
+        mHandler.removeCallbacks(mRefresh);
+        super.onPause();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mPrevious.clear();
+        StringBuilder startups = new StringBuilder(getString(R.string.metrics_startups));
+        StartupTraceLog.appendReport(this, startups);
+        mStartups = startups.toString();
+        mHandler.post(mRefresh);
+    }
+
+    private void refresh() {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        long now = System.currentTimeMillis();
+        long elapsed = now - mPreviousTime;
+        StringBuilder builder = new StringBuilder();
+        builder.append(getString(R.string.metrics_since,
+                (now - registry.getStartTime()) / 60000));
+        for (Map.Entry<String, Object> entry : registry.snapshot().entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            builder.append("\n\n").append(name).append('\n');
+            if (metric instanceof Counter) {
+                long value = ((Counter) metric).get();
+                builder.append(value);
+                Long previous = mPrevious.get(name);
+                if (null != previous && elapsed > 0) {
+                    builder.append(" (").append((value - previous) * 10000 / elapsed / 10f)
+                            .append("/s)");
+                }
+                mPrevious.put(name, value);
+            } else if (metric instanceof Gauge) {
+                builder.append(((Gauge) metric).get());
+            } else {
+                builder.append(metric);
+            }
+        }
+        builder.append("\n\n\n").append(mStartups);
+        mPreviousTime = now;
+        mText.setText(builder);
+    }
+}
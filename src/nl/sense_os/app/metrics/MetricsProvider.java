@@ -0,0 +1,91 @@
+package nl.sense_os.app.metrics;
+
+import java.util.Map;
+
+import nl.sense_os.app.metrics.MetricsRegistry.Counter;
+import nl.sense_os.app.metrics.MetricsRegistry.Gauge;
+import nl.sense_os.app.util.LatencyHistogram;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+/**
+ * Read-only provider with a snapshot of the {@link MetricsRegistry}, one row per metric, to pull
+ * the metrics of a phone in the field over adb:
+ *
+ * <pre>
+ * adb shell content query --uri content://nl.sense_os.app.metrics/snapshot
+ * </pre>
+ *
+ * Counters and gauges have a {@link #VALUE}; histograms have a {@link #COUNT}, {@link #MEAN},
+ * percentiles and {@link #MAX}. The provider requires the <code>DUMP</code> permission, which
+ * the adb shell has and other apps do not get.
+ */
+public class MetricsProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "nl.sense_os.app.metrics";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/snapshot");
+    public static final String NAME = "name";
+    public static final String TYPE = "type";
+    public static final String VALUE = "value";
+    public static final String COUNT = "count";
+    public static final String MEAN = "mean";
+    public static final String P50 = "p50";
+    public static final String P90 = "p90";
+    public static final String P99 = "p99";
+    public static final String MAX = "max";
+    private static final String[] COLUMNS = { NAME, TYPE, VALUE, COUNT, MEAN, P50, P90, P99,
+            MAX };
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "vnd.android.cursor.dir/vnd.sense_os.metric";
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (Map.Entry<String, Object> entry : MetricsRegistry.getInstance().snapshot()
+                .entrySet()) {
+            Object metric = entry.getValue();
+            String type = MetricsRegistry.typeOf(metric);
+            if (metric instanceof Counter) {
+                cursor.addRow(new Object[] { entry.getKey(), type, ((Counter) metric).get(),
+                        null, null, null, null, null, null });
+            } else if (metric instanceof Gauge) {
+                cursor.addRow(new Object[] { entry.getKey(), type, ((Gauge) metric).get(), null,
+                        null, null, null, null, null });
+            } else {
+                LatencyHistogram histogram = (LatencyHistogram) metric;
+                cursor.addRow(new Object[] { entry.getKey(), type, null, histogram.getCount(),
+                        histogram.getMean(), histogram.getPercentile(50),
+                        histogram.getPercentile(90), histogram.getPercentile(99),
+                        histogram.getMax() });
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+}
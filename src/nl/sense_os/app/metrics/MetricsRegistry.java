@@ -0,0 +1,205 @@
+package nl.sense_os.app.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Registry of the metrics of the hot paths of the app, for diagnostics in the field: counters,
+ * gauges, and {@link LatencyHistogram}s, by name. Names are paths like
+ * <code>"ingest/accelerometer"</code>, so the metrics of a component sort together.<br/>
+ * <br/>
+ * Updates are lock-free and do not allocate, so they can be done on sensor and I/O threads. Keep
+ * the metric in a field where possible; looking it up by name is a lock-free map lookup, and only
+ * the first lookup of a name allocates. The metrics live in memory, from the start of the process.
+ * See {@link MetricsActivity} and {@link MetricsProvider} for the live values.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Count that only goes up, e.g. of data points or bytes.
+     */
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counters with a common prefix, e.g. the ingest counter of each sensor. Looking up a counter
+     * by the rest of its name does not allocate, unlike a lookup by the concatenated name.
+     */
+    public static class Family {
+        private final MetricsRegistry mRegistry;
+        private final String mPrefix;
+        private final Map<String, Counter> mCounters = new ConcurrentHashMap<String, Counter>();
+
+        Family(MetricsRegistry registry, String prefix) {
+            mRegistry = registry;
+            mPrefix = prefix;
+        }
+
+        /**
+         * @return The counter with the name after the prefix, which is created on first use
+         */
+        public Counter counter(String name) {
+            Counter counter = mCounters.get(name);
+            if (null == counter) {
+                // the registry returns the same counter to a concurrent first lookup
+                counter = mRegistry.counter(mPrefix + name);
+                mCounters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * Current value of something, e.g. a queue depth.
+     */
+    public static class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public long get() {
+            return mValue.get();
+        }
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+    }
+
+    public static final String TYPE_COUNTER = "counter";
+    public static final String TYPE_GAUGE = "gauge";
+    public static final String TYPE_HISTOGRAM = "histogram";
+    private static final MetricsRegistry sInstance = new MetricsRegistry();
+
+    /**
+     * @return The registry of the app
+     */
+    public static MetricsRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return The type of a metric of the registry, e.g. {@link #TYPE_COUNTER}
+     */
+    public static String typeOf(Object metric) {
+        if (metric instanceof Counter) {
+            return TYPE_COUNTER;
+        } else if (metric instanceof Gauge) {
+            return TYPE_GAUGE;
+        } else {
+            return TYPE_HISTOGRAM;
+        }
+    }
+
+    private final ConcurrentMap<String, Object> mMetrics = new ConcurrentHashMap<String, Object>();
+    private final long mStartTime = System.currentTimeMillis();
+
+    /**
+     * Appends the metrics, one per line, sorted by name.
+     */
+    public void appendReport(StringBuilder builder) {
+        for (Map.Entry<String, Object> entry : snapshot().entrySet()) {
+            Object metric = entry.getValue();
+            builder.append(entry.getKey()).append(": ");
+            if (metric instanceof Counter) {
+                builder.append(((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                builder.append(((Gauge) metric).get());
+            } else {
+                builder.append(metric);
+            }
+            builder.append('\n');
+        }
+    }
+
+    /**
+     * @return The counter with the name, which is created on first use
+     * @throws IllegalArgumentException
+     *             If the name is used by another type of metric
+     */
+    public Counter counter(String name) {
+        Object metric = mMetrics.get(name);
+        if (null == metric) {
+            metric = register(name, new Counter());
+        }
+        if (!(metric instanceof Counter)) {
+            throw new IllegalArgumentException(name + " is not a counter");
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * @return The counters of which the names start with the prefix, e.g. <code>"ingest/"</code>
+     */
+    public Family family(String prefix) {
+        return new Family(this, prefix);
+    }
+
+    /**
+     * @return The gauge with the name, which is created on first use
+     * @throws IllegalArgumentException
+     *             If the name is used by another type of metric
+     */
+    public Gauge gauge(String name) {
+        Object metric = mMetrics.get(name);
+        if (null == metric) {
+            metric = register(name, new Gauge());
+        }
+        if (!(metric instanceof Gauge)) {
+            throw new IllegalArgumentException(name + " is not a gauge");
+        }
+        return (Gauge) metric;
+    }
+
+    /**
+     * @return The time in milliseconds since when the metrics are counted
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return The histogram with the name, which is created on first use
+     * @throws IllegalArgumentException
+     *             If the name is used by another type of metric
+     */
+    public LatencyHistogram histogram(String name) {
+        Object metric = mMetrics.get(name);
+        if (null == metric) {
+            metric = register(name, new LatencyHistogram());
+        }
+        if (!(metric instanceof LatencyHistogram)) {
+            throw new IllegalArgumentException(name + " is not a histogram");
+        }
+        return (LatencyHistogram) metric;
+    }
+
+    private Object register(String name, Object metric) {
+        Object existing = mMetrics.putIfAbsent(name, metric);
+        return null != existing ? existing : metric;
+    }
+
+    /**
+     * @return The metrics by name, sorted. The metrics themselves are live.
+     */
+    public SortedMap<String, Object> snapshot() {
+        return new TreeMap<String, Object>(mMetrics);
+    }
+}
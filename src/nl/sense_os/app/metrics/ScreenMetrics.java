@@ -0,0 +1,55 @@
+package nl.sense_os.app.metrics;
+
+import nl.sense_os.app.metrics.MetricsRegistry.Counter;
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Debug;
+
+/**
+ * Counts the binder transactions that a screen causes while it is in the foreground, in the
+ * counters <code>"screen/&lt;name&gt;/binder calls"</code> and
+ * <code>"screen/&lt;name&gt;/visits"</code> of the {@link MetricsRegistry}. Call
+ * {@link #onResume()} and {@link #onPause()} from the lifecycle methods of the activity.<br/>
+ * <br/>
+ * The count is of the whole process, so it includes the transactions of background threads while
+ * the screen is shown. The Sense service runs in the process of the app, so calls on its stub are
+ * not binder transactions; those are calls to the system services and to content providers.
+ * Before Android 2.2, and on devices where the kernel does not report the transactions, only the
+ * visits are counted.
+ */
+public class ScreenMetrics {
+
+    private final Counter mBinderCalls;
+    private final Counter mVisits;
+    private int mResumed = -1;
+
+    public ScreenMetrics(String screen) {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        mBinderCalls = registry.counter("screen/" + screen + "/binder calls");
+        mVisits = registry.counter("screen/" + screen + "/visits");
+    }
+
+    /**
+     * @return The number of binder transactions sent by the process, or -1 if unknown
+     */
+    @TargetApi(Build.VERSION_CODES.FROYO)
+    private static int getSentTransactions() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            return -1;
+        }
+        return Debug.getBinderSentTransactions();
+    }
+
+    public void onPause() {
+        int sent = getSentTransactions();
+        if (mResumed >= 0 && sent >= mResumed) {
+            mBinderCalls.add(sent - mResumed);
+        }
+        mResumed = -1;
+    }
+
+    public void onResume() {
+        mVisits.increment();
+        mResumed = getSentTransactions();
+    }
+}
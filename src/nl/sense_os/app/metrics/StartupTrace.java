@@ -0,0 +1,155 @@
+package nl.sense_os.app.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.commonsense.Json;
+
+/**
+ * Trace of the phases of a cold start of the app, from <code>Application.onCreate</code> to the
+ * first status that the main screen shows:
+ * <ol>
+ * <li>{@link #BIND}: binding to the Sense service, until it is connected</li>
+ * <li>{@link #SERVICE_CREATE}: starting the Sense service, if it was not running</li>
+ * <li>{@link #MODULE_RESTORE}: restoring the samplers of the app</li>
+ * <li>{@link #STATUS_CALLBACK}: the first status request of the main screen, until the service
+ * calls back</li>
+ * <li>{@link #FIRST_UI}: the first status callback, until the main screen shows it</li>
+ * </ol>
+ * Each phase is recorded once, with the time it began after the start of the process and its
+ * duration, also in the <code>"startup/..."</code> histograms of the {@link MetricsRegistry}.
+ * Failures, e.g. a status request before the service was connected, are kept with the phase.
+ * Once the trace is finished (see {@link #finish()}), it is not changed anymore.
+ */
+public class StartupTrace {
+
+    public static final String BIND = "bind";
+    public static final String SERVICE_CREATE = "service create";
+    public static final String MODULE_RESTORE = "module restore";
+    public static final String STATUS_CALLBACK = "first status callback";
+    public static final String FIRST_UI = "first updateUi";
+    static final String[] PHASES = { BIND, SERVICE_CREATE, MODULE_RESTORE, STATUS_CALLBACK,
+            FIRST_UI };
+    private static final int MAX_FAILURES = 10;
+    private static final StartupTrace sInstance = new StartupTrace();
+
+    /**
+     * @return The trace of the current process, which starts when this class is loaded
+     */
+    public static StartupTrace getInstance() {
+        return sInstance;
+    }
+
+    private static int indexOf(String phase) {
+        for (int i = 0; i < PHASES.length; i++) {
+            if (PHASES[i].equals(phase)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown startup phase: " + phase);
+    }
+
+    private final long mStartTime = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+    private final long[] mBegin = new long[PHASES.length];
+    private final long[] mEnd = new long[PHASES.length];
+    private final List<String> mFailures = new ArrayList<String>();
+    private boolean mFinished;
+
+    private StartupTrace() {
+        for (int i = 0; i < PHASES.length; i++) {
+            mBegin[i] = -1;
+            mEnd[i] = -1;
+        }
+    }
+
+    /**
+     * Marks the beginning of a phase. Only the first call for a phase counts.
+     */
+    public synchronized void begin(String phase) {
+        int i = indexOf(phase);
+        if (!mFinished && mBegin[i] < 0) {
+            mBegin[i] = now();
+        }
+    }
+
+    /**
+     * Marks the end of a phase that began. Only the first call for a phase counts.
+     */
+    public synchronized void end(String phase) {
+        int i = indexOf(phase);
+        if (!mFinished && mBegin[i] >= 0 && mEnd[i] < 0) {
+            mEnd[i] = now();
+            MetricsRegistry.getInstance().histogram("startup/" + phase + " (ms)")
+                    .record(mEnd[i] - mBegin[i]);
+        }
+    }
+
+    /**
+     * Records that a phase failed, e.g. because the service was not connected yet.
+     */
+    public synchronized void fail(String phase, String reason) {
+        indexOf(phase);
+        if (!mFinished && mFailures.size() < MAX_FAILURES) {
+            mFailures.add(phase + " at " + now() + " ms: " + reason);
+        }
+    }
+
+    /**
+     * Finishes the trace, so it can be stored.
+     *
+     * @return <code>false</code> if the trace was already finished
+     */
+    public synchronized boolean finish() {
+        if (mFinished) {
+            return false;
+        }
+        mFinished = true;
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the main screen showed its first status
+     */
+    public synchronized boolean isComplete() {
+        return mEnd[PHASES.length - 1] >= 0;
+    }
+
+    /**
+     * @return Milliseconds since the start of the trace
+     */
+    private long now() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    /**
+     * @return The trace as one line of JSON, e.g.
+     *         <code>{"start":1384250000000,"phases":{"bind":{"at":12,"ms":340},...},
+     *         "failures":[...]}</code>. Phases that did not begin are left out; phases that did
+     *         not end have no duration.
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\"start\":").append(mStartTime);
+        json.append(",\"phases\":{");
+        boolean first = true;
+        for (int i = 0; i < PHASES.length; i++) {
+            if (mBegin[i] < 0) {
+                continue;
+            }
+            json.append(first ? "" : ",");
+            Json.appendQuoted(json, PHASES[i]);
+            json.append(":{\"at\":").append(mBegin[i]);
+            if (mEnd[i] >= 0) {
+                json.append(",\"ms\":").append(mEnd[i] - mBegin[i]);
+            }
+            json.append('}');
+            first = false;
+        }
+        json.append("},\"failures\":[");
+        for (int i = 0; i < mFailures.size(); i++) {
+            json.append(i > 0 ? "," : "");
+            Json.appendQuoted(json, mFailures.get(i));
+        }
+        return json.append("]}").toString();
+    }
+}
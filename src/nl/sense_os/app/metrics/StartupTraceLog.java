@@ -0,0 +1,166 @@
+package nl.sense_os.app.metrics;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import nl.sense_os.app.commonsense.Json;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Keeps the {@link StartupTrace}s of the last {@link #MAX_STARTS} starts of the app in a private
+ * file, one JSON line per start, for the developer mode screen. A trace is stored when the main
+ * screen showed its first status, or when the app started without showing it within
+ * {@link #TIMEOUT}, e.g. after a boot or when a phase failed.
+ */
+public class StartupTraceLog {
+
+    public static final int MAX_STARTS = 20;
+    public static final long TIMEOUT = 30 * 1000L;
+    private static final String FILE = "startup_traces";
+    private static final String TAG = "StartupTraceLog";
+
+    /**
+     * Appends the stored traces to a report, the most recent first.
+     */
+    public static void appendReport(Context context, StringBuilder builder) {
+        DateFormat format = DateFormat.getDateTimeInstance();
+        List<String> lines = load(context);
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            Map<String, Object> trace;
+            try {
+                trace = Json.parseObject(lines.get(i));
+            } catch (RuntimeException e) {
+                continue;
+            }
+            Object start = trace.get("start");
+            builder.append("\n\n");
+            if (start instanceof Number) {
+                builder.append(format.format(new Date(((Number) start).longValue())));
+            }
+            Object phases = trace.get("phases");
+            for (String phase : StartupTrace.PHASES) {
+                Object value = phases instanceof Map ? ((Map<?, ?>) phases).get(phase) : null;
+                if (!(value instanceof Map)) {
+                    continue;
+                }
+                Object at = ((Map<?, ?>) value).get("at");
+                Object ms = ((Map<?, ?>) value).get("ms");
+                builder.append('\n').append(phase).append(": ");
+                builder.append(ms instanceof Number ? ((Number) ms).longValue() + " ms"
+                        : "did not end");
+                if (at instanceof Number) {
+                    builder.append(" (at ").append(((Number) at).longValue()).append(" ms)");
+                }
+            }
+            Object failures = trace.get("failures");
+            if (failures instanceof List) {
+                for (Object failure : (List<?>) failures) {
+                    builder.append("\nfailed: ").append(failure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes the trace of this process and stores it on a background thread, unless it was
+     * already stored.
+     */
+    public static void finish(Context context) {
+        final StartupTrace trace = StartupTrace.getInstance();
+        if (!trace.finish()) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        new Thread(TAG) {
+
+            @Override
+            public void run() {
+                store(appContext, trace.toJson());
+            }
+        }.start();
+    }
+
+    /**
+     * Stores the trace after the {@link #TIMEOUT}, if the main screen did not finish it before.
+     * Call when the app starts.
+     */
+    public static void finishLater(final Context context) {
+        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+
+            @Override
+            public void run() {
+                finish(context);
+            }
+        }, TIMEOUT);
+    }
+
+    private static List<String> load(Context context) {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(context.openFileInput(FILE),
+                    "UTF-8"));
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // no traces yet
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the startup traces: " + e);
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static synchronized void store(Context context, String json) {
+        List<String> lines = load(context);
+        lines.add(json);
+        int from = Math.max(0, lines.size() - MAX_STARTS);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(context.openFileOutput(FILE, Context.MODE_PRIVATE),
+                    "UTF-8");
+            for (String line : lines.subList(from, lines.size())) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store the startup trace: " + e);
+        } finally {
+            if (null != writer) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        Log.v(TAG, "Startup: " + json);
+    }
+
+    private StartupTraceLog() {
+        // class should not be instantiated
+    }
+}
@@ -0,0 +1,100 @@
+package nl.sense_os.app.motion;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer, single-consumer ring buffer for 3-axis samples. The sensor thread
+ * offers samples, and a consumer thread drains them at its own pace. Samples are stored in
+ * preallocated primitive arrays, so neither side allocates or blocks.<br/>
+ * <br/>
+ * When the consumer falls behind and the buffer is full, new samples are dropped and counted, so
+ * the sensor thread is never slowed down.
+ */
+public class AccelerationStream {
+
+    /**
+     * Receives the drained samples.
+     */
+    public interface Sink {
+        void onSample(long time, float x, float y, float z);
+    }
+
+    private final int mMask;
+    private final long[] mTimes;
+    private final float[] mValues;
+    /** Sequence number of the next sample to write, only advanced by the producer */
+    private final AtomicLong mWrite = new AtomicLong();
+    /** Sequence number of the next sample to read, only advanced by the consumer */
+    private final AtomicLong mRead = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            Maximum number of buffered samples, must be a power of two
+     */
+    public AccelerationStream(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mTimes = new long[capacity];
+        mValues = new float[3 * capacity];
+    }
+
+    /**
+     * Hands all buffered samples to the sink. Only call this from the consumer thread.
+     *
+     * @param sink
+     *            Receives the samples in order
+     * @return The number of drained samples
+     */
+    public int drain(Sink sink) {
+        long read = mRead.get();
+        long write = mWrite.get();
+        for (long seq = read; seq < write; seq++) {
+            int slot = (int) seq & mMask;
+            sink.onSample(mTimes[slot], mValues[3 * slot], mValues[3 * slot + 1],
+                    mValues[3 * slot + 2]);
+        }
+        // release the slots to the producer
+        mRead.set(write);
+        return (int) (write - read);
+    }
+
+    /**
+     * @return The number of samples that were dropped because the buffer was full
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Adds a sample. Only call this from the producer thread.
+     *
+     * @param time
+     *            Time of the sample, e.g. {@link System#nanoTime()} on arrival
+     * @return <code>false</code> if the buffer was full and the sample was dropped
+     */
+    public boolean offer(long time, float x, float y, float z) {
+        long write = mWrite.get();
+        if (write - mRead.get() > mMask) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        int slot = (int) write & mMask;
+        mTimes[slot] = time;
+        mValues[3 * slot] = x;
+        mValues[3 * slot + 1] = y;
+        mValues[3 * slot + 2] = z;
+        // publish the sample to the consumer
+        mWrite.set(write + 1);
+        return true;
+    }
+
+    /**
+     * @return The number of buffered samples
+     */
+    public int size() {
+        return (int) (mWrite.get() - mRead.get());
+    }
+}
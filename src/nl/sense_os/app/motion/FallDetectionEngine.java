@@ -0,0 +1,158 @@
+package nl.sense_os.app.motion;
+
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Fall detection engine that runs at its own fixed rate. The sensor thread only
+ * {@link #offer(long, float, float, float)}s samples to a lock-free {@link AccelerationStream};
+ * every tick the engine drains the stream through a {@link FallDetector}. Detection latency is
+ * therefore bounded by the tick, independent of the sample rate setting of the Sense service.<br/>
+ * <br/>
+ * For every alert, the time between the arrival of the impact sample and the alert is recorded in
+ * a {@link LatencyHistogram}. This includes the confirmation period of the detector, if any.<br/>
+ * <br/>
+ * The engine can run on its own thread ({@link #start()}), or be driven by calling
+ * {@link #poll(long)} with a simulated clock, e.g. to replay recorded traces.
+ */
+public class FallDetectionEngine implements AccelerationStream.Sink {
+
+    /**
+     * Receives the fall alerts, on the engine thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param sampleTime
+         *            Arrival time of the impact sample, in nanoseconds
+         * @param alertTime
+         *            Time of the alert, in nanoseconds
+         * @param peak
+         *            Magnitude of the impact, in g
+         */
+        void onFall(long sampleTime, long alertTime, float peak);
+    }
+
+    private static final int CAPACITY = 512;
+    private static final String TAG = "FallDetectionEngine";
+
+    private final AccelerationStream mStream = new AccelerationStream(CAPACITY);
+    private final FallDetector mDetector;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final long mTick;
+    private final Listener mListener;
+    private long mNow;
+    private volatile Thread mThread;
+
+    /**
+     * @param config
+     *            Detection thresholds
+     * @param tickMillis
+     *            Interval between two drains of the stream, in milliseconds
+     * @param listener
+     *            Receives the alerts
+     */
+    public FallDetectionEngine(FallDetector.Config config, long tickMillis, Listener listener) {
+        mDetector = new FallDetector(config);
+        mTick = tickMillis * 1000000L;
+        mListener = listener;
+    }
+
+    /**
+     * @return The number of samples that were dropped because the engine fell behind
+     */
+    public long getDropped() {
+        return mStream.getDropped();
+    }
+
+    /**
+     * @return Histogram of the event-to-alert latencies, in nanoseconds
+     */
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Adds a sample from the sensor thread.
+     *
+     * @param time
+     *            Arrival time of the sample in nanoseconds, on the same clock as
+     *            {@link #poll(long)}
+     * @return <code>false</code> if the sample was dropped
+     */
+    public boolean offer(long time, float x, float y, float z) {
+        return mStream.offer(time, x, y, z);
+    }
+
+    @Override
+    public void onSample(long time, float x, float y, float z) {
+        if (mDetector.addSample(time, x, y, z)) {
+            long impact = mDetector.getImpactTime();
+            mLatency.record(mNow - impact);
+            if (null != mListener) {
+                mListener.onFall(impact, mNow, mDetector.getPeak());
+            }
+        }
+    }
+
+    /**
+     * Processes all buffered samples.
+     *
+     * @param now
+     *            Current time in nanoseconds
+     * @return The number of processed samples
+     */
+    public int poll(long now) {
+        mNow = now;
+        return mStream.drain(this);
+    }
+
+    /**
+     * Starts polling on a new thread.
+     */
+    public synchronized void start() {
+        if (null != mThread) {
+            return;
+        }
+        mDetector.reset();
+        mThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                long next = System.nanoTime();
+                while (mThread == Thread.currentThread()) {
+                    poll(System.nanoTime());
+                    next += mTick;
+                    long sleep = next - System.nanoTime();
+                    if (sleep > 0) {
+                        try {
+                            Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    } else {
+                        // we are late, do not try to catch up with a burst of ticks
+                        next = System.nanoTime();
+                    }
+                }
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops the polling thread, and waits for it to finish its last tick.
+     */
+    public synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (null != thread) {
+            thread.interrupt();
+            try {
+                // the stream allows only one consumer at a time
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package nl.sense_os.app.motion;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.AccountedWakeLock;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Main.Motion;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Feeds the accelerometer to a {@link FallDetectionEngine} at a fixed rate, independent of the
+ * sample rate of the Sense service. Detected falls are sent to the MsgHandler as "fall detector"
+ * data points. Used when the user enabled the low-latency fall detection of the app.<br/>
+ * <br/>
+ * Most devices stop delivering accelerometer events when the CPU sleeps, so the sampler holds a
+ * partial wake lock while it detects falls with the screen off. While the screen is on, the CPU
+ * is awake anyway and the lock is released. The hold time is charged to the motion module in the
+ * {@link EnergyLedger}.
+ */
+public class FallDetectionSampler implements SensorEventListener, FallDetectionEngine.Listener {
+
+    private static final long TICK = 20;
+    private static final String SENSOR_NAME = "fall detector";
+    private static final String TAG = "FallDetectionSampler";
+    private static FallDetectionSampler sInstance;
+
+    public static synchronized FallDetectionSampler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new FallDetectionSampler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or stops fall detection, depending on the status of the motion module and the
+     * {@link AppPrefs.Motion#FALL_ENGINE} preference.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.MOTION, false)
+                && service.getPrefBool(AppPrefs.Motion.FALL_ENGINE, false);
+        boolean demo = service.getPrefBool(Motion.FALL_DETECT_DEMO, false);
+        getInstance(context).setActive(active, demo);
+    }
+
+    private final Context mContext;
+    private final AccountedWakeLock mWakeLock;
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+    private volatile FallDetectionEngine mEngine;
+    private boolean mDemo;
+
+    private FallDetectionSampler(Context context) {
+        mContext = context;
+        mWakeLock = new AccountedWakeLock(context, TAG, EnergyLedger.MOTION);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // not used
+    }
+
+    @Override
+    public void onFall(long sampleTime, long alertTime, float peak) {
+        float latency = (alertTime - sampleTime) / 1000000f;
+        Log.w(TAG, "Fall detected! Latency: " + latency + " ms");
+        String value = "{\"fall\":true,\"peak\":" + peak + ",\"latency\":" + latency + "}";
+        DataPoints.send(mContext, SENSOR_NAME, "app fall detection", "json", value,
+                System.currentTimeMillis());
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        FallDetectionEngine engine = mEngine;
+        if (null != engine) {
+            // the arrival time, the event timestamp has no fixed time base on all devices
+            engine.offer(System.nanoTime(), event.values[0], event.values[1], event.values[2]);
+        }
+    }
+
+    /**
+     * Holds the wake lock while fall detection runs with the screen off.
+     */
+    private synchronized void setScreenOn(boolean screenOn) {
+        if (null == mEngine || screenOn) {
+            mWakeLock.release();
+        } else {
+            mWakeLock.acquire();
+        }
+    }
+
+    /**
+     * Registers or unregisters the accelerometer listener.
+     *
+     * @param active
+     *            <code>true</code> to start detecting falls
+     * @param demo
+     *            <code>true</code> to use the more sensitive thresholds of the demo mode
+     */
+    public synchronized void setActive(boolean active, boolean demo) {
+        if (active == (null != mEngine) && demo == mDemo) {
+            return;
+        }
+        SensorManager sensorMgr = (SensorManager) mContext
+                .getSystemService(Context.SENSOR_SERVICE);
+        if (null != mEngine) {
+            sensorMgr.unregisterListener(this);
+            EnergyLedger.getInstance().setOn(EnergyLedger.MOTION, EnergyLedger.SENSOR, false,
+                    System.currentTimeMillis());
+            mEngine.stop();
+            Log.v(TAG, "Fall detection stopped. Latency (ns): " + mEngine.getLatency()
+                    + ", dropped samples: " + mEngine.getDropped());
+            mEngine = null;
+            mContext.unregisterReceiver(mScreenReceiver);
+            mWakeLock.release();
+        }
+        if (active) {
+            Sensor accelerometer = sensorMgr.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            if (null == accelerometer) {
+                Log.w(TAG, "No accelerometer available");
+                return;
+            }
+            mEngine = new FallDetectionEngine(demo ? FallDetector.Config.demo()
+                    : FallDetector.Config.normal(), TICK, this);
+            mDemo = demo;
+            PowerManager powerMgr = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            setScreenOn(powerMgr.isScreenOn());
+            IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            filter.addAction(Intent.ACTION_SCREEN_OFF);
+            mContext.registerReceiver(mScreenReceiver, filter);
+            mEngine.start();
+            sensorMgr.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME);
+            EnergyLedger.getInstance().setOn(EnergyLedger.MOTION, EnergyLedger.SENSOR, true,
+                    System.currentTimeMillis());
+            Log.v(TAG, "Fall detection started" + (demo ? " in demo mode" : ""));
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package nl.sense_os.app.motion;
+
+/**
+ * Detects falls in a stream of accelerometer samples. A fall is a period of free fall (the
+ * acceleration magnitude drops well below 1 g) followed shortly by an impact (a high magnitude
+ * peak). Running and jumping show the same pattern, so optionally the detector waits for a
+ * confirmation period after the impact in which the phone should hardly move. Without a
+ * confirmation period the alert is raised on the impact sample itself.<br/>
+ * <br/>
+ * The detector is a small state machine without buffers; instances are not thread-safe.
+ */
+public class FallDetector {
+
+    /**
+     * Detection thresholds.
+     */
+    public static class Config {
+
+        /**
+         * Thresholds for real use.
+         */
+        public static Config normal() {
+            return new Config(0.5f, 150, 2.5f, 500, 1000, 2000);
+        }
+
+        /**
+         * More sensitive thresholds for demonstrations, where a dropped phone should trigger.
+         */
+        public static Config demo() {
+            return new Config(0.5f, 40, 2f, 700, 0, 1000);
+        }
+
+        /** Magnitude below which the phone is in free fall, in g */
+        public final float freeFall;
+        /** Minimum duration of the free fall, in ms */
+        public final long freeFallTime;
+        /** Magnitude above which an impact is detected, in g */
+        public final float impact;
+        /** Maximum time between the end of the free fall and the impact, in ms */
+        public final long impactWindow;
+        /** Time after the impact in which the phone should lie still, in ms, or 0 */
+        public final long confirmTime;
+        /** Time after an alert during which no new alert is raised, in ms */
+        public final long holdOff;
+
+        public Config(float freeFall, long freeFallTime, float impact, long impactWindow,
+                long confirmTime, long holdOff) {
+            this.freeFall = freeFall;
+            this.freeFallTime = freeFallTime;
+            this.impact = impact;
+            this.impactWindow = impactWindow;
+            this.confirmTime = confirmTime;
+            this.holdOff = holdOff;
+        }
+    }
+
+    private static final float GRAVITY = 9.80665f;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    /** Bounces right after the impact are not counted as movement */
+    private static final long SETTLE_TIME = 200 * NANOS_PER_MILLI;
+    /** Deviation from 1 g that counts as movement during the confirmation */
+    private static final float STILL_DEVIATION = 0.4f * GRAVITY;
+    /** Fraction of moving samples that cancels the confirmation */
+    private static final float MAX_MOVING = 0.1f;
+
+    private final float mFreeFallSquared;
+    private final float mImpactSquared;
+    private final long mFreeFallTime;
+    private final long mImpactWindow;
+    private final long mConfirmTime;
+    private final long mHoldOff;
+
+    private boolean mInFreeFall;
+    private long mFreeFallStart;
+    private long mArmedUntil = Long.MIN_VALUE;
+    private long mHoldOffUntil = Long.MIN_VALUE;
+    private float mPeak;
+    private long mImpactTime;
+    private boolean mConfirming;
+    private int mConfirmSamples;
+    private int mMovingSamples;
+
+    public FallDetector(Config config) {
+        float freeFall = config.freeFall * GRAVITY;
+        float impact = config.impact * GRAVITY;
+        mFreeFallSquared = freeFall * freeFall;
+        mImpactSquared = impact * impact;
+        mFreeFallTime = config.freeFallTime * NANOS_PER_MILLI;
+        mImpactWindow = config.impactWindow * NANOS_PER_MILLI;
+        mConfirmTime = config.confirmTime * NANOS_PER_MILLI;
+        mHoldOff = config.holdOff * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Processes the next sample.
+     *
+     * @param time
+     *            Sample time in nanoseconds
+     * @param x
+     *            Acceleration in m/s^2
+     * @return <code>true</code> if this sample completes a fall: it is the impact, or the end of
+     *         the confirmation period
+     */
+    public boolean addSample(long time, float x, float y, float z) {
+        float squared = x * x + y * y + z * z;
+
+        if (mConfirming) {
+            return confirm(time, squared);
+        }
+
+        if (squared < mFreeFallSquared) {
+            if (!mInFreeFall) {
+                mInFreeFall = true;
+                mFreeFallStart = time;
+            }
+            return false;
+        }
+
+        if (mInFreeFall) {
+            mInFreeFall = false;
+            if (time - mFreeFallStart >= mFreeFallTime) {
+                mArmedUntil = time + mImpactWindow;
+            }
+        }
+
+        if (squared > mImpactSquared && time <= mArmedUntil && time >= mHoldOffUntil) {
+            mArmedUntil = Long.MIN_VALUE;
+            mPeak = (float) Math.sqrt(squared) / GRAVITY;
+            mImpactTime = time;
+            if (mConfirmTime > 0) {
+                mConfirming = true;
+                mConfirmSamples = 0;
+                mMovingSamples = 0;
+                return false;
+            }
+            mHoldOffUntil = time + mHoldOff;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks that the phone lies still after an impact.
+     *
+     * @return <code>true</code> if the confirmation period completed without movement
+     */
+    private boolean confirm(long time, float squared) {
+        long sinceImpact = time - mImpactTime;
+        if (sinceImpact > SETTLE_TIME) {
+            float deviation = Math.abs((float) Math.sqrt(squared) - GRAVITY);
+            mConfirmSamples++;
+            if (deviation > STILL_DEVIATION) {
+                mMovingSamples++;
+            }
+        }
+        if (sinceImpact < mConfirmTime) {
+            return false;
+        }
+        mConfirming = false;
+        if (mMovingSamples > MAX_MOVING * mConfirmSamples) {
+            // the user kept moving, probably running or jumping
+            return false;
+        }
+        mHoldOffUntil = time + mHoldOff;
+        return true;
+    }
+
+    /**
+     * @return Arrival time of the impact sample of the last detected fall, in nanoseconds
+     */
+    public long getImpactTime() {
+        return mImpactTime;
+    }
+
+    /**
+     * @return The impact magnitude of the last detected fall, in g
+     */
+    public float getPeak() {
+        return mPeak;
+    }
+
+    /**
+     * Forgets any partial fall, e.g. after the sensor was paused.
+     */
+    public void reset() {
+        mInFreeFall = false;
+        mConfirming = false;
+        mArmedUntil = Long.MIN_VALUE;
+        mHoldOffUntil = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,216 @@
+package nl.sense_os.app.motion;
+
+/**
+ * Computes motion features over a sliding window of 3-axis samples (e.g. from the accelerometer).
+ * Samples are kept in a circular buffer of primitive floats, and all other buffers are allocated
+ * in the constructor, so {@link #addSample(float, float, float)} does not allocate.<br/>
+ * <br/>
+ * Every <code>hop</code> samples (once the window is full) the features of the last
+ * <code>windowSize</code> samples are computed:
+ * <ul>
+ * <li>energy: mean of the squared vector magnitude</li>
+ * <li>mean magnitude and variance of the magnitude</li>
+ * <li>dominant frequency: the strongest non-DC frequency in the magnitude signal</li>
+ * </ul>
+ * Sensors deliver their samples at rates that differ a lot between devices, so when the samples
+ * come with timestamps (see {@link #addSample(long, float, float, float)}), the frequency is
+ * based on the rate measured over the window instead of the nominal rate.<br/>
+ * <br/>
+ * Instances are not thread-safe; feed them from the sensor thread only.
+ */
+public class MotionFeatureExtractor {
+
+    private final int mWindowSize;
+    private final int mHop;
+    private final float mSampleRate;
+    private final float[] mMagnitudes;
+    private final long[] mTimes;
+    private final float[] mOrdered;
+    private final float[] mCos;
+    private final float[] mSin;
+    private int mHead;
+    private int mCount;
+    private int mSinceLast;
+    private boolean mTimed;
+
+    private float mEnergy;
+    private float mMeanMagnitude;
+    private float mVariance;
+    private float mDominantFrequency;
+    private float mMeasuredRate;
+
+    /**
+     * @param windowSize
+     *            Number of samples per window
+     * @param hop
+     *            Number of new samples between two feature computations, at most
+     *            <code>windowSize</code>
+     * @param sampleRate
+     *            Nominal sample rate in Hz, used to convert the dominant frequency bin to Hz when
+     *            the samples have no timestamps
+     */
+    public MotionFeatureExtractor(int windowSize, int hop, float sampleRate) {
+        if (windowSize < 4 || hop < 1 || hop > windowSize) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize + " or hop "
+                    + hop);
+        }
+        mWindowSize = windowSize;
+        mHop = hop;
+        mSampleRate = sampleRate;
+        mMagnitudes = new float[windowSize];
+        mTimes = new long[windowSize];
+        mOrdered = new float[windowSize];
+
+        // twiddle table for the DFT of the magnitude signal
+        mCos = new float[windowSize];
+        mSin = new float[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            double angle = 2 * Math.PI * i / windowSize;
+            mCos[i] = (float) Math.cos(angle);
+            mSin[i] = (float) Math.sin(angle);
+        }
+    }
+
+    /**
+     * Adds a new sample to the window, sampled at the nominal rate.
+     *
+     * @return <code>true</code> if new features were computed for this sample
+     */
+    public boolean addSample(float x, float y, float z) {
+        mTimed = false;
+        return add(x, y, z);
+    }
+
+    /**
+     * Adds a new sample to the window. The sample rate is measured from the timestamps.
+     *
+     * @param timestamp
+     *            Time of the sample in nanoseconds, e.g. {@link android.hardware.SensorEvent}
+     * @return <code>true</code> if new features were computed for this sample
+     */
+    public boolean addSample(long timestamp, float x, float y, float z) {
+        mTimes[mHead] = timestamp;
+        mTimed = true;
+        return add(x, y, z);
+    }
+
+    private boolean add(float x, float y, float z) {
+        float squared = x * x + y * y + z * z;
+        mMagnitudes[mHead] = (float) Math.sqrt(squared);
+        mHead = (mHead + 1) % mWindowSize;
+        if (mCount < mWindowSize) {
+            mCount++;
+        }
+        mSinceLast++;
+
+        if (mCount == mWindowSize && mSinceLast >= mHop) {
+            mSinceLast = 0;
+            computeFeatures();
+            return true;
+        }
+        return false;
+    }
+
+    private void computeFeatures() {
+        final int n = mWindowSize;
+        float sum = 0;
+        float sumSquares = 0;
+        for (int i = 0; i < n; i++) {
+            float m = mMagnitudes[i];
+            sum += m;
+            sumSquares += m * m;
+        }
+        mMeanMagnitude = sum / n;
+        mEnergy = sumSquares / n;
+        mVariance = Math.max(0, mEnergy - mMeanMagnitude * mMeanMagnitude);
+
+        // unwrap the mean-free magnitudes in chronological order, starting at the oldest sample
+        int tail = n - mHead;
+        System.arraycopy(mMagnitudes, mHead, mOrdered, 0, tail);
+        System.arraycopy(mMagnitudes, 0, mOrdered, tail, mHead);
+        for (int i = 0; i < n; i++) {
+            mOrdered[i] -= mMeanMagnitude;
+        }
+
+        // DFT of the magnitudes, keeping only the strongest bin
+        int bestBin = 0;
+        float bestPower = 0;
+        for (int k = 1; k <= n / 2; k++) {
+            float re = 0;
+            float im = 0;
+            int twiddle = 0;
+            for (int i = 0; i < n; i++) {
+                float v = mOrdered[i];
+                re += v * mCos[twiddle];
+                im -= v * mSin[twiddle];
+                twiddle += k;
+                if (twiddle >= n) {
+                    twiddle -= n;
+                }
+            }
+            float power = re * re + im * im;
+            if (power > bestPower) {
+                bestPower = power;
+                bestBin = k;
+            }
+        }
+        mMeasuredRate = mSampleRate;
+        if (mTimed) {
+            // the oldest sample is at the head, the newest right before it
+            long span = mTimes[(mHead + n - 1) % n] - mTimes[mHead];
+            if (span > 0) {
+                mMeasuredRate = (n - 1) * 1e9f / span;
+            }
+        }
+        mDominantFrequency = bestBin * mMeasuredRate / n;
+    }
+
+    /**
+     * @return The dominant frequency in Hz of the last window, or 0 if the signal was constant
+     */
+    public float getDominantFrequency() {
+        return mDominantFrequency;
+    }
+
+    /**
+     * @return The mean squared magnitude of the last window
+     */
+    public float getEnergy() {
+        return mEnergy;
+    }
+
+    /**
+     * @return The mean magnitude of the last window
+     */
+    public float getMeanMagnitude() {
+        return mMeanMagnitude;
+    }
+
+    /**
+     * @return The sample rate in Hz of the last window: measured from the timestamps, or the
+     *         nominal rate
+     */
+    public float getSampleRate() {
+        return mMeasuredRate;
+    }
+
+    /**
+     * @return The variance of the magnitude in the last window
+     */
+    public float getVariance() {
+        return mVariance;
+    }
+
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Clears the window, e.g. when the sensor was paused.
+     */
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mSinceLast = 0;
+    }
+}
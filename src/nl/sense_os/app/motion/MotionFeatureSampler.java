@@ -0,0 +1,180 @@
+package nl.sense_os.app.motion;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.energy.AccountedWakeLock;
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.scheduler.SampleIntervals;
+import nl.sense_os.app.scheduler.SampleRates;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.util.Log;
+
+/**
+ * Listens to the accelerometer and feeds the samples to a {@link MotionFeatureExtractor}. The
+ * features of each window are sent to the MsgHandler as a "motion features" data point. Used when
+ * the user chose to upload motion features instead of the raw motion data.<br/>
+ * <br/>
+ * When the motion sample interval is longer than a window, the sampler does not listen
+ * continuously: the {@link WakeupScheduler} starts one window per interval, together with the
+ * other jobs that are due.
+ */
+public class MotionFeatureSampler implements SensorEventListener {
+
+    /**
+     * Nominal sample rate of {@link SensorManager#SENSOR_DELAY_GAME}. The actual rate differs per
+     * device, and is measured from the event timestamps.
+     */
+    private static final float SAMPLE_RATE = 50f;
+    private static final int WINDOW_SIZE = 128;
+    private static final int HOP = 64;
+    private static final long WINDOW_TIME = (long) (1000 * WINDOW_SIZE / SAMPLE_RATE);
+    private static final String JOB = "motion features";
+    private static final String SENSOR_NAME = "motion features";
+    private static final String TAG = "MotionFeatureSampler";
+    private static MotionFeatureSampler sInstance;
+
+    public static synchronized MotionFeatureSampler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new MotionFeatureSampler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or stops sampling, depending on the status of the motion module and the
+     * {@link AppPrefs.Motion#FEATURES_ONLY} preference. The sample interval follows the sample
+     * rate of the motion module.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.MOTION, false)
+                && service.getPrefBool(AppPrefs.Motion.FEATURES_ONLY, false);
+        int rate = SampleRates.getRate(service, SampleIntervals.MOTION);
+        long interval = SampleIntervals.getInterval(SampleIntervals.MOTION, rate);
+        getInstance(context).setActive(active, interval);
+    }
+
+    private final Context mContext;
+    private final MotionFeatureExtractor mExtractor;
+    private final AccountedWakeLock mWakeLock;
+    private boolean mActive;
+    private long mInterval;
+    private long mWindowTime = WINDOW_TIME;
+    private boolean mListening;
+
+    private MotionFeatureSampler(Context context) {
+        mContext = context;
+        mExtractor = new MotionFeatureExtractor(WINDOW_SIZE, HOP, SAMPLE_RATE);
+        mWakeLock = new AccountedWakeLock(context, TAG, EnergyLedger.MOTION);
+    }
+
+    /**
+     * @return <code>true</code> if the sampler listens continuously instead of in windows
+     */
+    private boolean isContinuous() {
+        return mInterval <= WINDOW_TIME;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // not used
+    }
+
+    @Override
+    public synchronized void onSensorChanged(SensorEvent event) {
+        if (!mListening) {
+            return;
+        }
+        if (mExtractor.addSample(event.timestamp, event.values[0], event.values[1],
+                event.values[2])) {
+            // wake up long enough for a window at the rate of this device
+            mWindowTime = (long) (1000 * WINDOW_SIZE / mExtractor.getSampleRate());
+            String value = "{\"energy\":" + mExtractor.getEnergy() + ",\"variance\":"
+                    + mExtractor.getVariance() + ",\"mean magnitude\":"
+                    + mExtractor.getMeanMagnitude() + ",\"dominant frequency\":"
+                    + mExtractor.getDominantFrequency() + "}";
+            DataPoints.send(mContext, SENSOR_NAME, "accelerometer " + WINDOW_SIZE + " samples",
+                    "json", value, System.currentTimeMillis());
+            if (!isContinuous()) {
+                // one window per interval is enough
+                stopListening();
+            }
+        }
+    }
+
+    /**
+     * Registers or unregisters the accelerometer listener, or schedules the sample windows.
+     *
+     * @param active
+     *            <code>true</code> to start sampling
+     * @param interval
+     *            Sample interval in milliseconds
+     */
+    public synchronized void setActive(boolean active, long interval) {
+        if (active == mActive && interval == mInterval) {
+            return;
+        }
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(mContext);
+        stopListening();
+        scheduler.cancel(JOB);
+        mActive = active;
+        mInterval = interval;
+
+        if (active && isContinuous()) {
+            startListening();
+        } else if (active) {
+            scheduler.schedule(JOB, EnergyLedger.MOTION, interval, interval / 10, new Runnable() {
+
+                @Override
+                public void run() {
+                    startListening();
+                }
+            });
+        }
+        Log.v(TAG, "Motion feature sampling " + (active ? "started" : "stopped"));
+    }
+
+    private synchronized void startListening() {
+        if (mListening) {
+            return;
+        }
+        SensorManager sensorMgr = (SensorManager) mContext
+                .getSystemService(Context.SENSOR_SERVICE);
+        Sensor accelerometer = sensorMgr.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        if (null == accelerometer) {
+            Log.w(TAG, "No accelerometer available");
+            return;
+        }
+        if (!isContinuous()) {
+            // keep the phone awake until the window is complete
+            mWakeLock.acquire(2 * Math.max(WINDOW_TIME, mWindowTime));
+        }
+        mExtractor.reset();
+        mListening = true;
+        sensorMgr.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME);
+        EnergyLedger.getInstance().setOn(EnergyLedger.MOTION, EnergyLedger.SENSOR, true,
+                System.currentTimeMillis());
+    }
+
+    private synchronized void stopListening() {
+        if (!mListening) {
+            return;
+        }
+        SensorManager sensorMgr = (SensorManager) mContext
+                .getSystemService(Context.SENSOR_SERVICE);
+        sensorMgr.unregisterListener(this);
+        mListening = false;
+        EnergyLedger.getInstance().setOn(EnergyLedger.MOTION, EnergyLedger.SENSOR, false,
+                System.currentTimeMillis());
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package nl.sense_os.app.phonestate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Coalesces storms of events per event type before they become data points. Each type has a
+ * minimum interval between emitted events, and a threshold for the change of its numeric value:
+ * <ul>
+ * <li>an event that does not differ significantly from the last emitted event is merged away</li>
+ * <li>a significant change is emitted right away when the minimum interval has passed since the
+ * last emitted event</li>
+ * <li>otherwise it becomes pending, and newer events replace it, until the interval has passed
+ * and {@link #flush(long)} emits the latest one</li>
+ * </ul>
+ * Events without a numeric value (use {@link Double#NaN}) change when their string value
+ * changes. A type without a rule passes every event that changes.<br/>
+ * <br/>
+ * Times are in milliseconds. The coalescer does not schedule the flushes itself: call
+ * {@link #flush(long)} at {@link #nextDeadline()}. Not thread-safe.
+ */
+public class EventCoalescer {
+
+    /**
+     * Receives the coalesced events.
+     */
+    public interface Sink {
+
+        /**
+         * @param type
+         *            Event type
+         * @param value
+         *            Value of the latest event
+         * @param time
+         *            Time of the latest event
+         * @param merged
+         *            Number of raw events that were merged into this one
+         */
+        void onEvent(String type, String value, long time, int merged);
+    }
+
+    private static class State {
+        long minInterval;
+        double threshold;
+        boolean emitted;
+        long emittedTime;
+        double emittedNumber;
+        String emittedValue;
+        boolean pending;
+        long pendingTime;
+        double pendingNumber;
+        String pendingValue;
+        int pendingMerged;
+        long raw;
+        long merged;
+    }
+
+    private final Map<String, State> mStates = new LinkedHashMap<String, State>();
+    private final Sink mSink;
+
+    public EventCoalescer(Sink sink) {
+        mSink = sink;
+    }
+
+    private void emit(String type, State state, String value, double number, long time,
+            int merged) {
+        state.emitted = true;
+        state.emittedTime = time;
+        state.emittedNumber = number;
+        state.emittedValue = value;
+        state.pending = false;
+        state.pendingMerged = 0;
+        mSink.onEvent(type, value, time, merged);
+    }
+
+    /**
+     * Emits the pending events whose interval has passed.
+     *
+     * @param now
+     *            Current time
+     */
+    public void flush(long now) {
+        for (Map.Entry<String, State> entry : mStates.entrySet()) {
+            State state = entry.getValue();
+            if (state.pending && now >= state.emittedTime + state.minInterval) {
+                emit(entry.getKey(), state, state.pendingValue, state.pendingNumber,
+                        state.pendingTime, state.pendingMerged);
+            }
+        }
+    }
+
+    /**
+     * @return The number of raw events that were merged away, for all types
+     */
+    public long getMerged() {
+        long merged = 0;
+        for (State state : mStates.values()) {
+            merged += state.merged;
+        }
+        return merged;
+    }
+
+    /**
+     * @return The number of raw events of a type that were merged away
+     */
+    public long getMerged(String type) {
+        State state = mStates.get(type);
+        return null == state ? 0 : state.merged;
+    }
+
+    /**
+     * @return The number of raw events, for all types
+     */
+    public long getRaw() {
+        long raw = 0;
+        for (State state : mStates.values()) {
+            raw += state.raw;
+        }
+        return raw;
+    }
+
+    private State getState(String type) {
+        State state = mStates.get(type);
+        if (null == state) {
+            state = new State();
+            mStates.put(type, state);
+        }
+        return state;
+    }
+
+    private boolean isSignificant(State state, String value, double number) {
+        if (Double.isNaN(number) || Double.isNaN(state.emittedNumber)) {
+            return !value.equals(state.emittedValue);
+        }
+        double change = Math.abs(number - state.emittedNumber);
+        return state.threshold > 0 ? change >= state.threshold : change > 0;
+    }
+
+    /**
+     * @return The time of the next flush that will emit a pending event, or
+     *         {@link Long#MAX_VALUE} if no events are pending
+     */
+    public long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (State state : mStates.values()) {
+            if (state.pending) {
+                next = Math.min(next, state.emittedTime + state.minInterval);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Handles a raw event.
+     *
+     * @param type
+     *            Event type
+     * @param value
+     *            Value for the data point
+     * @param number
+     *            Numeric value to compare with the threshold, or {@link Double#NaN}
+     * @param time
+     *            Time of the event
+     */
+    public void offer(String type, String value, double number, long time) {
+        State state = getState(type);
+        state.raw++;
+        if (!state.emitted) {
+            emit(type, state, value, number, time, 0);
+        } else if (!isSignificant(state, value, number)) {
+            // back to (or still at) the emitted value: the pending event is stale as well
+            state.merged += 1 + (state.pending ? 1 : 0);
+            state.pending = false;
+            state.pendingMerged = 0;
+        } else if (time - state.emittedTime >= state.minInterval) {
+            int merged = state.pendingMerged;
+            if (state.pending) {
+                // replaces the pending event
+                merged++;
+                state.merged++;
+            }
+            emit(type, state, value, number, time, merged);
+        } else {
+            if (state.pending) {
+                state.pendingMerged++;
+                state.merged++;
+            }
+            state.pending = true;
+            state.pendingTime = time;
+            state.pendingNumber = number;
+            state.pendingValue = value;
+        }
+    }
+
+    /**
+     * Sets the coalescing rule of an event type.
+     *
+     * @param type
+     *            Event type
+     * @param minInterval
+     *            Minimum time between emitted events, 0 to emit every change
+     * @param threshold
+     *            Minimum change of the numeric value, 0 to emit every change
+     */
+    public void setRule(String type, long minInterval, double threshold) {
+        State state = getState(type);
+        state.minInterval = minInterval;
+        state.threshold = threshold;
+    }
+}
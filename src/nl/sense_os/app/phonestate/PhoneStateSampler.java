@@ -0,0 +1,246 @@
+package nl.sense_os.app.phonestate;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.app.util.DataPoints;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Listens to the call state, data connection, service state and signal strength of the phone,
+ * and passes the events through an {@link EventCoalescer} before they become data points. Used
+ * when the user set a coalescing window for the phone state module; these sensors of the Sense
+ * service are switched off then, see {@link nl.sense_os.app.SenseSettings}.<br/>
+ * <br/>
+ * Call state changes are never delayed. The data connection is delayed by at most 5 seconds, the
+ * service state and signal strength by the coalescing window. The signal strength must change by
+ * at least 4 dB. The raw and merged events are counted per type in the
+ * <code>"phonestate/raw/..."</code> and <code>"phonestate/merged/..."</code> metrics.
+ */
+public class PhoneStateSampler {
+
+    private static final String CALL_STATE = "call state";
+    private static final String DATA_CONNECTION = "data connection";
+    private static final String SERVICE_STATE = "service state";
+    private static final String SIGNAL_STRENGTH = "signal strength";
+    private static final long MAX_DATA_CONNECTION_DELAY = 5000;
+    private static final double SIGNAL_THRESHOLD = 4;
+    private static final String TAG = "PhoneStateSampler";
+    private static final MetricsRegistry.Family RAW = MetricsRegistry.getInstance().family(
+            "phonestate/raw/");
+    private static final MetricsRegistry.Family MERGED = MetricsRegistry.getInstance().family(
+            "phonestate/merged/");
+    private static PhoneStateSampler sInstance;
+
+    public static synchronized PhoneStateSampler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new PhoneStateSampler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return The coalescing window in milliseconds, or 0 if it is off
+     */
+    private static long parseWindow(String window) {
+        try {
+            return Math.max(0, Long.parseLong(window));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Starts or stops listening, depending on the status of the phone state module and the
+     * {@link AppPrefs.PhoneState#COALESCE} preference.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        long window = parseWindow(service.getPrefString(AppPrefs.PhoneState.COALESCE, "0"));
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(Status.PHONESTATE, false) && window > 0;
+        getInstance(context).setActive(active ? window : 0);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private PhoneStateListener mListener;
+    private EventCoalescer mCoalescer;
+    private long mWindow;
+
+    private final EventCoalescer.Sink mSink = new EventCoalescer.Sink() {
+
+        @Override
+        public void onEvent(String type, String value, long time, int merged) {
+            // event times are elapsed realtime
+            long timestamp = System.currentTimeMillis() - (SystemClock.elapsedRealtime() - time);
+            String dataType = DATA_CONNECTION.equals(type) ? "string" : "json";
+            DataPoints.send(mContext, type, type, dataType, value, timestamp);
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+
+        @Override
+        public void run() {
+            if (null != mCoalescer) {
+                mCoalescer.flush(SystemClock.elapsedRealtime());
+                scheduleFlush();
+            }
+        }
+    };
+
+    private PhoneStateSampler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Creates the listener. Must be called on the main thread, the listener uses its looper.
+     */
+    private PhoneStateListener createListener() {
+        return new PhoneStateListener() {
+
+            @Override
+            public void onCallStateChanged(int state, String incomingNumber) {
+                String value;
+                switch (state) {
+                case TelephonyManager.CALL_STATE_RINGING:
+                    value = "ringing";
+                    break;
+                case TelephonyManager.CALL_STATE_OFFHOOK:
+                    value = "calling";
+                    break;
+                default:
+                    value = "idle";
+                }
+                offer(CALL_STATE, "{\"state\":\"" + value + "\"}", Double.NaN);
+            }
+
+            @Override
+            public void onDataConnectionStateChanged(int state) {
+                String value;
+                switch (state) {
+                case TelephonyManager.DATA_CONNECTED:
+                    value = "connected";
+                    break;
+                case TelephonyManager.DATA_CONNECTING:
+                    value = "connecting";
+                    break;
+                case TelephonyManager.DATA_SUSPENDED:
+                    value = "suspended";
+                    break;
+                default:
+                    value = "disconnected";
+                }
+                offer(DATA_CONNECTION, value, Double.NaN);
+            }
+
+            @Override
+            public void onServiceStateChanged(ServiceState serviceState) {
+                String value;
+                switch (serviceState.getState()) {
+                case ServiceState.STATE_IN_SERVICE:
+                    value = "in service";
+                    break;
+                case ServiceState.STATE_EMERGENCY_ONLY:
+                    value = "emergency calls only";
+                    break;
+                case ServiceState.STATE_POWER_OFF:
+                    value = "power off";
+                    break;
+                default:
+                    value = "out of service";
+                }
+                offer(SERVICE_STATE, "{\"state\":\"" + value + "\"}", Double.NaN);
+            }
+
+            @Override
+            public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+                String value;
+                double dbm;
+                if (signalStrength.isGsm()) {
+                    int asu = signalStrength.getGsmSignalStrength();
+                    dbm = asu == 99 ? Double.NaN : -113 + 2 * asu;
+                    value = "{\"GSM signal strength\":" + asu + ",\"GSM bit error rate\":"
+                            + signalStrength.getGsmBitErrorRate() + "}";
+                } else {
+                    dbm = signalStrength.getCdmaDbm();
+                    value = "{\"CDMA dBm\":" + signalStrength.getCdmaDbm() + ",\"EVDO dBm\":"
+                            + signalStrength.getEvdoDbm() + "}";
+                }
+                offer(SIGNAL_STRENGTH, value, dbm);
+            }
+        };
+    }
+
+    private void offer(String type, String value, double number) {
+        if (null == mCoalescer) {
+            return;
+        }
+        long merged = mCoalescer.getMerged(type);
+        mCoalescer.offer(type, value, number, SystemClock.elapsedRealtime());
+        RAW.counter(type).increment();
+        MERGED.counter(type).add(mCoalescer.getMerged(type) - merged);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        mHandler.removeCallbacks(mFlush);
+        long deadline = mCoalescer.nextDeadline();
+        if (deadline != Long.MAX_VALUE) {
+            mHandler.postDelayed(mFlush, Math.max(0, deadline - SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * Starts or stops listening. Runs on the main thread.
+     *
+     * @param window
+     *            Coalescing window in milliseconds, or 0 to stop
+     */
+    public void setActive(final long window) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (window == mWindow) {
+                    return;
+                }
+                mWindow = window;
+                TelephonyManager telMgr = (TelephonyManager) mContext
+                        .getSystemService(Context.TELEPHONY_SERVICE);
+                if (null != mListener) {
+                    telMgr.listen(mListener, PhoneStateListener.LISTEN_NONE);
+                    mListener = null;
+                    mHandler.removeCallbacks(mFlush);
+                    mCoalescer.flush(Long.MAX_VALUE);
+                    Log.v(TAG, "Phone state coalescing stopped. Events: " + mCoalescer.getRaw()
+                            + " raw, " + mCoalescer.getMerged() + " merged");
+                    mCoalescer = null;
+                }
+                if (window > 0) {
+                    mCoalescer = new EventCoalescer(mSink);
+                    mCoalescer.setRule(CALL_STATE, 0, 0);
+                    mCoalescer.setRule(DATA_CONNECTION,
+                            Math.min(window, MAX_DATA_CONNECTION_DELAY), 0);
+                    mCoalescer.setRule(SERVICE_STATE, window, 0);
+                    mCoalescer.setRule(SIGNAL_STRENGTH, window, SIGNAL_THRESHOLD);
+                    mListener = createListener();
+                    telMgr.listen(mListener, PhoneStateListener.LISTEN_CALL_STATE
+                            | PhoneStateListener.LISTEN_DATA_CONNECTION_STATE
+                            | PhoneStateListener.LISTEN_SERVICE_STATE
+                            | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+                    Log.v(TAG, "Phone state coalescing started, window " + window + " ms");
+                }
+            }
+        });
+    }
+}
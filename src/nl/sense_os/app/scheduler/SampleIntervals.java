@@ -0,0 +1,110 @@
+package nl.sense_os.app.scheduler;
+
+import nl.sense_os.app.constants.AppPrefs;
+
+/**
+ * Sample intervals of the sensing modules for each value of the
+ * {@link nl.sense_os.service.constants.SensePrefs.Main#SAMPLE_RATE} preference. The values follow
+ * the way the Sense service interprets the preference per module. Each module can override the
+ * general sample rate with its own preference (see {@link AppPrefs.SampleRate}).
+ */
+public class SampleIntervals {
+
+    public static final int AMBIENCE = 0;
+    public static final int DEV_PROX = 1;
+    public static final int EXTERNAL = 2;
+    public static final int LOCATION = 3;
+    public static final int MOTION = 4;
+    public static final int MODULE_COUNT = 5;
+
+    /**
+     * Sample rate preference values: real-time, often, normal and rarely.
+     */
+    public static final int RATE_REAL_TIME = -2;
+    public static final int RATE_OFTEN = -1;
+    public static final int RATE_NORMAL = 0;
+    public static final int RATE_RARELY = 1;
+
+    /**
+     * Keys of the sample rate override preferences, per module.
+     */
+    private static final String[] RATE_KEYS = { AppPrefs.SampleRate.AMBIENCE,
+            AppPrefs.SampleRate.DEV_PROX, AppPrefs.SampleRate.EXTERNAL,
+            AppPrefs.SampleRate.LOCATION, AppPrefs.SampleRate.MOTION };
+
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60 * SECOND;
+
+    /**
+     * Intervals in ms per module, for the rates -2 to 1. An interval of 0 means continuous.
+     */
+    private static final long[][] INTERVALS = {
+            // ambience
+            { 0, 10 * SECOND, MINUTE, 15 * MINUTE },
+            // device proximity
+            { SECOND, MINUTE, 5 * MINUTE, 15 * MINUTE },
+            // external sensors
+            { SECOND, 5 * SECOND, MINUTE, 15 * MINUTE },
+            // location
+            { SECOND, 30 * SECOND, 5 * MINUTE, 15 * MINUTE },
+            // motion
+            { SECOND, 5 * SECOND, MINUTE, 15 * MINUTE } };
+
+    /**
+     * @param module
+     *            Module, e.g. {@link #MOTION}
+     * @param rate
+     *            Sample rate preference value between -2 and 1
+     * @return The sample interval of the module in milliseconds, or 0 if it samples continuously
+     */
+    public static long getInterval(int module, int rate) {
+        if (rate < RATE_REAL_TIME || rate > RATE_RARELY) {
+            rate = RATE_NORMAL;
+        }
+        return INTERVALS[module][rate - RATE_REAL_TIME];
+    }
+
+    /**
+     * @param module
+     *            Module, e.g. {@link #MOTION}
+     * @return The key of the sample rate override preference of the module
+     */
+    public static String getRateKey(int module) {
+        return RATE_KEYS[module];
+    }
+
+    /**
+     * Parses the string value of the sample rate preference.
+     *
+     * @return The rate, or {@link #RATE_NORMAL} if the value is invalid
+     */
+    public static int parseRate(String rate) {
+        try {
+            int value = Integer.parseInt(rate);
+            return value >= RATE_REAL_TIME && value <= RATE_RARELY ? value : RATE_NORMAL;
+        } catch (NumberFormatException e) {
+            return RATE_NORMAL;
+        }
+    }
+
+    /**
+     * Combines the general sample rate with the override of a module.
+     *
+     * @param rate
+     *            Value of the general sample rate preference
+     * @param override
+     *            Value of the override preference of the module, may be <code>null</code> or
+     *            {@link AppPrefs.SampleRate#GLOBAL}
+     * @return The sample rate of the module
+     */
+    public static int resolveRate(String rate, String override) {
+        if (null == override || AppPrefs.SampleRate.GLOBAL.equals(override)) {
+            return parseRate(rate);
+        }
+        return parseRate(override);
+    }
+
+    private SampleIntervals() {
+        // class should not be instantiated
+    }
+}
@@ -0,0 +1,109 @@
+package nl.sense_os.app.scheduler;
+
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs;
+import android.content.SharedPreferences;
+
+/**
+ * Reads the effective sample rate of a sensing module: its own override preference, or the
+ * general sample rate if the module has no override.<br/>
+ * <br/>
+ * The Sense service only knows the general sample rate. An override is read by the samplers of
+ * the app, so it only applies while one of those samplers is enabled for the module, see
+ * {@link #isSupported(SenseServiceStub, int)}.
+ */
+public class SampleRates {
+
+    /** Preferences that enable the samplers of the app that follow the override, per module */
+    private static final String[][] SAMPLER_KEYS = {
+            { AppPrefs.Ambience.CAMERA_LIGHT_METER, AppPrefs.Ambience.SPECTRUM_ENGINE },
+            { AppPrefs.DevProx.DELTA }, {}, { AppPrefs.Location.ADAPTIVE },
+            { AppPrefs.Motion.FEATURES_ONLY } };
+
+    /**
+     * @param prefs
+     *            The main preferences of the Sense Platform
+     * @param module
+     *            Module, e.g. {@link SampleIntervals#MOTION}
+     * @return The sample rate of the module, between -2 and 1
+     */
+    public static int getRate(SharedPreferences prefs, int module) {
+        String override = isSupported(prefs, module) ? prefs.getString(
+                SampleIntervals.getRateKey(module), AppPrefs.SampleRate.GLOBAL)
+                : AppPrefs.SampleRate.GLOBAL;
+        return SampleIntervals.resolveRate(prefs.getString(SensePrefs.Main.SAMPLE_RATE, "0"),
+                override);
+    }
+
+    /**
+     * @param service
+     *            Stub of the Sense service
+     * @param module
+     *            Module, e.g. {@link SampleIntervals#MOTION}
+     * @return The sample rate of the module, between -2 and 1
+     */
+    public static int getRate(SenseServiceStub service, int module) {
+        String override = isSupported(service, module) ? service.getPrefString(
+                SampleIntervals.getRateKey(module), AppPrefs.SampleRate.GLOBAL)
+                : AppPrefs.SampleRate.GLOBAL;
+        return SampleIntervals.resolveRate(service.getPrefString(SensePrefs.Main.SAMPLE_RATE,
+                "0"), override);
+    }
+
+    /**
+     * @return <code>true</code> if the module has its own sample rate, and a sampler that uses it
+     */
+    public static boolean hasOverride(SharedPreferences prefs, int module) {
+        return isSupported(prefs, module)
+                && !AppPrefs.SampleRate.GLOBAL.equals(prefs.getString(
+                        SampleIntervals.getRateKey(module), AppPrefs.SampleRate.GLOBAL));
+    }
+
+    /**
+     * @return <code>true</code> if the module has its own sample rate, and a sampler that uses it
+     */
+    public static boolean hasOverride(SenseServiceStub service, int module) {
+        return isSupported(service, module)
+                && !AppPrefs.SampleRate.GLOBAL.equals(service.getPrefString(
+                        SampleIntervals.getRateKey(module), AppPrefs.SampleRate.GLOBAL));
+    }
+
+    /**
+     * @param prefs
+     *            The main preferences of the Sense Platform
+     * @param module
+     *            Module, e.g. {@link SampleIntervals#MOTION}
+     * @return <code>true</code> if a sampler of the app that reads the override of the module is
+     *         enabled
+     */
+    public static boolean isSupported(SharedPreferences prefs, int module) {
+        for (String key : SAMPLER_KEYS[module]) {
+            if (prefs.getBoolean(key, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param service
+     *            Stub of the Sense service
+     * @param module
+     *            Module, e.g. {@link SampleIntervals#MOTION}
+     * @return <code>true</code> if a sampler of the app that reads the override of the module is
+     *         enabled
+     */
+    public static boolean isSupported(SenseServiceStub service, int module) {
+        for (String key : SAMPLER_KEYS[module]) {
+            if (service.getPrefBool(key, false)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SampleRates() {
+        // class should not be instantiated
+    }
+}
@@ -0,0 +1,140 @@
+package nl.sense_os.app.scheduler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans shared wakeups for periodic jobs. The due times of each job are aligned to multiples of
+ * its interval since a common epoch, so jobs with harmonic intervals (10 s, 1 min, 5 min, ...)
+ * fall on the same ticks. Each job also has a flex period: it may run anywhere between its due
+ * time and its deadline (due time + flex). The planner wakes up at the earliest deadline and
+ * runs every job that is due by then, so jobs with some slack are batched into the wake period
+ * of the job that really has to run.<br/>
+ * <br/>
+ * Times are in milliseconds on any monotonic clock, e.g. the elapsed realtime. The planner does
+ * no scheduling itself and is thread-safe.
+ */
+public class TickPlanner {
+
+    private static class Job {
+        final long interval;
+        final long flex;
+        long due;
+
+        Job(long interval, long flex) {
+            this.interval = interval;
+            this.flex = flex;
+        }
+    }
+
+    /**
+     * @return The first multiple of the interval after <code>now</code>
+     */
+    static long alignedAfter(long now, long interval) {
+        return (now / interval + 1) * interval;
+    }
+
+    private final Map<String, Job> mJobs = new LinkedHashMap<String, Job>();
+    private long mWakeups;
+    private long mFirstWakeup = -1;
+    private long mLastWakeup;
+
+    /**
+     * Adds a job, or changes the interval of an existing job. The first run is at the next
+     * aligned tick.
+     *
+     * @param name
+     *            Unique name of the job
+     * @param interval
+     *            Interval in milliseconds
+     * @param flex
+     *            Time in milliseconds that the job may run late to share a wakeup, at most the
+     *            interval
+     * @param now
+     *            Current time in milliseconds
+     */
+    public synchronized void add(String name, long interval, long flex, long now) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid interval for " + name + ": " + interval);
+        }
+        flex = Math.max(0, Math.min(flex, interval));
+        Job existing = mJobs.get(name);
+        if (null != existing && existing.interval == interval && existing.flex == flex) {
+            return;
+        }
+        Job job = new Job(interval, flex);
+        job.due = alignedAfter(now, interval);
+        mJobs.put(name, job);
+    }
+
+    /**
+     * Returns the jobs that are due, and plans their next runs. Also counts the wakeup.
+     *
+     * @param now
+     *            Current time in milliseconds
+     * @return Names of the due jobs, in the order they were added
+     */
+    public synchronized List<String> collectDue(long now) {
+        List<String> due = new ArrayList<String>();
+        for (Map.Entry<String, Job> entry : mJobs.entrySet()) {
+            Job job = entry.getValue();
+            if (job.due <= now) {
+                due.add(entry.getKey());
+                // skip runs that were missed while the phone slept
+                job.due = alignedAfter(now, job.interval);
+            }
+        }
+        mWakeups++;
+        mLastWakeup = now;
+        if (mFirstWakeup < 0) {
+            mFirstWakeup = now;
+        }
+        return due;
+    }
+
+    public synchronized boolean contains(String name) {
+        return mJobs.containsKey(name);
+    }
+
+    /**
+     * @return The number of wakeups so far
+     */
+    public synchronized long getWakeups() {
+        return mWakeups;
+    }
+
+    /**
+     * @return The average number of wakeups per hour since the first wakeup
+     */
+    public synchronized double getWakeupsPerHour() {
+        long elapsed = mLastWakeup - mFirstWakeup;
+        return mWakeups > 1 && elapsed > 0 ? (mWakeups - 1) * 3600000.0 / elapsed : 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mJobs.isEmpty();
+    }
+
+    /**
+     * @return Time of the next wakeup: the earliest deadline of all jobs, or
+     *         {@link Long#MAX_VALUE} if there are no jobs
+     */
+    public synchronized long nextWakeup() {
+        long next = Long.MAX_VALUE;
+        for (Job job : mJobs.values()) {
+            next = Math.min(next, job.due + job.flex);
+        }
+        return next;
+    }
+
+    /**
+     * Removes a job.
+     *
+     * @return <code>true</code> if the job was planned
+     */
+    public synchronized boolean remove(String name) {
+        return null != mJobs.remove(name);
+    }
+}
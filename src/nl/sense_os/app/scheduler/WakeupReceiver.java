@@ -0,0 +1,16 @@
+package nl.sense_os.app.scheduler;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the wakeup alarm of the {@link WakeupScheduler}.
+ */
+public class WakeupReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        WakeupScheduler.getInstance(context).onWakeup();
+    }
+}
@@ -0,0 +1,196 @@
+package nl.sense_os.app.scheduler;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.sense_os.app.energy.EnergyLedger;
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.app.metrics.MetricsRegistry.Gauge;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Central scheduler for the periodic work of the app. All jobs share a single wakeup alarm: a
+ * {@link TickPlanner} aligns the jobs to common ticks and picks the next wakeup, and every job
+ * that is due then runs in the same wake period, on one background thread, under one wake lock.
+ * <br/>
+ * <br/>
+ * The wake lock time, CPU time and wakeups of each job are charged to its module in the
+ * {@link EnergyLedger}. A wakeup is charged once to every module that had a job due.<br/>
+ * <br/>
+ * Jobs live in memory. After the process was killed, the components that scheduled them
+ * schedule them again when the app starts (see {@link nl.sense_os.app.SenseApplication}).
+ */
+public class WakeupScheduler {
+
+    private static final String TAG = "WakeupScheduler";
+    private static final long MAX_WAKE_LOCK = 30 * 1000L;
+    private static final Gauge DUE_JOBS = MetricsRegistry.getInstance().gauge(
+            "scheduler/due jobs");
+    private static WakeupScheduler sInstance;
+
+    public static synchronized WakeupScheduler getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new WakeupScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final TickPlanner mPlanner = new TickPlanner();
+    private final Map<String, Runnable> mTasks = new HashMap<String, Runnable>();
+    private final Map<String, Integer> mModules = new HashMap<String, Integer>();
+    private final Handler mHandler;
+    private final WakeLock mWakeLock;
+
+    private WakeupScheduler(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        PowerManager powerMgr = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerMgr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Removes a job.
+     */
+    public synchronized void cancel(String name) {
+        if (mPlanner.remove(name)) {
+            mTasks.remove(name);
+            mModules.remove(name);
+            Log.v(TAG, "Cancelled " + name);
+            updateAlarm();
+        }
+    }
+
+    private PendingIntent getOperation() {
+        Intent intent = new Intent(mContext, WakeupReceiver.class);
+        return PendingIntent.getBroadcast(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * @return The average number of wakeups per hour of the scheduler
+     */
+    public double getWakeupsPerHour() {
+        return mPlanner.getWakeupsPerHour();
+    }
+
+    /**
+     * Handles the wakeup alarm: runs the due jobs on the background thread. Called from the
+     * {@link WakeupReceiver}, which returns right away, so the wake lock keeps the phone awake
+     * until the jobs are done.
+     */
+    void onWakeup() {
+        mWakeLock.acquire(MAX_WAKE_LOCK);
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runDueJobs();
+                } finally {
+                    mWakeLock.release();
+                }
+            }
+        });
+    }
+
+    private void runDueJobs() {
+        List<String> due = mPlanner.collectDue(SystemClock.elapsedRealtime());
+        DUE_JOBS.set(due.size());
+        EnergyLedger ledger = EnergyLedger.getInstance();
+        boolean[] woken = new boolean[EnergyLedger.MODULE_COUNT];
+        for (String name : due) {
+            Runnable task;
+            int module;
+            synchronized (this) {
+                task = mTasks.get(name);
+                Integer value = mModules.get(name);
+                module = null != value ? value : EnergyLedger.OTHER;
+            }
+            if (null == task) {
+                continue;
+            }
+            if (!woken[module]) {
+                woken[module] = true;
+                ledger.add(module, EnergyLedger.WAKEUPS, 1);
+            }
+            long start = SystemClock.elapsedRealtime();
+            long cpuStart = Debug.threadCpuTimeNanos();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Job " + name + " failed!", e);
+            }
+            ledger.add(module, EnergyLedger.WAKE_LOCK, SystemClock.elapsedRealtime() - start);
+            if (cpuStart >= 0) {
+                ledger.add(module, EnergyLedger.CPU, (Debug.threadCpuTimeNanos() - cpuStart)
+                        / 1000);
+            }
+        }
+        Log.v(TAG, "Ran " + due + ", " + Math.round(mPlanner.getWakeupsPerHour())
+                + " wakeups per hour");
+        synchronized (this) {
+            updateAlarm();
+        }
+    }
+
+    /**
+     * Schedules a periodic job, or updates the interval of a scheduled job.
+     *
+     * @param name
+     *            Unique name of the job
+     * @param interval
+     *            Interval in milliseconds
+     * @param flex
+     *            Time in milliseconds that the job may run late, so it can share a wakeup with
+     *            other jobs. Use a larger flex for jobs that are not time critical.
+     * @param task
+     *            The job, runs on the background thread of the scheduler. Long jobs should hold
+     *            their own wake lock.
+     */
+    public synchronized void schedule(String name, long interval, long flex, Runnable task) {
+        schedule(name, EnergyLedger.OTHER, interval, flex, task);
+    }
+
+    /**
+     * Schedules a periodic job of a module, see {@link #schedule(String, long, long, Runnable)}.
+     *
+     * @param module
+     *            Module to charge the energy use of the job to, e.g.
+     *            {@link EnergyLedger#LOCATION}
+     */
+    public synchronized void schedule(String name, int module, long interval, long flex,
+            Runnable task) {
+        mPlanner.add(name, interval, flex, SystemClock.elapsedRealtime());
+        mTasks.put(name, task);
+        mModules.put(name, module);
+        Log.v(TAG, "Scheduled " + name + " every " + interval + " ms (flex " + flex + " ms)");
+        updateAlarm();
+    }
+
+    /**
+     * Sets the single wakeup alarm for the next planned tick.
+     */
+    private void updateAlarm() {
+        AlarmManager alarmMgr = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        long next = mPlanner.nextWakeup();
+        if (next == Long.MAX_VALUE) {
+            alarmMgr.cancel(getOperation());
+        } else {
+            alarmMgr.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, next, getOperation());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package nl.sense_os.app.trace;
+
+import java.io.IOException;
+
+/**
+ * Receives sensor samples as they enter the data pipeline, e.g. a {@link TraceWriter} that
+ * records them, or a stand-in of the pipeline that a {@link TraceReplayer} feeds.
+ */
+public interface SampleSink {
+
+    /**
+     * Handles one sample.
+     *
+     * @param sensor
+     *            Sensor name
+     * @param description
+     *            Sensor description
+     * @param dataType
+     *            CommonSense data type, e.g. "json" or "float"
+     * @param value
+     *            The value, as string
+     * @param timestamp
+     *            Timestamp in milliseconds
+     */
+    void onSample(String sensor, String description, String dataType, String value,
+            long timestamp) throws IOException;
+}
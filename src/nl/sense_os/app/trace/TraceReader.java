@@ -0,0 +1,136 @@
+package nl.sense_os.app.trace;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.sense_os.app.util.VarInts;
+
+/**
+ * Reads the trace format written by {@link TraceWriter}, one sample at a time:
+ *
+ * <pre>
+ * TraceReader reader = new TraceReader(in);
+ * while (reader.next()) {
+ *     sink.onSample(reader.getSensor(), reader.getDescription(), reader.getDataType(),
+ *             reader.getValue(), reader.getTimestamp());
+ * }
+ * </pre>
+ *
+ * A trace without end tag was cut off, e.g. because the app was killed while recording. It is
+ * read up to the last complete sample, see {@link #isCutOff()}.
+ */
+public class TraceReader {
+
+    private final InputStream mIn;
+    private final List<String[]> mSensors = new ArrayList<String[]>();
+    private String[] mSensor;
+    private long mTimestamp;
+    private String mValue;
+    private boolean mCutOff;
+    private byte[] mBuffer = new byte[256];
+
+    public TraceReader(InputStream in) throws IOException {
+        mIn = new BufferedInputStream(in, 8192);
+        for (int i = 0; i < TraceWriter.MAGIC.length; i++) {
+            if (mIn.read() != TraceWriter.MAGIC[i]) {
+                throw new IOException("Not a Sense trace");
+            }
+        }
+        int version = mIn.read();
+        if (version != TraceWriter.VERSION) {
+            throw new IOException("Unsupported trace version: " + version);
+        }
+    }
+
+    public String getDataType() {
+        return mSensor[2];
+    }
+
+    public String getDescription() {
+        return mSensor[1];
+    }
+
+    public String getSensor() {
+        return mSensor[0];
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public String getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return <code>true</code> if the trace ended without end tag
+     */
+    public boolean isCutOff() {
+        return mCutOff;
+    }
+
+    /**
+     * Advances to the next sample.
+     *
+     * @return <code>false</code> if the end of the trace was reached
+     */
+    public boolean next() throws IOException {
+        try {
+            return readRecords();
+        } catch (EOFException e) {
+            mCutOff = true;
+            return false;
+        }
+    }
+
+    private boolean readRecords() throws IOException {
+        while (true) {
+            int tag = mIn.read();
+            switch (tag) {
+            case TraceWriter.TAG_END:
+                return false;
+            case -1:
+                mCutOff = true;
+                return false;
+            case TraceWriter.TAG_SENSOR:
+                int id = (int) VarInts.readVarLong(mIn);
+                if (id != mSensors.size()) {
+                    throw new IOException("Unexpected sensor id: " + id);
+                }
+                mSensors.add(new String[] { readString(), readString(), readString() });
+                break;
+            case TraceWriter.TAG_SAMPLE:
+                int sensorId = (int) VarInts.readVarLong(mIn);
+                if (sensorId >= mSensors.size()) {
+                    throw new IOException("Unknown sensor id: " + sensorId);
+                }
+                mSensor = mSensors.get(sensorId);
+                mTimestamp += VarInts.unzigzag(VarInts.readVarLong(mIn));
+                mValue = readString();
+                return true;
+            default:
+                throw new IOException("Unexpected tag: " + tag);
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        int length = (int) VarInts.readVarLong(mIn);
+        if (length > mBuffer.length) {
+            mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+        }
+        int offset = 0;
+        while (offset < length) {
+            int read = mIn.read(mBuffer, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Trace was cut off");
+            }
+            offset += read;
+        }
+        return new String(mBuffer, 0, length, "UTF-8");
+    }
+}
@@ -0,0 +1,197 @@
+package nl.sense_os.app.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import nl.sense_os.app.R;
+import nl.sense_os.app.constants.AppPrefs;
+import nl.sense_os.app.scheduler.WakeupScheduler;
+import nl.sense_os.service.SenseServiceStub;
+import nl.sense_os.service.constants.SensePrefs.Status;
+import nl.sense_os.service.constants.SensorData.DataPoint;
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Records the samples that enter the MsgHandler of the Sense Platform, from the sensing modules
+ * of the service as well as from the app, to a trace file in the private directory of the app on
+ * the external storage, e.g.
+ * <code>Android/data/nl.sense_os.app/files/traces/1384250000000.trace</code>, or in its internal
+ * storage when there is no external storage (or before Android 2.2). The traces hold all the
+ * sensor data of the user, so they are kept out of the public directories: they are removed with
+ * the app, and from Android 4.4 other apps cannot read them. The trace can be replayed on a
+ * desktop JVM with a {@link TraceReplayer}, see the <code>PipelineReplay</code> benchmark.<br/>
+ * <br/>
+ * The MsgHandler is part of the Sense Platform library, so the recorder cannot see the samples
+ * when they are handed off. It picks up the new samples from the local storage every minute, in
+ * the order of their timestamps, and waits a minute for samples that are stored a little late.
+ * <b>The trace is not complete:</b> samples that are stored more than a minute after their
+ * timestamp, e.g. bursts, samples that waited for a fix, or samples buffered by a sensor, are
+ * missing from the trace. Each start of the recording, also after the app was killed, makes a
+ * new file.
+ */
+public class TraceRecorder {
+
+    private static final String TAG = "TraceRecorder";
+    private static final String JOB = "trace";
+    private static final long INTERVAL = 60 * 1000L;
+    private static final long SETTLE = 60 * 1000L;
+    private static final String[] PROJECTION = new String[] { DataPoint.SENSOR_NAME,
+            DataPoint.SENSOR_DESCRIPTION, DataPoint.DATA_TYPE, DataPoint.TIMESTAMP,
+            DataPoint.VALUE };
+    private static TraceRecorder sInstance;
+
+    public static synchronized TraceRecorder getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = new TraceRecorder(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or stops the recording, depending on the status of the Sense service and the
+     * {@link AppPrefs.Trace#RECORD} preference.
+     */
+    public static void update(Context context, SenseServiceStub service) {
+        boolean active = service.getPrefBool(Status.MAIN, false)
+                && service.getPrefBool(AppPrefs.Trace.RECORD, false);
+        getInstance(context).setActive(active);
+    }
+
+    private final Context mContext;
+    private final Uri mSource;
+    private File mFile;
+    private OutputStream mOut;
+    private TraceWriter mWriter;
+    private long mRecorded;
+
+    private TraceRecorder(Context context) {
+        mContext = context;
+        String authority = context.getString(R.string.local_storage_authority);
+        mSource = Uri.parse("content://" + authority + DataPoint.CONTENT_URI_PATH);
+    }
+
+    /**
+     * @return The directory for the traces, private to the app
+     */
+    @TargetApi(Build.VERSION_CODES.FROYO)
+    private File getTraceDir() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO
+                && Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            File dir = mContext.getExternalFilesDir("traces");
+            if (null != dir) {
+                return dir;
+            }
+        }
+        Log.w(TAG, "External storage not available, recording to the internal storage");
+        return new File(mContext.getFilesDir(), "traces");
+    }
+
+    private void close() {
+        try {
+            mWriter.finish();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to finish trace: " + e.getMessage());
+        }
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        Log.v(TAG, "Recorded " + mWriter.getCount() + " samples in " + mFile);
+        mWriter = null;
+        mOut = null;
+        mFile = null;
+    }
+
+    /**
+     * Appends the samples with timestamps up to a minute ago to the trace. Runs on the thread of
+     * the {@link WakeupScheduler}.
+     */
+    private synchronized void record() {
+        if (null == mWriter) {
+            return;
+        }
+        long to = System.currentTimeMillis() - SETTLE;
+        String where = DataPoint.TIMESTAMP + ">=? AND " + DataPoint.TIMESTAMP + "<?";
+        String[] selectionArgs = new String[] { "" + mRecorded, "" + to };
+        Cursor cursor = null;
+        try {
+            cursor = mContext.getContentResolver().query(mSource, PROJECTION, where,
+                    selectionArgs, DataPoint.TIMESTAMP + " ASC");
+            if (null == cursor) {
+                return;
+            }
+            int nameIdx = cursor.getColumnIndex(DataPoint.SENSOR_NAME);
+            int descriptionIdx = cursor.getColumnIndex(DataPoint.SENSOR_DESCRIPTION);
+            int typeIdx = cursor.getColumnIndex(DataPoint.DATA_TYPE);
+            int timeIdx = cursor.getColumnIndex(DataPoint.TIMESTAMP);
+            int valueIdx = cursor.getColumnIndex(DataPoint.VALUE);
+            while (cursor.moveToNext()) {
+                mWriter.onSample(cursor.getString(nameIdx), cursor.getString(descriptionIdx),
+                        cursor.getString(typeIdx), cursor.getString(valueIdx),
+                        cursor.getLong(timeIdx));
+            }
+            mWriter.flush();
+            mRecorded = to;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write trace, stopping the recording", e);
+            close();
+            WakeupScheduler.getInstance(mContext).cancel(JOB);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read the local storage", e);
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Starts or stops the recording.
+     */
+    public synchronized void setActive(boolean active) {
+        if (active == (null != mWriter)) {
+            return;
+        }
+        WakeupScheduler scheduler = WakeupScheduler.getInstance(mContext);
+        if (!active) {
+            scheduler.cancel(JOB);
+            close();
+            return;
+        }
+
+        File dir = getTraceDir();
+        long now = System.currentTimeMillis();
+        mFile = new File(dir, now + ".trace");
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            mOut = new FileOutputStream(mFile);
+            mWriter = new TraceWriter(mOut);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record a trace", e);
+            mFile = null;
+            mOut = null;
+            return;
+        }
+        mRecorded = now - SETTLE;
+        // the trace should be complete, so it cannot wait for other jobs very long
+        scheduler.schedule(JOB, INTERVAL, INTERVAL / 2, new Runnable() {
+
+            @Override
+            public void run() {
+                record();
+            }
+        });
+        Log.v(TAG, "Recording a trace to " + mFile);
+    }
+}
@@ -0,0 +1,101 @@
+package nl.sense_os.app.trace;
+
+import java.io.IOException;
+
+import nl.sense_os.app.util.LatencyHistogram;
+
+/**
+ * Feeds a recorded trace into a {@link SampleSink} at the pace it was recorded, faster, or as
+ * fast as the sink takes the samples. Each sample is due at its offset from the first sample in
+ * the trace, divided by the speed. The replayer sleeps until a sample is due, and counts how late
+ * each sample was handed to the sink, which grows when the sink cannot keep up.<br/>
+ * <br/>
+ * Samples that are out of order in the trace are handed over as soon as they are read.
+ */
+public class TraceReplayer {
+
+    /**
+     * Speed to replay the samples without waiting.
+     */
+    public static final float MAX_SPEED = 0;
+
+    private final float mSpeed;
+    private final LatencyHistogram mLateness = new LatencyHistogram();
+    private long mSamples;
+    private long mTraceTime;
+    private long mWallTime;
+
+    /**
+     * @param speed
+     *            Speed relative to the recording, e.g. 1 or 10, or {@link #MAX_SPEED}
+     */
+    public TraceReplayer(float speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * @return How late the samples were handed to the sink, in milliseconds
+     */
+    public LatencyHistogram getLateness() {
+        return mLateness;
+    }
+
+    /**
+     * @return The number of samples replayed
+     */
+    public long getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return The time in milliseconds between the first and the last sample in the traces
+     */
+    public long getTraceTime() {
+        return mTraceTime;
+    }
+
+    /**
+     * @return The time in milliseconds that the replays took
+     */
+    public long getWallTime() {
+        return mWallTime;
+    }
+
+    /**
+     * Replays a trace. Can be called for several traces in a row; the statistics add up.
+     *
+     * @throws IOException
+     *             If the trace cannot be read, or the sink fails
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting for a sample
+     */
+    public void replay(TraceReader reader, SampleSink sink) throws IOException,
+            InterruptedException {
+        long start = System.nanoTime();
+        long first = 0;
+        long last = 0;
+        boolean started = false;
+        while (reader.next()) {
+            long timestamp = reader.getTimestamp();
+            if (!started) {
+                first = timestamp;
+                last = timestamp;
+                started = true;
+            }
+            last = Math.max(last, timestamp);
+            if (mSpeed > 0) {
+                long due = start + (long) ((timestamp - first) * 1000000d / mSpeed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+                mLateness.record((System.nanoTime() - due) / 1000000);
+            }
+            sink.onSample(reader.getSensor(), reader.getDescription(), reader.getDataType(),
+                    reader.getValue(), timestamp);
+            mSamples++;
+        }
+        mTraceTime += last - first;
+        mWallTime += (System.nanoTime() - start) / 1000000;
+    }
+}
@@ -0,0 +1,97 @@
+package nl.sense_os.app.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.sense_os.app.util.VarInts;
+
+/**
+ * Records sensor samples in a compact trace format, like the binary export format of
+ * {@link nl.sense_os.app.export.BinaryRowEncoder}. The stream starts with the magic bytes
+ * <code>SNST</code> and a version byte, followed by tagged records:
+ * <ul>
+ * <li>{@link #TAG_SENSOR}: sensor id (varint), then the name, description and data type, each
+ * as length (varint) and UTF-8 bytes. Written the first time a sensor occurs, so samples only
+ * carry the small id.</li>
+ * <li>{@link #TAG_SAMPLE}: sensor id (varint), timestamp delta to the previous sample (zigzag
+ * varint), value length (varint), UTF-8 value bytes.</li>
+ * <li>{@link #TAG_END}: end of the trace.</li>
+ * </ul>
+ * A sensor is a name with a description, e.g. the "position" of the GPS and of the network
+ * provider are two sensors. Use {@link TraceReader} to read the trace back.<br/>
+ * <br/>
+ * Samples can be written from several threads.
+ */
+public class TraceWriter implements SampleSink {
+
+    static final byte[] MAGIC = { 'S', 'N', 'S', 'T' };
+    static final int VERSION = 1;
+    static final int TAG_END = 0;
+    static final int TAG_SENSOR = 1;
+    static final int TAG_SAMPLE = 2;
+
+    private final OutputStream mOut;
+    private final Map<String, Integer> mSensorIds = new HashMap<String, Integer>();
+    private long mLastTimestamp;
+    private long mCount;
+
+    public TraceWriter(OutputStream out) throws IOException {
+        mOut = new BufferedOutputStream(out, 8192);
+        mOut.write(MAGIC);
+        mOut.write(VERSION);
+    }
+
+    /**
+     * Writes the end of the trace and flushes it. Does not close the stream.
+     */
+    public synchronized void finish() throws IOException {
+        mOut.write(TAG_END);
+        mOut.flush();
+    }
+
+    /**
+     * Flushes the buffered samples, so that the trace is complete up to here if the app is
+     * killed.
+     */
+    public synchronized void flush() throws IOException {
+        mOut.flush();
+    }
+
+    /**
+     * @return The number of samples written
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized void onSample(String sensor, String description, String dataType,
+            String value, long timestamp) throws IOException {
+        String key = sensor + '\n' + description;
+        Integer id = mSensorIds.get(key);
+        if (null == id) {
+            id = mSensorIds.size();
+            mSensorIds.put(key, id);
+            mOut.write(TAG_SENSOR);
+            VarInts.writeVarLong(mOut, id);
+            writeString(sensor);
+            writeString(description);
+            writeString(dataType);
+        }
+        mOut.write(TAG_SAMPLE);
+        VarInts.writeVarLong(mOut, id);
+        VarInts.writeVarLong(mOut, VarInts.zigzag(timestamp - mLastTimestamp));
+        writeString(value);
+        mLastTimestamp = timestamp;
+        mCount++;
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = null == s ? new byte[0] : s.getBytes("UTF-8");
+        VarInts.writeVarLong(mOut, bytes.length);
+        mOut.write(bytes);
+    }
+}
@@ -0,0 +1,43 @@
+package nl.sense_os.app.util;
+
+/**
+ * Standard Base64 encoding (RFC 4648, with padding), for binary data that has to travel as a
+ * string data point value. Android only provides this from API level 8.
+ */
+public class Base64 {
+
+    private static final char[] ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+            + "0123456789+/").toCharArray();
+
+    /**
+     * @return The Base64 encoding of the data, without line breaks
+     */
+    public static String encode(byte[] data) {
+        char[] out = new char[(data.length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[o++] = ALPHABET[(bits >>> 6) & 0x3F];
+            out[o++] = ALPHABET[bits & 0x3F];
+        }
+        int remaining = data.length - i;
+        if (remaining > 0) {
+            int bits = (data[i] & 0xFF) << 16;
+            if (remaining == 2) {
+                bits |= (data[i + 1] & 0xFF) << 8;
+            }
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3F];
+            out[o++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3F] : '=';
+            out[o++] = '=';
+        }
+        return new String(out);
+    }
+
+    private Base64() {
+        // class should not be instantiated
+    }
+}
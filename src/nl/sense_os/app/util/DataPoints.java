@@ -0,0 +1,56 @@
+package nl.sense_os.app.util;
+
+import nl.sense_os.app.R;
+import nl.sense_os.app.metrics.MetricsRegistry;
+import nl.sense_os.service.constants.SensorData.DataPoint;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Helper to hand data points that are produced by the app to the MsgHandler of the Sense
+ * Platform, which stores them and uploads them to CommonSense together with the data of the
+ * regular sensing modules.
+ */
+public class DataPoints {
+
+    private static final MetricsRegistry METRICS = MetricsRegistry.getInstance();
+    private static final LatencyHistogram PERSIST_LATENCY = METRICS
+            .histogram("persist/hand-off (us)");
+    private static final MetricsRegistry.Family INGEST = METRICS.family("ingest/");
+
+    /**
+     * Sends a new data point to the MsgHandler. Counts the data point in the metric
+     * <code>"ingest/&lt;sensor&gt;"</code>, and the time to hand it to the MsgHandler, which
+     * stores it asynchronously.
+     *
+     * @param context
+     *            Context to start the MsgHandler service
+     * @param sensor
+     *            Sensor name
+     * @param description
+     *            Sensor description
+     * @param dataType
+     *            CommonSense data type, e.g. "json" or "float"
+     * @param value
+     *            The value, as string
+     * @param timestamp
+     *            Timestamp in milliseconds
+     */
+    public static void send(Context context, String sensor, String description, String dataType,
+            String value, long timestamp) {
+        long start = System.nanoTime();
+        Intent intent = new Intent(context.getString(R.string.action_msghandler_new_data));
+        intent.putExtra(DataPoint.SENSOR_NAME, sensor);
+        intent.putExtra(DataPoint.SENSOR_DESCRIPTION, description);
+        intent.putExtra(DataPoint.DATA_TYPE, dataType);
+        intent.putExtra(DataPoint.VALUE, value);
+        intent.putExtra(DataPoint.TIMESTAMP, timestamp);
+        context.startService(intent);
+        PERSIST_LATENCY.record((System.nanoTime() - start) / 1000);
+        INGEST.counter(sensor).increment();
+    }
+
+    private DataPoints() {
+        // class should not be instantiated
+    }
+}
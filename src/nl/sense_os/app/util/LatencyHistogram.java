@@ -0,0 +1,122 @@
+package nl.sense_os.app.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram for latencies and other non-negative values. Values are counted in
+ * log-linear buckets: every power of two is split into {@link #SUB_BUCKETS} equal buckets, so a
+ * percentile is accurate to within about 12% of its value, whatever the range.<br/>
+ * <br/>
+ * The buckets are allocated once. Recording is lock-free and does not allocate, so it can be done
+ * on sensor and I/O threads; reading percentiles while recording gives a consistent enough
+ * approximation.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * @return The bucket index of a value
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int mantissa = (int) (value >>> exponent) & (SUB_BUCKETS - 1);
+        return (exponent + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /**
+     * @return The highest value that is counted in the bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public long getCount() {
+        return mTotal.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return The mean of the recorded values, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = mTotal.get();
+        return count > 0 ? (double) mSum.get() / count : 0;
+    }
+
+    /**
+     * @param percentile
+     *            Percentile between 0 and 100, e.g. 99
+     * @return The upper bound of the bucket that contains the percentile (capped at the
+     *         maximum), or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = mTotal.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Counts a value. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        mCounts.incrementAndGet(bucketOf(value));
+        mTotal.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Clears all counts.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotal.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * @return Summary with the count and the main percentiles, for logging
+     */
+    @Override
+    public String toString() {
+        return "count: " + getCount() + ", p50: " + getPercentile(50) + ", p90: "
+                + getPercentile(90) + ", p99: " + getPercentile(99) + ", max: " + getMax();
+    }
+}
@@ -0,0 +1,67 @@
+package nl.sense_os.app.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Helpers for the variable length integer encoding that is used in the compact binary formats of
+ * the app. Values are written 7 bits at a time, least significant group first, with the high bit
+ * of each byte set if more bytes follow. Signed values are zigzag encoded first, so small negative
+ * numbers stay small.
+ */
+public class VarInts {
+
+    /**
+     * Reads an unsigned variable length long from the stream.
+     *
+     * @throws EOFException
+     *             If the stream ends in the middle of the value
+     */
+    public static long readVarLong(InputStream in) throws IOException {
+        long result = 0;
+        int shift = 0;
+        while (shift < 64) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Stream ended inside variable length integer");
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /**
+     * Writes an unsigned variable length long to the stream.
+     */
+    public static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * @return The zigzag encoding of a signed value, e.g. 0, -1, 1, -2 become 0, 1, 2, 3.
+     */
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * @return The signed value of a zigzag encoded value.
+     */
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private VarInts() {
+        // class should not be instantiated
+    }
+}